@@ -0,0 +1,93 @@
+package org.home.sync.bench;
+
+import org.home.sync.export.ExportResult;
+import org.home.sync.export.RecordingExporter;
+import org.home.sync.recording.index.SegmentIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+/**
+ * Mide en GB/s la exportación de grabaciones con {@link RecordingExporter} sobre segmentos sintéticos.
+ * <p>
+ * Crea en un directorio temporal {@code segmentos × MB} de paquetes MPEG-TS nulos con su índice y los exporta
+ * enteros varias veces, a un fichero del mismo disco y a {@code /dev/null}. La primera vuelta lee del disco; las
+ * siguientes, del page cache, que es lo habitual al exportar lo recién grabado. Se ejecuta con
+ * {@code ./gradlew exportBenchmark}; el número de segmentos y su tamaño en MB se pueden pasar como argumentos.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ExportBenchmark {
+
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final int DEFAULT_SEGMENT_MB = 64;
+    private static final int ROUNDS = 3;
+    private static final int PACKET_SIZE = 188;
+
+    public static void main(String[] args) throws Exception {
+        int segments = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SEGMENTS;
+        int segmentMb = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SEGMENT_MB;
+
+        Path directory = Files.createTempDirectory("export-bench");
+        Path output = directory.resolve("export.ts");
+        try (SegmentIndex index = new SegmentIndex(directory)) {
+            long start = System.currentTimeMillis() - segments * 300_000L;
+            for (int i = 0; i < segments; i++) {
+                String name = "segment_" + i + ".ts";
+                long bytes = writeSegment(directory.resolve(name), segmentMb);
+                index.append(start + i * 300_000L, 300_000L, bytes, name);
+            }
+
+            RecordingExporter exporter = new RecordingExporter(0);
+            System.out.printf("%10s %8s %12s %10s%n", "destino", "vuelta", "bytes", "GB/s");
+            for (int round = 1; round <= ROUNDS; round++) {
+                try (FileChannel target = FileChannel.open(output, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    print("fichero", round, exporter.export(directory, index, 0, Long.MAX_VALUE, target));
+                }
+                try (FileChannel target = FileChannel.open(Path.of("/dev/null"), StandardOpenOption.WRITE)) {
+                    print("/dev/null", round, exporter.export(directory, index, 0, Long.MAX_VALUE, target));
+                }
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static long writeSegment(Path file, int megabytes) throws IOException {
+        ByteBuffer packets = ByteBuffer.allocateDirect(PACKET_SIZE * 5577);
+        for (int position = 0; position < packets.capacity(); position += PACKET_SIZE) {
+            packets.put(position, (byte) 0x47).put(position + 1, (byte) 0x1F).put(position + 2, (byte) 0xFF)
+                    .put(position + 3, (byte) 0x10);
+        }
+        long size = megabytes * 1024L * 1024 / PACKET_SIZE * PACKET_SIZE;
+        long bytes = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytes < size) {
+                packets.clear();
+                packets.limit((int) Math.min(packets.capacity(), size - bytes));
+                while (packets.hasRemaining()) {
+                    bytes += channel.write(packets);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static void print(String target, int round, ExportResult result) {
+        System.out.printf("%10s %8d %12d %10.2f%n", target, round, result.getBytes(),
+                result.getBytesPerSecond() / 1e9);
+    }
+}
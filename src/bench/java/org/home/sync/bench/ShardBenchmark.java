@@ -0,0 +1,223 @@
+package org.home.sync.bench;
+
+import org.home.sync.cluster.ShardCoordinator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Mide el reparto de cámaras entre varias instancias con {@link ShardCoordinator}, cada una en su propia JVM y todas
+ * en esta máquina, compartiendo un directorio temporal.
+ * <p>
+ * Cada instancia ({@link Node}) sólo reparte nombres de cámara, sin grabar, y escribe en un fichero las que tiene.
+ * Se arrancan N instancias y se espera a que cada cámara tenga exactamente un dueño; se añade una más y se mide qué
+ * parte de las cámaras cambia de dueño (lo ideal es 1/(N+1)) y cuánto tarda; y por último se mata una instancia con
+ * SIGKILL y se mide cuánto tardan las demás en quedarse con sus cámaras (como mucho una concesión y una vuelta).
+ * </p>
+ * <p>
+ * Se ejecuta con {@code ./gradlew shardBenchmark}; admite como argumentos el número de cámaras (1000), de instancias
+ * iniciales (3) y los segundos de la concesión (3).
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ShardBenchmark {
+
+    /**
+     * Plazo máximo de cada fase.
+     */
+    private static final long PHASE_TIMEOUT_MILLIS = 120_000;
+
+    /**
+     * Una instancia en su propia JVM.
+     */
+    private static final class Instance {
+
+        final String id;
+        final Process process;
+        final Path owned;
+
+        Instance(String id, Process process, Path owned) {
+            this.id = id;
+            this.process = process;
+            this.owned = owned;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int cameras = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int instances = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int leaseSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        Path directory = Files.createTempDirectory("shard-bench");
+        List<Instance> running = new ArrayList<>();
+        try {
+            System.out.println(cameras + " cámaras, concesión de " + leaseSeconds + " s");
+
+            long start = System.nanoTime();
+            for (int i = 0; i < instances; i++) {
+                running.add(launch(directory, "node-" + i, cameras, leaseSeconds));
+            }
+            Map<String, String> before = awaitStable(running, cameras);
+            System.out.printf("%d instancias: reparto estable en %d ms, %s%n", instances, elapsed(start),
+                    counts(before));
+
+            start = System.nanoTime();
+            Instance added = launch(directory, "node-" + instances, cameras, leaseSeconds);
+            running.add(added);
+            Map<String, String> after = awaitStable(running, cameras);
+            int moved = 0;
+            for (Map.Entry<String, String> camera : after.entrySet()) {
+                if (!camera.getValue().equals(before.get(camera.getKey()))) {
+                    moved++;
+                }
+            }
+            System.out.printf("Añadida %s: reparto estable en %d ms, %s%n", added.id, elapsed(start),
+                    counts(after));
+            System.out.printf("  cambian de dueño %d cámaras (%.1f%%, ideal %.1f%%)%n", moved,
+                    100.0 * moved / cameras, 100.0 / running.size());
+
+            Instance killed = running.remove(0);
+            long orphaned = after.values().stream().filter(killed.id::equals).count();
+            start = System.nanoTime();
+            killed.process.destroyForcibly().waitFor();
+            Map<String, String> survived = awaitStable(running, cameras);
+            long takeover = elapsed(start);
+            System.out.printf("Matada %s (%d cámaras): reparto estable en %d ms (concesión %d ms), %s%n",
+                    killed.id, orphaned, takeover, TimeUnit.SECONDS.toMillis(leaseSeconds), counts(survived));
+        } finally {
+            for (Instance instance : running) {
+                instance.process.destroy();
+            }
+            for (Instance instance : running) {
+                instance.process.waitFor(10, TimeUnit.SECONDS);
+            }
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static Instance launch(Path directory, String id, int cameras, int leaseSeconds) throws IOException {
+        Path owned = directory.resolve(id + ".owned");
+        Process process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), Node.class.getName(),
+                directory.resolve("shared").toString(), id, String.valueOf(cameras), String.valueOf(leaseSeconds),
+                owned.toString())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        return new Instance(id, process, owned);
+    }
+
+    /**
+     * Espera a que cada cámara tenga exactamente un dueño entre las instancias vivas, todas tengan alguna y el reparto
+     * no cambie durante medio segundo.
+     *
+     * @return el dueño de cada cámara.
+     */
+    private static Map<String, String> awaitStable(List<Instance> running, int cameras) throws Exception {
+        long deadline = System.currentTimeMillis() + PHASE_TIMEOUT_MILLIS;
+        Map<String, String> previous = null;
+        long stableSince = 0;
+        while (System.currentTimeMillis() < deadline) {
+            Map<String, String> owners = owners(running, cameras);
+            if (owners == null) {
+                previous = null;
+            } else if (!owners.equals(previous)) {
+                previous = owners;
+                stableSince = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - stableSince >= 500) {
+                return owners;
+            }
+            Thread.sleep(50);
+        }
+        throw new IllegalStateException("El reparto no se ha estabilizado en " + PHASE_TIMEOUT_MILLIS + " ms");
+    }
+
+    /**
+     * @return el dueño de cada cámara, o {@code null} si alguna no tiene dueño o tiene más de uno, o alguna instancia
+     * no tiene ninguna.
+     */
+    private static Map<String, String> owners(List<Instance> running, int cameras) throws IOException {
+        Map<String, String> owners = new HashMap<>();
+        for (Instance instance : running) {
+            List<String> owned;
+            try {
+                owned = Files.readAllLines(instance.owned);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+            if (owned.isEmpty()) {
+                return null;
+            }
+            for (String camera : owned) {
+                if (owners.put(camera, instance.id) != null) {
+                    return null;
+                }
+            }
+        }
+        return owners.size() == cameras ? owners : null;
+    }
+
+    private static String counts(Map<String, String> owners) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        owners.values().stream().sorted().forEach(id -> counts.merge(id, 1, Integer::sum));
+        return counts.toString();
+    }
+
+    private static long elapsed(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Una instancia: reparte las cámaras con las demás y escribe en un fichero, entero de una vez, las que tiene cada
+     * vez que cambian.
+     * <p>
+     * Argumentos: directorio compartido, nombre, número de cámaras, segundos de la concesión y fichero de salida.
+     * </p>
+     */
+    public static final class Node {
+
+        public static void main(String[] args) throws Exception {
+            Path directory = Path.of(args[0]);
+            String id = args[1];
+            int cameras = Integer.parseInt(args[2]);
+            long leaseMillis = TimeUnit.SECONDS.toMillis(Integer.parseInt(args[3]));
+            Path output = Path.of(args[4]);
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+            ShardCoordinator[] coordinator = new ShardCoordinator[1];
+            coordinator[0] = new ShardCoordinator(directory, id, leaseMillis, scheduler, () -> {
+                Path tmp = output.resolveSibling(output.getFileName() + ".tmp");
+                try {
+                    Files.write(tmp, coordinator[0].getOwned());
+                    Files.move(tmp, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                coordinator[0].close();
+                scheduler.shutdownNow();
+            }));
+            List<String> names = new ArrayList<>(cameras);
+            for (int i = 0; i < cameras; i++) {
+                names.add(String.format("camara-%04d", i));
+            }
+            coordinator[0].start();
+            coordinator[0].setCameras(names);
+            Thread.currentThread().join();
+        }
+    }
+}
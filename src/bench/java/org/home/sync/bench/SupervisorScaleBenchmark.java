@@ -0,0 +1,110 @@
+package org.home.sync.bench;
+
+import org.home.sync.config.CameraConfig;
+import org.home.sync.manager.CameraSupervisor;
+import org.home.sync.recording.CameraState;
+import org.home.sync.recording.StreamQuality;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+/**
+ * Mide cómo crecen los hilos y la memoria residente (RSS) de la JVM según aumenta el número de cámaras
+ * vigiladas por el {@link CameraSupervisor}.
+ * <p>
+ * En lugar de FFmpeg se lanza un script que sólo hace {@code sleep}, así que lo que se mide es el coste del
+ * supervisor y no el de la grabación. Se ejecuta con {@code ./gradlew supervisorBenchmark}; las cantidades de
+ * cámaras se pueden cambiar pasándolas como argumentos.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class SupervisorScaleBenchmark {
+
+    /**
+     * Cantidades de cámaras que se prueban si no se indican otras.
+     */
+    private static final int[] DEFAULT_CAMERA_COUNTS = {10, 50, 100, 250, 500};
+
+    /**
+     * Milisegundos que se deja estabilizar cada escenario antes de medir.
+     */
+    private static final long SETTLE_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        Path fakeFfmpeg = Files.createTempFile("fake-ffmpeg", ".sh");
+        Files.writeString(fakeFfmpeg, "#!/bin/sh\nexec sleep 100000\n");
+        Files.setPosixFilePermissions(fakeFfmpeg, PosixFilePermissions.fromString("rwx------"));
+        // Tiene que fijarse antes de cargar VideoRecorder, que lo lee en su inicialización estática.
+        System.setProperty("ffmpeg.path", fakeFfmpeg.toString());
+
+        int[] counts = DEFAULT_CAMERA_COUNTS;
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.printf("%8s %10s %14s %14s %10s%n", "cámaras", "hilos", "process-reaper", "grabando", "RSS (MB)");
+        for (int count : counts) {
+            runScenario(count);
+        }
+        Files.deleteIfExists(fakeFfmpeg);
+    }
+
+    /**
+     * Arranca {@code count} cámaras, mide y las para.
+     *
+     * @param count número de cámaras.
+     */
+    private static void runScenario(int count) throws Exception {
+        try (CameraSupervisor supervisor = new CameraSupervisor()) {
+            for (int i = 0; i < count; i++) {
+                supervisor.start(camera(i));
+            }
+            Thread.sleep(SETTLE_MILLIS);
+
+            long reapers = Thread.getAllStackTraces().keySet().stream()
+                    .filter(t -> t.getName().startsWith("process reaper"))
+                    .count();
+            int recording = supervisor.getStateCounts().getOrDefault(CameraState.RECORDING, 0);
+            System.out.printf("%8d %10d %14d %14d %10d%n", count,
+                    ManagementFactory.getThreadMXBean().getThreadCount(), reapers, recording, rssMegabytes());
+        }
+    }
+
+    /**
+     * @param index índice de la cámara.
+     * @return una configuración de cámara ficticia.
+     */
+    private static CameraConfig camera(int index) throws IOException {
+        CameraConfig config = new CameraConfig(String.format("bench-cam-%04d", index), "user", "password",
+                "127.0.0.1", 554, StreamQuality.STREAM2, null);
+        // códecs fijos: así no se lanza ffprobe contra una cámara que no existe
+        config.setVideoCodec("copy");
+        config.setAudioCodec("copy");
+        return config;
+    }
+
+    /**
+     * @return la memoria residente de la JVM en MB, leída de {@code /proc/self/status}, o -1 si no está disponible.
+     */
+    private static long rssMegabytes() throws IOException {
+        Path status = Path.of("/proc/self/status");
+        if (!Files.exists(status)) {
+            return -1;
+        }
+        List<String> lines = Files.readAllLines(status);
+        for (String line : lines) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,85 @@
+package org.home.sync.config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide lo que cuesta leer la configuración de las cámaras, que se hace al arrancar y en cada recarga del fichero.
+ * <p>
+ * {@link #parse()} mide sólo la lectura y validación del {@link CameraConfigLoader} (el fichero ya está en memoria);
+ * {@link #readFile()} mide el camino completo de {@link CameraConfig#fromPath(Path)}, lectura del disco incluida.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConfigParsingBenchmark {
+
+    /**
+     * Número de cámaras del fichero.
+     */
+    @Param({"1000", "10000", "50000"})
+    public int cameras;
+
+    private byte[] json;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        StringBuilder builder = new StringBuilder("[\n");
+        for (int i = 0; i < cameras; i++) {
+            if (i > 0) {
+                builder.append(",\n");
+            }
+            builder.append("{\"name\":\"cam-").append(i).append("\",")
+                    .append("\"user\":\"admin\",\"password\":\"secret\",")
+                    .append("\"ip\":\"10.").append(i >> 16 & 0xff).append('.').append(i >> 8 & 0xff).append('.')
+                    .append(i & 0xff).append("\",")
+                    .append("\"port\":554,\"stream\":\"stream").append(1 + i % 2).append("\",")
+                    .append("\"segmentTime\":300,\"retentionDays\":14");
+            if (i % 10 == 0) {
+                // una de cada diez cámaras se replica
+                builder.append(",\"cloneRTSPStream\":{\"rtspSever\":\"127.0.0.1\",")
+                        .append("\"outputEndpoints\":[\"cam-").append(i).append("-a\",\"cam-").append(i)
+                        .append("-b\"]}");
+            }
+            builder.append('}');
+        }
+        json = builder.append("\n]").toString().getBytes(StandardCharsets.UTF_8);
+        file = Files.createTempFile("cameras-bench", ".json");
+        Files.write(file, json);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public List<CameraConfig> parse() throws IOException {
+        return CameraConfig.fromJson(new ByteArrayInputStream(json), "benchmark");
+    }
+
+    @Benchmark
+    public List<CameraConfig> readFile() throws IOException {
+        return CameraConfig.fromPath(file);
+    }
+}
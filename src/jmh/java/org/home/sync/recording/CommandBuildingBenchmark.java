@@ -0,0 +1,90 @@
+package org.home.sync.recording;
+
+import org.home.sync.config.CameraConfig;
+import org.home.sync.config.RTSPCloneConfig;
+import org.home.sync.recording.progress.ProgressServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide la construcción de la línea de comandos de FFmpeg ({@link VideoRecorder#buildCommand}), que se repite en
+ * cada reinicio de cada cámara, y la de las URLs de réplica ({@link RTSPCloneConfig#getRtspServers()}), que crea una
+ * lista nueva en cada llamada.
+ * <p>
+ * No se lanza ningún proceso: sólo se construyen los argumentos.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandBuildingBenchmark {
+
+    /**
+     * Número de servidores de réplica; con 0 la cámara sólo graba.
+     */
+    @Param({"0", "1", "4"})
+    public int relays;
+
+    private ScheduledExecutorService scheduler;
+    private ProgressServer progressServer;
+    private VideoRecorder recorder;
+    private RTSPCloneConfig clone;
+    private CodecSelection codecs;
+    private String rtspUrl;
+    private String outputPattern;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (relays > 0) {
+            clone = new RTSPCloneConfig();
+            List<String> endpoints = new ArrayList<>();
+            for (int i = 0; i < relays; i++) {
+                endpoints.add("bench-cam-relay" + i);
+            }
+            clone.setOutputEndpoints(endpoints);
+        }
+        CameraConfig config = new CameraConfig("bench-cam", "user", "password", "127.0.0.1", 554,
+                StreamQuality.STREAM2, clone);
+        config.setVideoCodec(VideoRecorder.VIDEO_COPY_VALUE);
+        config.setAudioCodec(VideoRecorder.AUDIO_COPY_VALUE);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        progressServer = new ProgressServer();
+        recorder = new VideoRecorder(config, new RecorderServices(scheduler, progressServer, new CodecProbe()));
+        codecs = CodecSelection.resolve(config, null);
+        rtspUrl = config.getRtspUrl();
+        outputPattern = config.getName() + "/" + VideoRecorder.SEGMENT_FILE_PATTERN;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        progressServer.close();
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public List<String> buildCommand() {
+        return recorder.buildCommand(rtspUrl, outputPattern, codecs);
+    }
+
+    @Benchmark
+    public List<String> rtspServers() {
+        return clone == null ? null : clone.getRtspServers();
+    }
+}
@@ -0,0 +1,86 @@
+package org.home.sync.recording.progress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide cuánto cuesta leer la salida de FFmpeg con el {@link FfmpegLogForwarder} según cuántas líneas escribe FFmpeg
+ * entre dos revisiones: unas pocas (una cámara sana), cientos (una cámara con errores de decodificación) o decenas de
+ * miles (una cámara en bucle de errores, donde casi todo se suprime por el límite de mensajes).
+ * <p>
+ * Cada operación añade un bloque de líneas al fichero y hace una revisión, como la tarea periódica.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LogDrainBenchmark {
+
+    /**
+     * Tamaño a partir del cual se trunca el fichero, como hace FFmpeg al reiniciarse.
+     */
+    private static final long TRUNCATE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Líneas que escribe FFmpeg entre dos revisiones.
+     */
+    @Param({"10", "1000", "50000"})
+    public int linesPerPoll;
+
+    private Path file;
+    private FileChannel writer;
+    private ByteBuffer block;
+    private FfmpegLogForwarder forwarder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Files.createTempFile("ffmpeg-bench", ".log");
+        writer = FileChannel.open(file, StandardOpenOption.WRITE);
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < linesPerPoll; i++) {
+            lines.append("[h264 @ 0x55d5c8a1e2c0] [warning] error while decoding MB 53 20, bytestream -7 (")
+                    .append(i).append(")\n");
+        }
+        block = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.US_ASCII));
+        forwarder = new FfmpegLogForwarder();
+        forwarder.watch("bench-cam", file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        writer.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void appendAndPoll() throws IOException {
+        if (writer.size() > TRUNCATE_BYTES) {
+            writer.truncate(0);
+            writer.position(0);
+        }
+        block.rewind();
+        while (block.hasRemaining()) {
+            writer.write(block);
+        }
+        forwarder.poll();
+    }
+}
@@ -3,6 +3,7 @@ package org.home.sync;
 import org.home.sync.manager.CameraManager;
 
 import java.io.IOException;
+import java.nio.file.Path;
 
 /**
  * Clase principal de la aplicación que demuestra cómo utilizar el sistema de gestión de cámaras IP.
@@ -31,8 +32,8 @@ import java.io.IOException;
  * <p>
  * Además, se aplican las siguientes configuraciones por defecto:
  * <ul>
- *   <li>Códec de video: libx264</li>
- *   <li>Códec de audio: aac</li>
+ *   <li>Códec de video: auto (copia el de origen si es posible, si no libx264)</li>
+ *   <li>Códec de audio: auto (copia el de origen si es posible, si no aac)</li>
  *   <li>Formato de salida: segment</li>
  *   <li>Duración del segmento: 300 segundos</li>
  *   <li>Reinicio de timestamps: 1</li>
@@ -44,9 +45,9 @@ import java.io.IOException;
  * public class Main {
  *     public static void main(String[] args) {
  *         try (CameraManager manager = new CameraManager("info.json")) {
- *             // El servicio se ejecuta y gestiona automáticamente dentro del bloque
- *             // Aquí puedes realizar otras operaciones si es necesario
- *         } catch (IOException e) {
+ *             // Las cámaras graban hasta que se cierra el servicio
+ *             manager.awaitTermination();
+ *         } catch (IOException | InterruptedException e) {
  *             e.printStackTrace();
  *         }
  *     }
@@ -61,10 +62,20 @@ public class Main {
      * Método principal de la aplicación que carga la configuración de las cámaras IP desde un archivo JSON
      * y las procesa utilizando {@link CameraManager}.
      *
-     * @param args Argumentos de línea de comandos (no se utilizan en este caso).
+     * @param args Argumentos de línea de comandos: opcionalmente, la ruta del archivo de configuración (también se
+     *             puede indicar con la propiedad {@code config.path}). Si se indica, se vigila y los cambios se
+     *             aplican en caliente; si no, se usa {@code info.json} del classpath.
      * @throws IOException Si ocurre un error al cargar el archivo de configuración.
+     * @throws InterruptedException Si se interrumpe la espera del hilo principal.
      */
-    public static void main(String[] args) throws IOException {
-        try(CameraManager cameraManager = new CameraManager("info.json")) {;}
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String configPath = args.length > 0 ? args[0] : System.getProperty("config.path");
+        try(CameraManager cameraManager = configPath != null
+                ? new CameraManager(Path.of(configPath))
+                : new CameraManager("info.json")) {
+            // Al parar la JVM (Ctrl+C, SIGTERM) se paran también los procesos FFmpeg.
+            Runtime.getRuntime().addShutdownHook(new Thread(cameraManager::close, "camera-manager-shutdown"));
+            cameraManager.awaitTermination();
+        }
     }
 }
\ No newline at end of file
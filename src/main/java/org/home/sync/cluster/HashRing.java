@@ -0,0 +1,72 @@
+package org.home.sync.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Anillo de hash consistente: reparte nombres de cámara entre instancias de forma que, al entrar o salir una
+ * instancia, sólo cambian de dueño las cámaras que le tocan a ella (alrededor de 1/N).
+ * <p>
+ * Cada instancia ocupa {@link #VIRTUAL_NODES} puntos del anillo para que el reparto quede equilibrado. El hash es
+ * FNV-1a de 64 bits con la mezcla final de SplitMix64: no depende de la JVM, así que todas las instancias calculan el
+ * mismo reparto con la misma lista de instancias.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class HashRing {
+
+    /**
+     * Puntos del anillo por instancia.
+     */
+    static final int VIRTUAL_NODES = 128;
+
+    private final long[] points;
+    private final String[] owners;
+
+    /**
+     * @param members las instancias; no puede estar vacío.
+     */
+    HashRing(Collection<String> members) {
+        long[][] entries = new long[members.size() * VIRTUAL_NODES][];
+        String[] names = members.stream().sorted().toArray(String[]::new);
+        int n = 0;
+        for (int m = 0; m < names.length; m++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                entries[n++] = new long[]{hash(names[m] + "#" + v), m};
+            }
+        }
+        // a igual hash decide el nombre, para que el orden no dependa de la entrada
+        Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        this.points = new long[entries.length];
+        this.owners = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i][0];
+            owners[i] = names[(int) entries[i][1]];
+        }
+    }
+
+    /**
+     * @param key el nombre de la cámara.
+     * @return la instancia a la que le toca: la del primer punto del anillo a partir de su hash.
+     */
+    String owner(String key) {
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
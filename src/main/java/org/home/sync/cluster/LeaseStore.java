@@ -0,0 +1,255 @@
+package org.home.sync.cluster;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Concesiones y latidos de las instancias guardados como ficheros en un directorio compartido.
+ * <p>
+ * Cada instancia escribe en {@code members/<instancia>.member} su nombre y hasta cuándo está viva, y cada cámara con
+ * dueño tiene un {@code leases/<camara>.lease} con el nombre del dueño y hasta cuándo le pertenece. Los instantes son
+ * epoch millis, así que los relojes de las máquinas tienen que estar razonablemente sincronizados (NTP).
+ * </p>
+ * <p>
+ * Las concesiones se crean con {@link StandardOpenOption#CREATE_NEW}, de modo que sólo una instancia puede crear la
+ * de una cámara libre, y se renuevan escribiendo a un temporal que se renombra encima. Para quitar una concesión
+ * caducada se renombra el fichero a uno propio y se comprueba que lo renombrado es lo que se leyó: si otra instancia
+ * la renovó o la quitó antes, se devuelve o se desiste. Quedan carreras muy estrechas (dos renovaciones cruzadas) que
+ * el {@link ShardCoordinator} resuelve en la siguiente vuelta, porque cada renovación comprueba antes el dueño.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class LeaseStore {
+
+    private static final String MEMBER_SUFFIX = ".member";
+    private static final String LEASE_SUFFIX = ".lease";
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Lo que se leyó de un fichero de concesión o de latido.
+     */
+    static final class Lease {
+
+        final String owner;
+        final long expiresAtMillis;
+
+        Lease(String owner, long expiresAtMillis) {
+            this.owner = owner;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        boolean sameAs(Lease other) {
+            return other != null && owner.equals(other.owner) && expiresAtMillis == other.expiresAtMillis;
+        }
+    }
+
+    private final Path members;
+    private final Path leases;
+    private final String self;
+    private final long leaseMillis;
+
+    /**
+     * @param directory   el directorio compartido; se crea si no existe.
+     * @param self        el nombre de esta instancia.
+     * @param leaseMillis cuánto dura una concesión o un latido sin renovar.
+     * @throws IOException si no se puede crear el directorio.
+     */
+    LeaseStore(Path directory, String self, long leaseMillis) throws IOException {
+        this.members = Files.createDirectories(directory.resolve("members"));
+        this.leases = Files.createDirectories(directory.resolve("leases"));
+        this.self = self;
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Anuncia que esta instancia sigue viva durante otra concesión.
+     */
+    void heartbeat(long nowMillis) throws IOException {
+        replace(members.resolve(fileName(self) + MEMBER_SUFFIX), new Lease(self, nowMillis + leaseMillis));
+    }
+
+    /**
+     * @return las instancias con el latido en vigor. Se borran los latidos que llevan caducados más de diez
+     * concesiones, de instancias que no se cerraron bien.
+     */
+    Set<String> liveMembers(long nowMillis) throws IOException {
+        Set<String> live = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(members, "*" + MEMBER_SUFFIX)) {
+            for (Path file : files) {
+                Lease member = read(file);
+                if (member == null) {
+                    continue;
+                }
+                if (member.expiresAtMillis > nowMillis) {
+                    if (!member.owner.isEmpty()) {
+                        live.add(member.owner);
+                    }
+                } else if (nowMillis - member.expiresAtMillis > 10 * leaseMillis) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Borra el latido de esta instancia, para que las demás repartan sus cámaras sin esperar a que caduque.
+     */
+    void leave() throws IOException {
+        Files.deleteIfExists(members.resolve(fileName(self) + MEMBER_SUFFIX));
+    }
+
+    /**
+     * Intenta conseguir la concesión de una cámara: si está libre o caducada pasa a esta instancia, y si ya era suya
+     * se renueva.
+     *
+     * @return hasta cuándo es de esta instancia, o -1 si es de otra.
+     */
+    long acquire(String camera, long nowMillis) throws IOException {
+        Path file = leaseFile(camera);
+        Lease current = read(file);
+        if (current != null && current.owner.equals(self)) {
+            return renew(camera, nowMillis);
+        }
+        if (current != null && current.expiresAtMillis > nowMillis) {
+            return -1;
+        }
+        if (current != null) {
+            Path stale = file.resolveSibling(file.getFileName() + "." + fileName(self) + ".stale");
+            try {
+                move(file, stale);
+            } catch (NoSuchFileException e) {
+                return -1;
+            }
+            Lease moved = read(stale);
+            if (!current.sameAs(moved)) {
+                // alguien la renovó o la cogió entre la lectura y el renombrado: se le devuelve
+                try {
+                    Files.move(stale, file);
+                } catch (FileAlreadyExistsException e) {
+                    Files.deleteIfExists(stale);
+                }
+                return -1;
+            }
+            Files.deleteIfExists(stale);
+        }
+        long expiresAt = nowMillis + leaseMillis;
+        try {
+            Files.write(file, encode(new Lease(self, expiresAt)), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            return -1;
+        }
+        return expiresAt;
+    }
+
+    /**
+     * Renueva una concesión de esta instancia.
+     *
+     * @return hasta cuándo es de esta instancia, o -1 si ya no lo es (caducó y la cogió otra).
+     */
+    long renew(String camera, long nowMillis) throws IOException {
+        Path file = leaseFile(camera);
+        Lease current = read(file);
+        if (current == null || !current.owner.equals(self)) {
+            return -1;
+        }
+        long expiresAt = nowMillis + leaseMillis;
+        replace(file, new Lease(self, expiresAt));
+        return expiresAt;
+    }
+
+    /**
+     * Suelta la concesión de una cámara, si todavía es de esta instancia.
+     */
+    void release(String camera) throws IOException {
+        Path file = leaseFile(camera);
+        Lease current = read(file);
+        if (current != null && current.owner.equals(self)) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private Path leaseFile(String camera) {
+        return leases.resolve(fileName(camera) + LEASE_SUFFIX);
+    }
+
+    /**
+     * Escribe un fichero completo de una vez: nadie lo ve a medias.
+     */
+    private void replace(Path file, Lease lease) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + "." + fileName(self) + ".tmp");
+        Files.write(tmp, encode(lease));
+        move(tmp, file);
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return lo que hay en el fichero, o {@code null} si no existe. Un fichero que no se entiende (recién creado y
+     * aún vacío, o cortado) se da por concedido a nadie hasta una concesión después de su última modificación.
+     */
+    private Lease read(Path file) throws IOException {
+        byte[] content;
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(file).toMillis();
+            content = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        String[] lines = new String(content, StandardCharsets.UTF_8).split("\n");
+        if (lines.length >= 2 && !lines[0].isEmpty()) {
+            try {
+                return new Lease(lines[0], Long.parseLong(lines[1].trim()));
+            } catch (NumberFormatException e) {
+                // se trata como ilegible
+            }
+        }
+        return new Lease("", modified + leaseMillis);
+    }
+
+    private static byte[] encode(Lease lease) {
+        return (lease.owner + "\n" + lease.expiresAtMillis + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Codifica un nombre para usarlo en un fichero: las letras y números ASCII, {@code .}, {@code _} y {@code -} se
+     * quedan igual y cada byte UTF-8 de lo demás (también {@code %}) pasa a {@code %XX}. Dos nombres distintos nunca
+     * dan el mismo fichero: con {@code _} en lugar de los caracteres raros, {@code "a b"} y {@code "a_b"} compartían
+     * concesión.
+     *
+     * @return el nombre sin caracteres que den problemas en un sistema de ficheros.
+     */
+    static String fileName(String name) {
+        StringBuilder encoded = new StringBuilder(name.length());
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '.' || c == '_'
+                    || c == '-') {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(HEX[c >> 4]).append(HEX[c & 0x0F]);
+            }
+        }
+        return encoded.toString();
+    }
+}
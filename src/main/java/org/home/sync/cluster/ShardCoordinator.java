@@ -0,0 +1,354 @@
+package org.home.sync.cluster;
+
+import org.home.sync.metrics.ShardMetrics;
+import org.home.sync.recording.VideoRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reparte las cámaras entre varias instancias del grabador (varias JVM, en la misma máquina o en varias) que comparten
+ * la configuración y un directorio.
+ * <p>
+ * A cada cámara le toca una instancia según un {@link HashRing} de las instancias vivas, y sólo la graba cuando tiene
+ * su concesión en el directorio compartido ({@link LeaseStore}). Cada {@code shard.leaseSeconds} / 3 segundos una
+ * tarea del planificador compartido:
+ * </p>
+ * <ol>
+ *     <li>renueva el latido de la instancia y las concesiones que tiene; la que no puede renovar porque la tiene otra
+ *     se deja de grabar en el acto;</li>
+ *     <li>calcula el anillo con las instancias cuyo latido está en vigor;</li>
+ *     <li>deja de grabar las cámaras que ya no le tocan, y suelta su concesión pasado el tiempo que tarda en pararse
+ *     FFmpeg, para que la siguiente instancia no empiece mientras ésta aún escribe;</li>
+ *     <li>intenta conseguir las concesiones de las cámaras que le tocan: las libres y las caducadas.</li>
+ * </ol>
+ * <p>
+ * Si una instancia muere, su latido y sus concesiones caducan a la vez, las demás se reparten sus cámaras y las cogen
+ * en la vuelta siguiente: en una concesión más una vuelta como mucho. Al añadir una instancia sólo cambian de dueño
+ * las cámaras que el anillo le da a ella, alrededor de 1/N. Para no repartirlo todo dos veces cuando arrancan varias
+ * instancias a la vez, durante la primera vuelta sólo se anuncia.
+ * </p>
+ * <p>
+ * Cada cambio de las cámaras propias se avisa con el {@code listener}, fuera de cualquier bloqueo; quien lo recibe
+ * consulta {@link #isOwned(String)}, así que un aviso atrasado no deshace uno posterior.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ShardCoordinator implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ShardCoordinator.class);
+
+    /**
+     * Milisegundos que se mantiene la concesión de una cámara que ya no toca, mientras se para su grabación.
+     */
+    private static final long STOP_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(VideoRecorder.STOP_TIMEOUT_SECONDS + 1);
+
+    private final LeaseStore store;
+    private final String instanceId;
+    private final long tickMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Runnable listener;
+    private final ShardMetrics metrics = new ShardMetrics();
+
+    /**
+     * Las cámaras configuradas, entre las que se reparte.
+     */
+    private volatile Set<String> cameras = Set.of();
+
+    /**
+     * Las cámaras que graba esta instancia. Se lee sin bloqueo desde fuera.
+     */
+    private final Set<String> owned = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Hasta cuándo tiene esta instancia cada concesión: las de {@link #owned} y las que está soltando.
+     */
+    private final Map<String, Long> leases = new HashMap<>();
+
+    /**
+     * Cuándo soltar cada concesión de una cámara que ya no toca.
+     */
+    private final Map<String, Long> releasing = new HashMap<>();
+
+    /**
+     * Antes de este instante no se cogen concesiones.
+     */
+    private final long settledAtMillis;
+
+    private ScheduledFuture<?> task;
+    private boolean closed;
+
+    /**
+     * @param directory   el directorio compartido por todas las instancias.
+     * @param instanceId  el nombre de esta instancia, distinto en cada una.
+     * @param leaseMillis cuánto dura una concesión sin renovar.
+     * @param scheduler   el planificador donde correr la tarea periódica.
+     * @param listener    se ejecuta cada vez que cambian las cámaras de esta instancia.
+     * @throws IOException si no se puede usar el directorio compartido.
+     */
+    public ShardCoordinator(Path directory, String instanceId, long leaseMillis, ScheduledExecutorService scheduler,
+                            Runnable listener) throws IOException {
+        this.store = new LeaseStore(directory, instanceId, leaseMillis);
+        this.instanceId = instanceId;
+        this.tickMillis = Math.max(1, leaseMillis / 3);
+        this.scheduler = scheduler;
+        this.listener = listener;
+        long now = System.currentTimeMillis();
+        store.heartbeat(now);
+        this.settledAtMillis = now + tickMillis;
+    }
+
+    /**
+     * Crea el coordinador con las propiedades {@code shard.dir} (el directorio compartido),
+     * {@code shard.instanceId} (por defecto máquina-pid) y {@code shard.leaseSeconds} (15).
+     *
+     * @return el coordinador, o {@code null} si no se ha configurado {@code shard.dir}.
+     * @throws IOException si no se puede usar el directorio compartido.
+     */
+    public static ShardCoordinator fromSystemProperties(ScheduledExecutorService scheduler, Runnable listener)
+            throws IOException {
+        String directory = System.getProperty("shard.dir");
+        if (directory == null || directory.isBlank()) {
+            return null;
+        }
+        String instanceId = System.getProperty("shard.instanceId");
+        if (instanceId == null || instanceId.isBlank()) {
+            instanceId = defaultInstanceId();
+        }
+        long leaseMillis = TimeUnit.SECONDS.toMillis(Math.max(3, Integer.getInteger("shard.leaseSeconds", 15)));
+        return new ShardCoordinator(Path.of(directory), instanceId, leaseMillis, scheduler, listener);
+    }
+
+    private static String defaultInstanceId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "localhost";
+        }
+        return host + "-" + ManagementFactory.getRuntimeMXBean().getPid();
+    }
+
+    /**
+     * Empieza a renovar y repartir.
+     */
+    public synchronized void start() {
+        if (task == null && !closed) {
+            task = scheduler.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Cambia las cámaras entre las que se reparte y las reparte enseguida, sin esperar a la siguiente vuelta.
+     *
+     * @param names los nombres de todas las cámaras configuradas.
+     */
+    public void setCameras(Collection<String> names) {
+        cameras = Set.copyOf(names);
+        try {
+            scheduler.execute(this::tick);
+        } catch (RejectedExecutionException e) {
+            // se está cerrando
+        }
+    }
+
+    /**
+     * @return si esta instancia tiene la concesión de la cámara y debe grabarla.
+     */
+    public boolean isOwned(String camera) {
+        return owned.contains(camera);
+    }
+
+    /**
+     * @return las cámaras que graba esta instancia, ordenadas.
+     */
+    public Set<String> getOwned() {
+        return new TreeSet<>(owned);
+    }
+
+    /**
+     * @return el nombre de esta instancia.
+     */
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * @return las métricas del reparto.
+     */
+    public ShardMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void tick() {
+        boolean changed;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                changed = update(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                logger.error("Error al repartir las cámaras entre instancias", e);
+                return;
+            }
+        }
+        if (changed) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Una vuelta del reparto.
+     *
+     * @return si han cambiado las cámaras que graba esta instancia.
+     */
+    private boolean update(long now) {
+        boolean changed = renewLeases(now);
+        Set<String> members;
+        try {
+            store.heartbeat(now);
+            members = store.liveMembers(now);
+        } catch (IOException e) {
+            // sin saber quién está vivo no se reparte, sólo se mantiene lo que hay
+            metrics.recordLeaseError();
+            logger.warn("No se puede leer el directorio compartido: " + e);
+            return changed;
+        }
+        members.add(instanceId);
+        HashRing ring = new HashRing(members);
+        Set<String> names = cameras;
+        for (Iterator<String> it = owned.iterator(); it.hasNext(); ) {
+            String camera = it.next();
+            if (!names.contains(camera) || !ring.owner(camera).equals(instanceId)) {
+                it.remove();
+                releasing.put(camera, now + STOP_GRACE_MILLIS);
+                changed = true;
+            }
+        }
+        if (now >= settledAtMillis) {
+            for (String camera : names) {
+                if (owned.contains(camera) || !ring.owner(camera).equals(instanceId)) {
+                    continue;
+                }
+                if (releasing.remove(camera) != null) {
+                    // vuelve a tocar antes de soltarla: la concesión sigue siendo de esta instancia
+                    owned.add(camera);
+                    changed = true;
+                } else if (acquire(camera, now)) {
+                    changed = true;
+                }
+            }
+        }
+        metrics.setOwnership(members.size(), owned.size());
+        if (changed) {
+            logger.info("Instancia " + instanceId + " de " + members.size() + ": graba " + owned.size()
+                    + " de " + names.size() + " cámaras");
+        }
+        return changed;
+    }
+
+    /**
+     * Renueva todas las concesiones y suelta las de las cámaras que ya no tocan cuando ha pasado su tiempo.
+     *
+     * @return si se ha perdido alguna cámara.
+     */
+    private boolean renewLeases(long now) {
+        boolean changed = false;
+        for (Iterator<Map.Entry<String, Long>> it = leases.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> lease = it.next();
+            String camera = lease.getKey();
+            Long releaseAt = releasing.get(camera);
+            try {
+                if (releaseAt != null && now >= releaseAt) {
+                    store.release(camera);
+                    releasing.remove(camera);
+                    it.remove();
+                    metrics.recordReleased();
+                    continue;
+                }
+                long expiresAt = store.renew(camera, now);
+                if (expiresAt >= 0) {
+                    lease.setValue(expiresAt);
+                    continue;
+                }
+            } catch (IOException e) {
+                metrics.recordLeaseError();
+                if (now < lease.getValue()) {
+                    // sigue siendo suya hasta que caduque: se reintenta en la siguiente vuelta
+                    continue;
+                }
+            }
+            it.remove();
+            releasing.remove(camera);
+            if (owned.remove(camera)) {
+                metrics.recordLost();
+                changed = true;
+                logger.warn("La instancia " + instanceId + " ha perdido la concesión de la camara " + camera);
+            }
+        }
+        return changed;
+    }
+
+    private boolean acquire(String camera, long now) {
+        try {
+            long expiresAt = store.acquire(camera, now);
+            if (expiresAt < 0) {
+                return false;
+            }
+            leases.put(camera, expiresAt);
+            owned.add(camera);
+            metrics.recordAcquired();
+            return true;
+        } catch (IOException e) {
+            metrics.recordLeaseError();
+            logger.warn("No se puede coger la concesión de la camara " + camera + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Deja de repartir y suelta todas las concesiones y el latido, para que las demás instancias cojan sus cámaras
+     * enseguida. Hay que llamarlo después de parar la grabación de las cámaras.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (task != null) {
+            task.cancel(false);
+        }
+        try {
+            for (String camera : leases.keySet()) {
+                store.release(camera);
+            }
+            store.leave();
+        } catch (IOException e) {
+            logger.warn("No se pueden soltar las concesiones; caducarán solas: " + e);
+        }
+        leases.clear();
+        releasing.clear();
+        owned.clear();
+    }
+}
@@ -1,19 +1,16 @@
 package org.home.sync.config;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
 import org.home.sync.recording.StreamQuality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.lang.reflect.Type;
 import java.net.UnknownHostException;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * La clase {@code CameraConnectionInfo} encapsula toda la información necesaria para establecer una conexión RTSP con una cámara IP.
@@ -23,7 +20,7 @@ import java.util.List;
  * que se utilizarán para el procesamiento de las transmisiones RTSP con herramientas como FFmpeg.
  * </p>
  * Se proporciona una función para cargar la configuración de las cámaras desde un archivo JSON con el método estático
- * {@link #fromJsonFile(String)}.</p>
+ * {@link #fromJsonFile(String)}, o desde un archivo del sistema de ficheros con {@link #fromPath(Path)}.</p>
  *
  * <p>Ejemplo de JSON para la configuración:</p>
  * <pre>
@@ -90,14 +87,20 @@ public class CameraConfig {
     private final StreamQuality stream;
 
     /**
-     * Códec de video utilizado para la conversión.
+     * Valor de códec que indica que se elija automáticamente: copiar el de origen si el contenedor lo admite,
+     * transcodificar si no.
      */
-    public String videoCodec = "libx264";
+    public static final String AUTO_CODEC = "auto";
 
     /**
-     * Códec de audio utilizado para la conversión.
+     * Códec de video utilizado para la conversión. Por defecto {@link #AUTO_CODEC}.
      */
-    public String audioCodec = "aac";
+    public String videoCodec = AUTO_CODEC;
+
+    /**
+     * Códec de audio utilizado para la conversión. Por defecto {@link #AUTO_CODEC}.
+     */
+    public String audioCodec = AUTO_CODEC;
 
     /**
      * Formato de salida que segmenta el archivo en múltiples partes.
@@ -119,6 +122,80 @@ public class CameraConfig {
      */
     public String RTSPTransport = "tcp";
 
+    /**
+     * Días que se conservan las grabaciones. 0 para no borrarlas por antigüedad.
+     */
+    public int retentionDays = 0;
+
+    /**
+     * Megabytes que pueden ocupar como máximo las grabaciones de la cámara. 0 para no limitarlo.
+     */
+    public long maxDiskMB = 0;
+
+    /**
+     * Prioridad de arranque: las cámaras con más prioridad se lanzan antes. Por defecto 0.
+     */
+    public int priority = 0;
+
+    /**
+     * Motor de grabación que lanza un proceso FFmpeg por cámara.
+     */
+    public static final String ENGINE_FFMPEG = "ffmpeg";
+
+    /**
+     * Motor de grabación que lee el RTSP y escribe los segmentos dentro de la JVM, sin FFmpeg. Sólo copia los
+     * códecs: no transcodifica ni replica la retransmisión.
+     */
+    public static final String ENGINE_NATIVE = "native";
+
+    /**
+     * Motor de grabación: {@link #ENGINE_FFMPEG} (por defecto) o {@link #ENGINE_NATIVE}.
+     */
+    public String engine = ENGINE_FFMPEG;
+
+    /**
+     * Modo de grabación que escribe segmentos todo el tiempo.
+     */
+    public static final String MODE_CONTINUOUS = "continuous";
+
+    /**
+     * Modo de grabación que guarda los últimos segundos en memoria y sólo escribe segmentos cuando llega un disparo,
+     * con su pre-roll y su post-roll. Necesita el motor {@link #ENGINE_NATIVE}.
+     */
+    public static final String MODE_EVENT = "event";
+
+    /**
+     * Modo de grabación que analiza todo el tiempo el stream de baja resolución ({@link StreamQuality#STREAM2}) y
+     * sólo graba el {@link StreamQuality#STREAM1} mientras hay actividad en la escena.
+     */
+    public static final String MODE_ACTIVITY = "activity";
+
+    /**
+     * Modo de grabación: {@link #MODE_CONTINUOUS} (por defecto), {@link #MODE_EVENT} o {@link #MODE_ACTIVITY}.
+     */
+    public String recordingMode = MODE_CONTINUOUS;
+
+    /**
+     * En modo event, segundos que se graban antes de cada disparo. Por defecto 10.
+     */
+    public int preRollSeconds = 10;
+
+    /**
+     * En modo event, segundos que se siguen grabando después del último disparo. Por defecto 10.
+     */
+    public int postRollSeconds = 10;
+
+    /**
+     * En modo activity, puntuación de cambio de escena de FFmpeg (de 0 a 1) a partir de la que se empieza a grabar.
+     * Por defecto 0.01.
+     */
+    public double activityThreshold = 0.01;
+
+    /**
+     * En modo activity, segundos que se sigue grabando después de la última actividad. Por defecto 30.
+     */
+    public int activityHoldSeconds = 30;
+
     /**
      * Contructor para generar la rtspUrl.
      *
@@ -179,24 +256,102 @@ public class CameraConfig {
             if (inputStream == null) {
                 throw new IOException("Archivo json '" + propertiesFileName + "' no encontrado en resources");
             }
-            Gson gson = new GsonBuilder()
-                    .registerTypeAdapter(CameraConfig.class, new CameraConfigDeserializer())
-                    .create();
+            return fromJson(inputStream, propertiesFileName);
+        }
+    }
+
+    /**
+     * Lee la configuración de las cámaras de un archivo JSON del sistema de ficheros (fuera del jar), para poder
+     * cambiarla sin recompilar.
+     *
+     * @param path Ruta del archivo JSON.
+     * @return Las cámaras del archivo.
+     * @throws IOException Si no se puede leer el archivo, su JSON no es válido o no tiene ninguna cámara válida.
+     */
+    public static List<CameraConfig> fromPath(Path path) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            return fromJson(inputStream, path.toString());
+        }
+    }
+
+    /**
+     * Lee las cámaras con el {@link CameraConfigLoader}: las que no son válidas se descartan (y se escriben en el log)
+     * y se devuelven las demás.
+     *
+     * @param inputStream el JSON.
+     * @param source      de dónde viene, para los mensajes de error.
+     * @return las cámaras válidas.
+     * @throws IOException si el JSON no es válido, está vacío o ninguna de sus cámaras es válida.
+     */
+    static List<CameraConfig> fromJson(InputStream inputStream, String source) throws IOException {
+        ConfigLoadResult result = CameraConfigLoader.load(inputStream, source);
+        if (result.getCameras().isEmpty() && result.hasErrors()) {
+            throw new IOException("Ninguna cámara de " + source + " es válida: " + result.getErrors().get(0));
+        }
+        return result.getCameras();
+    }
 
-            Type type = new TypeToken<List<CameraConfig>>(){}.getType();
+    /**
+     * Indica si otra configuración graba exactamente igual que esta: todo salvo los límites de retención y la
+     * prioridad de arranque, que se pueden cambiar sin reiniciar FFmpeg.
+     *
+     * @param other la otra configuración.
+     * @return {@code true} si FFmpeg se lanzaría con los mismos parámetros.
+     */
+    public boolean hasSameRecording(CameraConfig other) {
+        return other != null
+                && port == other.port
+                && Objects.equals(name, other.name)
+                && Objects.equals(rtspUrl, other.rtspUrl)
+                && Objects.equals(user, other.user)
+                && Objects.equals(password, other.password)
+                && Objects.equals(ip, other.ip)
+                && stream == other.stream
+                && Objects.equals(videoCodec, other.videoCodec)
+                && Objects.equals(audioCodec, other.audioCodec)
+                && Objects.equals(format, other.format)
+                && Objects.equals(segmentTime, other.segmentTime)
+                && Objects.equals(resetTimeStamps, other.resetTimeStamps)
+                && Objects.equals(RTSPTransport, other.RTSPTransport)
+                && Objects.equals(engine, other.engine)
+                && Objects.equals(recordingMode, other.recordingMode)
+                && preRollSeconds == other.preRollSeconds
+                && postRollSeconds == other.postRollSeconds
+                && activityThreshold == other.activityThreshold
+                && activityHoldSeconds == other.activityHoldSeconds
+                && Objects.equals(cloneRTSPStream, other.cloneRTSPStream);
+    }
 
-            return gson.fromJson(new InputStreamReader(inputStream, StandardCharsets.UTF_8), type);
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CameraConfig)) {
+            return false;
         }
+        CameraConfig that = (CameraConfig) o;
+        return hasSameRecording(that) && retentionDays == that.retentionDays && maxDiskMB == that.maxDiskMB
+                && priority == that.priority;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, rtspUrl, ip, port, stream);
     }
 
     public RTSPCloneConfig getCloneRTSPStream() {
         return cloneRTSPStream;
     }
 
-    private String getIp() {
+    public String getIp() {
         return ip;
     }
 
+    public int getPort() {
+        return port;
+    }
+
     public String getRtspUrl() {
         return rtspUrl;
     }
@@ -277,4 +432,98 @@ public class CameraConfig {
         return stream;
     }
 
+    public int getRetentionDays() {
+        return retentionDays;
+    }
+
+    public void setRetentionDays(int retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
+    public long getMaxDiskMB() {
+        return maxDiskMB;
+    }
+
+    public void setMaxDiskMB(long maxDiskMB) {
+        this.maxDiskMB = maxDiskMB;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public void setEngine(String engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @return {@code true} si la cámara se graba con el motor {@link #ENGINE_NATIVE}.
+     */
+    public boolean isNativeEngine() {
+        return ENGINE_NATIVE.equals(engine);
+    }
+
+    public String getRecordingMode() {
+        return recordingMode;
+    }
+
+    public void setRecordingMode(String recordingMode) {
+        this.recordingMode = recordingMode;
+    }
+
+    public int getPreRollSeconds() {
+        return preRollSeconds;
+    }
+
+    public void setPreRollSeconds(int preRollSeconds) {
+        this.preRollSeconds = preRollSeconds;
+    }
+
+    public int getPostRollSeconds() {
+        return postRollSeconds;
+    }
+
+    public void setPostRollSeconds(int postRollSeconds) {
+        this.postRollSeconds = postRollSeconds;
+    }
+
+    /**
+     * @return {@code true} si la cámara sólo graba cuando llega un disparo ({@link #MODE_EVENT}).
+     */
+    public boolean isEventMode() {
+        return MODE_EVENT.equals(recordingMode);
+    }
+
+    public double getActivityThreshold() {
+        return activityThreshold;
+    }
+
+    public void setActivityThreshold(double activityThreshold) {
+        this.activityThreshold = activityThreshold;
+    }
+
+    public int getActivityHoldSeconds() {
+        return activityHoldSeconds;
+    }
+
+    public void setActivityHoldSeconds(int activityHoldSeconds) {
+        this.activityHoldSeconds = activityHoldSeconds;
+    }
+
+    /**
+     * @return {@code true} si la cámara sólo graba el {@link StreamQuality#STREAM1} mientras hay actividad en el
+     * {@link StreamQuality#STREAM2} ({@link #MODE_ACTIVITY}).
+     */
+    public boolean isActivityMode() {
+        return MODE_ACTIVITY.equals(recordingMode);
+    }
+
 }
@@ -0,0 +1,557 @@
+package org.home.sync.config;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.home.sync.recording.StreamQuality;
+import org.home.sync.relay.RelayServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Lee el archivo de configuración de las cámaras sin construir el árbol JSON completo en memoria.
+ * <p>
+ * El archivo se recorre una sola vez con un {@link JsonReader}: de cada cámara sólo se guardan sus valores como
+ * texto, y cada {@link #CHUNK_SIZE} cámaras se mandan a validar al {@link ForkJoinPool#commonPool()} mientras se sigue
+ * leyendo. La validación (campos obligatorios, números, stream, nombre utilizable como directorio...) no se detiene en
+ * el primer error: las cámaras incorrectas se descartan y se devuelven todos sus errores junto con las cámaras
+ * válidas. Si dos cámaras tienen el mismo nombre se queda la primera.
+ * </p>
+ * <p>
+ * Sólo falla el archivo entero si no es JSON válido o no es una lista, porque entonces no se sabe dónde empieza cada
+ * cámara.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public final class CameraConfigLoader {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(CameraConfigLoader.class);
+
+    /**
+     * Cámaras que se validan juntas en una misma tarea.
+     */
+    static final int CHUNK_SIZE = 512;
+
+    /**
+     * Errores que se escriben en el log como mucho; del resto sólo se indica cuántos son.
+     */
+    private static final int MAX_LOGGED_ERRORS = 20;
+
+    /**
+     * Pre-roll máximo: se guarda en memoria por cada cámara en modo event.
+     */
+    static final int MAX_PRE_ROLL_SECONDS = 300;
+
+    private CameraConfigLoader() {
+    }
+
+    /**
+     * Lee y valida las cámaras de un JSON.
+     *
+     * @param inputStream el JSON, una lista de cámaras.
+     * @param source      de dónde viene, para los mensajes.
+     * @return las cámaras válidas y los errores de las descartadas, que también se escriben en el log.
+     * @throws IOException si no se puede leer, está vacío, no es JSON válido o no es una lista.
+     */
+    public static ConfigLoadResult load(InputStream inputStream, String source) throws IOException {
+        List<CompletableFuture<Chunk>> chunks = new ArrayList<>();
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        JsonToken start;
+        try {
+            start = reader.peek();
+        } catch (EOFException e) {
+            throw new IOException("El archivo " + source + " está vacío", e);
+        } catch (IOException e) {
+            throw new IOException("Configuración de cámaras no válida en " + source + ": " + e.getMessage(), e);
+        }
+        if (start != JsonToken.BEGIN_ARRAY) {
+            throw new IOException("El archivo " + source + " debe contener una lista de cámaras");
+        }
+        try {
+            reader.beginArray();
+            List<RawCamera> pending = new ArrayList<>(CHUNK_SIZE);
+            int first = 0;
+            while (reader.hasNext()) {
+                pending.add(readCamera(reader));
+                if (pending.size() == CHUNK_SIZE) {
+                    chunks.add(validateAsync(pending, first));
+                    first += pending.size();
+                    pending = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+            reader.endArray();
+            if (!pending.isEmpty()) {
+                chunks.add(validateAsync(pending, first));
+            }
+        } catch (IOException | IllegalStateException e) {
+            // MalformedJsonException, fin inesperado, o un token en un sitio donde no puede ir
+            throw new IOException("Configuración de cámaras no válida en " + source + ": " + e.getMessage(), e);
+        }
+
+        List<CameraConfig> cameras = new ArrayList<>();
+        List<ConfigError> errors = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (CompletableFuture<Chunk> future : chunks) {
+            Chunk chunk = future.join();
+            for (int i = 0; i < chunk.cameras.length; i++) {
+                CameraConfig camera = chunk.cameras[i];
+                if (camera == null) {
+                    errors.add(chunk.errors[i]);
+                } else if (!names.add(camera.getName())) {
+                    errors.add(new ConfigError(chunk.first + i, camera.getName(),
+                            "el nombre está repetido, se usa la primera cámara con ese nombre"));
+                } else {
+                    cameras.add(camera);
+                }
+            }
+        }
+        logErrors(errors, source);
+        return new ConfigLoadResult(cameras, errors);
+    }
+
+    private static CompletableFuture<Chunk> validateAsync(List<RawCamera> raw, int first) {
+        return CompletableFuture.supplyAsync(() -> validate(raw, first), ForkJoinPool.commonPool());
+    }
+
+    private static Chunk validate(List<RawCamera> raw, int first) {
+        Chunk chunk = new Chunk(first, raw.size());
+        for (int i = 0; i < raw.size(); i++) {
+            RawCamera camera = raw.get(i);
+            try {
+                chunk.cameras[i] = camera.toCameraConfig();
+            } catch (IllegalArgumentException | UnknownHostException e) {
+                chunk.errors[i] = new ConfigError(first + i, camera.name, e.getMessage());
+            }
+        }
+        return chunk;
+    }
+
+    private static void logErrors(List<ConfigError> errors, String source) {
+        for (int i = 0; i < errors.size() && i < MAX_LOGGED_ERRORS; i++) {
+            logger.error("Se descarta la " + errors.get(i) + " en " + source);
+        }
+        if (errors.size() > MAX_LOGGED_ERRORS) {
+            logger.error("Y " + (errors.size() - MAX_LOGGED_ERRORS) + " cámaras más descartadas en " + source);
+        }
+    }
+
+    private static RawCamera readCamera(JsonReader reader) throws IOException {
+        RawCamera raw = new RawCamera();
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            raw.problem("no es un objeto JSON");
+            return raw;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            switch (field) {
+                case "name": raw.name = scalar(reader, field, raw); break;
+                case "user": raw.user = scalar(reader, field, raw); break;
+                case "password": raw.password = scalar(reader, field, raw); break;
+                case "ip": raw.ip = scalar(reader, field, raw); break;
+                case "port": raw.port = scalar(reader, field, raw); break;
+                case "stream": raw.stream = scalar(reader, field, raw); break;
+                case "videoCodec": raw.videoCodec = scalar(reader, field, raw); break;
+                case "audioCodec": raw.audioCodec = scalar(reader, field, raw); break;
+                case "format": raw.format = scalar(reader, field, raw); break;
+                case "segmentTime": raw.segmentTime = scalar(reader, field, raw); break;
+                case "resetTimeStamps": raw.resetTimeStamps = scalar(reader, field, raw); break;
+                case "RTSPTransport": raw.rtspTransport = scalar(reader, field, raw); break;
+                case "retentionDays": raw.retentionDays = scalar(reader, field, raw); break;
+                case "maxDiskMB": raw.maxDiskMB = scalar(reader, field, raw); break;
+                case "priority": raw.priority = scalar(reader, field, raw); break;
+                case "engine": raw.engine = scalar(reader, field, raw); break;
+                case "recordingMode": raw.recordingMode = scalar(reader, field, raw); break;
+                case "preRollSeconds": raw.preRollSeconds = scalar(reader, field, raw); break;
+                case "postRollSeconds": raw.postRollSeconds = scalar(reader, field, raw); break;
+                case "activityThreshold": raw.activityThreshold = scalar(reader, field, raw); break;
+                case "activityHoldSeconds": raw.activityHoldSeconds = scalar(reader, field, raw); break;
+                case "cloneRTSPStream": raw.clone = readClone(reader, raw); break;
+                default: reader.skipValue(); // campo desconocido: se ignora, como hacía Gson
+            }
+        }
+        reader.endObject();
+        return raw;
+    }
+
+    private static RawClone readClone(JsonReader reader, RawCamera camera) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            camera.problem("cloneRTSPStream no es un objeto");
+            return null;
+        }
+        RawClone clone = new RawClone();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            switch (field) {
+                case "rtspSever": clone.rtspSever = scalar(reader, "cloneRTSPStream." + field, camera); break;
+                case "port": clone.port = scalar(reader, "cloneRTSPStream." + field, camera); break;
+                case "format": clone.format = scalar(reader, "cloneRTSPStream." + field, camera); break;
+                case "cloneTransport": clone.cloneTransport = scalar(reader, "cloneRTSPStream." + field, camera); break;
+                case "recoveryWaitSeconds":
+                    clone.recoveryWaitSeconds = scalar(reader, "cloneRTSPStream." + field, camera);
+                    break;
+                case "outputEndpoints": clone.outputEndpoints = readStrings(reader, camera); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return clone;
+    }
+
+    private static List<String> readStrings(JsonReader reader, RawCamera camera) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            camera.problem("cloneRTSPStream.outputEndpoints no es una lista");
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String value = scalar(reader, "cloneRTSPStream.outputEndpoints", camera);
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        reader.endArray();
+        return values;
+    }
+
+    /**
+     * Lee un valor simple como texto (los números tal cual están escritos). Si es un objeto o una lista se salta y se
+     * anota el problema en la cámara.
+     */
+    private static String scalar(JsonReader reader, String field, RawCamera camera) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                reader.skipValue();
+                camera.problem("el campo " + field + " no es un valor simple");
+                return null;
+        }
+    }
+
+    /**
+     * Cámaras validadas por una misma tarea: en cada posición hay una cámara o un error.
+     */
+    private static final class Chunk {
+
+        private final int first;
+        private final CameraConfig[] cameras;
+        private final ConfigError[] errors;
+
+        Chunk(int first, int size) {
+            this.first = first;
+            this.cameras = new CameraConfig[size];
+            this.errors = new ConfigError[size];
+        }
+    }
+
+    /**
+     * Valores de una cámara tal como están en el JSON, pendientes de validar.
+     */
+    private static final class RawCamera {
+
+        private String name;
+        private String user;
+        private String password;
+        private String ip;
+        private String port;
+        private String stream;
+        private String videoCodec;
+        private String audioCodec;
+        private String format;
+        private String segmentTime;
+        private String resetTimeStamps;
+        private String rtspTransport;
+        private String retentionDays;
+        private String maxDiskMB;
+        private String priority;
+        private String engine;
+        private String recordingMode;
+        private String preRollSeconds;
+        private String postRollSeconds;
+        private String activityThreshold;
+        private String activityHoldSeconds;
+        private RawClone clone;
+
+        /**
+         * Primer problema encontrado al leerla, o {@code null}.
+         */
+        private String problem;
+
+        void problem(String message) {
+            if (problem == null) {
+                problem = message;
+            }
+        }
+
+        CameraConfig toCameraConfig() throws UnknownHostException {
+            if (problem != null) {
+                throw new IllegalArgumentException(problem);
+            }
+            String validName = required(name, "name");
+            if (validName.equals(".") || validName.equals("..") || validName.indexOf('/') >= 0
+                    || validName.indexOf('\\') >= 0) {
+                throw new IllegalArgumentException("el nombre se usa como directorio y no puede ser . ni .. ni "
+                        + "contener barras");
+            }
+            int validPort = parseInt(required(port, "port"), "port");
+            if (validPort > 65535) {
+                throw new IllegalArgumentException("el puerto " + validPort + " no es válido");
+            }
+            StreamQuality quality = parseStream(required(stream, "stream"));
+            CameraConfig camera = new CameraConfig(validName, required(user, "user"), required(password, "password"),
+                    required(ip, "ip"), validPort, quality, clone == null ? null : clone.toCloneConfig());
+            if (videoCodec != null) {
+                camera.setVideoCodec(videoCodec);
+            }
+            if (audioCodec != null) {
+                camera.setAudioCodec(audioCodec);
+            }
+            if (format != null) {
+                camera.setFormat(format);
+            }
+            if (segmentTime != null) {
+                double seconds = parseDouble(segmentTime, "segmentTime");
+                if (!(seconds > 0)) {
+                    throw new IllegalArgumentException("segmentTime tiene que ser mayor que 0");
+                }
+                camera.setSegmentTime(segmentTime);
+            }
+            if (resetTimeStamps != null) {
+                camera.setResetTimeStamps(resetTimeStamps);
+            }
+            if (rtspTransport != null) {
+                camera.setRTSPTransport(rtspTransport);
+            }
+            if (retentionDays != null) {
+                camera.setRetentionDays(nonNegative(parseInt(retentionDays, "retentionDays"), "retentionDays"));
+            }
+            if (maxDiskMB != null) {
+                camera.setMaxDiskMB(nonNegative(parseLong(maxDiskMB, "maxDiskMB"), "maxDiskMB"));
+            }
+            if (priority != null) {
+                camera.setPriority(parseInt(priority, "priority"));
+            }
+            if (engine != null) {
+                camera.setEngine(parseEngine(engine));
+            }
+            if (recordingMode != null) {
+                camera.setRecordingMode(parseRecordingMode(recordingMode));
+            }
+            if (preRollSeconds != null) {
+                int seconds = nonNegative(parseInt(preRollSeconds, "preRollSeconds"), "preRollSeconds");
+                if (seconds > MAX_PRE_ROLL_SECONDS) {
+                    throw new IllegalArgumentException("preRollSeconds no puede pasar de " + MAX_PRE_ROLL_SECONDS);
+                }
+                camera.setPreRollSeconds(seconds);
+            }
+            if (postRollSeconds != null) {
+                camera.setPostRollSeconds(nonNegative(parseInt(postRollSeconds, "postRollSeconds"),
+                        "postRollSeconds"));
+            }
+            if (activityThreshold != null) {
+                double threshold = parseDouble(activityThreshold, "activityThreshold");
+                if (!(threshold > 0 && threshold <= 1)) {
+                    throw new IllegalArgumentException("activityThreshold tiene que estar entre 0 (sin incluir) y 1");
+                }
+                camera.setActivityThreshold(threshold);
+            }
+            if (activityHoldSeconds != null) {
+                int seconds = parseInt(activityHoldSeconds, "activityHoldSeconds");
+                if (seconds <= 0) {
+                    throw new IllegalArgumentException("activityHoldSeconds tiene que ser mayor que 0");
+                }
+                camera.setActivityHoldSeconds(seconds);
+            }
+            if (camera.isActivityMode()) {
+                checkActivityMode(camera);
+            }
+            if (camera.isNativeEngine()) {
+                checkNativeEngine(camera);
+            } else if (camera.isEventMode()) {
+                throw new IllegalArgumentException("el modo event necesita el motor native: FFmpeg escribe de "
+                        + "continuo");
+            }
+            return camera;
+        }
+    }
+
+    /**
+     * Valores de {@code cloneRTSPStream} tal como están en el JSON.
+     */
+    private static final class RawClone {
+
+        private String rtspSever;
+        private String port;
+        private String format;
+        private String cloneTransport;
+        private String recoveryWaitSeconds;
+        private List<String> outputEndpoints;
+
+        RTSPCloneConfig toCloneConfig() {
+            if (outputEndpoints == null || outputEndpoints.isEmpty()) {
+                throw new IllegalArgumentException("cloneRTSPStream necesita al menos un outputEndpoints");
+            }
+            RTSPCloneConfig clone = new RTSPCloneConfig();
+            clone.setOutputEndpoints(outputEndpoints);
+            if (rtspSever != null) {
+                clone.setRtspSever(rtspSever);
+            }
+            if (port != null) {
+                clone.setPort(parseInt(port, "cloneRTSPStream.port"));
+            }
+            if (format != null) {
+                clone.setFormat(format);
+            }
+            if (cloneTransport != null) {
+                clone.setCloneTransport(cloneTransport);
+            }
+            if (recoveryWaitSeconds != null) {
+                clone.setRecoveryWaitSeconds(nonNegative(parseInt(recoveryWaitSeconds,
+                        "cloneRTSPStream.recoveryWaitSeconds"), "cloneRTSPStream.recoveryWaitSeconds"));
+            }
+            return clone;
+        }
+    }
+
+    private static String required(String value, String field) {
+        if (value == null) {
+            throw new IllegalArgumentException("falta el campo obligatorio " + field);
+        }
+        return value;
+    }
+
+    private static StreamQuality parseStream(String value) {
+        try {
+            return StreamQuality.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("el stream " + value + " no existe, usa stream1 o stream2");
+        }
+    }
+
+    private static String parseEngine(String value) {
+        if (!CameraConfig.ENGINE_FFMPEG.equals(value) && !CameraConfig.ENGINE_NATIVE.equals(value)) {
+            throw new IllegalArgumentException("el motor " + value + " no existe, usa "
+                    + CameraConfig.ENGINE_FFMPEG + " o " + CameraConfig.ENGINE_NATIVE);
+        }
+        return value;
+    }
+
+    private static String parseRecordingMode(String value) {
+        if (!CameraConfig.MODE_CONTINUOUS.equals(value) && !CameraConfig.MODE_EVENT.equals(value)
+                && !CameraConfig.MODE_ACTIVITY.equals(value)) {
+            throw new IllegalArgumentException("el modo de grabación " + value + " no existe, usa "
+                    + CameraConfig.MODE_CONTINUOUS + ", " + CameraConfig.MODE_EVENT + " o "
+                    + CameraConfig.MODE_ACTIVITY);
+        }
+        return value;
+    }
+
+    /**
+     * En modo activity se graba el stream principal y se analiza el secundario, y la grabación se para cuando no hay
+     * actividad: una réplica se cortaría con ella.
+     */
+    private static void checkActivityMode(CameraConfig camera) {
+        if (camera.getStream() != StreamQuality.STREAM1) {
+            throw new IllegalArgumentException("el modo activity graba stream1 y analiza stream2, usa stream1");
+        }
+        if (camera.getCloneRTSPStream() != null) {
+            throw new IllegalArgumentException("el modo activity no replica: la réplica se cortaría con cada "
+                    + "parada de la grabación");
+        }
+    }
+
+    /**
+     * El motor nativo sólo copia el video y el audio a segmentos MPEG-TS por RTSP sobre TCP, y sólo replica en el
+     * relay integrado: cualquier otra cosa necesita FFmpeg.
+     */
+    private static void checkNativeEngine(CameraConfig camera) {
+        if (camera.getCloneRTSPStream() != null && !camera.getCloneRTSPStream().isEmbeddedRelay()) {
+            throw new IllegalArgumentException("el motor native sólo replica en el relay integrado (rtspSever "
+                    + "127.0.0.1 y port " + RelayServer.PORT + "), cambia cloneRTSPStream o usa el motor ffmpeg");
+        }
+        if (!"segment".equals(camera.getFormat())) {
+            throw new IllegalArgumentException("el motor native sólo graba en formato segment");
+        }
+        if (!isCopy(camera.getVideoCodec()) || !isCopy(camera.getAudioCodec())) {
+            throw new IllegalArgumentException("el motor native no transcodifica, videoCodec y audioCodec tienen "
+                    + "que ser copy o auto");
+        }
+        if (!"tcp".equalsIgnoreCase(camera.getRTSPTransport())) {
+            throw new IllegalArgumentException("el motor native sólo admite RTSPTransport tcp");
+        }
+    }
+
+    private static boolean isCopy(String codec) {
+        return "copy".equals(codec) || CameraConfig.AUTO_CODEC.equals(codec);
+    }
+
+    private static int parseInt(String value, String field) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(field + " tiene que ser un número entero: " + value);
+        }
+    }
+
+    private static long parseLong(String value, String field) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(field + " tiene que ser un número entero: " + value);
+        }
+    }
+
+    private static double parseDouble(String value, String field) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(field + " tiene que ser un número: " + value);
+        }
+    }
+
+    private static int nonNegative(int value, String field) {
+        if (value < 0) {
+            throw new IllegalArgumentException(field + " no puede ser negativo");
+        }
+        return value;
+    }
+
+    private static long nonNegative(long value, String field) {
+        if (value < 0) {
+            throw new IllegalArgumentException(field + " no puede ser negativo");
+        }
+        return value;
+    }
+}
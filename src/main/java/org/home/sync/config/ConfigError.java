@@ -0,0 +1,50 @@
+package org.home.sync.config;
+
+/**
+ * Una cámara del archivo de configuración que no se ha podido cargar, y por qué.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ConfigError {
+
+    private final int index;
+    private final String name;
+    private final String message;
+
+    /**
+     * @param index   posición de la cámara en el archivo, empezando en 0.
+     * @param name    nombre de la cámara, o {@code null} si no lo tiene.
+     * @param message el problema.
+     */
+    public ConfigError(int index, String name, String message) {
+        this.index = index;
+        this.name = name;
+        this.message = message;
+    }
+
+    /**
+     * @return posición de la cámara en el archivo, empezando en 0.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return nombre de la cámara, o {@code null} si no lo tiene.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return el problema.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "cámara #" + index + (name != null ? " (" + name + ")" : "") + ": " + message;
+    }
+}
@@ -0,0 +1,45 @@
+package org.home.sync.config;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Resultado de leer un archivo de configuración: las cámaras válidas y los errores de las que se han descartado.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ConfigLoadResult {
+
+    private final List<CameraConfig> cameras;
+    private final List<ConfigError> errors;
+
+    /**
+     * @param cameras las cámaras válidas, en el orden del archivo.
+     * @param errors  los errores, en el orden del archivo.
+     */
+    public ConfigLoadResult(List<CameraConfig> cameras, List<ConfigError> errors) {
+        this.cameras = Collections.unmodifiableList(cameras);
+        this.errors = Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * @return las cámaras válidas, en el orden del archivo.
+     */
+    public List<CameraConfig> getCameras() {
+        return cameras;
+    }
+
+    /**
+     * @return los errores de las cámaras descartadas, en el orden del archivo.
+     */
+    public List<ConfigError> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return {@code true} si se ha descartado alguna cámara.
+     */
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+}
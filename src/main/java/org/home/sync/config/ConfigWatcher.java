@@ -0,0 +1,157 @@
+package org.home.sync.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Vigila el archivo de configuración de las cámaras y avisa cuando cambia su contenido.
+ * <p>
+ * Se vigila el directorio del archivo con un {@link WatchService}, así se detectan tanto las escrituras como los
+ * reemplazos por renombrado que hacen muchos editores. Tras un evento se espera {@link #DEBOUNCE_MILLIS} a que
+ * terminen de llegar los demás (un guardado suele generar varios), y sólo se avisa si el contenido ha cambiado de
+ * verdad y se puede leer entero; si el JSON no es válido o no tiene ninguna cámara válida se conserva la
+ * configuración anterior. Si sólo fallan algunas cámaras se avisa con las demás y con los errores, para que quien lo
+ * reciba decida qué hacer con las descartadas.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ConfigWatcher implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ConfigWatcher.class);
+
+    /**
+     * Milisegundos que se espera tras un evento antes de leer el archivo.
+     */
+    public static final long DEBOUNCE_MILLIS = 500;
+
+    private final Path file;
+    private final Consumer<ConfigLoadResult> onChange;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Contenido del archivo la última vez que se leyó correctamente.
+     */
+    private byte[] lastContent;
+
+    /**
+     * Empieza a vigilar el archivo.
+     *
+     * @param file          el archivo de configuración.
+     * @param initialContent el contenido con el que se ha cargado la configuración actual.
+     * @param onChange      recibe la configuración nueva (y los errores de las cámaras descartadas) cada vez que cambia.
+     *                      Se invoca desde el hilo del vigilante.
+     * @throws IOException si no se puede vigilar el directorio.
+     */
+    public ConfigWatcher(Path file, byte[] initialContent, Consumer<ConfigLoadResult> onChange) throws IOException {
+        this.file = file.toAbsolutePath().normalize();
+        this.lastContent = initialContent;
+        this.onChange = onChange;
+        this.watchService = this.file.getFileSystem().newWatchService();
+        this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::loop, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Vigilando cambios en " + this.file);
+    }
+
+    private void loop() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean relevant = drain(key);
+                // se espera a que terminen de llegar los eventos del mismo guardado
+                while ((key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    relevant |= drain(key);
+                }
+                if (relevant) {
+                    reload();
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // cerrado
+        }
+    }
+
+    /**
+     * @return {@code true} si alguno de los eventos es del archivo vigilado (o se han perdido eventos).
+     */
+    private boolean drain(WatchKey key) {
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || file.getFileName().equals(event.context())) {
+                relevant = true;
+            }
+        }
+        key.reset();
+        return relevant;
+    }
+
+    private void reload() {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            // se está reemplazando; llegará otro evento
+            return;
+        } catch (IOException e) {
+            logger.warn("No se puede leer " + file, e);
+            return;
+        }
+        if (Arrays.equals(content, lastContent)) {
+            return;
+        }
+        ConfigLoadResult result;
+        try {
+            // se interpreta lo mismo que se ha leído, aunque el archivo vuelva a cambiar entretanto
+            result = CameraConfigLoader.load(new ByteArrayInputStream(content), file.toString());
+        } catch (IOException e) {
+            logger.error("Se ignora el cambio en " + file + ", se mantiene la configuración anterior: " + e.getMessage());
+            return;
+        }
+        if (result.getCameras().isEmpty() && result.hasErrors()) {
+            logger.error("Se ignora el cambio en " + file + ": ninguna cámara es válida");
+            return;
+        }
+        lastContent = content;
+        logger.info("Configuración de cámaras modificada en " + file);
+        try {
+            onChange.accept(result);
+        } catch (RuntimeException e) {
+            logger.error("Error al aplicar la configuración nueva", e);
+        }
+    }
+
+    /**
+     * Deja de vigilar el archivo.
+     */
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("No se puede cerrar el WatchService de la configuración", e);
+        }
+        thread.interrupt();
+    }
+}
@@ -1,7 +1,10 @@
 package org.home.sync.config;
 
+import org.home.sync.relay.RelayServer;
+
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * Configuración para la duplicación de transmisiones RTSP.
@@ -36,6 +39,12 @@ public class RTSPCloneConfig {
      */
     private int port = 8554;
 
+    /**
+     * Segundos que se espera antes de volver a conectar con un servidor de réplica que ha fallado. La grabación
+     * y el resto de réplicas siguen funcionando mientras tanto.
+     */
+    private int recoveryWaitSeconds = 5;
+
     /**
      * Obtiene el server rtsp donde se va a replicar la señal.
      * (el esqueleto)
@@ -45,6 +54,19 @@ public class RTSPCloneConfig {
         return "rtsp://" + rtspSever + ":" + port + "/";
     }
 
+    /**
+     * Indica si la réplica va al relay integrado ({@link RelayServer}): el servidor es esta máquina y el puerto es el
+     * del relay. En ese caso el stream se publica una sola vez y el relay lo sirve en todos los endpoints.
+     *
+     * @return {@code true} si se replica en el relay integrado.
+     */
+    public boolean isEmbeddedRelay() {
+        String host = rtspSever.toLowerCase();
+        boolean loopback = host.equals("localhost") || host.startsWith("127.") || host.equals("::1")
+                || host.equals("[::1]");
+        return loopback && port == RelayServer.PORT;
+    }
+
     /**
      * Obtiene los servidores rtsp espejo a clonar la señar
      * @return
@@ -73,6 +95,36 @@ public class RTSPCloneConfig {
         return cloneTransport;
     }
 
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public void setCloneTransport(String cloneTransport) {
+        this.cloneTransport = cloneTransport;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RTSPCloneConfig)) {
+            return false;
+        }
+        RTSPCloneConfig that = (RTSPCloneConfig) o;
+        return port == that.port
+                && recoveryWaitSeconds == that.recoveryWaitSeconds
+                && Objects.equals(format, that.format)
+                && Objects.equals(outputEndpoints, that.outputEndpoints)
+                && Objects.equals(cloneTransport, that.cloneTransport)
+                && Objects.equals(rtspSever, that.rtspSever);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(format, outputEndpoints, cloneTransport, rtspSever, port, recoveryWaitSeconds);
+    }
+
     @Override
     public String toString() {
         return "RTSPCloneConfig{" +
@@ -95,4 +147,12 @@ public class RTSPCloneConfig {
     public void setPort(int port) {
         this.port = port;
     }
+
+    public int getRecoveryWaitSeconds() {
+        return recoveryWaitSeconds;
+    }
+
+    public void setRecoveryWaitSeconds(int recoveryWaitSeconds) {
+        this.recoveryWaitSeconds = recoveryWaitSeconds;
+    }
 }
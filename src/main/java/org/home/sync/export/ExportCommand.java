@@ -0,0 +1,63 @@
+package org.home.sync.export;
+
+import org.home.sync.recording.index.SegmentIndex;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Exporta desde la línea de comandos lo grabado por una cámara entre dos instantes, con un {@link RecordingExporter}.
+ * <p>
+ * Uso: {@code ExportCommand <directorio-cámara> <desde> <hasta> <salida|->}. Los instantes van en hora local,
+ * p.ej. {@code 2024-05-01T10:15:00}. Con {@code -} se escribe en la salida estándar, para encadenarlo con
+ * {@code ffplay -} o {@code nc}. El resumen de la exportación (bytes y GB/s) se escribe en la salida de error.
+ * </p>
+ * <p>
+ * Sólo lee: se puede lanzar en otra JVM mientras se graba la cámara.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ExportCommand {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("Uso: ExportCommand <directorio-cámara> <desde> <hasta> <salida|->");
+            System.exit(2);
+        }
+        Path directory = Path.of(args[0]);
+        if (!Files.isRegularFile(directory.resolve(SegmentIndex.INDEX_FILE))) {
+            System.err.println("No hay índice de segmentos en " + directory);
+            System.exit(1);
+        }
+        long fromMillis = toEpochMillis(args[1]);
+        long toMillis = toEpochMillis(args[2]);
+
+        ExportResult result;
+        try (SegmentIndex index = new SegmentIndex(directory);
+             WritableByteChannel target = open(args[3])) {
+            result = new RecordingExporter().export(directory, index, fromMillis, toMillis, target);
+        }
+        System.err.println(result);
+    }
+
+    private static long toEpochMillis(String localDateTime) {
+        return LocalDateTime.parse(localDateTime).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static WritableByteChannel open(String output) throws IOException {
+        if ("-".equals(output)) {
+            return new FileOutputStream(FileDescriptor.out).getChannel();
+        }
+        return FileChannel.open(Path.of(output), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+}
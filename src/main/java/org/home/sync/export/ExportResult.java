@@ -0,0 +1,83 @@
+package org.home.sync.export;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lo que ha hecho una exportación de {@link RecordingExporter}.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ExportResult {
+
+    /**
+     * Segmentos exportados, enteros o recortados.
+     */
+    private final int segments;
+
+    /**
+     * Segmentos del índice que ya no estaban en disco (borrados por la retención).
+     */
+    private final int missingSegments;
+
+    /**
+     * Bytes escritos en el destino.
+     */
+    private final long bytes;
+
+    /**
+     * Duración de la exportación, en nanosegundos.
+     */
+    private final long elapsedNanos;
+
+    /**
+     * Tiempo que se ha esperado para no quitarle disco a la grabación, en nanosegundos.
+     */
+    private final long throttledNanos;
+
+    public ExportResult(int segments, int missingSegments, long bytes, long elapsedNanos, long throttledNanos) {
+        this.segments = segments;
+        this.missingSegments = missingSegments;
+        this.bytes = bytes;
+        this.elapsedNanos = elapsedNanos;
+        this.throttledNanos = throttledNanos;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public int getMissingSegments() {
+        return missingSegments;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public long getThrottledNanos() {
+        return throttledNanos;
+    }
+
+    /**
+     * @return bytes por segundo de la exportación completa, esperas incluidas.
+     */
+    public double getBytesPerSecond() {
+        return elapsedNanos == 0 ? 0 : bytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ExportResult{" +
+                "segments=" + segments +
+                ", missingSegments=" + missingSegments +
+                ", bytes=" + bytes +
+                ", elapsedMillis=" + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) +
+                ", throttledMillis=" + TimeUnit.NANOSECONDS.toMillis(throttledNanos) +
+                ", GBps=" + String.format("%.2f", getBytesPerSecond() / 1e9) +
+                '}';
+    }
+}
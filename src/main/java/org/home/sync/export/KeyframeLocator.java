@@ -0,0 +1,190 @@
+package org.home.sync.export;
+
+import org.home.sync.recording.index.KeyframeIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Busca dónde cortar un segmento MPEG-TS para exportar sólo parte de él, siempre en un fotograma clave.
+ * <p>
+ * Si el segmento tiene {@link KeyframeIndex}, el corte sale de él con dos búsquedas binarias. Si no (segmentos
+ * anteriores al indexador, o que no dio tiempo a indexar), recorre los paquetes de 188 bytes desde el principio
+ * del fichero con un buffer directo, sin pasar los datos por el heap, y se detiene en cuanto encuentra el corte
+ * final: sólo se lee hasta donde hace falta. Un fotograma clave es el
+ * paquete de video que empieza un PES y lleva el indicador de acceso aleatorio, como lo escriben FFmpeg y el
+ * {@code TsMuxer}. Su instante es la diferencia entre su PTS y el del primer fotograma del segmento.
+ * </p>
+ * <p>
+ * Si el fichero no es un MPEG-TS válido (se pierde el byte de sincronía), no se recorta: se exporta entero.
+ * </p>
+ * <p>
+ * No es thread-safe: cada exportación usa el suyo.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class KeyframeLocator {
+
+    static final int PACKET_SIZE = 188;
+
+    private static final int SYNC_BYTE = 0x47;
+    private static final long PTS_MASK = (1L << 33) - 1;
+
+    /**
+     * Paquetes que se leen de una vez.
+     */
+    private static final int READ_PACKETS = 2048;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_PACKETS * PACKET_SIZE);
+
+    /**
+     * Dónde cortar un segmento.
+     */
+    static final class Cut {
+
+        /**
+         * Fin de las tablas (PAT y PMT) del principio del fichero, que hay que copiar delante de {@link #start} si
+         * no es 0.
+         */
+        final long tablesEnd;
+
+        /**
+         * Primer byte que se exporta: un fotograma clave, o 0.
+         */
+        final long start;
+
+        /**
+         * Byte siguiente al último que se exporta: un fotograma clave, o el final del fichero.
+         */
+        final long end;
+
+        Cut(long tablesEnd, long start, long end) {
+            this.tablesEnd = tablesEnd;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Calcula el corte de un segmento.
+     *
+     * @param channel    el segmento.
+     * @param size       los bytes que se pueden exportar.
+     * @param fromMillis desde dónde exportar, en milisegundos desde el principio del segmento. Se empieza en el
+     *                   último fotograma clave anterior o igual, para que se vea desde ese instante.
+     * @param toMillis   hasta dónde exportar, en milisegundos desde el principio del segmento. Se termina en el primer
+     *                   fotograma clave posterior o igual.
+     * @return el corte. Sin cortes si {@code fromMillis <= 0} y {@code toMillis} es {@link Long#MAX_VALUE}.
+     * @throws IOException si no se puede leer el segmento.
+     */
+    Cut locate(FileChannel channel, long size, long fromMillis, long toMillis) throws IOException {
+        if (fromMillis <= 0 && toMillis == Long.MAX_VALUE) {
+            return new Cut(0, 0, size);
+        }
+        long tablesEnd = -1;
+        long start = 0;
+        long firstPts = -1;
+        long offset = 0;
+        while (offset < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - offset));
+            int read = channel.read(buffer, offset);
+            if (read < PACKET_SIZE) {
+                break;
+            }
+            buffer.flip();
+            for (int packet = 0; packet + PACKET_SIZE <= buffer.limit(); packet += PACKET_SIZE) {
+                if ((buffer.get(packet) & 0xFF) != SYNC_BYTE) {
+                    // no es un MPEG-TS alineado: se exporta entero
+                    return new Cut(0, 0, size);
+                }
+                long packetOffset = offset + packet;
+                int pes = pesStart(packet);
+                if (pes < 0) {
+                    continue;
+                }
+                if (tablesEnd < 0) {
+                    tablesEnd = packetOffset;
+                }
+                int streamId = buffer.get(pes + 3) & 0xFF;
+                if ((streamId & 0xF0) != 0xE0 || (buffer.get(pes + 7) & 0x80) == 0) {
+                    continue;
+                }
+                long pts = readPts(pes + 9);
+                if (firstPts < 0) {
+                    firstPts = pts;
+                }
+                if (!isRandomAccess(packet)) {
+                    continue;
+                }
+                long millis = ((pts - firstPts) & PTS_MASK) / 90;
+                if (millis >= toMillis && packetOffset > start) {
+                    return new Cut(tablesEnd, start, packetOffset);
+                }
+                if (millis <= fromMillis) {
+                    start = packetOffset;
+                } else if (toMillis == Long.MAX_VALUE) {
+                    // ya se sabe dónde empezar y se llega hasta el final
+                    return new Cut(tablesEnd, start, size);
+                }
+            }
+            offset += buffer.limit() - buffer.limit() % PACKET_SIZE;
+        }
+        return new Cut(Math.max(tablesEnd, 0), start, size);
+    }
+
+    /**
+     * Calcula el corte de un segmento con su índice de fotogramas clave, sin leer el segmento.
+     *
+     * @param keyframes  el índice del segmento.
+     * @param size       los bytes que se pueden exportar.
+     * @param fromMillis como en {@link #locate(FileChannel, long, long, long)}.
+     * @param toMillis   como en {@link #locate(FileChannel, long, long, long)}.
+     * @return el corte.
+     */
+    Cut locate(KeyframeIndex keyframes, long size, long fromMillis, long toMillis) {
+        long start = fromMillis <= 0 ? 0 : keyframes.seek(fromMillis);
+        long end = toMillis == Long.MAX_VALUE ? size : Math.min(keyframes.end(toMillis, start), size);
+        return new Cut(keyframes.getTablesEnd(), start, end);
+    }
+
+    /**
+     * @return la posición en el buffer donde empieza el PES del paquete, o -1 si el paquete no empieza un PES.
+     */
+    private int pesStart(int packet) {
+        if ((buffer.get(packet + 1) & 0x40) == 0) {
+            return -1;
+        }
+        int adaptation = (buffer.get(packet + 3) >> 4) & 0x3;
+        if ((adaptation & 0x1) == 0) {
+            return -1;
+        }
+        int payload = packet + 4;
+        if ((adaptation & 0x2) != 0) {
+            payload += 1 + (buffer.get(packet + 4) & 0xFF);
+        }
+        if (payload + 14 > packet + PACKET_SIZE) {
+            return -1;
+        }
+        if (buffer.get(payload) != 0 || buffer.get(payload + 1) != 0 || buffer.get(payload + 2) != 1) {
+            return -1;
+        }
+        return payload;
+    }
+
+    private boolean isRandomAccess(int packet) {
+        int adaptation = (buffer.get(packet + 3) >> 4) & 0x3;
+        return (adaptation & 0x2) != 0 && (buffer.get(packet + 4) & 0xFF) > 0
+                && (buffer.get(packet + 5) & 0x40) != 0;
+    }
+
+    private long readPts(int position) {
+        return ((long) (buffer.get(position) & 0x0E) << 29)
+                | ((long) (buffer.get(position + 1) & 0xFF) << 22)
+                | ((long) (buffer.get(position + 2) & 0xFE) << 14)
+                | ((long) (buffer.get(position + 3) & 0xFF) << 7)
+                | ((buffer.get(position + 4) & 0xFE) >> 1);
+    }
+}
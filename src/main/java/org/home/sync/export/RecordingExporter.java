@@ -0,0 +1,299 @@
+package org.home.sync.export;
+
+import org.home.sync.metrics.IoPressure;
+import org.home.sync.recording.VideoRecorder;
+import org.home.sync.recording.index.KeyframeIndex;
+import org.home.sync.recording.index.SegmentEntry;
+import org.home.sync.recording.index.SegmentFiles;
+import org.home.sync.recording.index.SegmentIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Exporta lo grabado por una cámara entre dos instantes a un fichero o a un socket, sin pasar el video por el heap.
+ * <p>
+ * Los segmentos que se solapan con el intervalo se buscan en el {@link SegmentIndex} de la cámara. El primero y el
+ * último se recortan en fotogramas clave con su {@link KeyframeIndex} o, si no lo tienen, con un
+ * {@link KeyframeLocator}; todos se envían con
+ * {@link FileChannel#transferTo}, que en Linux usa {@code sendfile}/{@code copy_file_range}: el kernel copia del
+ * page cache al destino sin que los datos pasen por la JVM. El resultado es la concatenación de los trozos, como un
+ * {@code cat} de los segmentos, y se reproduce igual que ellos.
+ * </p>
+ * <p>
+ * Sólo se exportan segmentos cerrados (los que están en el índice). Puede hacerse mientras se graba: la exportación
+ * va en trozos de {@link #CHUNK_BYTES} y, antes de cada uno, cede el disco si el sistema indica presión de E/S
+ * (por encima de {@link #IO_PRESSURE_LIMIT}%) o si se supera el límite de velocidad configurado. La presión sólo la
+ * frena hasta {@link #MIN_BYTES_PER_SECOND}: si no baja nunca, la exportación tarda más pero termina. Un segmento que
+ * ya ha borrado la retención se salta.
+ * </p>
+ * <p>
+ * Un segmento reempaquetado como MP4 fragmentado ({@link SegmentFiles}) no se puede recortar ni concatenar byte a
+ * byte con los demás: se vuelve a pasar a MPEG-TS con un FFmpeg {@code -c copy} y se envía lo que produce. Sus
+ * instantes empiezan de nuevo cerca de 0, como con {@code resetTimestamps}.
+ * </p>
+ * <p>
+ * Cada exportación se hace entera en el hilo que la pide. La instancia se puede compartir entre hilos.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class RecordingExporter {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(RecordingExporter.class);
+
+    /**
+     * Bytes que se envían en cada llamada a {@link FileChannel#transferTo}.
+     */
+    public static final long CHUNK_BYTES = 8L * 1024 * 1024;
+
+    /**
+     * Presión de E/S (porcentaje de los últimos 10 s con tareas esperando disco) a partir de la que se pausa la
+     * exportación. Se puede cambiar con la propiedad de sistema {@code export.ioPressureLimit}.
+     */
+    public static final double IO_PRESSURE_LIMIT =
+            Double.parseDouble(System.getProperty("export.ioPressureLimit", "10"));
+
+    /**
+     * Velocidad a la que sigue la exportación mientras dura la presión de E/S, en bytes por segundo. Se puede cambiar
+     * con la propiedad de sistema {@code export.minMBps} (1 por defecto, como poco 1).
+     */
+    public static final long MIN_BYTES_PER_SECOND = Math.max(1, Long.getLong("export.minMBps", 1)) * 1024 * 1024;
+
+    /**
+     * Bytes que se leen de una vez de la salida de FFmpeg al exportar un segmento reempaquetado.
+     */
+    private static final int STREAM_BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * Pausa cuando hay presión de E/S, antes de volver a mirarla.
+     */
+    private static final long PRESSURE_PAUSE_MILLIS = 200;
+
+    /**
+     * Cada cuántos trozos se vuelve a leer la presión de E/S.
+     */
+    private static final int PRESSURE_CHECK_CHUNKS = 4;
+
+    /**
+     * Bytes por segundo como máximo, o 0 sin límite.
+     */
+    private final long maxBytesPerSecond;
+
+    /**
+     * Crea un exportador con el límite de la propiedad de sistema {@code export.maxMBps} (0, sin límite, por defecto).
+     */
+    public RecordingExporter() {
+        this(Long.getLong("export.maxMBps", 0) * 1024 * 1024);
+    }
+
+    /**
+     * @param maxBytesPerSecond bytes por segundo como máximo, o 0 sin límite.
+     */
+    public RecordingExporter(long maxBytesPerSecond) {
+        if (maxBytesPerSecond < 0) {
+            throw new IllegalArgumentException("El límite de velocidad no puede ser negativo");
+        }
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Exporta lo grabado entre dos instantes. El destino no se cierra.
+     *
+     * @param directory  el directorio de la cámara.
+     * @param index      el índice de segmentos de la cámara.
+     * @param fromMillis inicio (epoch millis). Se empieza en el fotograma clave anterior o igual.
+     * @param toMillis   fin (epoch millis), exclusivo. Se termina en el fotograma clave siguiente o igual.
+     * @param target     dónde escribir, p.ej. un {@link FileChannel} o un
+     *                   {@link java.nio.channels.SocketChannel} bloqueante.
+     * @return lo exportado.
+     * @throws IOException si no se puede leer un segmento o escribir en el destino.
+     */
+    public ExportResult export(Path directory, SegmentIndex index, long fromMillis, long toMillis,
+                               WritableByteChannel target) throws IOException {
+        if (toMillis <= fromMillis) {
+            throw new IllegalArgumentException("El fin de la exportación tiene que ser posterior al inicio");
+        }
+        List<SegmentEntry> entries = index.find(fromMillis, toMillis);
+        Transfer transfer = new Transfer(target);
+        KeyframeLocator locator = new KeyframeLocator();
+        int exported = 0;
+        int missing = 0;
+        for (SegmentEntry entry : entries) {
+            Path file = directory.resolve(entry.getFileName());
+            long from = fromMillis > entry.getStartMillis() ? fromMillis - entry.getStartMillis() : 0;
+            long to = toMillis < entry.getEndMillis() ? toMillis - entry.getStartMillis() : Long.MAX_VALUE;
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                // el fichero no debería crecer, pero nunca se envía más de lo que había al cerrarse
+                long size = Math.min(source.size(), entry.getBytes() > 0 ? entry.getBytes() : Long.MAX_VALUE);
+                KeyframeLocator.Cut cut = cut(locator, directory, entry.getFileName(), source, size, from, to);
+                if (cut.start > 0) {
+                    transfer.send(source, 0, cut.tablesEnd);
+                }
+                transfer.send(source, cut.start, cut.end);
+                exported++;
+            } catch (NoSuchFileException e) {
+                Path remuxed = directory.resolve(SegmentFiles.remuxedName(entry.getFileName()));
+                if (Files.exists(remuxed)) {
+                    transfer.sendRemuxed(remuxed, from, to);
+                    exported++;
+                } else {
+                    missing++;
+                }
+            }
+        }
+        ExportResult result = new ExportResult(exported, missing, transfer.bytes, System.nanoTime() - transfer.startNanos,
+                transfer.throttledNanos);
+        logger.info("Exportados " + directory + " de " + fromMillis + " a " + toMillis + ": " + result);
+        return result;
+    }
+
+    /**
+     * Calcula el corte de un segmento con su índice de fotogramas clave si lo tiene y es del fichero entero; si no,
+     * recorriéndolo.
+     */
+    private static KeyframeLocator.Cut cut(KeyframeLocator locator, Path directory, String segment,
+                                           FileChannel source, long size, long from, long to) throws IOException {
+        if (from > 0 || to != Long.MAX_VALUE) {
+            KeyframeIndex keyframes = KeyframeIndex.read(directory, segment);
+            if (keyframes != null && keyframes.getSize() == size) {
+                return locator.locate(keyframes, size, from, to);
+            }
+        }
+        return locator.locate(source, size, from, to);
+    }
+
+    /**
+     * Envío de los trozos de una exportación, con sus pausas.
+     */
+    private final class Transfer {
+
+        private final WritableByteChannel target;
+        private final long startNanos = System.nanoTime();
+        private long bytes;
+        private long throttledNanos;
+        private int chunks;
+
+        Transfer(WritableByteChannel target) {
+            this.target = target;
+        }
+
+        void send(FileChannel source, long from, long to) throws IOException {
+            long position = from;
+            while (position < to) {
+                yieldToRecording();
+                long sent = source.transferTo(position, Math.min(CHUNK_BYTES, to - position), target);
+                if (sent <= 0) {
+                    throw new IOException("No se puede enviar más del segmento a partir del byte " + position);
+                }
+                position += sent;
+                bytes += sent;
+            }
+        }
+
+        /**
+         * Envía un segmento reempaquetado como MP4 fragmentado pasándolo otra vez a MPEG-TS con FFmpeg, sin volver a
+         * codificar, para que el resultado siga siendo una concatenación de MPEG-TS. Se corta en el fotograma clave
+         * anterior a {@code from}, como los demás.
+         */
+        void sendRemuxed(Path segment, long from, long to) throws IOException {
+            List<String> command = new ArrayList<>(List.of(VideoRecorder.FFMPEG_COMMAND, "-nostdin", "-hide_banner",
+                    "-loglevel", "error"));
+            if (from > 0) {
+                command.addAll(List.of("-ss", seconds(from)));
+            }
+            if (to != Long.MAX_VALUE) {
+                command.addAll(List.of("-to", seconds(to)));
+            }
+            command.addAll(List.of("-i", segment.toString(), "-map", "0", "-c", "copy", "-f", "mpegts", "pipe:1"));
+            Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            try (ReadableByteChannel source = Channels.newChannel(process.getInputStream())) {
+                ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_BYTES);
+                long sinceYield = CHUNK_BYTES;
+                while (true) {
+                    if (sinceYield >= CHUNK_BYTES) {
+                        yieldToRecording();
+                        sinceYield = 0;
+                    }
+                    buffer.clear();
+                    int read = source.read(buffer);
+                    if (read < 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                    bytes += read;
+                    sinceYield += read;
+                }
+                if (process.waitFor() != 0) {
+                    throw new IOException("FFmpeg ha terminado con el código " + process.exitValue()
+                            + " al pasar " + segment + " a MPEG-TS");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrumpida la exportación de " + segment, e);
+            } finally {
+                process.destroy();
+            }
+        }
+
+        private String seconds(long millis) {
+            return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+        }
+
+        /**
+         * Espera antes del siguiente trozo si se va por encima del límite de velocidad o el disco está ocupado. Con
+         * el disco ocupado sólo se espera hasta ir a {@link #MIN_BYTES_PER_SECOND}, contando el trozo que va a salir.
+         */
+        private void yieldToRecording() {
+            if (maxBytesPerSecond > 0) {
+                pause(startNanos + nanosFor(bytes, maxBytesPerSecond) - System.nanoTime());
+            }
+            if (chunks++ % PRESSURE_CHECK_CHUNKS == 0) {
+                long minimumDue = startNanos + nanosFor(bytes + CHUNK_BYTES, MIN_BYTES_PER_SECOND);
+                long now = System.nanoTime();
+                while (now < minimumDue && IoPressure.avg10() > IO_PRESSURE_LIMIT) {
+                    pause(Math.min(TimeUnit.MILLISECONDS.toNanos(PRESSURE_PAUSE_MILLIS), minimumDue - now));
+                    now = System.nanoTime();
+                }
+            }
+        }
+
+        /**
+         * @return nanosegundos que se tarda en enviar esos bytes a esa velocidad, sin desbordarse con exportaciones
+         * de decenas de GB.
+         */
+        private long nanosFor(long count, long bytesPerSecond) {
+            long second = TimeUnit.SECONDS.toNanos(1);
+            return count / bytesPerSecond * second + count % bytesPerSecond * second / bytesPerSecond;
+        }
+
+        private void pause(long nanos) {
+            if (nanos <= 0) {
+                return;
+            }
+            LockSupport.parkNanos(nanos);
+            throttledNanos += nanos;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package org.home.sync.hls;
+
+import org.home.sync.recording.index.SegmentFiles;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Una conexión HTTP con el {@link HlsServer}.
+ * <p>
+ * Atiende peticiones {@code GET} y {@code HEAD} una detrás de otra sobre la misma conexión (keep-alive). Las listas
+ * se mandan desde el buffer ya escrito del {@link HlsPlaylist}; los segmentos, con
+ * {@link FileChannel#transferTo} directamente del fichero al socket ({@code sendfile}), como mucho
+ * {@link #WRITE_CHUNK} bytes cada vez que el socket admite datos, para que un cliente rápido no acapare el hilo.
+ * Admite un único rango de bytes ({@code Range: bytes=...}).
+ * </p>
+ * <p>
+ * Todo pasa en el hilo del servidor.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class HlsConnection {
+
+    /**
+     * Segundos sin actividad tras los que se cierra la conexión.
+     */
+    static final long IDLE_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Bytes de un segmento que se mandan como mucho de una vez.
+     */
+    private static final long WRITE_CHUNK = 1024 * 1024;
+
+    private static final int REQUEST_BUFFER_SIZE = 8 * 1024;
+
+    private static final String PLAYLIST_TYPE = "application/vnd.apple.mpegurl";
+    private static final String SEGMENT_TYPE = "video/mp2t";
+    private static final String REMUXED_SEGMENT_TYPE = "video/mp4";
+
+    private final HlsServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ByteBuffer receive = ByteBuffer.allocate(REQUEST_BUFFER_SIZE);
+
+    private ByteBuffer head;
+    private ByteBuffer body;
+    private FileChannel file;
+    private long filePosition;
+    private long fileEnd;
+    private boolean keepAlive;
+    private long lastActivityNanos = System.nanoTime();
+
+    HlsConnection(HlsServer server, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    /**
+     * El socket admite lectura o escritura.
+     */
+    void onReady() {
+        try {
+            lastActivityNanos = System.nanoTime();
+            if (key.isReadable() && head == null) {
+                if (channel.read(receive) < 0) {
+                    close();
+                    return;
+                }
+                handleRequests();
+            } else if (key.isWritable() && flush()) {
+                handleRequests();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Cierra la conexión si lleva demasiado tiempo parada.
+     */
+    void tick(long now) {
+        if (now - lastActivityNanos > TimeUnit.SECONDS.toNanos(IDLE_TIMEOUT_SECONDS)) {
+            close();
+        }
+    }
+
+    /**
+     * Atiende las peticiones completas que haya en el buffer, mientras sus respuestas se manden enteras.
+     */
+    private void handleRequests() throws IOException {
+        while (head == null && key.isValid()) {
+            int end = headersEnd();
+            if (end < 0) {
+                if (!receive.hasRemaining()) {
+                    respond(431, "Cabeceras demasiado largas", false);
+                    flush();
+                }
+                return;
+            }
+            String request = new String(receive.array(), 0, end, StandardCharsets.ISO_8859_1);
+            // lo que venga detrás es la siguiente petición
+            receive.flip().position(end + 4);
+            receive.compact();
+            handle(request);
+            if (!flush()) {
+                return;
+            }
+        }
+    }
+
+    private int headersEnd() {
+        byte[] data = receive.array();
+        for (int i = 3; i < receive.position(); i++) {
+            if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+                return i - 3;
+            }
+        }
+        return -1;
+    }
+
+    private void handle(String request) throws IOException {
+        server.countRequest();
+        String[] lines = request.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) {
+            respond(400, "Petición no válida", false);
+            return;
+        }
+        String method = requestLine[0];
+        String version = requestLine[2];
+        String range = null;
+        String connection = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equals("range")) {
+                range = value;
+            } else if (name.equals("connection")) {
+                connection = value.toLowerCase(Locale.ROOT);
+            } else if (name.equals("content-length") || name.equals("transfer-encoding")) {
+                // no se leen cuerpos
+                connection = "close";
+            }
+        }
+        keepAlive = "HTTP/1.1".equals(version) ? !"close".equals(connection) : "keep-alive".equals(connection);
+        boolean headOnly = method.equals("HEAD");
+        if (!headOnly && !method.equals("GET")) {
+            respond(405, "Usa GET", false);
+            return;
+        }
+
+        String target = requestLine[1];
+        int query = target.indexOf('?');
+        String path = URLDecoder.decode(query < 0 ? target : target.substring(0, query), StandardCharsets.UTF_8);
+        String parameters = query < 0 ? "" : target.substring(query + 1);
+        int slash = path.lastIndexOf('/');
+        if (!path.startsWith(HlsServer.PATH_PREFIX) || slash <= HlsServer.PATH_PREFIX.length()) {
+            respond(404, "No existe", headOnly);
+            return;
+        }
+        String camera = path.substring(HlsServer.PATH_PREFIX.length(), slash);
+        String resource = path.substring(slash + 1);
+        HlsPlaylist playlist = server.playlist(camera);
+        if (playlist == null) {
+            respond(404, "Camara sin segmentos", headOnly);
+        } else if (resource.equals(HlsServer.LIVE_PLAYLIST)) {
+            ByteBuffer live = playlist.live();
+            if (live == null) {
+                respond(404, "Todavía no se ha cerrado ningún segmento", headOnly);
+            } else {
+                respondPlaylist(live, "no-cache", headOnly);
+            }
+        } else if (resource.equals(HlsServer.PLAYBACK_PLAYLIST)) {
+            long from = parameter(parameters, "from", 0);
+            long to = parameter(parameters, "to", Long.MAX_VALUE);
+            ByteBuffer playback = from < to ? playlist.playback(Path.of(camera), from, to) : null;
+            if (playback == null) {
+                respond(404, "No hay grabaciones en ese intervalo", headOnly);
+            } else {
+                respondPlaylist(playback, "max-age=5", headOnly);
+            }
+        } else if (isSegmentName(resource)) {
+            respondSegment(Path.of(camera, resource), range, headOnly);
+        } else {
+            respond(404, "No existe", headOnly);
+        }
+    }
+
+    private static boolean isSegmentName(String name) {
+        return (name.endsWith(SegmentFiles.EXTENSION) || SegmentFiles.isRemuxed(name)) && !name.startsWith(".")
+                && name.indexOf('/') < 0 && name.indexOf('\\') < 0;
+    }
+
+    private static long parameter(String parameters, String name, long defaultValue) {
+        for (String parameter : parameters.split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                try {
+                    return Long.parseLong(parameter.substring(name.length() + 1));
+                } catch (NumberFormatException e) {
+                    return defaultValue;
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    private void respondPlaylist(ByteBuffer playlist, String cacheControl, boolean headOnly) {
+        head = headers(200, "OK", PLAYLIST_TYPE, playlist.remaining(), "Cache-Control: " + cacheControl + "\r\n");
+        body = headOnly ? null : playlist;
+    }
+
+    private void respondSegment(Path segment, String range, boolean headOnly) throws IOException {
+        FileChannel opened;
+        try {
+            opened = FileChannel.open(segment, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            respond(404, "El segmento ya no existe", headOnly);
+            return;
+        }
+        long size = opened.size();
+        long start = 0;
+        long end = size;
+        int status = 200;
+        String extra = "Accept-Ranges: bytes\r\nCache-Control: max-age=86400\r\n";
+        long[] bounds = range == null ? null : parseRange(range, size);
+        if (bounds != null) {
+            if (bounds[0] >= size || bounds[0] >= bounds[1]) {
+                opened.close();
+                head = headers(416, "Range Not Satisfiable", "text/plain", 0, "Content-Range: bytes */" + size + "\r\n");
+                return;
+            }
+            start = bounds[0];
+            end = Math.min(bounds[1], size);
+            status = 206;
+            extra += "Content-Range: bytes " + start + "-" + (end - 1) + "/" + size + "\r\n";
+        }
+        String type = SegmentFiles.isRemuxed(segment.getFileName().toString()) ? REMUXED_SEGMENT_TYPE : SEGMENT_TYPE;
+        head = headers(status, status == 206 ? "Partial Content" : "OK", type, end - start, extra);
+        if (headOnly) {
+            opened.close();
+            return;
+        }
+        file = opened;
+        filePosition = start;
+        fileEnd = end;
+    }
+
+    /**
+     * @return {@code [inicio, fin)} del rango, con el fin como mucho {@code size}, o {@code null} si no es un único
+     * rango de bytes y se manda todo.
+     */
+    static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                return new long[]{Math.max(0, size - suffix), size};
+            }
+            long start = Long.parseLong(spec.substring(0, dash));
+            // el último byte se limita antes de sumar 1: bytes=0-9223372036854775807 no puede dar la vuelta
+            long end = dash == spec.length() - 1 ? size
+                    : Math.min(Long.parseLong(spec.substring(dash + 1)), size - 1) + 1;
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void respond(int status, String message, boolean headOnly) {
+        byte[] text = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        if (status >= 400 && status != 404 && status != 416) {
+            keepAlive = false;
+        }
+        head = headers(status, reason(status), "text/plain; charset=utf-8", text.length, "");
+        body = headOnly ? null : ByteBuffer.wrap(text);
+    }
+
+    private ByteBuffer headers(int status, String reason, String contentType, long length, String extra) {
+        String text = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + "Access-Control-Allow-Origin: *\r\n"
+                + extra
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 431:
+                return "Request Header Fields Too Large";
+            default:
+                return "Error";
+        }
+    }
+
+    /**
+     * Manda lo que se pueda de la respuesta actual. Si el socket no admite más, se espera a que se pueda escribir.
+     *
+     * @return {@code true} si se ha mandado entera y la conexión sigue abierta para la siguiente petición.
+     */
+    private boolean flush() throws IOException {
+        if (head != null && head.hasRemaining()) {
+            channel.write(head);
+        }
+        if (head != null && !head.hasRemaining() && body != null && body.hasRemaining()) {
+            channel.write(body);
+        }
+        if (head != null && !head.hasRemaining() && file != null && filePosition < fileEnd) {
+            long sent = file.transferTo(filePosition, Math.min(WRITE_CHUNK, fileEnd - filePosition), channel);
+            filePosition += sent;
+            server.countSent(sent);
+        }
+        boolean done = !head.hasRemaining() && (body == null || !body.hasRemaining())
+                && (file == null || filePosition >= fileEnd);
+        if (!done) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return false;
+        }
+        finishResponse();
+        if (!keepAlive) {
+            close();
+            return false;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        return true;
+    }
+
+    private void finishResponse() {
+        head = null;
+        body = null;
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // sólo se leía
+            }
+            file = null;
+        }
+    }
+
+    void close() {
+        finishResponse();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // ya está cerrado
+        }
+        server.remove(this);
+    }
+}
@@ -0,0 +1,295 @@
+package org.home.sync.hls;
+
+import org.home.sync.recording.index.SegmentEntry;
+import org.home.sync.recording.index.SegmentFiles;
+import org.home.sync.recording.index.SegmentIndex;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Las listas de reproducción HLS de una cámara, sacadas de su {@link SegmentIndex}.
+ * <p>
+ * La lista en directo es una ventana deslizante con los últimos segmentos cerrados. Se guarda ya escrita y sólo se
+ * vuelve a escribir cuando el índice tiene segmentos nuevos: se leen únicamente esos, se añaden a la ventana y se
+ * quitan los que salen por el principio. Como el índice sólo crece, la posición de cada segmento en él es su número
+ * de secuencia HLS y no cambia aunque se reinicie el servidor.
+ * </p>
+ * <p>
+ * Con {@code resetTimeStamps} cada segmento empieza con el PTS cerca de 0, así que entre dos segmentos hay siempre
+ * una discontinuidad; sin él, sólo cuando hay un hueco en la grabación.
+ * </p>
+ * <p>
+ * En las grabaciones terminadas puede haber segmentos reempaquetados como MP4 fragmentado: cada uno lleva su propio
+ * {@code #EXT-X-MAP} con la cabecera del fichero, y una discontinuidad antes y después porque sus instantes empiezan
+ * en 0. La lista en directo sólo tiene MPEG-TS: los segmentos no se reempaquetan mientras están en ella.
+ * </p>
+ * <p>
+ * No es thread-safe: sólo lo usa el hilo del {@link HlsServer}.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class HlsPlaylist {
+
+    /**
+     * Hueco entre dos segmentos, en milisegundos, a partir del que se marcan como discontinuos.
+     */
+    private static final long GAP_MILLIS = 1000;
+
+    /**
+     * Cajas que se recorren como mucho buscando el final de la cabecera de un MP4 fragmentado.
+     */
+    private static final int MAX_HEADER_BOXES = 16;
+
+    /**
+     * Tipo de la caja {@code moof}.
+     */
+    private static final int MOOF = 0x6D6F6F66;
+
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+
+    /**
+     * Un segmento de la ventana.
+     */
+    private static final class Item {
+
+        final int sequence;
+        final SegmentEntry entry;
+        final boolean discontinuity;
+
+        Item(int sequence, SegmentEntry entry, boolean discontinuity) {
+            this.sequence = sequence;
+            this.entry = entry;
+            this.discontinuity = discontinuity;
+        }
+    }
+
+    private final SegmentIndex index;
+    private final int windowSize;
+    private final boolean resetTimestamps;
+    private final ArrayDeque<Item> window = new ArrayDeque<>();
+
+    /**
+     * Posición en el índice del siguiente segmento que hay que añadir.
+     */
+    private int next;
+
+    private long discontinuitySequence;
+    private long targetSeconds = 1;
+    private ByteBuffer live;
+
+    /**
+     * @param index           el índice de la cámara.
+     * @param windowSize      segmentos de la lista en directo.
+     * @param resetTimestamps si cada segmento empieza con el PTS cerca de 0.
+     */
+    HlsPlaylist(SegmentIndex index, int windowSize, boolean resetTimestamps) {
+        this.index = index;
+        this.windowSize = windowSize;
+        this.resetTimestamps = resetTimestamps;
+    }
+
+    SegmentIndex getIndex() {
+        return index;
+    }
+
+    boolean isResetTimestamps() {
+        return resetTimestamps;
+    }
+
+    /**
+     * @return la lista en directo, de sólo lectura, o {@code null} si todavía no se ha cerrado ningún segmento.
+     */
+    ByteBuffer live() {
+        int count = index.size();
+        if (count != next || live == null) {
+            update(count);
+        }
+        return live == null ? null : live.duplicate();
+    }
+
+    private void update(int count) {
+        int from = Math.max(next, count - windowSize);
+        if (from > next && !window.isEmpty()) {
+            // han salido segmentos de la ventana sin que nadie pidiera la lista
+            window.clear();
+            discontinuitySequence++;
+        }
+        Item last = window.peekLast();
+        for (int i = from; i < count; i++) {
+            SegmentEntry entry = index.get(i);
+            boolean discontinuity = last != null
+                    && (resetTimestamps || entry.getStartMillis() - last.entry.getEndMillis() > GAP_MILLIS);
+            last = new Item(i, entry, discontinuity);
+            window.addLast(last);
+            targetSeconds = Math.max(targetSeconds, (entry.getDurationMillis() + 999) / 1000);
+            if (window.size() > windowSize) {
+                window.pollFirst();
+                if (window.peekFirst().discontinuity) {
+                    discontinuitySequence++;
+                }
+            }
+        }
+        next = count;
+        if (window.isEmpty()) {
+            return;
+        }
+        StringBuilder out = header(3, window.peekFirst().sequence, targetSeconds);
+        out.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuitySequence).append('\n');
+        Item first = window.peekFirst();
+        for (Item item : window) {
+            segment(out, item.entry, item != first && item.discontinuity);
+        }
+        live = ByteBuffer.wrap(out.toString().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Escribe la lista de una grabación ya terminada entre dos instantes, con {@code #EXT-X-ENDLIST}. Empieza en el
+     * primer segmento que sigue en disco: la retención borra siempre los más antiguos.
+     *
+     * @param directory  el directorio de la cámara.
+     * @param fromMillis inicio (epoch millis).
+     * @param toMillis   fin (epoch millis), exclusivo.
+     * @return la lista, o {@code null} si no hay ningún segmento en ese intervalo.
+     */
+    ByteBuffer playback(Path directory, long fromMillis, long toMillis) {
+        List<SegmentEntry> entries = index.find(fromMillis, toMillis);
+        int low = 0;
+        int high = entries.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (SegmentFiles.resolve(directory, entries.get(mid).getFileName()) != null) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        if (low == entries.size()) {
+            return null;
+        }
+        long target = 1;
+        for (int i = low; i < entries.size(); i++) {
+            target = Math.max(target, (entries.get(i).getDurationMillis() + 999) / 1000);
+        }
+        StringBuilder body = new StringBuilder(entries.size() * 128);
+        SegmentEntry previous = null;
+        boolean previousRemuxed = false;
+        boolean anyRemuxed = false;
+        for (int i = low; i < entries.size(); i++) {
+            SegmentEntry entry = entries.get(i);
+            Path file = SegmentFiles.resolve(directory, entry.getFileName());
+            boolean remuxed = file != null && SegmentFiles.isRemuxed(file.getFileName().toString());
+            // cada segmento reempaquetado empieza con sus instantes en 0
+            boolean discontinuity = previous != null && (resetTimestamps || remuxed || previousRemuxed
+                    || entry.getStartMillis() - previous.getEndMillis() > GAP_MILLIS);
+            if (remuxed && remuxedSegment(body, entry, file, discontinuity)) {
+                anyRemuxed = true;
+            } else {
+                segment(body, entry, discontinuity);
+            }
+            previous = entry;
+            previousRemuxed = remuxed;
+        }
+        StringBuilder out = header(anyRemuxed ? 7 : 3, 0, target);
+        out.append("#EXT-X-PLAYLIST-TYPE:VOD\n").append(body);
+        out.append("#EXT-X-ENDLIST\n");
+        return ByteBuffer.wrap(out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Escribe un segmento reempaquetado como MP4 fragmentado: su cabecera ({@code ftyp} y {@code moov}) va como
+     * {@code #EXT-X-MAP} y el resto como un rango de bytes del mismo fichero.
+     *
+     * @return {@code false} si no se ha podido leer su cabecera; entonces no se escribe nada.
+     */
+    private static boolean remuxedSegment(StringBuilder out, SegmentEntry entry, Path file, boolean discontinuity) {
+        long initSize;
+        long size;
+        try {
+            size = Files.size(file);
+            initSize = initSegmentSize(file);
+        } catch (IOException e) {
+            return false;
+        }
+        if (initSize <= 0 || initSize >= size) {
+            return false;
+        }
+        String uri = URLEncoder.encode(file.getFileName().toString(), StandardCharsets.UTF_8);
+        if (discontinuity) {
+            out.append("#EXT-X-DISCONTINUITY\n");
+        }
+        out.append("#EXT-X-MAP:URI=\"").append(uri).append("\",BYTERANGE=\"").append(initSize).append("@0\"\n");
+        dateTimeAndDuration(out, entry);
+        out.append("#EXT-X-BYTERANGE:").append(size - initSize).append('@').append(initSize).append('\n');
+        out.append(uri).append('\n');
+        return true;
+    }
+
+    /**
+     * @return dónde empieza el primer {@code moof} de un MP4 fragmentado, que es lo que ocupa su cabecera, o -1 si
+     * no lo tiene.
+     */
+    static long initSegmentSize(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer box = ByteBuffer.allocate(16);
+            long position = 0;
+            for (int boxes = 0; boxes < MAX_HEADER_BOXES && position + 8 <= size; boxes++) {
+                box.clear();
+                if (channel.read(box, position) < 8) {
+                    return -1;
+                }
+                long length = box.getInt(0) & 0xFFFFFFFFL;
+                if (box.getInt(4) == MOOF) {
+                    return position;
+                }
+                if (length == 1 && box.position() >= 16) {
+                    length = box.getLong(8);
+                }
+                if (length < 8) {
+                    // 0 (hasta el final) o no válida
+                    return -1;
+                }
+                position += length;
+            }
+            return -1;
+        }
+    }
+
+    private static StringBuilder header(int version, long mediaSequence, long targetSeconds) {
+        StringBuilder out = new StringBuilder(512);
+        out.append("#EXTM3U\n#EXT-X-VERSION:").append(version).append('\n');
+        out.append("#EXT-X-TARGETDURATION:").append(targetSeconds).append('\n');
+        out.append("#EXT-X-MEDIA-SEQUENCE:").append(mediaSequence).append('\n');
+        return out;
+    }
+
+    private static void segment(StringBuilder out, SegmentEntry entry, boolean discontinuity) {
+        if (discontinuity) {
+            out.append("#EXT-X-DISCONTINUITY\n");
+        }
+        dateTimeAndDuration(out, entry);
+        out.append(URLEncoder.encode(entry.getFileName(), StandardCharsets.UTF_8)).append('\n');
+    }
+
+    private static void dateTimeAndDuration(StringBuilder out, SegmentEntry entry) {
+        out.append("#EXT-X-PROGRAM-DATE-TIME:").append(DATE_TIME.format(OffsetDateTime.ofInstant(
+                Instant.ofEpochMilli(entry.getStartMillis()), ZoneId.systemDefault()))).append('\n');
+        out.append("#EXTINF:").append(String.format(Locale.ROOT, "%.3f", entry.getDurationMillis() / 1000.0))
+                .append(",\n");
+    }
+}
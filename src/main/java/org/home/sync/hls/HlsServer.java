@@ -0,0 +1,267 @@
+package org.home.sync.hls;
+
+import org.home.sync.config.CameraConfig;
+import org.home.sync.manager.CameraSupervisor;
+import org.home.sync.recording.Recorder;
+import org.home.sync.recording.index.SegmentIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Servidor HTTP que sirve en HLS lo que ya graban las cámaras, sin abrir ninguna sesión RTSP más con ellas.
+ * <p>
+ * Para cada cámara con índice de segmentos ofrece:
+ * </p>
+ * <ul>
+ *     <li>{@code /hls/<cámara>/live.m3u8}: lista en directo con los últimos {@link #WINDOW_SEGMENTS} segmentos
+ *     cerrados. Va por detrás del directo lo que dura un segmento: para verlo casi en directo conviene un
+ *     {@code segmentTime} corto.</li>
+ *     <li>{@code /hls/<cámara>/playback.m3u8?from=<epoch ms>&to=<epoch ms>}: lista de lo grabado en un intervalo
+ *     (todo si no se indica).</li>
+ *     <li>{@code /hls/<cámara>/<segmento>.ts}: el segmento, con rangos de bytes.</li>
+ * </ul>
+ * <p>
+ * Un único hilo atiende todas las conexiones con un {@link Selector}: cientos de clientes no suponen cientos de
+ * hilos. Las listas se escriben sólo cuando se cierra un segmento y los segmentos se mandan del page cache al socket
+ * con {@code sendfile}, sin pasar por el heap.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public final class HlsServer implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(HlsServer.class);
+
+    /**
+     * Puerto por defecto. Se puede cambiar con la propiedad de sistema {@code hls.port} (0 o negativo lo desactiva).
+     */
+    public static final int DEFAULT_PORT = 9402;
+
+    /**
+     * Dirección donde escucha. Se puede cambiar con la propiedad de sistema {@code hls.bindAddress}.
+     */
+    public static final String BIND_ADDRESS = System.getProperty("hls.bindAddress", "0.0.0.0");
+
+    /**
+     * Segmentos de la lista en directo. Se puede cambiar con la propiedad de sistema {@code hls.windowSegments}.
+     */
+    public static final int WINDOW_SEGMENTS = Math.max(3, Integer.getInteger("hls.windowSegments", 6));
+
+    static final String PATH_PREFIX = "/hls/";
+    static final String LIVE_PLAYLIST = "live.m3u8";
+    static final String PLAYBACK_PLAYLIST = "playback.m3u8";
+
+    /**
+     * Cada cuántos milisegundos se cierran las conexiones paradas.
+     */
+    private static final long TICK_MILLIS = 1000;
+
+    private final CameraSupervisor supervisor;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread thread;
+
+    /**
+     * Listas de cada cámara, por nombre. Sólo se toca desde el hilo del servidor.
+     */
+    private final Map<String, HlsPlaylist> playlists = new HashMap<>();
+
+    /**
+     * Conexiones abiertas. Sólo se toca desde el hilo del servidor.
+     */
+    private final List<HlsConnection> connections = new ArrayList<>();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private volatile int connectionCount;
+    private volatile boolean running = true;
+
+    /**
+     * Abre el servidor en {@link #BIND_ADDRESS} y el puerto indicado.
+     *
+     * @param supervisor el supervisor de las cámaras, de donde salen sus índices de segmentos.
+     * @param port       el puerto.
+     * @throws IOException si no se puede abrir el puerto.
+     */
+    public HlsServer(CameraSupervisor supervisor, int port) throws IOException {
+        this(supervisor, new InetSocketAddress(BIND_ADDRESS, port));
+    }
+
+    /**
+     * Abre el puerto y arranca el hilo del servidor.
+     *
+     * @param supervisor el supervisor de las cámaras, de donde salen sus índices de segmentos.
+     * @param address    dónde escuchar.
+     * @throws IOException si no se puede abrir el puerto.
+     */
+    public HlsServer(CameraSupervisor supervisor, InetSocketAddress address) throws IOException {
+        this.supervisor = supervisor;
+        this.selector = Selector.open();
+        try {
+            this.serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+        this.thread = new Thread(this::loop, "hls-http");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("HLS en http://" + address.getHostString() + ":" + getPort() + PATH_PREFIX + "<camara>/"
+                + LIVE_PLAYLIST);
+    }
+
+    /**
+     * @return el puerto en el que escucha el servidor.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return peticiones HTTP atendidas.
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return bytes de segmentos enviados.
+     */
+    public long getSentBytes() {
+        return sentBytes.sum();
+    }
+
+    /**
+     * @return conexiones abiertas.
+     */
+    public int getConnections() {
+        return connectionCount;
+    }
+
+    /**
+     * Las listas de una cámara. Se vuelven a crear si la cámara ha cambiado de índice (se dejó de vigilar y se
+     * volvió a arrancar) o de {@code resetTimeStamps}.
+     *
+     * @param camera el nombre de la cámara.
+     * @return sus listas, o {@code null} si no se vigila o no tiene índice de segmentos.
+     */
+    HlsPlaylist playlist(String camera) {
+        SegmentIndex index = supervisor.getSegmentIndex(camera);
+        Recorder recorder = supervisor.getRecorder(camera);
+        if (index == null || recorder == null) {
+            playlists.remove(camera);
+            return null;
+        }
+        boolean resetTimestamps = !"0".equals(recorder.getCameraConfig().getResetTimeStamps());
+        HlsPlaylist playlist = playlists.get(camera);
+        if (playlist == null || playlist.getIndex() != index || playlist.isResetTimestamps() != resetTimestamps) {
+            playlist = new HlsPlaylist(index, WINDOW_SEGMENTS, resetTimestamps);
+            playlists.put(camera, playlist);
+        }
+        return playlist;
+    }
+
+    void countRequest() {
+        requests.increment();
+    }
+
+    void countSent(long bytes) {
+        sentBytes.add(bytes);
+    }
+
+    void remove(HlsConnection connection) {
+        connections.remove(connection);
+        connectionCount = connections.size();
+    }
+
+    private void loop() {
+        long lastTick = System.nanoTime();
+        while (running) {
+            try {
+                selector.select(TICK_MILLIS);
+            } catch (IOException e) {
+                logger.error("Error en el selector del servidor HLS", e);
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                } else {
+                    ((HlsConnection) key.attachment()).onReady();
+                }
+            }
+            long now = System.nanoTime();
+            if (now - lastTick >= TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS)) {
+                lastTick = now;
+                for (int i = connections.size() - 1; i >= 0; i--) {
+                    if (i < connections.size()) {
+                        connections.get(i).tick(now);
+                    }
+                }
+            }
+        }
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            connections.get(i).close();
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("Error al cerrar el servidor HLS", e);
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            HlsConnection connection = new HlsConnection(this, channel, key);
+            key.attach(connection);
+            connections.add(connection);
+            connectionCount = connections.size();
+        } catch (IOException e) {
+            logger.warn("No se puede aceptar una conexión HLS: " + e);
+        }
+    }
+
+    /**
+     * Cierra el servidor y todas las conexiones.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,27 @@
+package org.home.sync.manager;
+
+import org.home.sync.recording.Recorder;
+
+/**
+ * Recibe los avisos del {@link CameraSupervisor} cuando empieza o deja de vigilar una cámara.
+ * Los componentes que necesitan algo por cámara (métricas, mantenimiento de grabaciones...) se registran con
+ * {@link CameraSupervisor#addListener(CameraLifecycleListener)}.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public interface CameraLifecycleListener {
+
+    /**
+     * Se invoca justo antes de arrancar la grabación de una cámara.
+     *
+     * @param recorder el grabador de la cámara.
+     */
+    void onCameraStarted(Recorder recorder);
+
+    /**
+     * Se invoca cuando se deja de vigilar una cámara.
+     *
+     * @param recorder el grabador de la cámara.
+     */
+    void onCameraStopped(Recorder recorder);
+}
@@ -1,23 +1,43 @@
 package org.home.sync.manager;
 
+import org.home.sync.cluster.ShardCoordinator;
 import org.home.sync.config.CameraConfig;
-import org.home.sync.recording.VideoRecorder;
+import org.home.sync.config.ConfigError;
+import org.home.sync.config.ConfigLoadResult;
+import org.home.sync.config.ConfigWatcher;
+import org.home.sync.export.ExportResult;
+import org.home.sync.export.RecordingExporter;
+import org.home.sync.hls.HlsServer;
+import org.home.sync.metrics.JmxExporter;
+import org.home.sync.metrics.PrometheusExporter;
+import org.home.sync.recording.index.SegmentIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * La clase {@code ManagmentService} es responsable de gestionar y ejecutar
  * tareas relacionadas con el procesamiento de cámaras IP. En este caso, la de
  * grabar contenido por el flujo streamX.
  * <p>
- * Este servicio utiliza un {@link ExecutorService} con un tamaño de pool de hilos
- * basado en el número de cámaras configuradas, permitiendo que cada cámara se
- * procese de manera concurrente.
+ * La grabación de cada cámara la vigila un {@link CameraSupervisor}, que no dedica un hilo por cámara:
+ * los procesos FFmpeg se controlan con callbacks de salida y un planificador compartido. Las réplicas RTSP las sirve
+ * el relay integrado del supervisor, sin procesos externos.
+ * </p>
+ * <p>
+ * Con la propiedad {@code shard.dir} varias instancias se reparten las cámaras de la misma configuración mediante un
+ * {@link ShardCoordinator}: cada una sólo graba las cámaras de las que tiene la concesión.
  * </p>
  *
  * <p>
@@ -34,76 +54,405 @@ public class CameraManager implements AutoCloseable{
     private static final Logger logger = LoggerFactory.getLogger(CameraManager.class);
 
     /**
-     * Executor service que gestiona un pool de hilos para ejecutar tareas concurrentemente.
-     * Cada cámara se procesa en un hilo separado. (abre un puente rtsp distinto).
+     * Supervisor que vigila la grabación de todas las cámaras.
+     */
+    private final CameraSupervisor supervisor = new CameraSupervisor();
+
+    /**
+     * Lanza las cámaras de forma escalonada y por prioridad.
+     */
+    private final StartupScheduler startupScheduler = new StartupScheduler(supervisor);
+
+    /**
+     * Publica las métricas en JMX.
+     */
+    private final JmxExporter jmxExporter = new JmxExporter(supervisor);
+
+    /**
+     * Reinicia las grabaciones que se atascan sin terminar.
+     */
+    private final StallWatchdog stallWatchdog = new StallWatchdog(supervisor);
+
+    /**
+     * Baja la calidad de las cámaras menos prioritarias cuando la máquina se satura.
+     */
+    private final LoadShedder loadShedder = new LoadShedder(supervisor);
+
+    /**
+     * Reempaqueta a MP4 fragmentado los segmentos antiguos cuando la máquina está desocupada.
+     */
+    private final SegmentRemuxer segmentRemuxer = new SegmentRemuxer(supervisor, loadShedder.getMetrics());
+
+    /**
+     * Exporta tramos de las grabaciones.
+     */
+    private final RecordingExporter exporter = new RecordingExporter();
+
+    /**
+     * Borra las grabaciones antiguas, o {@code null} si no se pudo arrancar.
+     */
+    private RetentionService retentionService;
+
+    /**
+     * Publica las métricas en formato Prometheus, o {@code null} si está desactivado.
+     */
+    private PrometheusExporter prometheusExporter;
+
+    /**
+     * Sirve las grabaciones en HLS, o {@code null} si está desactivado o no se pudo abrir.
+     */
+    private HlsServer hlsServer;
+
+    /**
+     * Recibe los disparos de las cámaras en modo event, o {@code null} si ninguna lo usa o no se pudo arrancar.
+     */
+    private EventTriggerService eventTriggerService;
+
+    /**
+     * Reparte las cámaras con otras instancias, o {@code null} si esta instancia las graba todas.
+     */
+    private ShardCoordinator shardCoordinator;
+
+    /**
+     * Configuración completa, de todas las cámaras, por nombre.
+     */
+    private Map<String, CameraConfig> configured = new LinkedHashMap<>();
+
+    /**
+     * Configuración aplicada ahora mismo, por nombre de cámara: las que graba esta instancia.
+     */
+    private Map<String, CameraConfig> cameras = new LinkedHashMap<>();
+
+    /**
+     * Vigila el archivo de configuración, o {@code null} si se cargó del classpath.
+     */
+    private ConfigWatcher configWatcher;
+
+    /**
+     * Se libera cuando se cierra el servicio, para quien espere en {@link #awaitTermination()}.
      */
-    private ExecutorService executorService;
+    private final CountDownLatch terminated = new CountDownLatch(1);
 
     /**
      * Constructor que inicializa el servicio de gestión de cámaras.
-     * Carga la configuración de las cámaras desde un archivo JSON y asigna el número de hilos en función
-     * de la cantidad de cámaras detectadas.
+     * Carga la configuración de las cámaras desde un archivo JSON y empieza a grabar cada una de ellas.
      *
      * @param jsonConfig Ruta del archivo de configuración JSON que contiene la información de las cámaras.
      * @throws IOException Si ocurre un error al cargar la configuración de las cámaras.
      */
     public CameraManager(String jsonConfig) throws IOException {
-        executeService(jsonConfig);
+        try {
+            executeService(CameraConfig.fromJsonFile(jsonConfig));
+        } catch (IOException | RuntimeException e) {
+            // lo que ya se haya arrancado (supervisor, retención, HLS...) no debe quedar vivo sin nadie que lo cierre
+            close();
+            throw e;
+        }
     }
 
     /**
-     * Inicializa el servicio cargando las cámaras desde el archivo JSON y configurando
-     * el pool de hilos para el procesamiento concurrente.
+     * Constructor que carga la configuración de las cámaras de un archivo del sistema de ficheros y lo vigila: cada vez
+     * que cambia se aplican sólo las diferencias (ver {@link #apply(List)}), sin reiniciar la aplicación.
      *
-     * @param jsonConfig Ruta del archivo de configuración JSON.
-     * @throws IOException Si ocurre un error al cargar la configuración de las cámaras.
+     * @param configFile Ruta del archivo de configuración JSON.
+     * @throws IOException Si ocurre un error al cargar la configuración de las cámaras o al vigilar el archivo.
+     */
+    public CameraManager(Path configFile) throws IOException {
+        try {
+            byte[] content = Files.readAllBytes(configFile);
+            executeService(CameraConfig.fromPath(configFile));
+            configWatcher = new ConfigWatcher(configFile, content, this::reload);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Inicializa el servicio entregando las cámaras al supervisor.
+     *
+     * @param cameraConfigList Las cámaras leídas del archivo JSON.
+     * @throws IOException si las cámaras se reparten entre instancias y no se puede usar el directorio compartido.
      */
-    private void executeService(String jsonConfig) throws IOException {
-        // Cargar la lista de cámaras desde el archivo JSON
-        List<CameraConfig> cameraConfigList = CameraConfig.fromJsonFile(jsonConfig);
+    private void executeService(List<CameraConfig> cameraConfigList) throws IOException {
+        startRetentionService();
+        startHlsServer();
+        startShardCoordinator();
+        startPrometheusExporter();
+        stallWatchdog.start();
+        loadShedder.start();
+        segmentRemuxer.start();
+        apply(cameraConfigList);
+    }
+
+    /**
+     * Se une al reparto de cámaras entre instancias si está configurado {@code shard.dir}. Si no se puede usar el
+     * directorio compartido no arranca el servicio: grabar todas las cámaras duplicaría las de las demás instancias.
+     *
+     * @throws IOException si no se puede usar el directorio compartido.
+     */
+    private void startShardCoordinator() throws IOException {
+        shardCoordinator = ShardCoordinator.fromSystemProperties(supervisor.getScheduler(), this::applyOwnedCameras);
+        if (shardCoordinator != null) {
+            logger.info("Repartiendo las cámaras como la instancia " + shardCoordinator.getInstanceId());
+            shardCoordinator.start();
+        }
+    }
 
-        // Establecer el tamaño del pool de hilos basado en el número de cámaras
-        int sizePool = cameraConfigList.size();
-        this.executorService = Executors.newFixedThreadPool(sizePool);
+    /**
+     * Aplica la configuración recargada del archivo. Una cámara que ya estaba grabando y cuya entrada nueva no es
+     * válida sigue con su configuración anterior en lugar de pararse: un error al editar una cámara no debe dejarla
+     * sin grabar.
+     *
+     * @param result la configuración leída y los errores de las cámaras descartadas.
+     */
+    private synchronized void reload(ConfigLoadResult result) {
+        List<CameraConfig> next = new ArrayList<>(result.getCameras());
+        Set<String> names = new HashSet<>();
+        for (CameraConfig cameraConfig : next) {
+            names.add(cameraConfig.getName());
+        }
+        for (ConfigError error : result.getErrors()) {
+            CameraConfig previous = error.getName() == null ? null : configured.get(error.getName());
+            if (previous != null && names.add(previous.getName())) {
+                logger.warn("La camara " + previous.getName() + " sigue con su configuración anterior");
+                next.add(previous);
+            }
+        }
+        apply(next);
+    }
 
-        if(cameraConfigList.stream().anyMatch(a -> {
-            return a.getCloneRTSPStream() != null;
-        })) {
-            executorService.execute(CameraManager::startMediamtx); //si hay alguna entrada para duplicar el stream, levantamos el servidor de duplicación mediamtx.
+    /**
+     * Aplica una configuración nueva comparándola, por nombre, con la actual: se arrancan las cámaras nuevas, se
+     * paran las que ya no están y se reinician sólo aquellas cuya grabación ha cambiado. Los arranques y reinicios
+     * pasan por el {@link StartupScheduler}, que los escalona. Las que no cambian no se
+     * tocan (su FFmpeg sigue grabando), y si sólo cambian los límites de retención se actualizan sin reiniciar.
+     * <p>
+     * La configuración llega ya leída y validada entera, y se aplica con el servicio bloqueado, así que nunca queda a
+     * medias entre la anterior y la nueva.
+     * </p>
+     * <p>
+     * Si las cámaras se reparten entre instancias sólo se aplican las de esta instancia; el resto se aplica según las
+     * va consiguiendo.
+     * </p>
+     *
+     * @param cameraConfigList la configuración nueva completa.
+     */
+    public synchronized void apply(List<CameraConfig> cameraConfigList) {
+        if (terminated.getCount() == 0) {
+            return;
         }
-        // Ejecutar cada tarea de cámara en un hilo separado
+        Map<String, CameraConfig> all = new LinkedHashMap<>();
         for (CameraConfig cameraConfig : cameraConfigList) {
-            executorService.execute(new VideoRecorder(cameraConfig));
+            all.put(cameraConfig.getName(), cameraConfig);
+        }
+        configured = all;
+        if (shardCoordinator == null) {
+            applyCameras(all);
+        } else {
+            shardCoordinator.setCameras(all.keySet());
+            applyOwnedCameras();
         }
     }
 
-    private static void startMediamtx() {
-        try {
-            ProcessBuilder pb = new ProcessBuilder("./install-mediamtx.sh");
-            pb.inheritIO();
-            Process process = pb.start();
-            try(BufferedReader bufferedInputStreamReader = new BufferedReader(new InputStreamReader(process.getInputStream()))){
-                String line;
-                logger.info("Thread actual:" + Thread.currentThread().getName());
-                while ((line = bufferedInputStreamReader.readLine()) !=null) {
-                    logger.info(line);
+    /**
+     * Aplica la configuración de las cámaras de las que esta instancia tiene la concesión. Lo llama el
+     * {@link ShardCoordinator} cada vez que cambian.
+     */
+    private synchronized void applyOwnedCameras() {
+        if (terminated.getCount() == 0) {
+            return;
+        }
+        Map<String, CameraConfig> owned = new LinkedHashMap<>();
+        for (CameraConfig cameraConfig : configured.values()) {
+            if (shardCoordinator.isOwned(cameraConfig.getName())) {
+                owned.put(cameraConfig.getName(), cameraConfig);
+            }
+        }
+        applyCameras(owned);
+    }
+
+    /**
+     * Aplica las diferencias entre las cámaras que se graban ahora y las que hay que grabar.
+     *
+     * @param next las cámaras que tiene que grabar esta instancia, por nombre.
+     */
+    private void applyCameras(Map<String, CameraConfig> next) {
+        int stopped = 0;
+        int started = 0;
+        int restarted = 0;
+        int updated = 0;
+        if (eventTriggerService == null && next.values().stream().anyMatch(CameraConfig::isEventMode)) {
+            startEventTriggerService();
+        }
+        for (String name : cameras.keySet()) {
+            if (!next.containsKey(name)) {
+                startupScheduler.cancel(name);
+                supervisor.stop(name);
+                stopped++;
+            }
+        }
+        for (CameraConfig cameraConfig : next.values()) {
+            CameraConfig previous = cameras.get(cameraConfig.getName());
+            if (previous == null) {
+                startupScheduler.submit(cameraConfig);
+                started++;
+            } else if (!previous.hasSameRecording(cameraConfig)) {
+                startupScheduler.submit(cameraConfig);
+                restarted++;
+            } else if (!previous.equals(cameraConfig)) {
+                if (retentionService != null) {
+                    retentionService.update(cameraConfig);
                 }
+                updated++;
             }
-            logger.info("mediamtx iniciado correctamente.");
+        }
+        cameras = next;
+        logger.info("Configuración aplicada: " + started + " cámaras nuevas, " + restarted + " reiniciadas, "
+                + stopped + " paradas, " + updated + " actualizadas sin reiniciar, "
+                + (next.size() - started - restarted - updated) + " sin cambios");
+    }
+
+    /**
+     * Arranca la recepción de disparos, antes que la primera cámara en modo event. Si no se puede, las cámaras sólo
+     * graban con {@link #trigger(String)}.
+     */
+    private void startEventTriggerService() {
+        try {
+            eventTriggerService = new EventTriggerService(supervisor);
+        } catch (IOException e) {
+            logger.error("No se pueden recibir disparos por fichero ni por HTTP", e);
+        }
+    }
+
+    /**
+     * Dispara la grabación de un evento en una cámara en modo event: se escribe su pre-roll y se sigue grabando
+     * hasta {@link CameraConfig#getPostRollSeconds()} segundos después del último disparo.
+     *
+     * @param name el nombre de la cámara.
+     * @return {@code true} si se va a grabar el evento, {@code false} si la cámara no existe o no graba por eventos.
+     */
+    public boolean trigger(String name) {
+        return supervisor.trigger(name);
+    }
+
+    /**
+     * Exporta lo grabado por una cámara entre dos instantes, recortado en fotogramas clave, sin pasar el video por el
+     * heap. Se puede hacer mientras se graba: se cede el disco a la grabación cuando hay presión de E/S.
+     *
+     * @param name       el nombre de la cámara.
+     * @param fromMillis inicio (epoch millis).
+     * @param toMillis   fin (epoch millis), exclusivo.
+     * @param target     dónde escribir; no se cierra.
+     * @return lo exportado.
+     * @throws IOException si la cámara no tiene índice de segmentos o falla la copia.
+     */
+    public ExportResult export(String name, long fromMillis, long toMillis, WritableByteChannel target)
+            throws IOException {
+        SegmentIndex index = supervisor.getSegmentIndex(name);
+        if (index == null) {
+            throw new IOException("La camara " + name + " no tiene índice de segmentos");
+        }
+        return exporter.export(Path.of(name), index, fromMillis, toMillis, target);
+    }
+
+    /**
+     * Arranca el borrado de grabaciones antiguas. Si no se puede, se graba igualmente.
+     */
+    private void startRetentionService() {
+        try {
+            retentionService = new RetentionService(supervisor);
+        } catch (IOException e) {
+            logger.error("No se puede arrancar la retención de grabaciones, no se borrará nada", e);
+        }
+    }
+
+    /**
+     * Levanta el servidor HLS en el puerto de la propiedad {@code hls.port} ({@link HlsServer#DEFAULT_PORT} por
+     * defecto; 0 o negativo lo desactiva). Si no se puede abrir el puerto se graba igualmente.
+     */
+    private void startHlsServer() {
+        int port = Integer.getInteger("hls.port", HlsServer.DEFAULT_PORT);
+        if (port <= 0) {
+            return;
+        }
+        try {
+            hlsServer = new HlsServer(supervisor, port);
+        } catch (IOException e) {
+            logger.error("No se puede abrir el servidor HLS en el puerto " + port, e);
+        }
+    }
+
+    /**
+     * Levanta el endpoint de métricas Prometheus en el puerto de la propiedad {@code metrics.port}
+     * ({@link PrometheusExporter#DEFAULT_PORT} por defecto; 0 o negativo lo desactiva). Si no se puede abrir el puerto
+     * se graba igualmente.
+     */
+    private void startPrometheusExporter() {
+        int port = Integer.getInteger("metrics.port", PrometheusExporter.DEFAULT_PORT);
+        if (port <= 0) {
+            return;
+        }
+        try {
+            prometheusExporter = new PrometheusExporter(supervisor,
+                    retentionService == null ? null : retentionService.getMetrics(), startupScheduler.getMetrics(),
+                    hlsServer, loadShedder.getMetrics(),
+                    shardCoordinator == null ? null : shardCoordinator.getMetrics(),
+                    segmentRemuxer.isEnabled() ? segmentRemuxer.getMetrics() : null, port);
         } catch (IOException e) {
-            logger.error("Error al iniciar mediamtx.");
+            logger.error("No se puede abrir el endpoint de métricas en el puerto " + port, e);
         }
     }
 
     /**
-     * Cierra el servicio de ejecución. Es importante llamar a este método una vez
-     * que todas las tareas se hayan completado para liberar los recursos del {@link ExecutorService}.
+     * @return el supervisor que vigila la grabación de las cámaras.
+     */
+    public CameraSupervisor getSupervisor() {
+        return supervisor;
+    }
+
+    /**
+     * Bloquea el hilo actual hasta que se cierre el servicio.
+     *
+     * @throws InterruptedException si se interrumpe la espera.
+     */
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    /**
+     * Cierra el servicio: para la grabación de todas las cámaras y el relay, si se abrió.
      */
     @Override
-    public void close() {
-        if (executorService != null && !executorService.isShutdown()) {
-            executorService.shutdown();
-            logger.info("Servicio de gestión de cámaras cerrado correctamente.");
+    public synchronized void close() {
+        if (terminated.getCount() == 0) {
+            return;
+        }
+        if (configWatcher != null) {
+            configWatcher.close();
+        }
+        if (eventTriggerService != null) {
+            eventTriggerService.close();
+        }
+        if (hlsServer != null) {
+            hlsServer.close();
+        }
+        segmentRemuxer.close();
+        stallWatchdog.close();
+        loadShedder.close();
+        supervisor.close();
+        if (shardCoordinator != null) {
+            // después de parar las cámaras, para que otra instancia no empiece a grabarlas mientras ésta aún escribe
+            shardCoordinator.close();
+        }
+        if (retentionService != null) {
+            retentionService.close();
+        }
+        jmxExporter.close();
+        if (prometheusExporter != null) {
+            prometheusExporter.close();
         }
+        logger.info("Servicio de gestión de cámaras cerrado correctamente.");
+        terminated.countDown();
     }
 }
@@ -0,0 +1,554 @@
+package org.home.sync.manager;
+
+import org.home.sync.config.CameraConfig;
+import org.home.sync.config.RTSPCloneConfig;
+import org.home.sync.metrics.CameraMetrics;
+import org.home.sync.metrics.ProcessSampler;
+import org.home.sync.metrics.TranscodeReport;
+import org.home.sync.recording.ActivityRecorder;
+import org.home.sync.recording.CameraState;
+import org.home.sync.recording.CodecProbe;
+import org.home.sync.recording.NativeRecorder;
+import org.home.sync.recording.RecorderServices;
+import org.home.sync.recording.SegmentStaging;
+import org.home.sync.recording.Recorder;
+import org.home.sync.recording.TranscodeAdmission;
+import org.home.sync.recording.VideoRecorder;
+import org.home.sync.recording.index.KeyframeIndexer;
+import org.home.sync.recording.index.SegmentIndex;
+import org.home.sync.recording.progress.FfmpegLogForwarder;
+import org.home.sync.recording.progress.ProgressServer;
+import org.home.sync.recording.progress.SegmentListener;
+import org.home.sync.recording.rtsp.RtspIngest;
+import org.home.sync.relay.RelayPath;
+import org.home.sync.relay.RelayServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * La clase {@code CameraSupervisor} vigila la grabación de todas las cámaras sin dedicar un hilo a cada una.
+ * <p>
+ * Cada {@link VideoRecorder} lanza su proceso FFmpeg y reacciona a su salida con {@link Process#onExit()}, y cada
+ * {@link NativeRecorder} comparte los hilos del {@link RtspIngest}, por lo que el coste en hilos no depende del
+ * número de cámaras: sólo existe un pequeño planificador compartido ({@link #SCHEDULER_THREADS} hilos) donde se
+ * programan reintentos, paradas y el informe periódico de estados.
+ * </p>
+ * <p>
+ * Las cámaras en modo activity se envuelven en un {@link ActivityRecorder}, que sólo arranca su grabador mientras
+ * hay actividad en el stream secundario.
+ * </p>
+ * <p>
+ * Las cámaras que se replican en esta máquina publican en el {@link RelayServer} integrado, que se abre con la
+ * primera de ellas y antes de arrancarla, así que ya acepta conexiones cuando la cámara publica.
+ * </p>
+ * <p>
+ * Nota: la JDK mantiene internamente un hilo "process reaper" por proceso hijo para recoger su código de salida.
+ * Son hilos con una pila muy pequeña, nada que ver con un hilo de plataforma bloqueado en un {@code readLine()}.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class CameraSupervisor implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(CameraSupervisor.class);
+
+    /**
+     * Número de hilos del planificador compartido por todas las cámaras.
+     */
+    public static final int SCHEDULER_THREADS = 2;
+
+    /**
+     * Cada cuántos segundos se escribe en el log el resumen de estados de las cámaras.
+     */
+    public static final long STATE_REPORT_PERIOD_SECONDS = 60;
+
+    /**
+     * Planificador compartido por todos los {@link Recorder}.
+     */
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Componentes a los que se avisa cuando empieza o termina la vigilancia de una cámara.
+     */
+    private final List<CameraLifecycleListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Recibe el progreso de todos los FFmpeg, o {@code null} si no se pudo abrir.
+     */
+    private final ProgressServer progressServer;
+
+    /**
+     * Reenvía a SLF4J los avisos y errores de FFmpeg.
+     */
+    private final FfmpegLogForwarder logForwarder;
+
+    /**
+     * Servicios compartidos que se pasan a cada grabador.
+     */
+    private final RecorderServices services;
+
+    /**
+     * Grabadores vigilados, por nombre de cámara.
+     */
+    private final Map<String, Recorder> recorders = new ConcurrentHashMap<>();
+
+    /**
+     * Índice de segmentos de cada cámara, por nombre. Se mantiene abierto mientras se vigila la cámara.
+     */
+    private final Map<String, SegmentIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Indexa en segundo plano los fotogramas clave de cada segmento que se cierra.
+     */
+    private final KeyframeIndexer keyframeIndexer = new KeyframeIndexer();
+
+    /**
+     * Motor RTSP de las cámaras con {@link CameraConfig#ENGINE_NATIVE}. Se crea con la primera que lo usa.
+     */
+    private RtspIngest rtspIngest;
+
+    /**
+     * Relay RTSP de las cámaras que se replican en esta máquina. Se crea con la primera que lo usa.
+     */
+    private RelayServer relayServer;
+
+    /**
+     * Crea el supervisor, el servidor de progreso y programa el informe periódico de estados.
+     */
+    public CameraSupervisor() {
+        this.scheduler = new ScheduledThreadPoolExecutor(SCHEDULER_THREADS, daemonThreadFactory("camera-supervisor"));
+        this.scheduler.scheduleAtFixedRate(this::logStateSummary,
+                STATE_REPORT_PERIOD_SECONDS, STATE_REPORT_PERIOD_SECONDS, TimeUnit.SECONDS);
+        this.progressServer = openProgressServer();
+        this.logForwarder = new FfmpegLogForwarder(scheduler);
+        this.services = new RecorderServices(scheduler, progressServer, new CodecProbe());
+        this.scheduler.scheduleAtFixedRate(new ProcessSampler(recorders.values()),
+                ProcessSampler.PERIOD_SECONDS, ProcessSampler.PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return el servidor de progreso, o {@code null} si no se puede abrir (se graba igualmente, sin progreso).
+     */
+    private static ProgressServer openProgressServer() {
+        try {
+            return new ProgressServer();
+        } catch (IOException e) {
+            logger.error("No se puede abrir el servidor de progreso de FFmpeg, se graba sin métricas de progreso", e);
+            return null;
+        }
+    }
+
+    /**
+     * Registra un componente al que avisar cuando empieza o termina la vigilancia de una cámara.
+     *
+     * @param listener el componente.
+     */
+    public void addListener(CameraLifecycleListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Empieza a grabar una cámara. Si ya había un grabador con el mismo nombre, se para antes.
+     *
+     * @param cameraConfig la configuración de la cámara.
+     * @return el grabador creado.
+     */
+    public Recorder start(CameraConfig cameraConfig) {
+        String name = cameraConfig.getName();
+        RtspIngest ingest = cameraConfig.isNativeEngine() ? rtspIngest() : null;
+        boolean ffmpeg = ingest == null;
+        RelayPath relay = relayPath(cameraConfig, ffmpeg);
+        SegmentIndex index = ffmpeg && progressServer == null ? null
+                : indexes.computeIfAbsent(name, CameraSupervisor::openIndex);
+        SegmentListener segmentListener = index == null ? null : segmentListener(name, index);
+        SegmentStaging staging = services.getSegmentStaging();
+        if (!ffmpeg || progressServer != null) {
+            // sin servidor de progreso FFmpeg no avisa de los segmentos y escribe directamente en el archivo
+            segmentListener = staging.listener(name, segmentListener);
+        }
+        Recorder streamRecorder = ffmpeg ? new VideoRecorder(cameraConfig, services, relay)
+                : new NativeRecorder(cameraConfig, services, ingest, segmentListener, relay);
+        Recorder recorder = cameraConfig.isActivityMode() ? new ActivityRecorder(streamRecorder, services)
+                : streamRecorder;
+        Recorder previous = recorders.put(name, recorder);
+        if (previous != null) {
+            if (!previous.getCameraConfig().hasSameRecording(cameraConfig)) {
+                // puede que apunte a otra cámara: se vuelven a detectar sus códecs
+                services.getCodecProbe().invalidate(cameraConfig);
+            }
+            previous.stop();
+            listeners.forEach(l -> l.onCameraStopped(previous));
+        }
+        listeners.forEach(l -> l.onCameraStarted(recorder));
+        if (ffmpeg) {
+            if (progressServer != null) {
+                if (segmentListener != null) {
+                    progressServer.register(recorder.getMetrics(), staging.directory(name), segmentListener);
+                } else {
+                    progressServer.register(recorder.getMetrics());
+                }
+            }
+            logForwarder.watch(name, Path.of(name, VideoRecorder.FFMPEG_LOG_FILE), recorder.getMetrics());
+        } else {
+            // puede que antes se grabara con FFmpeg
+            logForwarder.unwatch(name);
+            if (progressServer != null) {
+                progressServer.unregister(name);
+            }
+        }
+        if (previous == null) {
+            scheduler.execute(() -> measureDiskUsage(recorder));
+        } else {
+            recorder.getMetrics().addDiskBytes(previous.getMetrics().getDiskBytes());
+        }
+        recorder.start();
+        return recorder;
+    }
+
+    /**
+     * @return quién recibe los segmentos cerrados de una cámara: se añaden a su índice y se indexan sus fotogramas
+     * clave en segundo plano.
+     */
+    private SegmentListener segmentListener(String name, SegmentIndex index) {
+        Path directory = Path.of(name);
+        return (fileName, durationMillis, bytes, closedAtMillis) -> {
+            index.onSegmentClosed(fileName, durationMillis, bytes, closedAtMillis);
+            keyframeIndexer.submit(directory, fileName);
+        };
+    }
+
+    /**
+     * @return el motor RTSP nativo, creándolo si es la primera cámara que lo usa, o {@code null} si no se puede
+     * abrir (la cámara se graba entonces con FFmpeg).
+     */
+    private synchronized RtspIngest rtspIngest() {
+        if (rtspIngest == null) {
+            try {
+                rtspIngest = new RtspIngest();
+            } catch (IOException e) {
+                logger.error("No se puede abrir la ingesta RTSP nativa, se graba con FFmpeg", e);
+            }
+        }
+        return rtspIngest;
+    }
+
+    /**
+     * Crea la ruta del relay de una cámara que se replica en el relay integrado, o quita la que tuviera si ya no.
+     *
+     * @param cameraConfig la configuración de la cámara.
+     * @param ffmpeg       si la graba FFmpeg, que publica en la ruta por RTSP.
+     * @return la ruta, o {@code null} si no se replica en el relay integrado o no se puede abrir.
+     */
+    private RelayPath relayPath(CameraConfig cameraConfig, boolean ffmpeg) {
+        RTSPCloneConfig clone = cameraConfig.getCloneRTSPStream();
+        if (clone == null || !clone.isEmbeddedRelay()) {
+            synchronized (this) {
+                if (relayServer != null) {
+                    relayServer.unregister(cameraConfig.getName());
+                }
+            }
+            return null;
+        }
+        RelayServer server = relayServer();
+        if (server == null) {
+            if (!ffmpeg) {
+                logger.error("La camara " + cameraConfig.getName() + " se graba sin replicar: no hay relay");
+            }
+            return null;
+        }
+        return server.register(cameraConfig.getName(), clone.getOutputEndpoints(), ffmpeg);
+    }
+
+    /**
+     * @return el relay integrado, abriéndolo si es la primera cámara que lo usa, o {@code null} si no se puede abrir
+     * (las cámaras con FFmpeg publican entonces en lo que escuche en ese puerto, como antes).
+     */
+    private synchronized RelayServer relayServer() {
+        if (relayServer == null) {
+            try {
+                relayServer = new RelayServer();
+            } catch (IOException e) {
+                logger.error("No se puede abrir el relay RTSP en el puerto " + RelayServer.PORT, e);
+            }
+        }
+        return relayServer;
+    }
+
+    /**
+     * @return el relay integrado, o {@code null} si ninguna cámara lo usa.
+     */
+    public synchronized RelayServer getRelayServer() {
+        return relayServer;
+    }
+
+    /**
+     * Para la grabación de una cámara y deja de vigilarla.
+     *
+     * @param name el nombre de la cámara.
+     */
+    public void stop(String name) {
+        Recorder recorder = recorders.remove(name);
+        if (recorder != null) {
+            recorder.stop();
+            listeners.forEach(l -> l.onCameraStopped(recorder));
+            logForwarder.unwatch(name);
+            if (progressServer != null) {
+                progressServer.unregister(name);
+            }
+            closeIndex(indexes.remove(name));
+        }
+        synchronized (this) {
+            if (relayServer != null) {
+                relayServer.unregister(name);
+            }
+        }
+    }
+
+    /**
+     * Dispara la grabación de un evento en una cámara en modo event.
+     *
+     * @param name el nombre de la cámara.
+     * @return {@code true} si se va a grabar el evento, {@code false} si la cámara no se vigila o no graba por
+     * eventos.
+     */
+    public boolean trigger(String name) {
+        Recorder recorder = recorders.get(name);
+        return recorder != null && recorder.trigger();
+    }
+
+    /**
+     * @param name el nombre de la cámara.
+     * @return el índice de segmentos de la cámara, o {@code null} si no se vigila o no se pudo abrir.
+     */
+    public SegmentIndex getSegmentIndex(String name) {
+        return indexes.get(name);
+    }
+
+    /**
+     * @return el estado de cada cámara, por nombre.
+     */
+    public Map<String, CameraState> getStates() {
+        Map<String, CameraState> states = new LinkedHashMap<>();
+        recorders.forEach((name, recorder) -> states.put(name, recorder.getState()));
+        return states;
+    }
+
+    /**
+     * @return cuántas cámaras hay en cada estado.
+     */
+    public Map<CameraState, Integer> getStateCounts() {
+        Map<CameraState, Integer> counts = new EnumMap<>(CameraState.class);
+        for (Recorder recorder : recorders.values()) {
+            counts.merge(recorder.getState(), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * @return los contadores de cada cámara vigilada.
+     */
+    public List<CameraMetrics> getMetrics() {
+        List<CameraMetrics> metrics = new ArrayList<>();
+        for (Recorder recorder : recorders.values()) {
+            metrics.add(recorder.getMetrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * @param name el nombre de la cámara.
+     * @return su grabador, o {@code null} si no se vigila.
+     */
+    public Recorder getRecorder(String name) {
+        return recorders.get(name);
+    }
+
+    /**
+     * @return los grabadores vigilados.
+     */
+    public Collection<Recorder> getRecorders() {
+        return Collections.unmodifiableCollection(recorders.values());
+    }
+
+    /**
+     * @return la admisión de los FFmpeg que transcodifican.
+     */
+    public TranscodeAdmission getTranscodeAdmission() {
+        return services.getTranscodeAdmission();
+    }
+
+    /**
+     * @return el directorio rápido de los segmentos abiertos.
+     */
+    public SegmentStaging getSegmentStaging() {
+        return services.getSegmentStaging();
+    }
+
+    /**
+     * @return el planificador compartido, para tareas periódicas ligeras de otros componentes.
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return cuántos procesos FFmpeg están vivos ahora mismo.
+     */
+    public int getLiveProcessCount() {
+        int live = 0;
+        for (Recorder recorder : recorders.values()) {
+            if (recorder.isProcessAlive()) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    /**
+     * @return hilos del planificador compartido ejecutando una tarea ahora mismo.
+     */
+    public int getSchedulerActiveThreads() {
+        return scheduler.getActiveCount();
+    }
+
+    /**
+     * @return tareas programadas o pendientes en el planificador compartido.
+     */
+    public int getSchedulerQueuedTasks() {
+        return scheduler.getQueue().size();
+    }
+
+    /**
+     * Mide una única vez lo que ocupan las grabaciones que ya hay en el directorio de la cámara. A partir de ahí el
+     * contador se mantiene con cada segmento cerrado, sin volver a recorrer el directorio.
+     *
+     * @param recorder el grabador de la cámara.
+     */
+    private static void measureDiskUsage(Recorder recorder) {
+        Path directory = Path.of(recorder.getCameraConfig().getName());
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.{ts,mp4}")) {
+            for (Path file : files) {
+                total += Files.size(file);
+            }
+        } catch (IOException e) {
+            logger.warn("No se puede medir el directorio " + directory, e);
+        }
+        recorder.getMetrics().addDiskBytes(total);
+    }
+
+    /**
+     * Abre (o crea) el índice de segmentos de una cámara, en su directorio.
+     *
+     * @param name el nombre de la cámara.
+     * @return el índice, o {@code null} si no se puede abrir (se graba igualmente, sin índice).
+     */
+    private static SegmentIndex openIndex(String name) {
+        try {
+            Path directory = Files.createDirectories(Path.of(name));
+            return new SegmentIndex(directory);
+        } catch (IOException e) {
+            logger.error("No se puede abrir el índice de segmentos de la camara " + name, e);
+            return null;
+        }
+    }
+
+    private static void closeIndex(SegmentIndex index) {
+        if (index == null) {
+            return;
+        }
+        try {
+            index.close();
+        } catch (IOException e) {
+            logger.warn("No se puede cerrar el índice " + index.getFile(), e);
+        }
+    }
+
+    /**
+     * Escribe en el log cuántas cámaras hay en cada estado, los reinicios acumulados y el resumen de
+     * copia/transcodificación.
+     */
+    private void logStateSummary() {
+        long restarts = 0;
+        for (Recorder recorder : recorders.values()) {
+            restarts += recorder.getMetrics().getRestarts();
+        }
+        logger.info("Estado de las cámaras: " + getStateCounts() + ", reinicios totales: " + restarts);
+        logger.info("Códecs: " + TranscodeReport.of(recorders.values()));
+    }
+
+    /**
+     * Para todas las cámaras y el planificador compartido.
+     */
+    @Override
+    public void close() {
+        recorders.values().forEach(Recorder::stop);
+        recorders.values().forEach(r -> listeners.forEach(l -> l.onCameraStopped(r)));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(VideoRecorder.STOP_TIMEOUT_SECONDS);
+        try {
+            for (Recorder recorder : recorders.values()) {
+                recorder.awaitStopped(deadline);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        recorders.clear();
+        scheduler.shutdownNow();
+        if (progressServer != null) {
+            progressServer.close();
+        }
+        synchronized (this) {
+            if (rtspIngest != null) {
+                rtspIngest.close();
+            }
+            if (relayServer != null) {
+                relayServer.close();
+            }
+        }
+        // con todas las cámaras paradas, antes de cerrar los índices a los que avisa
+        services.getSegmentStaging().close();
+        keyframeIndexer.close();
+        indexes.values().forEach(CameraSupervisor::closeIndex);
+        indexes.clear();
+    }
+
+    /**
+     * Crea una factoría de hilos daemon con nombre, para que se identifiquen en un volcado de hilos.
+     *
+     * @param prefix el prefijo del nombre de los hilos.
+     * @return la factoría.
+     */
+    static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
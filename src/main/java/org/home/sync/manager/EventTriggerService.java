@@ -0,0 +1,231 @@
+package org.home.sync.manager;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Recibe los disparos de las cámaras en modo event y se los pasa al {@link CameraSupervisor}.
+ * <p>
+ * Además de llamar a {@link CameraManager#trigger(String)}, un disparo puede llegar de dos sitios:
+ * </p>
+ * <ul>
+ *     <li>Un fichero que se deja en {@link #DEFAULT_DIRECTORY} (propiedad {@code event.triggerDir}) con el nombre de
+ *     la cámara, p.ej. {@code touch events/entrada}. Se atiende en cuanto lo avisa un {@link WatchService} y se
+ *     borra.</li>
+ *     <li>Un {@code POST http://127.0.0.1:<puerto>/trigger/<cámara>} en el puerto {@link #DEFAULT_PORT} (propiedad
+ *     {@code event.httpPort}; 0 o negativo lo desactiva). Sólo escucha en la interfaz local. Responde 202 si se va a
+ *     grabar el evento y 404 si la cámara no existe o no está en modo event.</li>
+ * </ul>
+ * <p>
+ * Cada entrada tiene un único hilo ("event-triggers" y "event-http"); un disparo sólo incrementa un contador que
+ * lee el hilo de ingesta de la cámara, así que nunca espera a la grabación.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class EventTriggerService implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(EventTriggerService.class);
+
+    /**
+     * Directorio por defecto donde se dejan los ficheros de disparo.
+     */
+    public static final String DEFAULT_DIRECTORY = "events";
+
+    /**
+     * Puerto por defecto del disparo por HTTP.
+     */
+    public static final int DEFAULT_PORT = 9401;
+
+    private static final String CONTEXT = "/trigger/";
+
+    private final CameraSupervisor supervisor;
+    private final Path directory;
+    private final WatchService watchService;
+    private final Thread thread;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private volatile boolean running = true;
+
+    /**
+     * Abre el directorio y el puerto de las propiedades {@code event.triggerDir} y {@code event.httpPort}.
+     *
+     * @param supervisor el supervisor de las cámaras.
+     * @throws IOException si no se puede vigilar el directorio o abrir el puerto.
+     */
+    public EventTriggerService(CameraSupervisor supervisor) throws IOException {
+        this(supervisor, Path.of(System.getProperty("event.triggerDir", DEFAULT_DIRECTORY)),
+                Integer.getInteger("event.httpPort", DEFAULT_PORT));
+    }
+
+    /**
+     * Empieza a vigilar el directorio y, si {@code port} es positivo, arranca el servidor HTTP.
+     *
+     * @param supervisor el supervisor de las cámaras.
+     * @param directory  el directorio de los ficheros de disparo. Se crea si no existe.
+     * @param port       el puerto HTTP, o 0 o negativo para no abrirlo.
+     * @throws IOException si no se puede vigilar el directorio o abrir el puerto.
+     */
+    public EventTriggerService(CameraSupervisor supervisor, Path directory, int port) throws IOException {
+        this.supervisor = supervisor;
+        this.directory = directory.toAbsolutePath().normalize();
+        Files.createDirectories(this.directory);
+        this.watchService = this.directory.getFileSystem().newWatchService();
+        try {
+            this.directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            if (port > 0) {
+                this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                this.executor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "event-http");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                server.setExecutor(executor);
+                server.createContext(CONTEXT, this::handle);
+                server.start();
+            } else {
+                this.server = null;
+                this.executor = null;
+            }
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        discardStale();
+        this.thread = new Thread(this::loop, "event-triggers");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Disparos de eventos en " + this.directory
+                + (server == null ? "" : " y en http://127.0.0.1:" + port + CONTEXT + "<camara>"));
+    }
+
+    /**
+     * Borra los ficheros que quedaron de antes de arrancar: son disparos de hace tiempo, sin pre-roll que grabar.
+     */
+    private void discardStale() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                logger.info("Se descarta el disparo antiguo " + file.getFileName());
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            logger.warn("No se pueden borrar los disparos antiguos de " + directory + ": " + e);
+        }
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                    } else {
+                        fileDropped((Path) event.context());
+                    }
+                }
+                key.reset();
+            } catch (ClosedWatchServiceException | InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Error al atender los disparos de eventos", e);
+            }
+        }
+    }
+
+    /**
+     * Se han perdido eventos del {@link WatchService}: se atienden todos los ficheros que haya.
+     */
+    private void rescan() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                fileDropped(file.getFileName());
+            }
+        } catch (IOException e) {
+            logger.warn("No se puede leer el directorio de disparos " + directory + ": " + e);
+        }
+    }
+
+    private void fileDropped(Path name) {
+        Path file = directory.resolve(name);
+        try {
+            if (!Files.deleteIfExists(file)) {
+                // ya se atendió al repasar el directorio
+                return;
+            }
+        } catch (IOException e) {
+            logger.warn("No se puede borrar el disparo " + file + ": " + e);
+        }
+        trigger(name.toString(), "fichero");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            int status;
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                status = 405;
+            } else {
+                String camera = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+                status = trigger(camera, "HTTP desde " + exchange.getRemoteAddress().getHostString()) ? 202 : 404;
+            }
+            byte[] body = (status == 202 ? "OK\n" : status == 404 ? "Camara sin modo event\n" : "Usa POST\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private boolean trigger(String camera, String source) {
+        if (supervisor.trigger(camera)) {
+            logger.info("Disparo de la camara " + camera + " por " + source);
+            return true;
+        }
+        logger.warn("Disparo por " + source + " para " + camera + ", que no existe o no está en modo event");
+        return false;
+    }
+
+    /**
+     * Deja de vigilar el directorio y cierra el puerto.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("No se puede cerrar el WatchService de los disparos", e);
+        }
+        thread.interrupt();
+    }
+}
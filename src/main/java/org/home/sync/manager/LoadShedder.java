@@ -0,0 +1,242 @@
+package org.home.sync.manager;
+
+import org.home.sync.metrics.CameraMetrics;
+import org.home.sync.metrics.CpuLoad;
+import org.home.sync.metrics.DiskWriteLatency;
+import org.home.sync.metrics.LoadSheddingMetrics;
+import org.home.sync.recording.CameraState;
+import org.home.sync.recording.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Baja la calidad de las cámaras menos prioritarias cuando la máquina no da abasto, y la vuelve a subir cuando hay
+ * margen.
+ * <p>
+ * Sin esto, cuando la máquina se satura todas las cámaras van más lentas que el tiempo real a la vez y todos los
+ * segmentos se retrasan. Cada {@link #PERIOD_SECONDS} segundos se mide la CPU de la máquina
+ * ({@link CpuLoad}), la latencia de escritura de los discos ({@link DiskWriteLatency}) y la velocidad
+ * que informa cada FFmpeg. La máquina está sobrecargada si la CPU pasa del {@code shed.cpuHighPercent}% (90), la
+ * escritura tarda más de {@code shed.writeLatencyHighMs} ms (100), el {@code shed.laggingPercent}% (10) de las
+ * cámaras, y al menos dos, van por debajo de 0,95x o el directorio rápido de los segmentos abiertos se está llenando
+ * ({@link org.home.sync.recording.SegmentStaging#isUnderPressure()}): con menos calidad se escribe menos.
+ * </p>
+ * <p>
+ * Para no oscilar:
+ * </p>
+ * <ul>
+ *     <li>Se baja un escalón ({@link Recorder#shed()}) a una sola cámara cuando la sobrecarga dura
+ *     {@code shed.overloadSeconds} (15), y a otra cada {@code shed.cooldownSeconds} (30) mientras siga, para dar
+ *     tiempo a que se note el cambio. Primero las de menor prioridad y, entre ellas, las que transcodifican.</li>
+ *     <li>Se sube un escalón ({@link Recorder#restore()}) a una sola cámara, la de mayor prioridad, cuando hay margen
+ *     (CPU por debajo del {@code shed.cpuLowPercent}% (70), escritura por debajo de {@code shed.writeLatencyLowMs} ms
+ *     (20) y ninguna cámara lenta) durante {@code shed.recoverSeconds} (120), y a otra cada vez que pasa ese tiempo.</li>
+ *     <li>Entre los dos umbrales no se hace nada.</li>
+ * </ul>
+ * <p>
+ * Todo corre en una única tarea periódica del planificador compartido. Se desactiva con {@code shed.enabled=false}.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class LoadShedder implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(LoadShedder.class);
+
+    /**
+     * Cada cuántos segundos se mide la carga.
+     */
+    public static final long PERIOD_SECONDS = 5;
+
+    /**
+     * Velocidad, en milésimas del tiempo real, por debajo de la que un FFmpeg se considera lento.
+     */
+    private static final long LAGGING_SPEED_THOUSANDTHS = 950;
+
+    /**
+     * Segundos que tiene que llevar vivo un FFmpeg para tener en cuenta su velocidad.
+     */
+    private static final long MIN_UPTIME_MILLIS = 30_000;
+
+    /**
+     * Antigüedad máxima del último progreso de un FFmpeg para tener en cuenta su velocidad.
+     */
+    private static final long MAX_PROGRESS_AGE_MILLIS = 10_000;
+
+    private final CameraSupervisor supervisor;
+    private final DiskWriteLatency diskLatency = new DiskWriteLatency();
+    private final LoadSheddingMetrics metrics = new LoadSheddingMetrics();
+
+    private final double cpuHigh = Integer.getInteger("shed.cpuHighPercent", 90) / 100.0;
+    private final double cpuLow = Integer.getInteger("shed.cpuLowPercent", 70) / 100.0;
+    private final double writeLatencyHighMs = Integer.getInteger("shed.writeLatencyHighMs", 100);
+    private final double writeLatencyLowMs = Integer.getInteger("shed.writeLatencyLowMs", 20);
+    private final int laggingPercent = Integer.getInteger("shed.laggingPercent", 10);
+    private final long overloadNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("shed.overloadSeconds", 15));
+    private final long cooldownNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("shed.cooldownSeconds", 30));
+    private final long recoverNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("shed.recoverSeconds", 120));
+
+    /**
+     * Desde cuándo está sobrecargada la máquina, o 0 si no lo está. Sólo lo usa la tarea periódica, igual que los
+     * demás instantes.
+     */
+    private long overloadSinceNanos;
+
+    /**
+     * Desde cuándo hay margen, o 0 si no lo hay.
+     */
+    private long headroomSinceNanos;
+
+    /**
+     * Cuándo se cambió por última vez la calidad de una cámara.
+     */
+    private long lastChangeNanos;
+
+    private ScheduledFuture<?> task;
+
+    /**
+     * @param supervisor el supervisor de las cámaras.
+     */
+    public LoadShedder(CameraSupervisor supervisor) {
+        this.supervisor = supervisor;
+    }
+
+    /**
+     * Empieza a medir la carga, si no está desactivado.
+     */
+    public synchronized void start() {
+        if (!Boolean.parseBoolean(System.getProperty("shed.enabled", "true")) || task != null) {
+            return;
+        }
+        lastChangeNanos = System.nanoTime() - Math.max(cooldownNanos, recoverNanos);
+        task = supervisor.getScheduler().scheduleWithFixedDelay(this::check, PERIOD_SECONDS, PERIOD_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return las métricas del recorte de carga.
+     */
+    public LoadSheddingMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void check() {
+        try {
+            long now = System.nanoTime();
+            double cpu = CpuLoad.system();
+            double latency = diskLatency.sample();
+            boolean stagingFull = supervisor.getSegmentStaging().isUnderPressure();
+            List<Recorder> recorders = new ArrayList<>(supervisor.getRecorders());
+            int lagging = 0;
+            int measured = 0;
+            int shed = 0;
+            long nowMillis = System.currentTimeMillis();
+            for (Recorder recorder : recorders) {
+                CameraMetrics camera = recorder.getMetrics();
+                if (camera.getShedLevel() > 0) {
+                    shed++;
+                }
+                long speed = camera.getSpeedThousandths();
+                if (recorder.getState() != CameraState.RECORDING || speed <= 0
+                        || camera.getProcessStartEpochMillis() == 0
+                        || nowMillis - camera.getProcessStartEpochMillis() < MIN_UPTIME_MILLIS
+                        || nowMillis - camera.getLastProgressEpochMillis() > MAX_PROGRESS_AGE_MILLIS) {
+                    continue;
+                }
+                measured++;
+                if (speed < LAGGING_SPEED_THOUSANDTHS) {
+                    lagging++;
+                }
+            }
+            boolean overloaded = cpu >= cpuHigh || latency >= writeLatencyHighMs || stagingFull
+                    || lagging >= Math.max(2, (measured * laggingPercent + 99) / 100);
+            boolean headroom = cpu < cpuLow && latency < writeLatencyLowMs && lagging == 0 && !stagingFull;
+            metrics.setSample(cpu, latency, lagging, shed, overloaded);
+            if (overloaded) {
+                headroomSinceNanos = 0;
+                if (overloadSinceNanos == 0) {
+                    overloadSinceNanos = now;
+                }
+                if (now - overloadSinceNanos >= overloadNanos && now - lastChangeNanos >= cooldownNanos
+                        && downgrade(recorders, describe(cpu, latency, lagging, stagingFull))) {
+                    lastChangeNanos = now;
+                }
+            } else if (headroom) {
+                overloadSinceNanos = 0;
+                if (headroomSinceNanos == 0) {
+                    headroomSinceNanos = now;
+                }
+                if (shed > 0 && now - headroomSinceNanos >= recoverNanos && now - lastChangeNanos >= recoverNanos
+                        && upgrade(recorders, describe(cpu, latency, lagging, stagingFull))) {
+                    lastChangeNanos = now;
+                }
+            } else {
+                overloadSinceNanos = 0;
+                headroomSinceNanos = 0;
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error al medir la carga de la máquina", e);
+        }
+    }
+
+    /**
+     * Baja un escalón a la cámara menos prioritaria que aún lo tenga.
+     */
+    private boolean downgrade(List<Recorder> recorders, String load) {
+        recorders.sort(Comparator.comparingInt((Recorder r) -> r.getCameraConfig().getPriority())
+                .thenComparing(r -> r.getMetrics().isVideoCopy())
+                .thenComparingInt(r -> r.getMetrics().getShedLevel()));
+        for (Recorder recorder : recorders) {
+            if (recorder.getState() != CameraState.STOPPED && recorder.shed()) {
+                metrics.recordDowngrade();
+                logger.warn("Máquina sobrecargada (" + load + "): se baja la calidad de la camara "
+                        + recorder.getCameraConfig().getName());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sube un escalón a la cámara más prioritaria que lo tenga bajado.
+     */
+    private boolean upgrade(List<Recorder> recorders, String load) {
+        recorders.sort(Comparator.comparingInt((Recorder r) -> -r.getCameraConfig().getPriority()));
+        for (Recorder recorder : recorders) {
+            if (recorder.getMetrics().getShedLevel() > 0 && recorder.restore()) {
+                metrics.recordUpgrade();
+                logger.info("Hay margen (" + load + "): se sube la calidad de la camara "
+                        + recorder.getCameraConfig().getName());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String describe(double cpu, double latency, int lagging, boolean stagingFull) {
+        return String.format(Locale.ROOT, "CPU %.0f%%, escritura %.1f ms, %d cámaras lentas%s",
+                Math.max(0, cpu) * 100, Math.max(0, latency), lagging,
+                stagingFull ? ", directorio rápido lleno" : "");
+    }
+
+    /**
+     * Deja de medir la carga. Las cámaras se quedan con la calidad que tengan.
+     */
+    @Override
+    public synchronized void close() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+}
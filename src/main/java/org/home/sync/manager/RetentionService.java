@@ -0,0 +1,475 @@
+package org.home.sync.manager;
+
+import org.home.sync.config.CameraConfig;
+import org.home.sync.metrics.IoPressure;
+import org.home.sync.metrics.RetentionMetrics;
+import org.home.sync.recording.Recorder;
+import org.home.sync.recording.VideoRecorder;
+import org.home.sync.recording.index.KeyframeIndex;
+import org.home.sync.recording.index.SegmentFiles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Borra las grabaciones antiguas para que el disco no se llene.
+ * <p>
+ * Se aplican tres límites: la antigüedad máxima de cada cámara ({@link CameraConfig#getRetentionDays()}), lo que
+ * puede ocupar cada cámara ({@link CameraConfig#getMaxDiskMB()}) y una marca de agua global por disco: si el disco
+ * pasa del {@link #DEFAULT_HIGH_WATER_PERCENT}% de uso se borran los segmentos más antiguos de todas las cámaras de
+ * ese disco hasta bajar del {@link #DEFAULT_LOW_WATER_PERCENT}% (propiedades {@code retention.highWaterPercent} y
+ * {@code retention.lowWaterPercent}).
+ * </p>
+ * <p>
+ * Nunca se recorren los directorios completos salvo al empezar a vigilar una cámara: los segmentos de cada cámara se
+ * guardan ordenados en una {@link SegmentQueue}, que se mantiene al día con los eventos de un {@link WatchService}.
+ * Un segmento reempaquetado por el {@link SegmentRemuxer} se sigue con su nombre original y el tamaño nuevo.
+ * Todo lo hace un único hilo ("retention"): atiende los eventos, y cada {@link #SWEEP_PERIOD_SECONDS} segundos
+ * comprueba los límites y borra como mucho {@link #BATCH_SIZE} ficheros por tanda. Si el sistema indica presión de
+ * E/S ({@code /proc/pressure/io}) la tanda se aplaza, salvo que el disco esté por encima del
+ * {@link #EMERGENCY_PERCENT}%.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class RetentionService implements CameraLifecycleListener, AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(RetentionService.class);
+
+    /**
+     * Cada cuántos segundos se comprueban los límites.
+     */
+    public static final long SWEEP_PERIOD_SECONDS = 30;
+
+    /**
+     * Ficheros que se borran como mucho en cada tanda.
+     */
+    public static final int BATCH_SIZE = 500;
+
+    /**
+     * Porcentaje de uso del disco a partir del cual se borra lo más antiguo de todas las cámaras.
+     */
+    public static final int DEFAULT_HIGH_WATER_PERCENT = 90;
+
+    /**
+     * Porcentaje de uso del disco hasta el que se borra una vez superada la marca alta.
+     */
+    public static final int DEFAULT_LOW_WATER_PERCENT = 85;
+
+    /**
+     * Porcentaje de uso del disco a partir del cual se borra aunque haya presión de E/S.
+     */
+    public static final int EMERGENCY_PERCENT = 97;
+
+    /**
+     * Porcentaje de tiempo (media de 10 s) con tareas esperando E/S a partir del cual se aplaza el borrado.
+     */
+    public static final double IO_PRESSURE_LIMIT = 10.0;
+
+    /**
+     * Lo que se espera como máximo a un evento, para atender también las altas de cámaras.
+     */
+    private static final long POLL_TIMEOUT_MILLIS = 1_000;
+
+    private final double highWater;
+    private final double lowWater;
+    private final ZoneId zone = VideoRecorder.SEGMENT_ZONE;
+    private final RetentionMetrics metrics = new RetentionMetrics();
+    private final WatchService watchService;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Altas de cámaras pendientes de atender en el hilo de la retención.
+     */
+    private final Queue<CameraConfig> pendingCameras = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Cámaras vigiladas, por directorio. Sólo las usa el hilo de la retención.
+     */
+    private final Map<Path, CameraRetention> cameras = new HashMap<>();
+
+    private long nextSweepNanos;
+
+    /**
+     * Crea el servicio, se suscribe a las altas de cámaras del supervisor y arranca su hilo.
+     *
+     * @param supervisor el supervisor de las cámaras.
+     * @throws IOException si no se puede crear el {@link WatchService}.
+     */
+    public RetentionService(CameraSupervisor supervisor) throws IOException {
+        this.highWater = Integer.getInteger("retention.highWaterPercent", DEFAULT_HIGH_WATER_PERCENT) / 100.0;
+        this.lowWater = Math.min(highWater,
+                Integer.getInteger("retention.lowWaterPercent", DEFAULT_LOW_WATER_PERCENT) / 100.0);
+        this.watchService = Path.of(".").getFileSystem().newWatchService();
+        this.thread = new Thread(this::loop, "retention");
+        thread.setDaemon(true);
+        thread.start();
+        supervisor.addListener(this);
+    }
+
+    @Override
+    public void onCameraStarted(Recorder recorder) {
+        pendingCameras.add(recorder.getCameraConfig());
+    }
+
+    @Override
+    public void onCameraStopped(Recorder recorder) {
+        // Las grabaciones de una cámara que se deja de grabar siguen sujetas a la retención.
+    }
+
+    /**
+     * Actualiza los límites de una cámara (p.ej. al recargar la configuración) sin esperar a que se reinicie.
+     *
+     * @param cameraConfig la configuración nueva de la cámara.
+     */
+    public void update(CameraConfig cameraConfig) {
+        pendingCameras.add(cameraConfig);
+    }
+
+    /**
+     * @return los contadores de la retención.
+     */
+    public RetentionMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void loop() {
+        nextSweepNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(SWEEP_PERIOD_SECONDS);
+        boolean backlog = false;
+        while (running) {
+            try {
+                CameraConfig camera;
+                while ((camera = pendingCameras.poll()) != null) {
+                    register(camera);
+                }
+                WatchKey key = backlog
+                        ? watchService.poll()
+                        : watchService.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handleEvents(key);
+                    key = watchService.poll();
+                }
+                if (backlog || System.nanoTime() - nextSweepNanos >= 0) {
+                    nextSweepNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(SWEEP_PERIOD_SECONDS);
+                    backlog = sweep();
+                }
+            } catch (ClosedWatchServiceException | InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Error en la retención de grabaciones", e);
+            }
+        }
+    }
+
+    /**
+     * Empieza a vigilar el directorio de una cámara (o actualiza sus límites si ya se vigilaba).
+     */
+    private void register(CameraConfig camera) {
+        Path directory = Path.of(camera.getName()).toAbsolutePath().normalize();
+        CameraRetention retention = cameras.get(directory);
+        if (retention == null) {
+            try {
+                Files.createDirectories(directory);
+                retention = new CameraRetention(camera.getName(), directory, Files.getFileStore(directory),
+                        new SegmentQueue(zone));
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                scan(retention);
+            } catch (IOException e) {
+                logger.error("No se puede vigilar el directorio " + directory + " para la retención", e);
+                return;
+            }
+            cameras.put(directory, retention);
+            updateTracked();
+            logger.info("Retención de la camara " + camera.getName() + ": " + retention.queue.size()
+                    + " segmentos, " + retention.queue.getTotalBytes() / (1024 * 1024) + " MB");
+        }
+        retention.maxAgeMillis = TimeUnit.DAYS.toMillis(camera.getRetentionDays());
+        retention.maxBytes = camera.getMaxDiskMB() * 1024 * 1024;
+    }
+
+    /**
+     * Carga los segmentos que hay en el directorio. Sólo se hace al empezar a vigilarlo o si se pierden eventos. El
+     * directorio los devuelve en cualquier orden: se añaden tal cual y se ordenan una vez al final.
+     */
+    private void scan(CameraRetention retention) throws IOException {
+        retention.queue.clear();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(retention.directory,
+                "*{" + SegmentQueue.EXTENSION + "," + SegmentFiles.REMUXED_EXTENSION + "}")) {
+            for (Path file : files) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    String name = file.getFileName().toString();
+                    if (SegmentFiles.isRemuxed(name)) {
+                        // se sigue con el nombre original, como en el índice de segmentos
+                        name = SegmentFiles.originalName(name);
+                    }
+                    long start = startOf(retention.queue, name, attributes.lastModifiedTime().toMillis());
+                    retention.queue.append(name, start, attributes.size());
+                } catch (NoSuchFileException e) {
+                    // borrado mientras se recorría
+                }
+            }
+        } finally {
+            retention.queue.sort();
+        }
+    }
+
+    private void handleEvents(WatchKey key) {
+        CameraRetention retention = cameras.get((Path) key.watchable());
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (retention == null) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                logger.warn("Se han perdido eventos del directorio " + retention.directory + ", se vuelve a leer");
+                try {
+                    scan(retention);
+                } catch (IOException e) {
+                    logger.warn("No se puede leer el directorio " + retention.directory, e);
+                }
+                continue;
+            }
+            String name = event.context().toString();
+            if (!name.endsWith(SegmentQueue.EXTENSION)) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                segmentCreated(retention, name);
+            } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                segmentDeleted(retention, name);
+            }
+        }
+        key.reset();
+        updateTracked();
+    }
+
+    /**
+     * Ha aparecido un segmento nuevo, así que el anterior ya está cerrado: se anota su tamaño definitivo y se añade
+     * el nuevo con el tamaño que tiene ya. Si FFmpeg escribe en el archivo será casi 0 y se corrige al cerrarse; si
+     * lo ha traído del directorio rápido el {@link org.home.sync.recording.SegmentStaging}, llega entero y es el
+     * definitivo.
+     */
+    private void segmentCreated(CameraRetention retention, String name) {
+        String previous = retention.queue.newestName();
+        if (previous != null) {
+            try {
+                retention.queue.updateNewestSize(Files.size(retention.directory.resolve(previous)));
+            } catch (IOException e) {
+                // borrado entretanto; llegará su evento
+            }
+        }
+        long size;
+        try {
+            size = Files.size(retention.directory.resolve(name));
+        } catch (IOException e) {
+            // borrado entretanto; llegará su evento
+            return;
+        }
+        retention.queue.add(name, startOf(retention.queue, name, System.currentTimeMillis()), size);
+    }
+
+    /**
+     * Un segmento ha desaparecido: si es porque se ha reempaquetado se sigue con el reempaquetado, con su tamaño.
+     */
+    private void segmentDeleted(CameraRetention retention, String name) {
+        try {
+            long size = Files.size(retention.directory.resolve(SegmentFiles.remuxedName(name)));
+            if (retention.queue.updateSize(name, size)) {
+                return;
+            }
+        } catch (IOException e) {
+            // no se ha reempaquetado
+        }
+        retention.queue.remove(name);
+    }
+
+    private static long startOf(SegmentQueue queue, String name, long fallbackMillis) {
+        long start = queue.startFromName(name);
+        return start != Long.MIN_VALUE ? start : fallbackMillis;
+    }
+
+    /**
+     * Comprueba los límites y borra una tanda.
+     *
+     * @return {@code true} si queda trabajo pendiente y hay que seguir sin esperar al siguiente periodo.
+     */
+    private boolean sweep() {
+        Map<FileStore, List<CameraRetention>> stores = new HashMap<>();
+        Map<FileStore, Double> usage = new HashMap<>();
+        double maxUsage = 0;
+        for (CameraRetention retention : cameras.values()) {
+            stores.computeIfAbsent(retention.store, s -> new ArrayList<>()).add(retention);
+        }
+        for (FileStore store : stores.keySet()) {
+            double used = usage(store);
+            usage.put(store, used);
+            maxUsage = Math.max(maxUsage, used);
+        }
+        if (maxUsage < EMERGENCY_PERCENT / 100.0 && IoPressure.avg10() > IO_PRESSURE_LIMIT) {
+            metrics.recordDeferredBatch();
+            logger.debug("Hay presión de E/S, se aplaza el borrado de grabaciones");
+            return false;
+        }
+
+        Batch batch = new Batch();
+        long now = System.currentTimeMillis();
+        for (CameraRetention retention : cameras.values()) {
+            SegmentQueue queue = retention.queue;
+            while (retention.maxAgeMillis > 0 && batch.hasRoom() && queue.hasEvictable()
+                    && queue.oldestStart() < now - retention.maxAgeMillis) {
+                evictOldest(retention, batch);
+            }
+            while (retention.maxBytes > 0 && batch.hasRoom() && queue.hasEvictable()
+                    && queue.getTotalBytes() > retention.maxBytes) {
+                evictOldest(retention, batch);
+            }
+        }
+        for (Map.Entry<FileStore, List<CameraRetention>> entry : stores.entrySet()) {
+            FileStore store = entry.getKey();
+            if (usage.get(store) < highWater) {
+                continue;
+            }
+            long toFree = bytesAboveLowWater(store);
+            long freedBefore = batch.bytes;
+            while (batch.bytes - freedBefore < toFree && batch.hasRoom()) {
+                CameraRetention oldest = null;
+                for (CameraRetention retention : entry.getValue()) {
+                    if (retention.queue.hasEvictable()
+                            && (oldest == null || retention.queue.oldestStart() < oldest.queue.oldestStart())) {
+                        oldest = retention;
+                    }
+                }
+                if (oldest == null) {
+                    logger.warn("El disco " + store + " está al " + Math.round(usage.get(store) * 100)
+                            + "% y no quedan grabaciones que borrar");
+                    break;
+                }
+                evictOldest(oldest, batch);
+            }
+        }
+        long elapsed = System.nanoTime() - batch.startNanos;
+        metrics.recordBatch(batch.files, batch.bytes, elapsed);
+        updateTracked();
+        if (batch.files > 0) {
+            logger.info("Retención: borrados " + batch.files + " segmentos (" + batch.bytes / (1024 * 1024) + " MB) en "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, "
+                    + metrics.getLastBatchFilesPerSecondHundredths() / 100 + " segmentos/s");
+        }
+        return !batch.hasRoom();
+    }
+
+    private void evictOldest(CameraRetention retention, Batch batch) {
+        String name = retention.queue.oldestName();
+        long size = retention.queue.removeOldest();
+        try {
+            Files.deleteIfExists(retention.directory.resolve(name));
+            Files.deleteIfExists(retention.directory.resolve(SegmentFiles.remuxedName(name)));
+            KeyframeIndex.delete(retention.directory, name);
+            batch.bytes += Math.max(0, size);
+        } catch (IOException e) {
+            metrics.recordFailedDelete();
+            logger.warn("No se puede borrar el segmento " + name + " de la camara " + retention.name, e);
+        }
+        batch.files++;
+    }
+
+    private double usage(FileStore store) {
+        try {
+            long total = store.getTotalSpace();
+            return total == 0 ? 0 : (total - store.getUsableSpace()) / (double) total;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private long bytesAboveLowWater(FileStore store) {
+        try {
+            long total = store.getTotalSpace();
+            long used = total - store.getUsableSpace();
+            return Math.max(0, used - (long) (total * lowWater));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void updateTracked() {
+        long tracked = 0;
+        for (CameraRetention retention : cameras.values()) {
+            tracked += retention.queue.size();
+        }
+        metrics.setTrackedFiles(tracked);
+    }
+
+    /**
+     * Para el hilo de la retención.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("No se puede cerrar el WatchService de la retención", e);
+        }
+        thread.interrupt();
+    }
+
+    /**
+     * Estado de la retención de una cámara.
+     */
+    private static final class CameraRetention {
+
+        private final String name;
+        private final Path directory;
+        private final FileStore store;
+        private final SegmentQueue queue;
+        private long maxAgeMillis;
+        private long maxBytes;
+
+        CameraRetention(String name, Path directory, FileStore store, SegmentQueue queue) {
+            this.name = name;
+            this.directory = directory;
+            this.store = store;
+            this.queue = queue;
+        }
+    }
+
+    /**
+     * Lo borrado en una tanda.
+     */
+    private static final class Batch {
+
+        private final long startNanos = System.nanoTime();
+        private long files;
+        private long bytes;
+
+        boolean hasRoom() {
+            return files < BATCH_SIZE;
+        }
+    }
+}
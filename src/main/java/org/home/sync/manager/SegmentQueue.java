@@ -0,0 +1,411 @@
+package org.home.sync.manager;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Segmentos de una cámara ordenados del más antiguo al más reciente, para la {@link RetentionService}.
+ * <p>
+ * Está pensada para cientos de miles de ficheros por cámara: cada segmento ocupa una posición en dos arrays de
+ * {@code long} (inicio y tamaño) y, sólo si su nombre no sigue el patrón {@code yyyyMMdd-HHmmss.ts}, una referencia
+ * a su nombre; los nombres con fecha se reconstruyen a partir del inicio cuando hace falta borrarlos. Los segmentos
+ * llegan casi siempre en orden, así que añadir es O(1) y quitar el más antiguo también; quitar uno concreto es una
+ * búsqueda binaria y deja un hueco que se salta al llegar a él.
+ * </p>
+ * <p>
+ * Al leer un directorio los ficheros llegan en cualquier orden: se añaden al final con {@link #append} y se ordenan
+ * una única vez con {@link #sort()}, en lugar de hacerles hueco uno a uno.
+ * </p>
+ * <p>
+ * No es segura para varios hilos: sólo la usa el hilo de la retención.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class SegmentQueue {
+
+    /**
+     * Extensión de los segmentos.
+     */
+    static final String EXTENSION = ".ts";
+
+    /**
+     * Formato de la fecha en el nombre de los segmentos (ver {@code VideoRecorder#SEGMENT_FILE_PATTERN}).
+     */
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    /**
+     * Marca un hueco (segmento ya quitado) en {@link #sizes}.
+     */
+    private static final long REMOVED = -1;
+
+    private final ZoneId zone;
+    private long[] starts = new long[64];
+    private long[] sizes = new long[64];
+    private String[] names = new String[64];
+    private int head;
+    private int tail;
+    private int count;
+    private long totalBytes;
+
+    /**
+     * @param zone zona horaria con la que FFmpeg pone la fecha en el nombre de los segmentos.
+     */
+    SegmentQueue(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * Añade un segmento. Si ya estaba, no hace nada.
+     *
+     * @param name        el nombre del fichero.
+     * @param startMillis el inicio (del nombre o, si no lo lleva, la fecha de modificación).
+     * @param size        el tamaño conocido, o 0 si todavía se está escribiendo.
+     */
+    void add(String name, long startMillis, long size) {
+        int position = search(startMillis);
+        if (position < tail && starts[position] == startMillis && sizes[position] != REMOVED
+                && name.equals(nameAt(position))) {
+            return;
+        }
+        if (tail == starts.length) {
+            makeRoom();
+            position = search(startMillis);
+        }
+        if (position < tail) {
+            // llega desordenado (un evento atrasado): se hace hueco
+            System.arraycopy(starts, position, starts, position + 1, tail - position);
+            System.arraycopy(sizes, position, sizes, position + 1, tail - position);
+            System.arraycopy(names, position, names, position + 1, tail - position);
+        }
+        starts[position] = startMillis;
+        sizes[position] = size;
+        names[position] = name.equals(canonicalName(startMillis)) ? null : name;
+        tail++;
+        count++;
+        totalBytes += size;
+    }
+
+    /**
+     * Añade un segmento al final sin mirar el orden ni si ya estaba. Sólo para cargar un directorio: al terminar hay
+     * que llamar a {@link #sort()}.
+     *
+     * @param name        el nombre del fichero.
+     * @param startMillis el inicio (del nombre o, si no lo lleva, la fecha de modificación).
+     * @param size        el tamaño.
+     */
+    void append(String name, long startMillis, long size) {
+        if (tail == starts.length) {
+            makeRoom();
+        }
+        starts[tail] = startMillis;
+        sizes[tail] = size;
+        names[tail] = name.equals(canonicalName(startMillis)) ? null : name;
+        tail++;
+        count++;
+        totalBytes += size;
+    }
+
+    /**
+     * Ordena por inicio los segmentos añadidos con {@link #append} y quita los repetidos (se queda el primero). Es
+     * una ordenación por mezcla de las posiciones, O(n log n), y una única copia a arrays nuevos.
+     */
+    void sort() {
+        int n = tail - head;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = head + i;
+        }
+        int[] merged = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int low = 0; low < n; low += 2 * width) {
+                int middle = Math.min(low + width, n);
+                int high = Math.min(low + 2 * width, n);
+                int i = low;
+                int j = middle;
+                int k = low;
+                while (i < middle && j < high) {
+                    // a igual inicio se queda delante el de la izquierda: la mezcla es estable
+                    merged[k++] = starts[order[j]] < starts[order[i]] ? order[j++] : order[i++];
+                }
+                while (i < middle) {
+                    merged[k++] = order[i++];
+                }
+                while (j < high) {
+                    merged[k++] = order[j++];
+                }
+            }
+            int[] swap = order;
+            order = merged;
+            merged = swap;
+        }
+        long[] sortedStarts = new long[starts.length];
+        long[] sortedSizes = new long[starts.length];
+        String[] sortedNames = new String[starts.length];
+        int used = 0;
+        long bytes = 0;
+        for (int position : order) {
+            if (sizes[position] == REMOVED) {
+                continue;
+            }
+            // mismo inicio y mismo nombre (p.ej. el .ts y su reempaquetado): ya estaba
+            boolean repeated = false;
+            for (int i = used - 1; i >= 0 && sortedStarts[i] == starts[position]; i--) {
+                if (Objects.equals(sortedNames[i], names[position])) {
+                    repeated = true;
+                    break;
+                }
+            }
+            if (repeated) {
+                continue;
+            }
+            sortedStarts[used] = starts[position];
+            sortedSizes[used] = sizes[position];
+            sortedNames[used] = names[position];
+            bytes += sizes[position];
+            used++;
+        }
+        starts = sortedStarts;
+        sizes = sortedSizes;
+        names = sortedNames;
+        head = 0;
+        tail = used;
+        count = used;
+        totalBytes = bytes;
+    }
+
+    /**
+     * Quita un segmento que ya no existe (borrado desde fuera).
+     *
+     * @param name el nombre del fichero.
+     * @return el tamaño que se tenía anotado, o -1 si no estaba.
+     */
+    long remove(String name) {
+        int position = find(name);
+        if (position < 0) {
+            return -1;
+        }
+        long size = sizes[position];
+        markRemoved(position);
+        return size;
+    }
+
+    /**
+     * Cambia el tamaño anotado de un segmento, p.ej. al reempaquetarlo.
+     *
+     * @param name el nombre del fichero.
+     * @param size el tamaño nuevo.
+     * @return si estaba.
+     */
+    boolean updateSize(String name, long size) {
+        int position = find(name);
+        if (position < 0) {
+            return false;
+        }
+        totalBytes += size - sizes[position];
+        sizes[position] = size;
+        return true;
+    }
+
+    /**
+     * Apunta el tamaño definitivo del segmento más reciente, que ya no se está escribiendo.
+     *
+     * @param size el tamaño.
+     */
+    void updateNewestSize(long size) {
+        int newest = newestPosition();
+        if (newest >= 0) {
+            totalBytes += size - sizes[newest];
+            sizes[newest] = size;
+        }
+    }
+
+    /**
+     * @return {@code true} si hay un segmento que se pueda borrar: el más reciente no cuenta, porque puede que
+     * FFmpeg lo esté escribiendo.
+     */
+    boolean hasEvictable() {
+        return count > 1;
+    }
+
+    /**
+     * @return el inicio del segmento más antiguo. Sólo si {@link #hasEvictable()}.
+     */
+    long oldestStart() {
+        skipRemoved();
+        return starts[head];
+    }
+
+    /**
+     * @return el nombre del segmento más antiguo. Sólo si {@link #hasEvictable()}.
+     */
+    String oldestName() {
+        skipRemoved();
+        return nameAt(head);
+    }
+
+    /**
+     * Quita el segmento más antiguo.
+     *
+     * @return su tamaño.
+     */
+    long removeOldest() {
+        skipRemoved();
+        long size = sizes[head];
+        markRemoved(head);
+        skipRemoved();
+        return size;
+    }
+
+    /**
+     * @return el nombre del segmento más reciente, o {@code null} si no hay ninguno.
+     */
+    String newestName() {
+        int newest = newestPosition();
+        return newest < 0 ? null : nameAt(newest);
+    }
+
+    int size() {
+        return count;
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Vacía la cola (antes de volver a escanear el directorio).
+     */
+    void clear() {
+        Arrays.fill(names, null);
+        head = 0;
+        tail = 0;
+        count = 0;
+        totalBytes = 0;
+    }
+
+    /**
+     * @param name el nombre de un fichero.
+     * @return el inicio que indica su nombre, o {@link Long#MIN_VALUE} si no sigue el patrón con fecha.
+     */
+    long startFromName(String name) {
+        if (name.length() != 15 + EXTENSION.length() || !name.endsWith(EXTENSION)) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return LocalDateTime.parse(name.substring(0, 15), NAME_FORMAT).atZone(zone).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * @return la posición de un segmento, o -1 si no está.
+     */
+    private int find(String name) {
+        long start = startFromName(name);
+        int from = head;
+        int to = tail;
+        if (start != Long.MIN_VALUE) {
+            from = search(start);
+            to = from;
+            while (to < tail && starts[to] == start) {
+                to++;
+            }
+        }
+        for (int i = from; i < to; i++) {
+            if (sizes[i] != REMOVED && name.equals(nameAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String canonicalName(long startMillis) {
+        return NAME_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(startMillis), zone)) + EXTENSION;
+    }
+
+    private String nameAt(int position) {
+        String name = names[position];
+        return name != null ? name : canonicalName(starts[position]);
+    }
+
+    private void markRemoved(int position) {
+        totalBytes -= sizes[position];
+        sizes[position] = REMOVED;
+        names[position] = null;
+        count--;
+    }
+
+    private void skipRemoved() {
+        while (head < tail && sizes[head] == REMOVED) {
+            head++;
+        }
+        if (head == tail) {
+            head = 0;
+            tail = 0;
+        }
+    }
+
+    private int newestPosition() {
+        for (int i = tail - 1; i >= head; i--) {
+            if (sizes[i] != REMOVED) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return la primera posición cuyo inicio es mayor o igual que {@code startMillis}.
+     */
+    private int search(long startMillis) {
+        int low = head;
+        int high = tail;
+        if (high > low && starts[high - 1] <= startMillis) {
+            // el caso normal: el segmento nuevo es el más reciente
+            return starts[high - 1] == startMillis ? high - 1 : high;
+        }
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] < startMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compacta los huecos del principio o, si no los hay, amplía los arrays.
+     */
+    private void makeRoom() {
+        skipRemoved();
+        int used = tail - head;
+        if (head > 0 && used < starts.length / 2) {
+            System.arraycopy(starts, head, starts, 0, used);
+            System.arraycopy(sizes, head, sizes, 0, used);
+            System.arraycopy(names, head, names, 0, used);
+            Arrays.fill(names, used, tail, null);
+        } else {
+            int capacity = starts.length * 2;
+            long[] newStarts = new long[capacity];
+            long[] newSizes = new long[capacity];
+            String[] newNames = new String[capacity];
+            System.arraycopy(starts, head, newStarts, 0, used);
+            System.arraycopy(sizes, head, newSizes, 0, used);
+            System.arraycopy(names, head, newNames, 0, used);
+            starts = newStarts;
+            sizes = newSizes;
+            names = newNames;
+        }
+        head = 0;
+        tail = used;
+    }
+}
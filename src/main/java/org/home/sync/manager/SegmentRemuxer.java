@@ -0,0 +1,426 @@
+package org.home.sync.manager;
+
+import org.home.sync.hls.HlsServer;
+import org.home.sync.metrics.CpuLoad;
+import org.home.sync.metrics.IoPressure;
+import org.home.sync.metrics.LoadSheddingMetrics;
+import org.home.sync.metrics.RemuxMetrics;
+import org.home.sync.recording.Recorder;
+import org.home.sync.recording.VideoRecorder;
+import org.home.sync.recording.index.KeyframeIndex;
+import org.home.sync.recording.index.SegmentEntry;
+import org.home.sync.recording.index.SegmentFiles;
+import org.home.sync.recording.index.SegmentIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reempaqueta los segmentos antiguos de MPEG-TS a MP4 fragmentado, sin volver a codificar, cuando la máquina no los
+ * necesita para grabar.
+ * <p>
+ * El mismo video ocupa en MP4 fragmentado alrededor de un 10% menos que en MPEG-TS, y los navegadores lo reproducen
+ * sin convertirlo. Cada {@link #SCAN_PERIOD_SECONDS} segundos una tarea del planificador compartido recorre, desde
+ * donde lo dejó, el {@link SegmentIndex} de cada cámara y pone en cola los segmentos cerrados hace más de
+ * {@code remux.minAgeMinutes} minutos (60, como poco 10) que ya no están en la lista HLS en directo. La cola tiene
+ * prioridad: el más antiguo de todas las cámaras primero. La atienden {@code remux.workers} hilos (1) de baja
+ * prioridad, cada uno con un FFmpeg {@code -c copy} con {@code nice -n 19} y un solo hilo.
+ * </p>
+ * <p>
+ * Antes de cada segmento se comprueba que la máquina está desocupada: ni sobrecargada según el {@link LoadShedder},
+ * ni con la CPU por encima del {@code remux.cpuPercent}% (50), ni con presión de E/S por encima de
+ * {@code remux.ioPressureLimit}% (5). Si no lo está, se espera sin lanzar nada. Un segmento se reempaqueta en unos
+ * cientos de milisegundos, así que no se interrumpe el que ya está en marcha.
+ * </p>
+ * <p>
+ * El resultado se escribe a un temporal oculto, se sincroniza y se renombra a {@code <segmento>.mp4}; sólo entonces
+ * se borra el original. El índice de segmentos no cambia: la retención, el HLS y las exportaciones buscan el fichero
+ * con {@link SegmentFiles#resolve(Path, String)}. Si la retención borra el original mientras se reempaqueta, se
+ * descarta el resultado. Un segmento que no se puede reempaquetar (p.ej. audio que MP4 no admite) se deja como está.
+ * </p>
+ * <p>
+ * Se activa con {@code remux.enabled=true}.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class SegmentRemuxer implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(SegmentRemuxer.class);
+
+    /**
+     * Cada cuántos segundos se buscan segmentos nuevos que reempaquetar.
+     */
+    public static final long SCAN_PERIOD_SECONDS = 60;
+
+    /**
+     * Segmentos en cola como máximo. Los que no caben se ponen en cola en una vuelta posterior.
+     */
+    private static final int QUEUE_CAPACITY = 4096;
+
+    /**
+     * Lo que se espera antes de volver a mirar si la máquina está desocupada.
+     */
+    private static final long BUSY_PAUSE_MILLIS = 5_000;
+
+    /**
+     * Lo que puede tardar como mucho un FFmpeg en reempaquetar un segmento.
+     */
+    private static final long TIMEOUT_SECONDS = 120;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final CameraSupervisor supervisor;
+    private final LoadSheddingMetrics shedding;
+    private final RemuxMetrics metrics = new RemuxMetrics();
+
+    private final boolean enabled = Boolean.getBoolean("remux.enabled");
+    private final int workers = Math.max(1, Integer.getInteger("remux.workers", 1));
+    private final long minAgeMillis =
+            TimeUnit.MINUTES.toMillis(Math.max(10, Integer.getInteger("remux.minAgeMinutes", 60)));
+    private final double cpuLimit = Integer.getInteger("remux.cpuPercent", 50) / 100.0;
+    private final double ioPressureLimit = Double.parseDouble(System.getProperty("remux.ioPressureLimit", "5"));
+
+    /**
+     * Hasta dónde se ha recorrido el índice de cada cámara. Sólo lo usa la tarea periódica.
+     */
+    private final Map<String, Cursor> cursors = new HashMap<>();
+
+    /**
+     * Cámaras cuyos segmentos ya han fallado alguna vez, para avisar sólo del primero.
+     */
+    private final Set<String> warned = ConcurrentHashMap.newKeySet();
+
+    /**
+     * {@code nice -n 19}, o nada si no se puede lanzar.
+     */
+    private volatile List<String> nicePrefix = List.of("nice", "-n", "19");
+
+    private ThreadPoolExecutor executor;
+    private ScheduledFuture<?> task;
+    private volatile boolean closed;
+
+    /**
+     * Hasta dónde se ha recorrido el índice de una cámara.
+     */
+    private static final class Cursor {
+
+        final SegmentIndex index;
+        int next;
+
+        Cursor(SegmentIndex index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Un segmento por reempaquetar. Los más antiguos van primero.
+     */
+    private final class Job implements Runnable, Comparable<Job> {
+
+        final String camera;
+        final Path directory;
+        final SegmentEntry entry;
+
+        Job(String camera, Path directory, SegmentEntry entry) {
+            this.camera = camera;
+            this.directory = directory;
+            this.entry = entry;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            return Long.compare(entry.getStartMillis(), other.entry.getStartMillis());
+        }
+
+        @Override
+        public void run() {
+            try {
+                awaitIdle();
+                if (!closed) {
+                    remux(this);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                metrics.setQueued(executor.getQueue().size());
+            }
+        }
+    }
+
+    /**
+     * @param supervisor el supervisor de las cámaras.
+     * @param shedding   los contadores del recorte de carga, que dicen si la máquina está sobrecargada.
+     */
+    public SegmentRemuxer(CameraSupervisor supervisor, LoadSheddingMetrics shedding) {
+        this.supervisor = supervisor;
+        this.shedding = shedding;
+    }
+
+    /**
+     * Empieza a buscar segmentos que reempaquetar, si está activado.
+     */
+    public synchronized void start() {
+        if (!enabled || task != null || closed) {
+            return;
+        }
+        executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "segment-remuxer-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        task = supervisor.getScheduler().scheduleWithFixedDelay(this::scan, SCAN_PERIOD_SECONDS,
+                SCAN_PERIOD_SECONDS, TimeUnit.SECONDS);
+        logger.info("Reempaquetando a MP4 los segmentos de más de " + TimeUnit.MILLISECONDS.toMinutes(minAgeMillis)
+                + " minutos con " + workers + " hilos");
+    }
+
+    /**
+     * @return si está activado.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return los contadores del reempaquetado.
+     */
+    public RemuxMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Pone en cola los segmentos de cada cámara cerrados hace más de {@code remux.minAgeMinutes}, desde el último
+     * recorrido. Al arrancar se recorre el índice entero: los ya reempaquetados o borrados se saltan al atenderlos.
+     */
+    private void scan() {
+        try {
+            long oldest = System.currentTimeMillis() - minAgeMillis;
+            for (Recorder recorder : supervisor.getRecorders()) {
+                String camera = recorder.getCameraConfig().getName();
+                SegmentIndex index = supervisor.getSegmentIndex(camera);
+                if (index == null) {
+                    continue;
+                }
+                Cursor cursor = cursors.get(camera);
+                if (cursor == null || cursor.index != index) {
+                    cursor = new Cursor(index);
+                    cursors.put(camera, cursor);
+                }
+                if (!enqueue(camera, cursor, oldest)) {
+                    break;
+                }
+            }
+            metrics.setQueued(executor.getQueue().size());
+        } catch (RuntimeException e) {
+            logger.error("Error al buscar segmentos que reempaquetar", e);
+        }
+    }
+
+    /**
+     * @return {@code false} si la cola se ha llenado.
+     */
+    private boolean enqueue(String camera, Cursor cursor, long oldestMillis) {
+        Path directory = Path.of(camera);
+        // la lista en directo ya escrita nombra los últimos segmentos como MPEG-TS
+        int size = cursor.index.size() - HlsServer.WINDOW_SEGMENTS;
+        while (cursor.next < size) {
+            SegmentEntry entry = cursor.index.get(cursor.next);
+            if (entry.getEndMillis() > oldestMillis) {
+                // el índice va en orden: los siguientes son más recientes
+                return true;
+            }
+            if (executor.getQueue().size() >= QUEUE_CAPACITY) {
+                return false;
+            }
+            if (SegmentFiles.EXTENSION.equals(extension(entry.getFileName()))) {
+                try {
+                    executor.execute(new Job(camera, directory, entry));
+                } catch (RejectedExecutionException e) {
+                    return false;
+                }
+            }
+            cursor.next++;
+        }
+        return true;
+    }
+
+    private static String extension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot);
+    }
+
+    /**
+     * Espera hasta que la grabación no necesite la máquina.
+     */
+    private void awaitIdle() throws InterruptedException {
+        while (!closed && isBusy()) {
+            metrics.setPaused(true);
+            Thread.sleep(BUSY_PAUSE_MILLIS);
+        }
+        metrics.setPaused(false);
+    }
+
+    private boolean isBusy() {
+        if (shedding != null && shedding.isOverloaded()) {
+            return true;
+        }
+        if (supervisor.getSegmentStaging().isUnderPressure()) {
+            return true;
+        }
+        return CpuLoad.system() > cpuLimit || IoPressure.avg10() > ioPressureLimit;
+    }
+
+    private void remux(Job job) throws InterruptedException {
+        String name = job.entry.getFileName();
+        Path source = job.directory.resolve(name);
+        Path target = job.directory.resolve(SegmentFiles.remuxedName(name));
+        Path part = job.directory.resolve("." + target.getFileName() + ".part");
+        try {
+            long before = Files.size(source);
+            if (Files.exists(target)) {
+                // se renombró y se paró antes de borrar el original
+                deleteOriginal(job.directory, name);
+                return;
+            }
+            String error = ffmpeg(source, part);
+            if (error != null) {
+                Files.deleteIfExists(part);
+                metrics.recordFailed();
+                if (warned.add(job.camera)) {
+                    logger.warn("No se puede reempaquetar " + source + ", se deja en MPEG-TS: " + error);
+                }
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            if (!Files.exists(source)) {
+                // la retención lo ha borrado mientras tanto
+                Files.deleteIfExists(part);
+                return;
+            }
+            long after = Files.size(part);
+            move(part, target);
+            try {
+                Files.delete(source);
+            } catch (NoSuchFileException e) {
+                // la retención lo borró entre la comprobación y el renombrado, y puede que ya no borre éste
+                Files.deleteIfExists(target);
+                return;
+            }
+            // el índice de fotogramas clave es de las posiciones del MPEG-TS
+            KeyframeIndex.delete(job.directory, name);
+            metrics.recordRemuxed(before, after);
+        } catch (NoSuchFileException e) {
+            // borrado por la retención antes de reempaquetarlo
+        } catch (IOException e) {
+            metrics.recordFailed();
+            logger.warn("No se puede reempaquetar " + source + ": " + e);
+            try {
+                Files.deleteIfExists(part);
+            } catch (IOException ignored) {
+                // se sobrescribe en el siguiente intento
+            }
+        }
+    }
+
+    private static void deleteOriginal(Path directory, String name) throws IOException {
+        Files.deleteIfExists(directory.resolve(name));
+        KeyframeIndex.delete(directory, name);
+    }
+
+    /**
+     * Lanza FFmpeg para reempaquetar un segmento y espera a que termine.
+     *
+     * @return {@code null} si ha ido bien, o lo que ha dicho FFmpeg si no.
+     */
+    private String ffmpeg(Path source, Path output) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(nicePrefix);
+        command.addAll(List.of(VideoRecorder.FFMPEG_COMMAND, "-nostdin", "-hide_banner", "-loglevel", "error",
+                "-threads", "1", "-y", "-i", source.toString(), "-map", "0:v", "-map", "0:a?", "-c", "copy",
+                "-f", "mp4", "-movflags", "+frag_keyframe+empty_moov+default_base_moof", output.toString()));
+        Path log = output.resolveSibling(output.getFileName() + ".log");
+        Process process;
+        try {
+            process = new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.to(log.toFile())).start();
+        } catch (IOException e) {
+            if (nicePrefix.isEmpty()) {
+                throw e;
+            }
+            logger.warn("No se puede lanzar nice, los FFmpeg que reempaquetan se lanzan sin él: " + e);
+            nicePrefix = List.of();
+            return ffmpeg(source, output);
+        }
+        try {
+            if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return "no ha terminado en " + TIMEOUT_SECONDS + " s";
+            }
+            if (process.exitValue() == 0) {
+                return null;
+            }
+            // con -loglevel error sólo escribe si algo va mal
+            String messages;
+            try (InputStream in = Files.newInputStream(log)) {
+                messages = new String(in.readNBytes(4096), StandardCharsets.UTF_8).trim();
+            }
+            return "código " + process.exitValue() + (messages.isEmpty() ? "" : ": " + messages);
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            throw e;
+        } finally {
+            Files.deleteIfExists(log);
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deja de reempaquetar. Los segmentos pendientes se quedan como están y se vuelven a poner en cola al arrancar.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (task != null) {
+            task.cancel(false);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package org.home.sync.manager;
+
+import org.home.sync.config.CameraConfig;
+import org.home.sync.metrics.CameraMetrics;
+import org.home.sync.recording.CameraState;
+import org.home.sync.recording.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detecta grabaciones atascadas y las reinicia.
+ * <p>
+ * Un FFmpeg o una sesión RTSP pueden seguir vivos sin grabar nada: la cámara deja de mandar datos sin cerrar la
+ * conexión, el disco se bloquea, el proceso se queda colgado... Mientras no terminen no se reinician, así que la
+ * cámara puede pasar horas sin grabar. El watchdog considera que una cámara en {@link CameraState#RECORDING} está
+ * atascada si en {@link #DEFAULT_STALL_SECONDS} segundos (propiedad {@code watchdog.stallSeconds}; 0 lo desactiva):
+ * </p>
+ * <ul>
+ *     <li>no han avanzado sus fotogramas, bytes escritos ni segmentos cerrados, o, si FFmpeg no informa de su
+ *     progreso, no ha crecido el segmento que está escribiendo (en el directorio rápido, si se usa);</li>
+ *     <li>o, grabando en segmentos, ha pasado un segmento entero más ese plazo sin que se cierre ninguno.</li>
+ * </ul>
+ * <p>
+ * Entonces se llama a {@link Recorder#recover(String)}, que mata el proceso o cierra la sesión; el reinicio sigue el
+ * camino de cualquier otro fallo, con su backoff y su circuit breaker. Se mide lo que tarda la grabación en volver a
+ * avanzar desde que se atascó ({@link CameraMetrics#recordStallRecovery(long)}).
+ * </p>
+ * <p>
+ * Todas las cámaras se revisan en una única tarea periódica del planificador compartido del
+ * {@link CameraSupervisor}: sólo lee contadores, salvo el tamaño del segmento abierto de las que no informan de su
+ * progreso. El directorio sólo se recorre para encontrar ese segmento, cuando deja de crecer: al empezar, al pasar
+ * FFmpeg al siguiente o si de verdad se ha atascado.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class StallWatchdog implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(StallWatchdog.class);
+
+    /**
+     * Segundos sin avanzar a partir de los que se reinicia la grabación.
+     */
+    public static final int DEFAULT_STALL_SECONDS = 15;
+
+    /**
+     * Cada cuántos milisegundos se revisan las cámaras.
+     */
+    private static final long TICK_MILLIS = 1000;
+
+    /**
+     * Lo que se sabe de la grabación de una cámara.
+     */
+    private static final class Liveness {
+
+        final Recorder recorder;
+        final long processStart;
+        long counter = -1;
+        long lastAdvanceNanos;
+        long lastSegments = -1;
+        boolean segmentsReported;
+        Path openSegment;
+        long fileSize = -1;
+        long lastScanNanos;
+
+        /**
+         * Instante en el que dejó de avanzar antes de reiniciarla, o 0 si no está atascada.
+         */
+        long stallOnsetNanos;
+
+        Liveness(Recorder recorder, long processStart, long now) {
+            this.recorder = recorder;
+            this.processStart = processStart;
+            this.lastAdvanceNanos = now;
+        }
+    }
+
+    private final CameraSupervisor supervisor;
+    private final long deadlineNanos;
+
+    /**
+     * Estado de cada cámara, por nombre. Sólo lo usa la tarea periódica.
+     */
+    private final Map<String, Liveness> cameras = new HashMap<>();
+
+    private ScheduledFuture<?> task;
+
+    /**
+     * @param supervisor el supervisor de las cámaras.
+     */
+    public StallWatchdog(CameraSupervisor supervisor) {
+        this(supervisor, Integer.getInteger("watchdog.stallSeconds", DEFAULT_STALL_SECONDS));
+    }
+
+    /**
+     * @param supervisor   el supervisor de las cámaras.
+     * @param stallSeconds segundos sin avanzar a partir de los que se reinicia la grabación.
+     */
+    public StallWatchdog(CameraSupervisor supervisor, int stallSeconds) {
+        this.supervisor = supervisor;
+        this.deadlineNanos = TimeUnit.SECONDS.toNanos(stallSeconds);
+    }
+
+    /**
+     * Empieza a revisar las cámaras, si no está desactivado.
+     */
+    public synchronized void start() {
+        if (deadlineNanos <= 0 || task != null) {
+            return;
+        }
+        task = supervisor.getScheduler().scheduleWithFixedDelay(this::check, TICK_MILLIS, TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
+        logger.info("Watchdog de grabaciones atascadas: " + TimeUnit.NANOSECONDS.toSeconds(deadlineNanos) + " s");
+    }
+
+    private void check() {
+        try {
+            long now = System.nanoTime();
+            long nowMillis = System.currentTimeMillis();
+            for (Iterator<Map.Entry<String, Liveness>> it = cameras.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Liveness> entry = it.next();
+                if (supervisor.getRecorder(entry.getKey()) != entry.getValue().recorder) {
+                    it.remove();
+                }
+            }
+            for (Recorder recorder : supervisor.getRecorders()) {
+                check(recorder, now, nowMillis);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error en el watchdog de grabaciones", e);
+        }
+    }
+
+    private void check(Recorder recorder, long now, long nowMillis) {
+        CameraConfig cameraConfig = recorder.getCameraConfig();
+        String name = cameraConfig.getName();
+        CameraMetrics metrics = recorder.getMetrics();
+        long processStart = metrics.getProcessStartEpochMillis();
+        if (recorder.getState() != CameraState.RECORDING || processStart == 0) {
+            Liveness previous = cameras.get(name);
+            if (previous != null && previous.stallOnsetNanos == 0) {
+                cameras.remove(name);
+            }
+            return;
+        }
+        Liveness liveness = cameras.get(name);
+        if (liveness == null || liveness.recorder != recorder || liveness.processStart != processStart) {
+            Liveness next = new Liveness(recorder, processStart, now);
+            if (liveness != null && liveness.recorder == recorder) {
+                // el reinicio tras el atasco: se sigue midiendo hasta que avance
+                next.stallOnsetNanos = liveness.stallOnsetNanos;
+            }
+            liveness = next;
+            cameras.put(name, liveness);
+        }
+
+        long counter = metrics.getFrames() + metrics.getOutputBytes() + metrics.getSegments();
+        if (!cameraConfig.isNativeEngine() && metrics.getLastProgressEpochMillis() < processStart) {
+            // FFmpeg no informa de su progreso: se mira si crece el segmento que está escribiendo
+            if (now - liveness.lastScanNanos >= deadlineNanos / 3) {
+                liveness.lastScanNanos = now;
+                updateOpenSegment(liveness, supervisor.getSegmentStaging().directory(name));
+            }
+            counter += liveness.fileSize;
+        }
+        if (counter != liveness.counter) {
+            boolean first = liveness.counter < 0;
+            liveness.counter = counter;
+            if (!first) {
+                liveness.lastAdvanceNanos = now;
+                if (liveness.stallOnsetNanos != 0) {
+                    long recovery = now - liveness.stallOnsetNanos;
+                    liveness.stallOnsetNanos = 0;
+                    metrics.recordStallRecovery(recovery);
+                    logger.info("La camara " + name + " vuelve a grabar " + TimeUnit.NANOSECONDS.toMillis(recovery)
+                            + " ms después de atascarse");
+                }
+            }
+        }
+        long segments = metrics.getSegments();
+        if (segments != liveness.lastSegments) {
+            liveness.segmentsReported |= liveness.lastSegments >= 0;
+            liveness.lastSegments = segments;
+        }
+
+        String reason = null;
+        if (now - liveness.lastAdvanceNanos > deadlineNanos) {
+            reason = "sin avanzar en " + TimeUnit.NANOSECONDS.toSeconds(now - liveness.lastAdvanceNanos) + " s";
+        } else if (liveness.segmentsReported && "segment".equals(cameraConfig.getFormat())
+                && !cameraConfig.isEventMode()) {
+            long segmentMillis = segmentMillis(cameraConfig);
+            long since = nowMillis - Math.max(metrics.getLastSegmentEpochMillis(), processStart);
+            if (segmentMillis > 0 && since > segmentMillis + TimeUnit.NANOSECONDS.toMillis(deadlineNanos)) {
+                reason = "sin cerrar ningún segmento en " + since / 1000 + " s";
+            }
+        }
+        if (reason != null && recorder.recover(reason)) {
+            metrics.recordStall();
+            if (liveness.stallOnsetNanos == 0) {
+                liveness.stallOnsetNanos = liveness.lastAdvanceNanos;
+            }
+            liveness.lastAdvanceNanos = now;
+            liveness.segmentsReported = false;
+        }
+    }
+
+    /**
+     * @return la duración de los segmentos de la cámara en milisegundos, o 0 si no es válida.
+     */
+    private static long segmentMillis(CameraConfig cameraConfig) {
+        try {
+            return (long) (Double.parseDouble(cameraConfig.getSegmentTime()) * 1000);
+        } catch (NumberFormatException | NullPointerException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Anota el tamaño del segmento que está escribiendo FFmpeg. Mientras crezca sólo se mira ese fichero; si no ha
+     * crecido (o ya no está) se busca en el directorio el modificado más recientemente, que puede ser el siguiente.
+     *
+     * @param directory donde escribe FFmpeg: el directorio rápido de la cámara o, si no se usa, el del archivo.
+     */
+    private static void updateOpenSegment(Liveness liveness, Path directory) {
+        if (liveness.openSegment != null) {
+            long size = size(liveness.openSegment);
+            if (size > liveness.fileSize) {
+                liveness.fileSize = size;
+                return;
+            }
+        }
+        liveness.openSegment = newestSegment(directory);
+        liveness.fileSize = liveness.openSegment == null ? 0 : Math.max(0, size(liveness.openSegment));
+    }
+
+    /**
+     * @return el segmento modificado más recientemente del directorio, o {@code null} si no hay ninguno.
+     */
+    private static Path newestSegment(Path directory) {
+        long newest = Long.MIN_VALUE;
+        Path segment = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.ts")) {
+            for (Path file : files) {
+                long modified = Files.getLastModifiedTime(file).toMillis();
+                if (modified > newest) {
+                    newest = modified;
+                    segment = file;
+                }
+            }
+        } catch (IOException e) {
+            // sin directorio todavía, o un segmento borrado mientras se recorría
+        }
+        return segment;
+    }
+
+    /**
+     * @return el tamaño del fichero, o -1 si ya no existe (lo ha movido al archivo el directorio rápido).
+     */
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Deja de revisar las cámaras.
+     */
+    @Override
+    public synchronized void close() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package org.home.sync.manager;
+
+import org.home.sync.config.CameraConfig;
+import org.home.sync.metrics.CameraMetrics;
+import org.home.sync.metrics.StartupMetrics;
+import org.home.sync.recording.CameraState;
+import org.home.sync.recording.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lanza las cámaras poco a poco en lugar de todas a la vez.
+ * <p>
+ * Si al arrancar se lanzan cientos de FFmpeg a la vez, todos abren su sesión RTSP y detectan códecs al mismo tiempo:
+ * la CPU y la red de las cámaras se saturan y algunas cámaras no llegan a conectar. Aquí las cámaras esperan en una
+ * cola ordenada por {@link CameraConfig#getPriority()} (y, a igual prioridad, por orden de llegada) y salen con tres
+ * límites:
+ * </p>
+ * <ul>
+ *   <li>un token bucket: como mucho {@code startup.ratePerSecond} lanzamientos por segundo, con ráfagas de hasta
+ *   {@code startup.burst};</li>
+ *   <li>readiness gating: como mucho {@code startup.maxPending} cámaras lanzadas que todavía no graban. Una cámara
+ *   graba cuando FFmpeg informa de los primeros fotogramas escritos o cierra su primer segmento;</li>
+ *   <li>un plazo ({@link #READY_TIMEOUT_SECONDS}) tras el que una cámara que no graba deja de ocupar sitio, para que
+ *   una cámara caída no frene a las demás (su supervisor la sigue reintentando).</li>
+ * </ul>
+ * <p>
+ * Mide el tiempo desde que empieza una tanda (la cola estaba vacía) hasta que todas sus cámaras graban, y lo escribe
+ * en el log y en {@link StartupMetrics}. Todo se ejecuta en el planificador compartido del supervisor.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class StartupScheduler {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(StartupScheduler.class);
+
+    /**
+     * Lanzamientos por segundo por defecto.
+     */
+    public static final double DEFAULT_RATE_PER_SECOND = 5;
+
+    /**
+     * Lanzamientos seguidos permitidos por defecto.
+     */
+    public static final int DEFAULT_BURST = 5;
+
+    /**
+     * Cámaras lanzadas sin grabar todavía permitidas por defecto.
+     */
+    public static final int DEFAULT_MAX_PENDING = 20;
+
+    /**
+     * Segundos que tiene una cámara lanzada para empezar a grabar antes de dejar de contar como pendiente.
+     */
+    public static final long READY_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Cada cuántos milisegundos se revisa la cola mientras hay trabajo.
+     */
+    private static final long TICK_MILLIS = 100;
+
+    private final CameraSupervisor supervisor;
+    private final StartupMetrics metrics = new StartupMetrics();
+    private final double ratePerSecond;
+    private final int burst;
+    private final int maxPending;
+
+    /**
+     * Cámaras esperando turno, por prioridad.
+     */
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>(
+            Comparator.comparingInt((Entry e) -> -e.cameraConfig.getPriority()).thenComparingLong(e -> e.sequence));
+
+    /**
+     * Cámaras lanzadas que todavía no graban, por nombre.
+     */
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    private long sequence;
+    private double tokens;
+    private long lastRefillNanos;
+    private long rolloutStartNanos;
+    private int rolloutLaunched;
+    private int rolloutTimeouts;
+    private ScheduledFuture<?> tick;
+
+    /**
+     * Crea el planificador con los límites de las propiedades de sistema.
+     *
+     * @param supervisor el supervisor que lanza las cámaras.
+     */
+    public StartupScheduler(CameraSupervisor supervisor) {
+        this.supervisor = supervisor;
+        this.ratePerSecond = parseRate(System.getProperty("startup.ratePerSecond"));
+        this.burst = Math.max(1, Integer.getInteger("startup.burst", DEFAULT_BURST));
+        this.maxPending = Math.max(1, Integer.getInteger("startup.maxPending", DEFAULT_MAX_PENDING));
+        this.tokens = burst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Lee los lanzamientos por segundo de {@code startup.ratePerSecond}.
+     *
+     * @param rate el valor de la propiedad, o {@code null} si no está.
+     * @return los lanzamientos por segundo, o {@link #DEFAULT_RATE_PER_SECOND} si no está o no es un número
+     * positivo (con 0 no se lanzaría ninguna cámara).
+     */
+    static double parseRate(String rate) {
+        if (rate == null) {
+            return DEFAULT_RATE_PER_SECOND;
+        }
+        try {
+            double value = Double.parseDouble(rate.trim());
+            if (value > 0 && !Double.isInfinite(value)) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // se avisa abajo
+        }
+        logger.warn("Valor no válido en startup.ratePerSecond: " + rate + ", se usa " + DEFAULT_RATE_PER_SECOND);
+        return DEFAULT_RATE_PER_SECOND;
+    }
+
+    /**
+     * Pone una cámara en la cola de arranque. Si ya estaba esperando, se sustituye su configuración.
+     *
+     * @param cameraConfig la configuración de la cámara.
+     */
+    public synchronized void submit(CameraConfig cameraConfig) {
+        queue.removeIf(e -> e.cameraConfig.getName().equals(cameraConfig.getName()));
+        if (queue.isEmpty() && pending.isEmpty()) {
+            rolloutStartNanos = System.nanoTime();
+            rolloutLaunched = 0;
+            rolloutTimeouts = 0;
+        }
+        queue.add(new Entry(cameraConfig, sequence++));
+        if (tick == null) {
+            tick = supervisor.getScheduler().scheduleWithFixedDelay(this::pump, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        updateMetrics();
+    }
+
+    /**
+     * Quita una cámara de la cola si todavía no se ha lanzado.
+     *
+     * @param name el nombre de la cámara.
+     */
+    public synchronized void cancel(String name) {
+        queue.removeIf(e -> e.cameraConfig.getName().equals(name));
+        pending.remove(name);
+        updateMetrics();
+    }
+
+    /**
+     * @return los contadores del arranque.
+     */
+    public StartupMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Revisa las cámaras pendientes y lanza las siguientes de la cola si los límites lo permiten.
+     */
+    private synchronized void pump() {
+        long now = System.nanoTime();
+        checkPending(now);
+
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) / 1e9 * ratePerSecond);
+        lastRefillNanos = now;
+        while (!queue.isEmpty() && tokens >= 1 && pending.size() < maxPending) {
+            Entry entry = queue.poll();
+            tokens -= 1;
+            Recorder recorder = supervisor.start(entry.cameraConfig);
+            pending.put(entry.cameraConfig.getName(), new Pending(recorder, now));
+            metrics.recordLaunch();
+            rolloutLaunched++;
+        }
+        updateMetrics();
+
+        if (queue.isEmpty() && pending.isEmpty()) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(now - rolloutStartNanos);
+            metrics.setLastRolloutMillis(elapsed);
+            logger.info("Arranque escalonado terminado: " + rolloutLaunched + " cámaras en " + elapsed + " ms"
+                    + (rolloutTimeouts > 0 ? " (" + rolloutTimeouts + " sin grabar tras "
+                    + READY_TIMEOUT_SECONDS + "s)" : ""));
+            tick.cancel(false);
+            tick = null;
+        }
+    }
+
+    private void checkPending(long now) {
+        for (Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Pending> entry = it.next();
+            Pending candidate = entry.getValue();
+            CameraMetrics cameraMetrics = candidate.recorder.getMetrics();
+            long waited = now - candidate.launchedAtNanos;
+            // en modo activity la cámara está lista en cuanto analiza su stream secundario, aunque no grabe
+            if (cameraMetrics.getFrames() > 0 || cameraMetrics.getSegments() > 0
+                    || candidate.recorder.getState() == CameraState.IDLE) {
+                metrics.recordReady(TimeUnit.NANOSECONDS.toMillis(waited));
+                it.remove();
+            } else if (candidate.recorder.getState() == CameraState.STOPPED) {
+                it.remove();
+            } else if (waited > TimeUnit.SECONDS.toNanos(READY_TIMEOUT_SECONDS)) {
+                logger.warn("La camara " + entry.getKey() + " no graba tras " + READY_TIMEOUT_SECONDS
+                        + "s, se sigue con el arranque de las demás");
+                metrics.recordReadyTimeout();
+                rolloutTimeouts++;
+                it.remove();
+            }
+        }
+    }
+
+    private void updateMetrics() {
+        metrics.setQueue(queue.size(), pending.size());
+    }
+
+    /**
+     * Cámara esperando turno.
+     */
+    private static final class Entry {
+
+        private final CameraConfig cameraConfig;
+        private final long sequence;
+
+        Entry(CameraConfig cameraConfig, long sequence) {
+            this.cameraConfig = cameraConfig;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Cámara lanzada que todavía no graba.
+     */
+    private static final class Pending {
+
+        private final Recorder recorder;
+        private final long launchedAtNanos;
+
+        Pending(Recorder recorder, long launchedAtNanos) {
+            this.recorder = recorder;
+            this.launchedAtNanos = launchedAtNanos;
+        }
+    }
+}
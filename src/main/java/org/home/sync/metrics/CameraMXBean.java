@@ -0,0 +1,78 @@
+package org.home.sync.metrics;
+
+/**
+ * Vista JMX de la grabación de una cámara. Se registra como {@code org.home.sync:type=Camera,name=<camara>}.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public interface CameraMXBean {
+
+    /**
+     * @return el estado de la grabación ({@code STARTING}, {@code RECORDING}...).
+     */
+    String getState();
+
+    /**
+     * @return segundos que lleva vivo el proceso FFmpeg actual, o 0 si no hay ninguno.
+     */
+    long getUptimeSeconds();
+
+    long getRestarts();
+
+    long getLastRestartLatencyMillis();
+
+    long getCircuitOpens();
+
+    long getStalls();
+
+    /**
+     * @return escalones que se ha bajado la calidad para quitar carga a la máquina.
+     */
+    int getShedLevel();
+
+    /**
+     * @return tiempo medio desde que la grabación se atasca hasta que vuelve a avanzar, o 0 si no se ha atascado.
+     */
+    long getMeanStallRecoveryMillis();
+
+    long getBitrateBitsPerSecond();
+
+    double getFps();
+
+    double getSpeed();
+
+    long getFrames();
+
+    long getDroppedFrames();
+
+    long getDuplicatedFrames();
+
+    long getSegments();
+
+    long getDiskBytes();
+
+    /**
+     * @return disparos recibidos en modo event.
+     */
+    long getEvents();
+
+    /**
+     * @return veces que se ha empezado a grabar por actividad en modo activity.
+     */
+    long getActivityStarts();
+
+    /**
+     * @return {@code true} si se graba por actividad en modo activity.
+     */
+    boolean isActivity();
+
+    /**
+     * @return la última puntuación de cambio de escena del stream secundario en modo activity, de 0 a 1.
+     */
+    double getSceneScore();
+
+    /**
+     * @return segundos desde que se cerró el último segmento, o -1 si todavía no se ha cerrado ninguno.
+     */
+    long getSecondsSinceLastSegment();
+}
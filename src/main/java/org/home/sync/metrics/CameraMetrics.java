@@ -0,0 +1,479 @@
+package org.home.sync.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores de una cámara. Se actualizan desde los callbacks de la grabación sin ningún bloqueo
+ * (sólo operaciones atómicas) y se leen desde fuera cuando se quieran consultar.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class CameraMetrics {
+
+    /**
+     * Nombre de la cámara.
+     */
+    private final String cameraName;
+
+    /**
+     * Veces que se ha vuelto a lanzar FFmpeg tras terminar o fallar.
+     */
+    private final LongAdder restarts = new LongAdder();
+
+    /**
+     * Veces que no se ha podido lanzar el proceso FFmpeg.
+     */
+    private final LongAdder spawnFailures = new LongAdder();
+
+    /**
+     * Veces que se ha abierto el circuit breaker (cámara aparcada).
+     */
+    private final LongAdder circuitOpens = new LongAdder();
+
+    /**
+     * Suma de las latencias de reinicio, en nanosegundos (desde que termina FFmpeg hasta que vuelve a grabar).
+     */
+    private final LongAdder restartLatencyTotalNanos = new LongAdder();
+
+    /**
+     * Última latencia de reinicio, en nanosegundos.
+     */
+    private final AtomicLong lastRestartLatencyNanos = new AtomicLong();
+
+    /**
+     * Mayor latencia de reinicio, en nanosegundos.
+     */
+    private final AtomicLong maxRestartLatencyNanos = new AtomicLong();
+
+    /**
+     * Instante (epoch millis) en el que arrancó el proceso FFmpeg actual, o 0 si no hay ninguno.
+     */
+    private final AtomicLong processStartEpochMillis = new AtomicLong();
+
+    /**
+     * Fotogramas procesados por FFmpeg, acumulados entre reinicios.
+     */
+    private final LongAdder frames = new LongAdder();
+
+    /**
+     * Fotogramas descartados por FFmpeg, acumulados entre reinicios.
+     */
+    private final LongAdder droppedFrames = new LongAdder();
+
+    /**
+     * Fotogramas duplicados por FFmpeg, acumulados entre reinicios.
+     */
+    private final LongAdder duplicatedFrames = new LongAdder();
+
+    /**
+     * Bytes escritos por FFmpeg, acumulados entre reinicios.
+     */
+    private final LongAdder outputBytes = new LongAdder();
+
+    /**
+     * Último fps informado por FFmpeg, en centésimas.
+     */
+    private final AtomicLong fpsHundredths = new AtomicLong();
+
+    /**
+     * Último bitrate informado por FFmpeg, en bits por segundo.
+     */
+    private final AtomicLong bitrateBitsPerSecond = new AtomicLong();
+
+    /**
+     * Última velocidad informada por FFmpeg, en milésimas (1000 = tiempo real).
+     */
+    private final AtomicLong speedThousandths = new AtomicLong();
+
+    /**
+     * Instante (epoch millis) del último bloque de progreso recibido.
+     */
+    private final AtomicLong lastProgressEpochMillis = new AtomicLong();
+
+    /**
+     * Segmentos cerrados por FFmpeg.
+     */
+    private final LongAdder segments = new LongAdder();
+
+    /**
+     * Instante (epoch millis) en el que se cerró el último segmento, o 0 si no se ha cerrado ninguno.
+     */
+    private final AtomicLong lastSegmentEpochMillis = new AtomicLong();
+
+    /**
+     * Disparos recibidos en modo event.
+     */
+    private final LongAdder events = new LongAdder();
+
+    /**
+     * Veces que se ha empezado a grabar por actividad en modo activity.
+     */
+    private final LongAdder activityStarts = new LongAdder();
+
+    /**
+     * En modo activity, si se está grabando por actividad (o porque no se puede analizar el stream secundario).
+     */
+    private volatile boolean activity;
+
+    /**
+     * En modo activity, la última puntuación de cambio de escena recibida, en millonésimas.
+     */
+    private final AtomicLong sceneScoreMillionths = new AtomicLong();
+
+    /**
+     * Bytes que ocupan en disco las grabaciones de la cámara.
+     */
+    private final AtomicLong diskBytes = new AtomicLong();
+
+    /**
+     * Si el proceso FFmpeg actual copia el video en lugar de transcodificarlo.
+     */
+    private volatile boolean videoCopy;
+
+    /**
+     * Escalones que se ha bajado la calidad de la cámara para quitar carga a la máquina.
+     */
+    private volatile int shedLevel;
+
+    /**
+     * Núcleos que usan los procesos FFmpeg de la cámara en la última muestra, en milésimas, o -1 si no se sabe.
+     */
+    private volatile long processCpuMillicores = -1;
+
+    /**
+     * Memoria residente de los procesos FFmpeg de la cámara en la última muestra, o -1 si no se sabe.
+     */
+    private volatile long processRssBytes = -1;
+
+    /**
+     * Veces que el watchdog ha encontrado la grabación atascada.
+     */
+    private final LongAdder stalls = new LongAdder();
+
+    /**
+     * Veces que la grabación ha vuelto a avanzar tras un atasco.
+     */
+    private final LongAdder stallRecoveries = new LongAdder();
+
+    /**
+     * Suma del tiempo desde que la grabación dejó de avanzar hasta que volvió a hacerlo.
+     */
+    private final LongAdder stallRecoveryTotalNanos = new LongAdder();
+
+    /**
+     * Lo que tardó en volver a avanzar la última grabación atascada.
+     */
+    private final AtomicLong lastStallRecoveryNanos = new AtomicLong();
+
+    /**
+     * @param cameraName el nombre de la cámara.
+     */
+    public CameraMetrics(String cameraName) {
+        this.cameraName = cameraName;
+    }
+
+    /**
+     * Registra que FFmpeg ha vuelto a grabar tras un reinicio.
+     *
+     * @param latencyNanos tiempo desde que terminó el proceso anterior.
+     */
+    public void recordRestart(long latencyNanos) {
+        restarts.increment();
+        restartLatencyTotalNanos.add(latencyNanos);
+        lastRestartLatencyNanos.set(latencyNanos);
+        maxRestartLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+    }
+
+    /**
+     * Registra que no se ha podido lanzar FFmpeg.
+     */
+    public void recordSpawnFailure() {
+        spawnFailures.increment();
+    }
+
+    /**
+     * Registra que el watchdog ha encontrado la grabación atascada y la va a reiniciar.
+     */
+    public void recordStall() {
+        stalls.increment();
+    }
+
+    /**
+     * Registra que la grabación ha vuelto a avanzar tras un atasco.
+     *
+     * @param nanos tiempo desde que dejó de avanzar.
+     */
+    public void recordStallRecovery(long nanos) {
+        stallRecoveries.increment();
+        stallRecoveryTotalNanos.add(nanos);
+        lastStallRecoveryNanos.set(nanos);
+    }
+
+    /**
+     * Registra que se ha abierto el circuit breaker.
+     */
+    public void recordCircuitOpen() {
+        circuitOpens.increment();
+    }
+
+    /**
+     * Registra el arranque o la parada del proceso FFmpeg.
+     *
+     * @param epochMillis instante de arranque, o 0 si el proceso ha terminado.
+     */
+    public void setProcessStart(long epochMillis) {
+        processStartEpochMillis.set(epochMillis);
+    }
+
+    /**
+     * Suma los incrementos de los contadores de progreso de FFmpeg.
+     *
+     * @param frames      fotogramas nuevos.
+     * @param dropped     fotogramas descartados nuevos.
+     * @param duplicated  fotogramas duplicados nuevos.
+     * @param bytes       bytes escritos nuevos.
+     */
+    public void addProgress(long frames, long dropped, long duplicated, long bytes) {
+        this.frames.add(frames);
+        this.droppedFrames.add(dropped);
+        this.duplicatedFrames.add(duplicated);
+        this.outputBytes.add(bytes);
+    }
+
+    /**
+     * Actualiza las medidas instantáneas del último bloque de progreso de FFmpeg.
+     *
+     * @param fpsHundredths        fps en centésimas.
+     * @param bitrateBitsPerSecond bitrate en bits por segundo.
+     * @param speedThousandths     velocidad en milésimas.
+     * @param epochMillis          instante en el que se recibió el bloque.
+     */
+    public void setProgressRates(long fpsHundredths, long bitrateBitsPerSecond, long speedThousandths, long epochMillis) {
+        this.fpsHundredths.set(fpsHundredths);
+        this.bitrateBitsPerSecond.set(bitrateBitsPerSecond);
+        this.speedThousandths.set(speedThousandths);
+        this.lastProgressEpochMillis.set(epochMillis);
+    }
+
+    /**
+     * Registra que FFmpeg ha cerrado un segmento.
+     *
+     * @param bytes       tamaño del segmento.
+     * @param epochMillis instante del cierre.
+     */
+    public void recordSegment(long bytes, long epochMillis) {
+        segments.increment();
+        diskBytes.addAndGet(bytes);
+        lastSegmentEpochMillis.set(epochMillis);
+    }
+
+    /**
+     * Registra un disparo de grabación en modo event.
+     */
+    public void recordEvent() {
+        events.increment();
+    }
+
+    /**
+     * Registra el comienzo de una grabación por actividad.
+     */
+    public void recordActivityStart() {
+        activityStarts.increment();
+    }
+
+    /**
+     * @param activity si se está grabando por actividad.
+     */
+    public void setActivity(boolean activity) {
+        this.activity = activity;
+    }
+
+    /**
+     * @param millionths la última puntuación de cambio de escena, en millonésimas.
+     */
+    public void setSceneScore(long millionths) {
+        sceneScoreMillionths.set(millionths);
+    }
+
+    /**
+     * Suma (o resta, si es negativo) bytes a lo que ocupan las grabaciones en disco.
+     *
+     * @param delta los bytes.
+     */
+    public void addDiskBytes(long delta) {
+        diskBytes.addAndGet(delta);
+    }
+
+    /**
+     * @param videoCopy si el proceso FFmpeg actual copia el video en lugar de transcodificarlo.
+     */
+    public void setVideoCopy(boolean videoCopy) {
+        this.videoCopy = videoCopy;
+    }
+
+    public boolean isVideoCopy() {
+        return videoCopy;
+    }
+
+    /**
+     * @param shedLevel escalones que se ha bajado la calidad de la cámara para quitar carga a la máquina.
+     */
+    public void setShedLevel(int shedLevel) {
+        this.shedLevel = shedLevel;
+    }
+
+    public int getShedLevel() {
+        return shedLevel;
+    }
+
+    /**
+     * Guarda la última muestra de CPU y memoria de los procesos de la cámara.
+     *
+     * @param cpuMillicores núcleos en uso, en milésimas, o -1 si no se sabe.
+     * @param rssBytes      memoria residente, o -1 si no se sabe.
+     */
+    public void setProcessUsage(long cpuMillicores, long rssBytes) {
+        this.processCpuMillicores = cpuMillicores;
+        this.processRssBytes = rssBytes;
+    }
+
+    public long getProcessCpuMillicores() {
+        return processCpuMillicores;
+    }
+
+    public long getProcessRssBytes() {
+        return processRssBytes;
+    }
+
+    public String getCameraName() {
+        return cameraName;
+    }
+
+    public long getRestarts() {
+        return restarts.sum();
+    }
+
+    public long getSpawnFailures() {
+        return spawnFailures.sum();
+    }
+
+    public long getCircuitOpens() {
+        return circuitOpens.sum();
+    }
+
+    public long getRestartLatencyTotalNanos() {
+        return restartLatencyTotalNanos.sum();
+    }
+
+    public long getLastRestartLatencyNanos() {
+        return lastRestartLatencyNanos.get();
+    }
+
+    public long getMaxRestartLatencyNanos() {
+        return maxRestartLatencyNanos.get();
+    }
+
+    public long getProcessStartEpochMillis() {
+        return processStartEpochMillis.get();
+    }
+
+    public long getFrames() {
+        return frames.sum();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    public long getDuplicatedFrames() {
+        return duplicatedFrames.sum();
+    }
+
+    public long getOutputBytes() {
+        return outputBytes.sum();
+    }
+
+    public long getFpsHundredths() {
+        return fpsHundredths.get();
+    }
+
+    public long getBitrateBitsPerSecond() {
+        return bitrateBitsPerSecond.get();
+    }
+
+    public long getSpeedThousandths() {
+        return speedThousandths.get();
+    }
+
+    public long getLastProgressEpochMillis() {
+        return lastProgressEpochMillis.get();
+    }
+
+    public long getSegments() {
+        return segments.sum();
+    }
+
+    public long getLastSegmentEpochMillis() {
+        return lastSegmentEpochMillis.get();
+    }
+
+    public long getDiskBytes() {
+        return diskBytes.get();
+    }
+
+    public long getStalls() {
+        return stalls.sum();
+    }
+
+    public long getStallRecoveries() {
+        return stallRecoveries.sum();
+    }
+
+    public long getStallRecoveryTotalNanos() {
+        return stallRecoveryTotalNanos.sum();
+    }
+
+    public long getLastStallRecoveryNanos() {
+        return lastStallRecoveryNanos.get();
+    }
+
+    public long getEvents() {
+        return events.sum();
+    }
+
+    public long getActivityStarts() {
+        return activityStarts.sum();
+    }
+
+    public boolean isActivity() {
+        return activity;
+    }
+
+    public long getSceneScoreMillionths() {
+        return sceneScoreMillionths.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CameraMetrics{" +
+                "camera=" + cameraName +
+                ", restarts=" + getRestarts() +
+                ", spawnFailures=" + getSpawnFailures() +
+                ", circuitOpens=" + getCircuitOpens() +
+                ", lastRestartLatencyMs=" + getLastRestartLatencyNanos() / 1_000_000 +
+                ", maxRestartLatencyMs=" + getMaxRestartLatencyNanos() / 1_000_000 +
+                ", frames=" + getFrames() +
+                ", fps=" + getFpsHundredths() / 100.0 +
+                ", bitrate=" + getBitrateBitsPerSecond() +
+                ", speed=" + getSpeedThousandths() / 1000.0 +
+                ", dropped=" + getDroppedFrames() +
+                ", duplicated=" + getDuplicatedFrames() +
+                ", segments=" + getSegments() +
+                ", stalls=" + getStalls() +
+                ", diskBytes=" + getDiskBytes() +
+                ", events=" + getEvents() +
+                ", activityStarts=" + getActivityStarts() +
+                '}';
+    }
+}
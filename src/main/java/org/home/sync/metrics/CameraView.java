@@ -0,0 +1,131 @@
+package org.home.sync.metrics;
+
+import org.home.sync.recording.Recorder;
+
+/**
+ * Implementación de {@link CameraMXBean} sobre un {@link Recorder}. No guarda nada: cada lectura consulta los
+ * contadores atómicos de la cámara.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class CameraView implements CameraMXBean {
+
+    private final Recorder recorder;
+    private final CameraMetrics metrics;
+
+    /**
+     * @param recorder el grabador de la cámara.
+     */
+    public CameraView(Recorder recorder) {
+        this.recorder = recorder;
+        this.metrics = recorder.getMetrics();
+    }
+
+    @Override
+    public String getState() {
+        return recorder.getState().name();
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        long start = metrics.getProcessStartEpochMillis();
+        return start == 0 ? 0 : (System.currentTimeMillis() - start) / 1000;
+    }
+
+    @Override
+    public long getRestarts() {
+        return metrics.getRestarts();
+    }
+
+    @Override
+    public long getLastRestartLatencyMillis() {
+        return metrics.getLastRestartLatencyNanos() / 1_000_000;
+    }
+
+    @Override
+    public long getCircuitOpens() {
+        return metrics.getCircuitOpens();
+    }
+
+    @Override
+    public long getStalls() {
+        return metrics.getStalls();
+    }
+
+    @Override
+    public int getShedLevel() {
+        return metrics.getShedLevel();
+    }
+
+    @Override
+    public long getMeanStallRecoveryMillis() {
+        long recoveries = metrics.getStallRecoveries();
+        return recoveries == 0 ? 0 : metrics.getStallRecoveryTotalNanos() / recoveries / 1_000_000;
+    }
+
+    @Override
+    public long getBitrateBitsPerSecond() {
+        return metrics.getBitrateBitsPerSecond();
+    }
+
+    @Override
+    public double getFps() {
+        return metrics.getFpsHundredths() / 100.0;
+    }
+
+    @Override
+    public double getSpeed() {
+        return metrics.getSpeedThousandths() / 1000.0;
+    }
+
+    @Override
+    public long getFrames() {
+        return metrics.getFrames();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return metrics.getDroppedFrames();
+    }
+
+    @Override
+    public long getDuplicatedFrames() {
+        return metrics.getDuplicatedFrames();
+    }
+
+    @Override
+    public long getSegments() {
+        return metrics.getSegments();
+    }
+
+    @Override
+    public long getDiskBytes() {
+        return metrics.getDiskBytes();
+    }
+
+    @Override
+    public long getEvents() {
+        return metrics.getEvents();
+    }
+
+    @Override
+    public long getActivityStarts() {
+        return metrics.getActivityStarts();
+    }
+
+    @Override
+    public boolean isActivity() {
+        return metrics.isActivity();
+    }
+
+    @Override
+    public double getSceneScore() {
+        return metrics.getSceneScoreMillionths() / 1_000_000.0;
+    }
+
+    @Override
+    public long getSecondsSinceLastSegment() {
+        long last = metrics.getLastSegmentEpochMillis();
+        return last == 0 ? -1 : (System.currentTimeMillis() - last) / 1000;
+    }
+}
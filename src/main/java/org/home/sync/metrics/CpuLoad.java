@@ -0,0 +1,34 @@
+package org.home.sync.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * Lee el uso de CPU de la máquina, para que lo que no es la grabación (bajar calidad, reempaquetar) sepa si hay
+ * margen.
+ * <p>
+ * Usa {@code getSystemCpuLoad()} de {@code com.sun.management.OperatingSystemMXBean}, que existe desde Java 7:
+ * {@code getCpuLoad()}, que lo sustituye, no está hasta Java 14.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public final class CpuLoad {
+
+    private static final OperatingSystemMXBean OS = ManagementFactory.getOperatingSystemMXBean();
+
+    private CpuLoad() {
+    }
+
+    /**
+     * @return el uso reciente de CPU de la máquina (0 a 1), o -1 si la JVM no lo informa.
+     */
+    @SuppressWarnings("deprecation")
+    public static double system() {
+        if (OS instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) OS).getSystemCpuLoad();
+            return load < 0 || Double.isNaN(load) ? -1 : load;
+        }
+        return -1;
+    }
+}
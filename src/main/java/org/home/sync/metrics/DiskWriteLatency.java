@@ -0,0 +1,62 @@
+package org.home.sync.metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Mide la latencia media de escritura de los discos de la máquina a partir de {@code /proc/diskstats} (Linux).
+ * <p>
+ * Cada muestra compara con la anterior el tiempo que han pasado los discos escribiendo y las escrituras completadas:
+ * el cociente es lo que ha tardado de media cada escritura en el intervalo, cola incluida. Sólo se cuentan los
+ * discos enteros (los que están en {@code /sys/block}), no sus particiones, y se descartan los loop y ram.
+ * </p>
+ * <p>
+ * No es thread-safe: lo usa una única tarea periódica.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public final class DiskWriteLatency {
+
+    private static final Path DISK_STATS = Path.of("/proc/diskstats");
+    private static final Path BLOCK_DEVICES = Path.of("/sys/block");
+
+    private long lastWrites = -1;
+    private long lastWriteMillis;
+
+    /**
+     * Toma una muestra.
+     *
+     * @return milisegundos de media por escritura desde la muestra anterior, 0 si no ha habido escrituras, o -1 si es
+     * la primera muestra o el sistema no lo informa.
+     */
+    public double sample() {
+        long writes = 0;
+        long writeMillis = 0;
+        try {
+            List<String> lines = Files.readAllLines(DISK_STATS);
+            for (String line : lines) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 11 || fields[2].startsWith("loop") || fields[2].startsWith("ram")
+                        || !Files.exists(BLOCK_DEVICES.resolve(fields[2]))) {
+                    continue;
+                }
+                writes += Long.parseLong(fields[7]);
+                writeMillis += Long.parseLong(fields[10]);
+            }
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+        long previousWrites = lastWrites;
+        long previousMillis = lastWriteMillis;
+        lastWrites = writes;
+        lastWriteMillis = writeMillis;
+        if (previousWrites < 0 || writes < previousWrites || writeMillis < previousMillis) {
+            return -1;
+        }
+        long completed = writes - previousWrites;
+        return completed == 0 ? 0 : (writeMillis - previousMillis) / (double) completed;
+    }
+}
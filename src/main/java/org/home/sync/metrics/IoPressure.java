@@ -0,0 +1,38 @@
+package org.home.sync.metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Lee la presión de E/S del sistema ({@code /proc/pressure/io}, Linux 4.20+), para que las tareas que no son la
+ * grabación (borrados, exportaciones) cedan el disco cuando está ocupado.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public final class IoPressure {
+
+    /**
+     * Fichero del kernel con la presión de E/S.
+     */
+    private static final Path IO_PRESSURE = Path.of("/proc/pressure/io");
+
+    private IoPressure() {
+    }
+
+    /**
+     * @return el porcentaje de tiempo de los últimos 10 s con alguna tarea esperando E/S, o 0 si el sistema no lo
+     * informa.
+     */
+    public static double avg10() {
+        try {
+            // "some avg10=1.23 avg60=0.50 avg300=0.10 total=123456"
+            String line = Files.readAllLines(IO_PRESSURE).get(0);
+            int start = line.indexOf("avg10=") + "avg10=".length();
+            int end = line.indexOf(' ', start);
+            return Double.parseDouble(line.substring(start, end < 0 ? line.length() : end));
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.home.sync.metrics;
+
+import org.home.sync.manager.CameraLifecycleListener;
+import org.home.sync.manager.CameraSupervisor;
+import org.home.sync.recording.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Publica en JMX un {@link RecorderMXBean} para el conjunto de la grabación y un {@link CameraMXBean} por cada cámara
+ * que vigila el {@link CameraSupervisor}. Las MBeans de cámara se dan de alta y de baja a la vez que las cámaras.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class JmxExporter implements CameraLifecycleListener, AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(JmxExporter.class);
+
+    /**
+     * Dominio de los nombres JMX.
+     */
+    public static final String DOMAIN = "org.home.sync";
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    private final ObjectName recorderName;
+
+    /**
+     * Registra la MBean general y se suscribe a las altas y bajas de cámaras.
+     *
+     * @param supervisor el supervisor de las cámaras.
+     */
+    public JmxExporter(CameraSupervisor supervisor) {
+        this.recorderName = objectName("type=Recorder");
+        register(new RecorderView(supervisor), recorderName);
+        supervisor.addListener(this);
+    }
+
+    @Override
+    public void onCameraStarted(Recorder recorder) {
+        ObjectName name = cameraName(recorder);
+        unregister(name);
+        register(new CameraView(recorder), name);
+    }
+
+    @Override
+    public void onCameraStopped(Recorder recorder) {
+        unregister(cameraName(recorder));
+    }
+
+    @Override
+    public void close() {
+        unregister(recorderName);
+    }
+
+    private ObjectName cameraName(Recorder recorder) {
+        return objectName("type=Camera,name=" + ObjectName.quote(recorder.getCameraConfig().getName()));
+    }
+
+    private void register(Object bean, ObjectName name) {
+        try {
+            server.registerMBean(bean, name);
+        } catch (JMException e) {
+            logger.warn("No se puede registrar la MBean " + name, e);
+        }
+    }
+
+    private void unregister(ObjectName name) {
+        try {
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.warn("No se puede dar de baja la MBean " + name, e);
+        }
+    }
+
+    private static ObjectName objectName(String properties) {
+        try {
+            return new ObjectName(DOMAIN + ":" + properties);
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Nombre JMX no válido: " + properties, e);
+        }
+    }
+}
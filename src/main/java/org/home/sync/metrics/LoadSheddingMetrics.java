@@ -0,0 +1,100 @@
+package org.home.sync.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores del recorte de carga: lo que mide de la máquina y las decisiones que toma.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class LoadSheddingMetrics {
+
+    /**
+     * Veces que se ha bajado la calidad de una cámara.
+     */
+    private final LongAdder downgrades = new LongAdder();
+
+    /**
+     * Veces que se ha vuelto a subir la calidad de una cámara.
+     */
+    private final LongAdder upgrades = new LongAdder();
+
+    /**
+     * Uso de CPU de la máquina en la última muestra, en milésimas, o -1 si no se sabe.
+     */
+    private final AtomicLong cpuLoadPermille = new AtomicLong(-1);
+
+    /**
+     * Latencia media de escritura de los discos en la última muestra, en microsegundos, o -1 si no se sabe.
+     */
+    private final AtomicLong writeLatencyMicros = new AtomicLong(-1);
+
+    /**
+     * Cámaras cuyo FFmpeg va más lento que el tiempo real en la última muestra.
+     */
+    private final AtomicLong laggingCameras = new AtomicLong();
+
+    /**
+     * Cámaras con la calidad rebajada.
+     */
+    private final AtomicLong shedCameras = new AtomicLong();
+
+    /**
+     * Si en la última muestra la máquina estaba sobrecargada.
+     */
+    private volatile boolean overloaded;
+
+    public void recordDowngrade() {
+        downgrades.increment();
+    }
+
+    public void recordUpgrade() {
+        upgrades.increment();
+    }
+
+    /**
+     * Guarda la última muestra de la máquina.
+     *
+     * @param cpuLoad        uso de CPU (0 a 1), o negativo si no se sabe.
+     * @param writeLatencyMs latencia media de escritura en milisegundos, o negativa si no se sabe.
+     * @param lagging        cámaras más lentas que el tiempo real.
+     * @param shed           cámaras con la calidad rebajada.
+     * @param overloaded     si la máquina está sobrecargada.
+     */
+    public void setSample(double cpuLoad, double writeLatencyMs, int lagging, int shed, boolean overloaded) {
+        cpuLoadPermille.set(cpuLoad < 0 ? -1 : Math.round(cpuLoad * 1000));
+        writeLatencyMicros.set(writeLatencyMs < 0 ? -1 : Math.round(writeLatencyMs * 1000));
+        laggingCameras.set(lagging);
+        shedCameras.set(shed);
+        this.overloaded = overloaded;
+    }
+
+    public long getDowngrades() {
+        return downgrades.sum();
+    }
+
+    public long getUpgrades() {
+        return upgrades.sum();
+    }
+
+    public long getCpuLoadPermille() {
+        return cpuLoadPermille.get();
+    }
+
+    public long getWriteLatencyMicros() {
+        return writeLatencyMicros.get();
+    }
+
+    public long getLaggingCameras() {
+        return laggingCameras.get();
+    }
+
+    public long getShedCameras() {
+        return shedCameras.get();
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+}
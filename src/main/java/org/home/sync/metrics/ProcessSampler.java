@@ -0,0 +1,110 @@
+package org.home.sync.metrics;
+
+import org.home.sync.recording.Recorder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Mide periódicamente la CPU y la memoria (RSS) de los procesos FFmpeg de cada cámara y las deja en su
+ * {@link CameraMetrics}.
+ * <p>
+ * La CPU es la consumida entre dos muestras dividida entre el tiempo transcurrido, es decir, núcleos en uso ahora, y
+ * no la media desde que arrancó el proceso como en el {@link TranscodeReport}. La RSS se lee de
+ * {@code /proc/<pid>/status}; fuera de Linux no se informa.
+ * </p>
+ * <p>
+ * Lo ejecuta el planificador compartido del supervisor; nunca hay dos muestras a la vez.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ProcessSampler implements Runnable {
+
+    /**
+     * Cada cuántos segundos se toma una muestra.
+     */
+    public static final long PERIOD_SECONDS = 10;
+
+    /**
+     * Muestra anterior de un grabador.
+     */
+    private static final class Sample {
+
+        long cpuMillis;
+        long nanos;
+
+        Sample(long cpuMillis, long nanos) {
+            this.cpuMillis = cpuMillis;
+            this.nanos = nanos;
+        }
+    }
+
+    private final Collection<Recorder> recorders;
+    private Map<Recorder, Sample> samples = new IdentityHashMap<>();
+
+    /**
+     * @param recorders los grabadores vigilados (una vista que se mantiene al día).
+     */
+    public ProcessSampler(Collection<Recorder> recorders) {
+        this.recorders = recorders;
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        // las cámaras que se han dejado de vigilar no pasan a la siguiente
+        Map<Recorder, Sample> next = new IdentityHashMap<>(samples.size() * 2);
+        for (Recorder recorder : recorders) {
+            CameraMetrics metrics = recorder.getMetrics();
+            long cpu = recorder.getProcessCpuMillis();
+            if (cpu < 0) {
+                metrics.setProcessUsage(-1, -1);
+                continue;
+            }
+            long cpuMillicores = -1;
+            Sample previous = samples.get(recorder);
+            if (previous == null) {
+                previous = new Sample(cpu, now);
+            } else {
+                // si ha bajado es que hay un proceso nuevo: se empieza a contar de nuevo
+                if (cpu >= previous.cpuMillis && now > previous.nanos) {
+                    cpuMillicores = (cpu - previous.cpuMillis) * 1_000_000_000L / (now - previous.nanos);
+                }
+                previous.cpuMillis = cpu;
+                previous.nanos = now;
+            }
+            next.put(recorder, previous);
+            metrics.setProcessUsage(cpuMillicores, recorder.getProcessRssBytes());
+        }
+        samples = next;
+    }
+
+    /**
+     * Lee la memoria residente de un proceso de {@code /proc/<pid>/status}.
+     *
+     * @param process el proceso, o {@code null}.
+     * @return bytes de memoria residente, o -1 si no hay proceso o el sistema no lo informa.
+     */
+    public static long rssBytes(Process process) {
+        if (process == null || !process.isAlive()) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(process.pid()), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    String value = line.substring("VmRSS:".length()).trim();
+                    int space = value.indexOf(' ');
+                    return Long.parseLong(space < 0 ? value : value.substring(0, space)) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException | UnsupportedOperationException e) {
+            // no es Linux, o el proceso acaba de terminar
+        }
+        return -1;
+    }
+}
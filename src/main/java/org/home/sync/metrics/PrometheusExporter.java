@@ -0,0 +1,414 @@
+package org.home.sync.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.home.sync.hls.HlsServer;
+import org.home.sync.manager.CameraSupervisor;
+import org.home.sync.recording.CameraState;
+import org.home.sync.recording.Recorder;
+import org.home.sync.recording.SegmentStaging;
+import org.home.sync.recording.TranscodeAdmission;
+import org.home.sync.relay.RelayPath;
+import org.home.sync.relay.RelayServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.ToLongFunction;
+
+/**
+ * Expone las métricas de la grabación en formato de texto de Prometheus en {@code http://<host>:<puerto>/metrics},
+ * usando el {@link HttpServer} de la JDK y un único hilo.
+ * <p>
+ * Cada petición lee los contadores atómicos de las cámaras en ese momento; no hay ningún bloqueo compartido con la
+ * grabación, así que se puede consultar cada pocos segundos aunque haya cientos de cámaras.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class PrometheusExporter implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(PrometheusExporter.class);
+
+    /**
+     * Puerto por defecto. Se puede cambiar con la propiedad de sistema {@code metrics.port} (0 o negativo lo desactiva).
+     */
+    public static final int DEFAULT_PORT = 9400;
+
+    /**
+     * Prefijo de todas las métricas.
+     */
+    private static final String PREFIX = "rtsp_recorder_";
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final CameraSupervisor supervisor;
+    private final RetentionMetrics retention;
+    private final StartupMetrics startup;
+    private final HlsServer hls;
+    private final LoadSheddingMetrics shedding;
+    private final ShardMetrics shard;
+    private final RemuxMetrics remux;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Arranca el servidor HTTP.
+     *
+     * @param supervisor el supervisor de las cámaras.
+     * @param retention  los contadores de la retención de grabaciones, o {@code null} si no hay.
+     * @param startup    los contadores del arranque escalonado, o {@code null} si no hay.
+     * @param hls        el servidor HLS, o {@code null} si no hay.
+     * @param shedding   los contadores del recorte de carga, o {@code null} si no hay.
+     * @param shard      los contadores del reparto entre instancias, o {@code null} si no se reparte.
+     * @param remux      los contadores del reempaquetado a MP4, o {@code null} si no se reempaqueta.
+     * @param port       el puerto donde escuchar.
+     * @throws IOException si no se puede abrir el puerto.
+     */
+    public PrometheusExporter(CameraSupervisor supervisor, RetentionMetrics retention, StartupMetrics startup,
+                              HlsServer hls, LoadSheddingMetrics shedding, ShardMetrics shard, RemuxMetrics remux,
+                              int port) throws IOException {
+        this.supervisor = supervisor;
+        this.retention = retention;
+        this.startup = startup;
+        this.hls = hls;
+        this.shedding = shedding;
+        this.shard = shard;
+        this.remux = remux;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/metrics", this::handle);
+        server.start();
+        logger.info("Métricas Prometheus en http://0.0.0.0:" + port + "/metrics");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return el texto con todas las métricas.
+     */
+    public String scrape() {
+        List<Recorder> recorders = new ArrayList<>(supervisor.getRecorders());
+        StringBuilder out = new StringBuilder(256 + recorders.size() * 1024);
+        long now = System.currentTimeMillis();
+
+        header(out, "camera_state", "gauge", "1 para el estado actual de la cámara");
+        for (Recorder recorder : recorders) {
+            CameraState current = recorder.getState();
+            for (CameraState state : CameraState.values()) {
+                out.append(PREFIX).append("camera_state{camera=\"").append(escape(name(recorder)))
+                        .append("\",state=\"").append(state.name()).append("\"} ")
+                        .append(state == current ? 1 : 0).append('\n');
+            }
+        }
+
+        perCamera(out, recorders, "camera_uptime_seconds", "gauge", "Segundos que lleva vivo el FFmpeg actual",
+                m -> m.getProcessStartEpochMillis() == 0 ? 0 : (now - m.getProcessStartEpochMillis()) / 1000);
+        perCamera(out, recorders, "camera_restarts_total", "counter", "Reinicios de FFmpeg",
+                CameraMetrics::getRestarts);
+        perCamera(out, recorders, "camera_spawn_failures_total", "counter", "Fallos al lanzar FFmpeg",
+                CameraMetrics::getSpawnFailures);
+        perCamera(out, recorders, "camera_circuit_opens_total", "counter", "Veces que se ha aparcado la cámara",
+                CameraMetrics::getCircuitOpens);
+        perCamera(out, recorders, "camera_last_restart_latency_milliseconds", "gauge",
+                "Tiempo desde la salida de FFmpeg hasta que vuelve a grabar",
+                m -> m.getLastRestartLatencyNanos() / 1_000_000);
+        perCamera(out, recorders, "camera_stalls_total", "counter",
+                "Veces que el watchdog ha reiniciado una grabación atascada", CameraMetrics::getStalls);
+        perCamera(out, recorders, "camera_stall_recoveries_total", "counter",
+                "Veces que la grabación ha vuelto a avanzar tras un atasco", CameraMetrics::getStallRecoveries);
+        perCamera(out, recorders, "camera_stall_recovery_milliseconds_total", "counter",
+                "Tiempo total desde que la grabación se atasca hasta que vuelve a avanzar",
+                m -> m.getStallRecoveryTotalNanos() / 1_000_000);
+        perCamera(out, recorders, "camera_last_stall_recovery_milliseconds", "gauge",
+                "Tiempo desde que la grabación se atascó hasta que volvió a avanzar, la última vez",
+                m -> m.getLastStallRecoveryNanos() / 1_000_000);
+        perCamera(out, recorders, "camera_bitrate_bits_per_second", "gauge", "Bitrate informado por FFmpeg",
+                CameraMetrics::getBitrateBitsPerSecond);
+        perCameraDecimal(out, recorders, "camera_fps", "Fotogramas por segundo informados por FFmpeg",
+                CameraMetrics::getFpsHundredths, 100);
+        perCameraDecimal(out, recorders, "camera_speed", "Velocidad de FFmpeg respecto al tiempo real",
+                CameraMetrics::getSpeedThousandths, 1000);
+        perCameraDecimal(out, recorders, "camera_scene_score",
+                "Última puntuación de cambio de escena del stream secundario en modo activity",
+                CameraMetrics::getSceneScoreMillionths, 1_000_000);
+        perCamera(out, recorders, "camera_frames_total", "counter", "Fotogramas procesados",
+                CameraMetrics::getFrames);
+        perCamera(out, recorders, "camera_dropped_frames_total", "counter", "Fotogramas descartados",
+                CameraMetrics::getDroppedFrames);
+        perCamera(out, recorders, "camera_duplicated_frames_total", "counter", "Fotogramas duplicados",
+                CameraMetrics::getDuplicatedFrames);
+        perCamera(out, recorders, "camera_written_bytes_total", "counter", "Bytes escritos por FFmpeg",
+                CameraMetrics::getOutputBytes);
+        perCamera(out, recorders, "camera_segments_total", "counter", "Segmentos cerrados",
+                CameraMetrics::getSegments);
+        perCamera(out, recorders, "camera_disk_bytes", "gauge", "Bytes que ocupan las grabaciones en disco",
+                CameraMetrics::getDiskBytes);
+        perCamera(out, recorders, "camera_events_total", "counter", "Disparos de grabación en modo event",
+                CameraMetrics::getEvents);
+        perCamera(out, recorders, "camera_activity_starts_total", "counter",
+                "Grabaciones empezadas por actividad en modo activity", CameraMetrics::getActivityStarts);
+        perCamera(out, recorders, "camera_seconds_since_last_segment", "gauge",
+                "Segundos desde el último segmento cerrado (-1 si ninguno)",
+                m -> m.getLastSegmentEpochMillis() == 0 ? -1 : (now - m.getLastSegmentEpochMillis()) / 1000);
+
+        perCamera(out, recorders, "camera_video_copy", "gauge", "1 si el video se copia, 0 si se transcodifica",
+                m -> m.isVideoCopy() ? 1 : 0);
+        perCamera(out, recorders, "camera_activity", "gauge", "1 si se graba por actividad en modo activity",
+                m -> m.isActivity() ? 1 : 0);
+        perCamera(out, recorders, "camera_shed_level", "gauge",
+                "Escalones que se ha bajado la calidad para quitar carga (1 copia el video, 2 además stream2)",
+                CameraMetrics::getShedLevel);
+        header(out, "camera_cpu_seconds", "gauge", "Segundos de CPU consumidos por el FFmpeg actual");
+        for (Recorder recorder : recorders) {
+            long cpu = recorder.getProcessCpuMillis();
+            if (cpu >= 0) {
+                out.append(PREFIX).append("camera_cpu_seconds{camera=\"").append(escape(name(recorder)))
+                        .append("\"} ").append(cpu / 1000.0).append('\n');
+            }
+        }
+        header(out, "camera_process_cpu_cores", "gauge", "Núcleos que usan ahora los FFmpeg de la cámara");
+        for (Recorder recorder : recorders) {
+            long millicores = recorder.getMetrics().getProcessCpuMillicores();
+            if (millicores >= 0) {
+                out.append(PREFIX).append("camera_process_cpu_cores{camera=\"").append(escape(name(recorder)))
+                        .append("\"} ").append(millicores / 1000.0).append('\n');
+            }
+        }
+        header(out, "camera_process_rss_bytes", "gauge", "Memoria residente de los FFmpeg de la cámara");
+        for (Recorder recorder : recorders) {
+            long rss = recorder.getMetrics().getProcessRssBytes();
+            if (rss >= 0) {
+                out.append(PREFIX).append("camera_process_rss_bytes{camera=\"").append(escape(name(recorder)))
+                        .append("\"} ").append(rss).append('\n');
+            }
+        }
+        TranscodeReport transcode = TranscodeReport.of(recorders);
+        header(out, "estimated_cpu_cores_saved", "gauge",
+                "Núcleos ahorrados por copiar en lugar de transcodificar (-1 si no se puede estimar)");
+        out.append(PREFIX).append("estimated_cpu_cores_saved ").append(transcode.getEstimatedCoresSaved()).append('\n');
+
+        TranscodeAdmission admission = supervisor.getTranscodeAdmission();
+        gauge(out, "transcode_max_concurrent", "Plazas para transcodificar (0 sin límite)",
+                admission.getMaxConcurrent());
+        gauge(out, "transcode_running", "FFmpeg transcodificando", admission.getRunning());
+        gauge(out, "transcode_queued", "Cámaras esperando plaza para transcodificar", admission.getQueued());
+        counter(out, "transcode_copy_fallbacks_total", "Veces que se ha copiado el video por no haber plaza",
+                admission.getCopyFallbacks());
+
+        SegmentStaging staging = supervisor.getSegmentStaging();
+        if (staging.isEnabled()) {
+            StagingMetrics moved = staging.getMetrics();
+            header(out, "staging_used_ratio", "gauge", "Uso del directorio rápido (0 a 1, -1 si no se sabe)");
+            out.append(PREFIX).append("staging_used_ratio ")
+                    .append(moved.getUsedPermille() < 0 ? -1 : moved.getUsedPermille() / 1000.0).append('\n');
+            gauge(out, "staging_pressure", "1 si el directorio rápido está por encima de su marca de agua",
+                    staging.isUnderPressure() ? 1 : 0);
+            gauge(out, "staging_queued_segments", "Segmentos cerrados esperando a llevarse al archivo",
+                    moved.getQueuedSegments());
+            gauge(out, "staging_queued_bytes", "Bytes de los segmentos esperando a llevarse al archivo",
+                    moved.getQueuedBytes());
+            counter(out, "staging_moved_segments_total", "Segmentos llevados al archivo", moved.getMovedSegments());
+            counter(out, "staging_moved_bytes_total", "Bytes llevados al archivo", moved.getMovedBytes());
+            counter(out, "staging_batches_total", "Tandas llevadas al archivo", moved.getBatches());
+            counter(out, "staging_failed_moves_total", "Segmentos que no se han podido llevar al archivo",
+                    moved.getFailedMoves());
+            gauge(out, "staging_last_batch_segments", "Segmentos de la última tanda", moved.getLastBatchSegments());
+            gauge(out, "staging_last_batch_bytes_per_second", "Bytes por segundo de la última tanda, fsync incluido",
+                    moved.getLastBatchBytesPerSecond());
+        }
+
+        gauge(out, "cameras", "Cámaras vigiladas", recorders.size());
+        gauge(out, "ffmpeg_processes", "Procesos FFmpeg vivos", supervisor.getLiveProcessCount());
+        gauge(out, "scheduler_active_threads", "Hilos del planificador compartido ocupados",
+                supervisor.getSchedulerActiveThreads());
+        gauge(out, "scheduler_queued_tasks", "Tareas en el planificador compartido",
+                supervisor.getSchedulerQueuedTasks());
+        header(out, "cameras_by_state", "gauge", "Cámaras en cada estado");
+        for (Map.Entry<CameraState, Integer> entry : supervisor.getStateCounts().entrySet()) {
+            out.append(PREFIX).append("cameras_by_state{state=\"").append(entry.getKey().name()).append("\"} ")
+                    .append(entry.getValue()).append('\n');
+        }
+        if (retention != null) {
+            counter(out, "retention_evicted_files_total", "Segmentos borrados por la retención",
+                    retention.getEvictedFiles());
+            counter(out, "retention_evicted_bytes_total", "Bytes liberados por la retención",
+                    retention.getEvictedBytes());
+            counter(out, "retention_failed_deletes_total", "Segmentos que no se han podido borrar",
+                    retention.getFailedDeletes());
+            counter(out, "retention_deferred_batches_total", "Tandas de borrado aplazadas por presión de E/S",
+                    retention.getDeferredBatches());
+            gauge(out, "retention_tracked_files", "Segmentos controlados por la retención",
+                    retention.getTrackedFiles());
+            header(out, "retention_last_batch_files_per_second", "gauge",
+                    "Segmentos por segundo borrados en la última tanda");
+            out.append(PREFIX).append("retention_last_batch_files_per_second ")
+                    .append(retention.getLastBatchFilesPerSecondHundredths() / 100.0).append('\n');
+        }
+        if (shedding != null) {
+            gauge(out, "shed_overloaded", "1 si la máquina está sobrecargada", shedding.isOverloaded() ? 1 : 0);
+            header(out, "shed_cpu_load", "gauge", "Uso de CPU de la máquina (0 a 1, -1 si no se sabe)");
+            out.append(PREFIX).append("shed_cpu_load ").append(shedding.getCpuLoadPermille() < 0 ? -1
+                    : shedding.getCpuLoadPermille() / 1000.0).append('\n');
+            header(out, "shed_disk_write_latency_milliseconds", "gauge",
+                    "Latencia media de escritura de los discos (-1 si no se sabe)");
+            out.append(PREFIX).append("shed_disk_write_latency_milliseconds ").append(
+                    shedding.getWriteLatencyMicros() < 0 ? -1 : shedding.getWriteLatencyMicros() / 1000.0)
+                    .append('\n');
+            gauge(out, "shed_lagging_cameras", "Cámaras cuyo FFmpeg va más lento que el tiempo real",
+                    shedding.getLaggingCameras());
+            gauge(out, "shed_cameras", "Cámaras con la calidad rebajada", shedding.getShedCameras());
+            counter(out, "shed_downgrades_total", "Veces que se ha bajado la calidad de una cámara",
+                    shedding.getDowngrades());
+            counter(out, "shed_upgrades_total", "Veces que se ha vuelto a subir la calidad de una cámara",
+                    shedding.getUpgrades());
+        }
+        if (shard != null) {
+            gauge(out, "shard_members", "Instancias vivas entre las que se reparten las cámaras", shard.getMembers());
+            gauge(out, "shard_owned_cameras", "Cámaras de las que esta instancia tiene la concesión", shard.getOwned());
+            counter(out, "shard_acquired_total", "Concesiones de cámaras conseguidas", shard.getAcquired());
+            counter(out, "shard_released_total", "Concesiones soltadas porque la cámara le toca a otra instancia",
+                    shard.getReleased());
+            counter(out, "shard_lost_total", "Concesiones perdidas sin soltarlas", shard.getLost());
+            counter(out, "shard_lease_errors_total", "Errores al leer o escribir el directorio compartido",
+                    shard.getLeaseErrors());
+        }
+        if (remux != null) {
+            gauge(out, "remux_queued_segments", "Segmentos esperando a reempaquetarse a MP4", remux.getQueued());
+            gauge(out, "remux_paused", "1 si el reempaquetado espera a que la grabación deje libre la máquina",
+                    remux.isPaused() ? 1 : 0);
+            counter(out, "remux_segments_total", "Segmentos reempaquetados a MP4", remux.getRemuxed());
+            counter(out, "remux_failures_total", "Segmentos que no se han podido reempaquetar", remux.getFailed());
+            counter(out, "remux_source_bytes_total", "Bytes de los segmentos reempaquetados antes de hacerlo",
+                    remux.getSourceBytes());
+            counter(out, "remux_saved_bytes_total", "Bytes ahorrados en disco al reempaquetar", remux.getSavedBytes());
+            counter(out, "remux_pauses_total", "Veces que el reempaquetado ha esperado por la carga de la grabación",
+                    remux.getPauses());
+        }
+        if (startup != null) {
+            counter(out, "startup_launched_total", "Cámaras lanzadas por el arranque escalonado", startup.getLaunched());
+            counter(out, "startup_ready_timeouts_total", "Cámaras que no grababan al terminar su plazo de arranque",
+                    startup.getReadyTimeouts());
+            gauge(out, "startup_queued_cameras", "Cámaras esperando turno de arranque", startup.getQueued());
+            gauge(out, "startup_pending_cameras", "Cámaras lanzadas que todavía no graban", startup.getPending());
+            gauge(out, "startup_last_rollout_milliseconds",
+                    "Lo que tardó la última tanda de arranque en tener todas sus cámaras grabando (-1 si ninguna)",
+                    startup.getLastRolloutMillis());
+            gauge(out, "startup_last_time_to_ready_milliseconds",
+                    "Lo que tardó en grabar la última cámara que empezó a hacerlo", startup.getLastTimeToReadyMillis());
+        }
+        if (hls != null) {
+            gauge(out, "hls_connections", "Conexiones abiertas con el servidor HLS", hls.getConnections());
+            counter(out, "hls_requests_total", "Peticiones atendidas por el servidor HLS", hls.getRequests());
+            counter(out, "hls_sent_bytes_total", "Bytes de segmentos enviados por HLS", hls.getSentBytes());
+        }
+        RelayServer relay = supervisor.getRelayServer();
+        if (relay != null) {
+            gauge(out, "relay_ready", "1 si el relay RTSP integrado acepta conexiones", relay.isReady() ? 1 : 0);
+            List<RelayPath> paths = new ArrayList<>(relay.getPaths());
+            perPath(out, paths, "relay_path_ready", "gauge",
+                    "1 si la ruta tiene origen y ya ha mandado un fotograma clave", p -> p.isReady() ? 1 : 0);
+            perPath(out, paths, "relay_subscribers", "gauge", "Clientes recibiendo la ruta",
+                    RelayPath::getSubscriberCount);
+            perPath(out, paths, "relay_received_bytes_total", "counter", "Bytes recibidos del origen de la ruta",
+                    RelayPath::getPublishedBytes);
+            perPath(out, paths, "relay_evicted_subscribers_total", "counter",
+                    "Clientes desconectados por ir demasiado retrasados", RelayPath::getEvictions);
+            header(out, "relay_subscriber_lag_bytes", "gauge", "Bytes que le faltan por recibir a cada cliente");
+            for (RelayPath path : paths) {
+                for (Map.Entry<String, Long> lag : path.getSubscriberLags().entrySet()) {
+                    out.append(PREFIX).append("relay_subscriber_lag_bytes{path=\"").append(escape(path.getName()))
+                            .append("\",client=\"").append(escape(lag.getKey())).append("\"} ")
+                            .append(lag.getValue()).append('\n');
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void perCamera(StringBuilder out, List<Recorder> recorders, String metric, String type,
+                                  String help, ToLongFunction<CameraMetrics> value) {
+        header(out, metric, type, help);
+        for (Recorder recorder : recorders) {
+            out.append(PREFIX).append(metric).append("{camera=\"").append(escape(name(recorder))).append("\"} ")
+                    .append(value.applyAsLong(recorder.getMetrics())).append('\n');
+        }
+    }
+
+    private static void perCameraDecimal(StringBuilder out, List<Recorder> recorders, String metric, String help,
+                                         ToLongFunction<CameraMetrics> value, int scale) {
+        header(out, metric, "gauge", help);
+        for (Recorder recorder : recorders) {
+            out.append(PREFIX).append(metric).append("{camera=\"").append(escape(name(recorder))).append("\"} ")
+                    .append(value.applyAsLong(recorder.getMetrics()) / (double) scale).append('\n');
+        }
+    }
+
+    private static void perPath(StringBuilder out, List<RelayPath> paths, String metric, String type, String help,
+                                ToLongFunction<RelayPath> value) {
+        header(out, metric, type, help);
+        for (RelayPath path : paths) {
+            out.append(PREFIX).append(metric).append("{path=\"").append(escape(path.getName())).append("\"} ")
+                    .append(value.applyAsLong(path)).append('\n');
+        }
+    }
+
+    private static void counter(StringBuilder out, String metric, String help, long value) {
+        header(out, metric, "counter", help);
+        out.append(PREFIX).append(metric).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String metric, String help, long value) {
+        header(out, metric, "gauge", help);
+        out.append(PREFIX).append(metric).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder out, String metric, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(metric).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(metric).append(' ').append(type).append('\n');
+    }
+
+    private static String name(Recorder recorder) {
+        return recorder.getCameraConfig().getName();
+    }
+
+    /**
+     * Escapa un valor de etiqueta según el formato de texto de Prometheus.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,36 @@
+package org.home.sync.metrics;
+
+import java.util.Map;
+
+/**
+ * Vista JMX del conjunto de la grabación. Se registra como {@code org.home.sync:type=Recorder}.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public interface RecorderMXBean {
+
+    /**
+     * @return cámaras vigiladas.
+     */
+    int getCameras();
+
+    /**
+     * @return procesos FFmpeg vivos.
+     */
+    int getLiveFfmpegProcesses();
+
+    /**
+     * @return cuántas cámaras hay en cada estado.
+     */
+    Map<String, Integer> getStateCounts();
+
+    /**
+     * @return hilos del planificador compartido ejecutando una tarea.
+     */
+    int getSchedulerActiveThreads();
+
+    /**
+     * @return tareas programadas o pendientes en el planificador compartido.
+     */
+    int getSchedulerQueuedTasks();
+}
@@ -0,0 +1,50 @@
+package org.home.sync.metrics;
+
+import org.home.sync.manager.CameraSupervisor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Implementación de {@link RecorderMXBean} sobre el {@link CameraSupervisor}.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class RecorderView implements RecorderMXBean {
+
+    private final CameraSupervisor supervisor;
+
+    /**
+     * @param supervisor el supervisor de las cámaras.
+     */
+    public RecorderView(CameraSupervisor supervisor) {
+        this.supervisor = supervisor;
+    }
+
+    @Override
+    public int getCameras() {
+        return supervisor.getRecorders().size();
+    }
+
+    @Override
+    public int getLiveFfmpegProcesses() {
+        return supervisor.getLiveProcessCount();
+    }
+
+    @Override
+    public Map<String, Integer> getStateCounts() {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        supervisor.getStateCounts().forEach((state, count) -> counts.put(state.name(), count));
+        return counts;
+    }
+
+    @Override
+    public int getSchedulerActiveThreads() {
+        return supervisor.getSchedulerActiveThreads();
+    }
+
+    @Override
+    public int getSchedulerQueuedTasks() {
+        return supervisor.getSchedulerQueuedTasks();
+    }
+}
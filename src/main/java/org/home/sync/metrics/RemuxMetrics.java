@@ -0,0 +1,106 @@
+package org.home.sync.metrics;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores del reempaquetado de segmentos antiguos a MP4 fragmentado: lo que queda pendiente, lo hecho y lo que
+ * se ha ahorrado en disco.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class RemuxMetrics {
+
+    /**
+     * Segmentos esperando a reempaquetarse.
+     */
+    private final AtomicLong queued = new AtomicLong();
+
+    /**
+     * Segmentos reempaquetados.
+     */
+    private final LongAdder remuxed = new LongAdder();
+
+    /**
+     * Segmentos que no se han podido reempaquetar (se quedan como estaban).
+     */
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Bytes de los segmentos reempaquetados antes de hacerlo.
+     */
+    private final LongAdder sourceBytes = new LongAdder();
+
+    /**
+     * Bytes ahorrados: lo que ocupaban menos lo que ocupan.
+     */
+    private final LongAdder savedBytes = new LongAdder();
+
+    /**
+     * Veces que se ha esperado porque la grabación necesitaba la máquina.
+     */
+    private final LongAdder pauses = new LongAdder();
+
+    /**
+     * Si ahora mismo se está esperando.
+     */
+    private final AtomicBoolean paused = new AtomicBoolean();
+
+    public void setQueued(long segments) {
+        queued.set(segments);
+    }
+
+    /**
+     * Anota un segmento reempaquetado.
+     *
+     * @param before bytes del original.
+     * @param after  bytes del reempaquetado.
+     */
+    public void recordRemuxed(long before, long after) {
+        remuxed.increment();
+        sourceBytes.add(before);
+        savedBytes.add(before - after);
+    }
+
+    public void recordFailed() {
+        failed.increment();
+    }
+
+    /**
+     * Anota si se está esperando a que la máquina quede libre; cuenta una pausa cada vez que se empieza a esperar.
+     */
+    public void setPaused(boolean value) {
+        if (paused.getAndSet(value) != value && value) {
+            pauses.increment();
+        }
+    }
+
+    public long getQueued() {
+        return queued.get();
+    }
+
+    public long getRemuxed() {
+        return remuxed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getSourceBytes() {
+        return sourceBytes.sum();
+    }
+
+    public long getSavedBytes() {
+        return savedBytes.sum();
+    }
+
+    public long getPauses() {
+        return pauses.sum();
+    }
+
+    public boolean isPaused() {
+        return paused.get();
+    }
+}
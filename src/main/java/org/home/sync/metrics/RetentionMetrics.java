@@ -0,0 +1,93 @@
+package org.home.sync.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores de la retención de grabaciones. Los actualiza el hilo de la retención y se leen desde los exportadores.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class RetentionMetrics {
+
+    /**
+     * Segmentos borrados.
+     */
+    private final LongAdder evictedFiles = new LongAdder();
+
+    /**
+     * Bytes liberados al borrar segmentos.
+     */
+    private final LongAdder evictedBytes = new LongAdder();
+
+    /**
+     * Segmentos que no se han podido borrar.
+     */
+    private final LongAdder failedDeletes = new LongAdder();
+
+    /**
+     * Tandas de borrado aplazadas porque el disco estaba ocupado.
+     */
+    private final LongAdder deferredBatches = new LongAdder();
+
+    /**
+     * Segmentos que se tienen controlados en memoria.
+     */
+    private final AtomicLong trackedFiles = new AtomicLong();
+
+    /**
+     * Segmentos por segundo borrados en la última tanda, en centésimas.
+     */
+    private final AtomicLong lastBatchFilesPerSecondHundredths = new AtomicLong();
+
+    /**
+     * Registra una tanda de borrado.
+     *
+     * @param files       segmentos borrados.
+     * @param bytes       bytes liberados.
+     * @param elapsedNanos lo que ha durado la tanda.
+     */
+    public void recordBatch(long files, long bytes, long elapsedNanos) {
+        evictedFiles.add(files);
+        evictedBytes.add(bytes);
+        if (files > 0 && elapsedNanos > 0) {
+            lastBatchFilesPerSecondHundredths.set(files * 100_000_000_000L / elapsedNanos);
+        }
+    }
+
+    public void recordFailedDelete() {
+        failedDeletes.increment();
+    }
+
+    public void recordDeferredBatch() {
+        deferredBatches.increment();
+    }
+
+    public void setTrackedFiles(long files) {
+        trackedFiles.set(files);
+    }
+
+    public long getEvictedFiles() {
+        return evictedFiles.sum();
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes.sum();
+    }
+
+    public long getFailedDeletes() {
+        return failedDeletes.sum();
+    }
+
+    public long getDeferredBatches() {
+        return deferredBatches.sum();
+    }
+
+    public long getTrackedFiles() {
+        return trackedFiles.get();
+    }
+
+    public long getLastBatchFilesPerSecondHundredths() {
+        return lastBatchFilesPerSecondHundredths.get();
+    }
+}
@@ -0,0 +1,88 @@
+package org.home.sync.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores del reparto de cámaras entre instancias: cuántas instancias hay vivas, cuántas cámaras tiene ésta y los
+ * cambios de dueño.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ShardMetrics {
+
+    /**
+     * Instancias vivas en la última vuelta, ésta incluida.
+     */
+    private final AtomicLong members = new AtomicLong();
+
+    /**
+     * Cámaras de las que esta instancia tiene la concesión.
+     */
+    private final AtomicLong owned = new AtomicLong();
+
+    /**
+     * Concesiones conseguidas.
+     */
+    private final LongAdder acquired = new LongAdder();
+
+    /**
+     * Concesiones soltadas porque la cámara le toca a otra instancia o ya no está configurada.
+     */
+    private final LongAdder released = new LongAdder();
+
+    /**
+     * Concesiones perdidas sin soltarlas: caducadas o quitadas por otra instancia.
+     */
+    private final LongAdder lost = new LongAdder();
+
+    /**
+     * Errores al leer o escribir el directorio compartido.
+     */
+    private final LongAdder leaseErrors = new LongAdder();
+
+    public void setOwnership(int members, int owned) {
+        this.members.set(members);
+        this.owned.set(owned);
+    }
+
+    public void recordAcquired() {
+        acquired.increment();
+    }
+
+    public void recordReleased() {
+        released.increment();
+    }
+
+    public void recordLost() {
+        lost.increment();
+    }
+
+    public void recordLeaseError() {
+        leaseErrors.increment();
+    }
+
+    public long getMembers() {
+        return members.get();
+    }
+
+    public long getOwned() {
+        return owned.get();
+    }
+
+    public long getAcquired() {
+        return acquired.sum();
+    }
+
+    public long getReleased() {
+        return released.sum();
+    }
+
+    public long getLost() {
+        return lost.sum();
+    }
+
+    public long getLeaseErrors() {
+        return leaseErrors.sum();
+    }
+}
@@ -0,0 +1,122 @@
+package org.home.sync.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores del almacenamiento en dos niveles: lo que hay esperando en el directorio rápido y lo que se ha llevado
+ * al archivo.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class StagingMetrics {
+
+    /**
+     * Segmentos llevados al archivo.
+     */
+    private final LongAdder movedSegments = new LongAdder();
+
+    /**
+     * Bytes llevados al archivo.
+     */
+    private final LongAdder movedBytes = new LongAdder();
+
+    /**
+     * Tandas llevadas al archivo.
+     */
+    private final LongAdder batches = new LongAdder();
+
+    /**
+     * Segmentos que no se han podido llevar al archivo (se reintentan).
+     */
+    private final LongAdder failedMoves = new LongAdder();
+
+    /**
+     * Segmentos cerrados esperando a llevarse al archivo.
+     */
+    private final AtomicLong queuedSegments = new AtomicLong();
+
+    /**
+     * Bytes de los segmentos esperando a llevarse al archivo.
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /**
+     * Uso del sistema de ficheros del directorio rápido, en milésimas, o -1 si no se sabe.
+     */
+    private final AtomicLong usedPermille = new AtomicLong(-1);
+
+    /**
+     * Segmentos de la última tanda.
+     */
+    private final AtomicLong lastBatchSegments = new AtomicLong();
+
+    /**
+     * Bytes por segundo de la última tanda, fsync incluido.
+     */
+    private final AtomicLong lastBatchBytesPerSecond = new AtomicLong();
+
+    public void setQueued(long segments, long bytes) {
+        queuedSegments.set(segments);
+        queuedBytes.set(bytes);
+    }
+
+    /**
+     * Anota una tanda llevada al archivo.
+     *
+     * @param segments     segmentos llevados.
+     * @param bytes        bytes llevados.
+     * @param elapsedNanos lo que ha tardado la tanda.
+     */
+    public void recordBatch(int segments, long bytes, long elapsedNanos) {
+        batches.increment();
+        movedSegments.add(segments);
+        movedBytes.add(bytes);
+        lastBatchSegments.set(segments);
+        lastBatchBytesPerSecond.set(elapsedNanos <= 0 ? 0 : Math.round(bytes * 1e9 / elapsedNanos));
+    }
+
+    public void recordFailedMove() {
+        failedMoves.increment();
+    }
+
+    public void setUsed(double used) {
+        usedPermille.set(used < 0 ? -1 : Math.round(used * 1000));
+    }
+
+    public long getMovedSegments() {
+        return movedSegments.sum();
+    }
+
+    public long getMovedBytes() {
+        return movedBytes.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getFailedMoves() {
+        return failedMoves.sum();
+    }
+
+    public long getQueuedSegments() {
+        return queuedSegments.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getUsedPermille() {
+        return usedPermille.get();
+    }
+
+    public long getLastBatchSegments() {
+        return lastBatchSegments.get();
+    }
+
+    public long getLastBatchBytesPerSecond() {
+        return lastBatchBytesPerSecond.get();
+    }
+}
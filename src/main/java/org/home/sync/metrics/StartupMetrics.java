@@ -0,0 +1,88 @@
+package org.home.sync.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores del arranque escalonado de cámaras.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class StartupMetrics {
+
+    /**
+     * Cámaras lanzadas por el arranque escalonado.
+     */
+    private final LongAdder launched = new LongAdder();
+
+    /**
+     * Cámaras que no han empezado a grabar dentro del plazo de arranque.
+     */
+    private final LongAdder readyTimeouts = new LongAdder();
+
+    /**
+     * Cámaras en cola esperando su turno.
+     */
+    private final AtomicLong queued = new AtomicLong();
+
+    /**
+     * Cámaras lanzadas que todavía no graban.
+     */
+    private final AtomicLong pending = new AtomicLong();
+
+    /**
+     * Milisegundos que tardó la última tanda en tener todas las cámaras grabando, o -1 si todavía no ha terminado
+     * ninguna.
+     */
+    private final AtomicLong lastRolloutMillis = new AtomicLong(-1);
+
+    /**
+     * Milisegundos hasta que empezó a grabar la última cámara lanzada que lo ha hecho.
+     */
+    private final AtomicLong lastTimeToReadyMillis = new AtomicLong(-1);
+
+    public void recordLaunch() {
+        launched.increment();
+    }
+
+    public void recordReady(long timeToReadyMillis) {
+        lastTimeToReadyMillis.set(timeToReadyMillis);
+    }
+
+    public void recordReadyTimeout() {
+        readyTimeouts.increment();
+    }
+
+    public void setQueue(long queued, long pending) {
+        this.queued.set(queued);
+        this.pending.set(pending);
+    }
+
+    public void setLastRolloutMillis(long millis) {
+        lastRolloutMillis.set(millis);
+    }
+
+    public long getLaunched() {
+        return launched.sum();
+    }
+
+    public long getReadyTimeouts() {
+        return readyTimeouts.sum();
+    }
+
+    public long getQueued() {
+        return queued.get();
+    }
+
+    public long getPending() {
+        return pending.get();
+    }
+
+    public long getLastRolloutMillis() {
+        return lastRolloutMillis.get();
+    }
+
+    public long getLastTimeToReadyMillis() {
+        return lastTimeToReadyMillis.get();
+    }
+}
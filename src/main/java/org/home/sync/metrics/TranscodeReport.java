@@ -0,0 +1,148 @@
+package org.home.sync.metrics;
+
+import org.home.sync.recording.Recorder;
+
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Resumen de cuántas cámaras copian el video y cuántas lo transcodifican, con la CPU media de cada grupo y la CPU
+ * que se ahorra al copiar.
+ * <p>
+ * La CPU de cada cámara es la de su proceso FFmpeg actual (leída del sistema con {@link ProcessHandle.Info}) dividida
+ * entre el tiempo que lleva vivo, es decir, núcleos en uso de media. El ahorro estimado es el número de cámaras que
+ * copian por la diferencia entre la CPU media de transcodificar y la de copiar; sólo se puede calcular si hay
+ * cámaras de los dos tipos.
+ * </p>
+ * <p>
+ * La memoria es la RSS de la última muestra del {@link ProcessSampler}. Con la CPU y la memoria media de cada grupo
+ * se puede calcular cuántas cámaras más caben en la máquina.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class TranscodeReport {
+
+    /**
+     * Segundos que tiene que llevar vivo un proceso para tener en cuenta su CPU (al arrancar la media no es
+     * representativa).
+     */
+    private static final long MIN_UPTIME_MILLIS = 30_000;
+
+    private int copyCameras;
+    private int transcodeCameras;
+    private double copyCores;
+    private double transcodeCores;
+    private int copySamples;
+    private int transcodeSamples;
+    private long copyRssBytes;
+    private long transcodeRssBytes;
+    private int copyRssSamples;
+    private int transcodeRssSamples;
+
+    private TranscodeReport() {
+    }
+
+    /**
+     * Calcula el resumen para los grabadores indicados.
+     *
+     * @param recorders los grabadores.
+     * @return el resumen.
+     */
+    public static TranscodeReport of(Collection<Recorder> recorders) {
+        TranscodeReport report = new TranscodeReport();
+        long now = System.currentTimeMillis();
+        for (Recorder recorder : recorders) {
+            if (!recorder.isProcessAlive()) {
+                continue;
+            }
+            CameraMetrics metrics = recorder.getMetrics();
+            boolean copy = metrics.isVideoCopy();
+            if (copy) {
+                report.copyCameras++;
+            } else {
+                report.transcodeCameras++;
+            }
+            long rss = metrics.getProcessRssBytes();
+            if (rss > 0 && copy) {
+                report.copyRssBytes += rss;
+                report.copyRssSamples++;
+            } else if (rss > 0) {
+                report.transcodeRssBytes += rss;
+                report.transcodeRssSamples++;
+            }
+            long uptime = now - metrics.getProcessStartEpochMillis();
+            long cpu = recorder.getProcessCpuMillis();
+            if (uptime < MIN_UPTIME_MILLIS || cpu < 0) {
+                continue;
+            }
+            double cores = cpu / (double) uptime;
+            if (copy) {
+                report.copyCores += cores;
+                report.copySamples++;
+            } else {
+                report.transcodeCores += cores;
+                report.transcodeSamples++;
+            }
+        }
+        return report;
+    }
+
+    public int getCopyCameras() {
+        return copyCameras;
+    }
+
+    public int getTranscodeCameras() {
+        return transcodeCameras;
+    }
+
+    /**
+     * @return núcleos de media por cámara que copia, o -1 si no hay datos.
+     */
+    public double getAverageCopyCores() {
+        return copySamples == 0 ? -1 : copyCores / copySamples;
+    }
+
+    /**
+     * @return núcleos de media por cámara que transcodifica, o -1 si no hay datos.
+     */
+    public double getAverageTranscodeCores() {
+        return transcodeSamples == 0 ? -1 : transcodeCores / transcodeSamples;
+    }
+
+    /**
+     * @return bytes de memoria residente de media por cámara que copia, o -1 si no hay datos.
+     */
+    public long getAverageCopyRssBytes() {
+        return copyRssSamples == 0 ? -1 : copyRssBytes / copyRssSamples;
+    }
+
+    /**
+     * @return bytes de memoria residente de media por cámara que transcodifica, o -1 si no hay datos.
+     */
+    public long getAverageTranscodeRssBytes() {
+        return transcodeRssSamples == 0 ? -1 : transcodeRssBytes / transcodeRssSamples;
+    }
+
+    /**
+     * @return núcleos que se ahorran por copiar en lugar de transcodificar, o -1 si no se puede estimar.
+     */
+    public double getEstimatedCoresSaved() {
+        if (copySamples == 0 || transcodeSamples == 0) {
+            return -1;
+        }
+        return copyCameras * Math.max(0, getAverageTranscodeCores() - getAverageCopyCores());
+    }
+
+    @Override
+    public String toString() {
+        String saved = getEstimatedCoresSaved() < 0
+                ? "sin datos de los dos modos para estimarlo"
+                : String.format(Locale.ROOT, "%.2f núcleos", getEstimatedCoresSaved());
+        return String.format(Locale.ROOT,
+                "%d cámaras copiando (%.2f núcleos y %d MB de media), %d transcodificando (%.2f núcleos y %d MB de media), ahorro estimado: %s",
+                copyCameras, Math.max(0, getAverageCopyCores()), Math.max(0, getAverageCopyRssBytes()) >> 20,
+                transcodeCameras, Math.max(0, getAverageTranscodeCores()),
+                Math.max(0, getAverageTranscodeRssBytes()) >> 20, saved);
+    }
+}
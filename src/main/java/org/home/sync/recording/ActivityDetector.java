@@ -0,0 +1,265 @@
+package org.home.sync.recording;
+
+import org.home.sync.config.CameraConfig;
+import org.home.sync.metrics.ProcessSampler;
+import org.home.sync.recording.progress.ActivityListener;
+import org.home.sync.recording.progress.ProgressServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Analiza el stream de baja resolución ({@link StreamQuality#STREAM2}) de una cámara en modo activity con un proceso
+ * FFmpeg que no escribe nada en disco.
+ * <p>
+ * FFmpeg decodifica el stream, se queda con {@link #FPS} fotogramas por segundo reducidos a {@link #WIDTH} píxeles de
+ * ancho y calcula para cada uno la puntuación de cambio de escena ({@code select} con {@code scene}). El filtro
+ * {@code metadata=print} envía cada puntuación al {@link ProgressServer}, que se la pasa al {@link ActivityListener}:
+ * no hay ningún hilo leyendo la salida del proceso. Los avisos y errores de FFmpeg van a {@link #LOG_FILE}, en el
+ * directorio de la cámara.
+ * </p>
+ * <p>
+ * Si el proceso termina, se avisa enseguida con {@code onLost} y se vuelve a lanzar con un {@link BackoffPolicy}.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ActivityDetector {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ActivityDetector.class);
+
+    /**
+     * Fotogramas por segundo que se analizan. Se puede cambiar con la propiedad de sistema {@code activity.fps}.
+     */
+    public static final int FPS = Integer.getInteger("activity.fps", 2);
+
+    /**
+     * Ancho, en píxeles, al que se reduce cada fotograma antes de compararlo. Se puede cambiar con la propiedad de
+     * sistema {@code activity.width}.
+     */
+    public static final int WIDTH = Integer.getInteger("activity.width", 160);
+
+    /**
+     * Nombre del fichero, dentro del directorio de la cámara, donde se vuelca la salida del FFmpeg de análisis.
+     */
+    public static final String LOG_FILE = "activity.log";
+
+    private final CameraConfig cameraConfig;
+    private final ScheduledExecutorService scheduler;
+    private final ProgressServer progressServer;
+    private final ActivityListener listener;
+
+    /**
+     * Se invoca cada vez que se deja de analizar el stream: el proceso ha terminado o no se ha podido lanzar.
+     */
+    private final Runnable onLost;
+
+    private final BackoffPolicy backoff = new BackoffPolicy();
+
+    private volatile Process process;
+    private volatile boolean stopRequested;
+    private ScheduledFuture<?> pendingRestart;
+
+    /**
+     * @param cameraConfig la configuración de la cámara.
+     * @param services     los servicios compartidos por todas las cámaras.
+     * @param listener     a quién pasar cada puntuación de cambio de escena.
+     * @param onLost       a quién avisar cada vez que se deja de analizar el stream.
+     */
+    public ActivityDetector(CameraConfig cameraConfig, RecorderServices services, ActivityListener listener,
+                            Runnable onLost) {
+        this.cameraConfig = cameraConfig;
+        this.scheduler = services.getScheduler();
+        this.progressServer = services.getProgressServer();
+        this.listener = listener;
+        this.onLost = onLost;
+    }
+
+    /**
+     * Lanza el análisis. Sin servidor de progreso no hay forma de recibir las puntuaciones: se avisa con
+     * {@code onLost} y no se lanza nada.
+     * <p>
+     * {@code onLost} se invoca siempre sin tener el cerrojo del detector, para que quien lo reciba pueda llamar a
+     * {@link #stop()} desde el suyo.
+     * </p>
+     */
+    public void start() {
+        stopRequested = false;
+        if (progressServer == null) {
+            logger.warn("No hay servidor de progreso: la camara " + cameraConfig.getName()
+                    + " no puede analizar su stream secundario");
+            onLost.run();
+            return;
+        }
+        progressServer.registerActivity(cameraConfig.getName(), listener);
+        launch();
+    }
+
+    /**
+     * Para el análisis. Si FFmpeg no termina en {@link VideoRecorder#STOP_TIMEOUT_SECONDS}, se mata.
+     */
+    public synchronized void stop() {
+        stopRequested = true;
+        if (pendingRestart != null) {
+            pendingRestart.cancel(false);
+            pendingRestart = null;
+        }
+        if (progressServer != null) {
+            progressServer.unregisterActivity(cameraConfig.getName(), listener);
+        }
+        Process current = process;
+        if (current == null || !current.isAlive()) {
+            return;
+        }
+        current.destroy();
+        scheduler.schedule(() -> {
+            if (current.isAlive()) {
+                current.destroyForcibly();
+            }
+        }, VideoRecorder.STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Mata el proceso actual, p.ej. porque ha dejado de enviar puntuaciones. Se vuelve a lanzar como tras cualquier
+     * otra salida.
+     */
+    public void restart() {
+        Process current = process;
+        if (current != null) {
+            current.destroyForcibly();
+        }
+    }
+
+    /**
+     * Espera a que termine el proceso tras un {@link #stop()}. Si llega el plazo y sigue vivo, se mata.
+     *
+     * @param deadlineNanos instante límite, en la escala de {@link System#nanoTime()}.
+     * @throws InterruptedException si se interrumpe la espera.
+     */
+    public void awaitStopped(long deadlineNanos) throws InterruptedException {
+        Process current = process;
+        if (current == null) {
+            return;
+        }
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining <= 0 || !current.waitFor(remaining, TimeUnit.NANOSECONDS)) {
+            current.destroyForcibly();
+        }
+    }
+
+    private void launch() {
+        synchronized (this) {
+            pendingRestart = null;
+            if (stopRequested) {
+                return;
+            }
+            List<String> command = buildCommand(progressServer.activityUrl(cameraConfig.getName()));
+            try {
+                Files.createDirectories(Path.of(cameraConfig.getName()));
+                ProcessBuilder processBuilder = new ProcessBuilder(command);
+                processBuilder.redirectErrorStream(true);
+                processBuilder.redirectOutput(new File(cameraConfig.getName(), LOG_FILE));
+                Process started = processBuilder.start();
+                process = started;
+                started.onExit().thenAccept(this::onExit);
+                scheduler.schedule(() -> markHealthy(started), VideoRecorder.HEALTHY_RUN_SECONDS, TimeUnit.SECONDS);
+                return;
+            } catch (IOException e) {
+                logger.error("No se puede lanzar el análisis de actividad de la camara " + cameraConfig.getName(), e);
+                scheduleRestart();
+            }
+        }
+        onLost.run();
+    }
+
+    private void onExit(Process exited) {
+        synchronized (this) {
+            if (exited != process || stopRequested) {
+                return;
+            }
+            logger.info("El análisis de actividad de la camara " + cameraConfig.getName() + " ha terminado con "
+                    + "código " + exited.exitValue());
+            scheduleRestart();
+        }
+        onLost.run();
+    }
+
+    private synchronized void markHealthy(Process candidate) {
+        if (candidate == process && candidate.isAlive()) {
+            backoff.reset();
+        }
+    }
+
+    private void scheduleRestart() {
+        long delayMillis = backoff.nextDelayMillis();
+        pendingRestart = scheduler.schedule(this::launch, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Construye la línea de comandos del análisis, sin lanzarlo.
+     *
+     * @param activityUrl la URL donde se envían las puntuaciones.
+     * @return el comando y sus argumentos.
+     */
+    List<String> buildCommand(String activityUrl) {
+        List<String> command = new ArrayList<>();
+        command.add(VideoRecorder.FFMPEG_COMMAND);
+        command.add(VideoRecorder.NO_STATS_FLAG);
+        command.add(VideoRecorder.LOG_LEVEL_FLAG);
+        command.add(VideoRecorder.LOG_LEVEL_VALUE);
+        command.add(VideoRecorder.RTSP_TRANSPORT_FLAG);
+        command.add(cameraConfig.getRTSPTransport());
+        command.add(VideoRecorder.INPUT_FLAG);
+        command.add(cameraConfig.getRtspUrl() + "/" + StreamQuality.STREAM2.name().toLowerCase());
+        command.add("-an");
+        command.add("-sn");
+        command.add("-dn");
+        command.add("-vf");
+        // entre comillas los ':' de la URL y la ',' de la expresión no separan opciones ni filtros
+        command.add("fps=" + FPS + ",scale=" + WIDTH + ":-2,select='gte(scene,0)',"
+                + "metadata=print:key=lavfi.scene_score:file='" + activityUrl.replace(":", "\\:") + "'");
+        command.add(VideoRecorder.FORMAT_FLAG);
+        command.add("null");
+        command.add("-");
+        return command;
+    }
+
+    /**
+     * @return {@code true} si el proceso de análisis está vivo.
+     */
+    public boolean isAlive() {
+        Process current = process;
+        return current != null && current.isAlive();
+    }
+
+    /**
+     * @return milisegundos de CPU del proceso de análisis, o -1 si no hay proceso o el sistema no lo informa.
+     */
+    public long getCpuMillis() {
+        Process current = process;
+        if (current == null || !current.isAlive()) {
+            return -1;
+        }
+        return current.info().totalCpuDuration().map(Duration::toMillis).orElse(-1L);
+    }
+
+    /**
+     * @return bytes de memoria residente del proceso de análisis, o -1 si no hay proceso o el sistema no lo informa.
+     */
+    public long getRssBytes() {
+        return ProcessSampler.rssBytes(process);
+    }
+}
@@ -0,0 +1,307 @@
+package org.home.sync.recording;
+
+import org.home.sync.config.CameraConfig;
+import org.home.sync.metrics.CameraMetrics;
+import org.home.sync.recording.progress.ActivityListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Graba una cámara en modo activity ({@link CameraConfig#MODE_ACTIVITY}): un {@link ActivityDetector} analiza todo el
+ * tiempo el stream de baja resolución y el {@link Recorder} del stream principal sólo se arranca mientras hay
+ * actividad. Así la cámara no gasta red, CPU ni disco en el stream de alta resolución cuando no pasa nada.
+ * <p>
+ * La grabación empieza cuando una puntuación de cambio de escena llega a
+ * {@link CameraConfig#getActivityThreshold()}. Mientras se graba basta con la mitad del umbral para seguir
+ * considerando que hay actividad, y la grabación se para cuando pasan {@link CameraConfig#getActivityHoldSeconds()}
+ * sin ella: así una escena con poco movimiento no arranca y para la grabación una y otra vez.
+ * </p>
+ * <p>
+ * Si no se puede analizar el stream secundario (FFmpeg termina, no se puede lanzar o deja de enviar puntuaciones
+ * durante {@link #SILENCE_SECONDS}), se graba el principal igualmente hasta que el análisis vuelve: es preferible
+ * grabar de más que perder lo que pase mientras tanto.
+ * </p>
+ * <p>
+ * Los contadores, la configuración y los segmentos son los del grabador del stream principal. Una tarea de un segundo
+ * en el planificador compartido revisa la espera tras la última actividad; no hay ningún hilo por cámara.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ActivityRecorder implements Recorder, ActivityListener {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ActivityRecorder.class);
+
+    /**
+     * Segundos sin recibir ninguna puntuación tras los que se da el análisis por perdido y se relanza.
+     */
+    public static final long SILENCE_SECONDS = 10;
+
+    private final Recorder recorder;
+    private final ActivityDetector detector;
+    private final ScheduledExecutorService scheduler;
+    private final CameraMetrics metrics;
+
+    /**
+     * Puntuación, en millonésimas, a partir de la que se empieza a grabar.
+     */
+    private final long startMillionths;
+
+    /**
+     * Puntuación, en millonésimas, a partir de la que se sigue grabando.
+     */
+    private final long keepMillionths;
+
+    private final long holdNanos;
+
+    private boolean stopRequested = true;
+
+    /**
+     * Si se graba el stream principal, por actividad o porque no se puede analizar el secundario.
+     */
+    private boolean active;
+
+    /**
+     * Si se ha pedido grabar pero el grabador todavía está terminando la grabación anterior.
+     */
+    private boolean startPending;
+
+    /**
+     * Si llegan puntuaciones del análisis.
+     */
+    private boolean analysing;
+
+    private long lastActivityNanos;
+    private long lastScoreNanos;
+    private ScheduledFuture<?> tick;
+
+    /**
+     * @param recorder el grabador del stream principal.
+     * @param services los servicios compartidos por todas las cámaras.
+     */
+    public ActivityRecorder(Recorder recorder, RecorderServices services) {
+        CameraConfig cameraConfig = recorder.getCameraConfig();
+        this.recorder = recorder;
+        this.scheduler = services.getScheduler();
+        this.metrics = recorder.getMetrics();
+        this.detector = new ActivityDetector(cameraConfig, services, this, this::onAnalysisLost);
+        this.startMillionths = Math.round(cameraConfig.getActivityThreshold() * 1_000_000);
+        this.keepMillionths = startMillionths / 2;
+        this.holdNanos = TimeUnit.SECONDS.toNanos(cameraConfig.getActivityHoldSeconds());
+    }
+
+    /**
+     * Arranca el análisis. El stream principal no se graba hasta que hay actividad.
+     */
+    @Override
+    public synchronized void start() {
+        stopRequested = false;
+        analysing = false;
+        lastScoreNanos = System.nanoTime();
+        tick = scheduler.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+        detector.start();
+    }
+
+    /**
+     * Para el análisis y la grabación.
+     */
+    @Override
+    public synchronized void stop() {
+        stopRequested = true;
+        if (tick != null) {
+            tick.cancel(false);
+            tick = null;
+        }
+        detector.stop();
+        active = false;
+        startPending = false;
+        metrics.setActivity(false);
+        recorder.stop();
+    }
+
+    @Override
+    public void awaitStopped(long deadlineNanos) throws InterruptedException {
+        recorder.awaitStopped(deadlineNanos);
+        detector.awaitStopped(deadlineNanos);
+    }
+
+    /**
+     * Recibe cada puntuación del análisis, en el hilo del servidor de progreso.
+     *
+     * @param millionths la puntuación de cambio de escena, en millonésimas.
+     */
+    @Override
+    public synchronized void onSceneScore(long millionths) {
+        if (stopRequested) {
+            return;
+        }
+        long now = System.nanoTime();
+        metrics.setSceneScore(millionths);
+        lastScoreNanos = now;
+        if (!analysing) {
+            analysing = true;
+            logger.info("Analizando la actividad de la camara " + getCameraConfig().getName());
+        }
+        if (millionths >= startMillionths || (active && millionths >= keepMillionths)) {
+            lastActivityNanos = now;
+            if (!active) {
+                begin("actividad (" + millionths / 1_000_000.0 + ")");
+            }
+        }
+    }
+
+    /**
+     * El análisis se ha perdido: se graba hasta que vuelva.
+     */
+    private synchronized void onAnalysisLost() {
+        analysing = false;
+        if (stopRequested) {
+            return;
+        }
+        lastActivityNanos = System.nanoTime();
+        if (!active) {
+            begin("no se puede analizar el stream secundario");
+        }
+    }
+
+    /**
+     * Revisa cada segundo si el análisis sigue vivo, si hay que arrancar una grabación pendiente y si ha pasado la
+     * espera tras la última actividad.
+     */
+    private synchronized void tick() {
+        if (stopRequested) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (analysing && now - lastScoreNanos > TimeUnit.SECONDS.toNanos(SILENCE_SECONDS)) {
+            logger.warn("El análisis de actividad de la camara " + getCameraConfig().getName() + " no envía nada desde"
+                    + " hace " + SILENCE_SECONDS + "s, se relanza");
+            analysing = false;
+            detector.restart();
+        }
+        if (startPending && recorder.getState() == CameraState.STOPPED) {
+            startPending = false;
+            recorder.start();
+        }
+        if (active && analysing && now - lastActivityNanos >= holdNanos) {
+            end();
+        }
+    }
+
+    private void begin(String reason) {
+        active = true;
+        metrics.setActivity(true);
+        metrics.recordActivityStart();
+        logger.info("Se graba la camara " + getCameraConfig().getName() + ": " + reason);
+        if (recorder.getState() == CameraState.STOPPED) {
+            recorder.start();
+        } else {
+            // todavía está cerrando la grabación anterior: se arranca en cuanto termine
+            startPending = true;
+        }
+    }
+
+    private void end() {
+        active = false;
+        startPending = false;
+        metrics.setActivity(false);
+        logger.info("Sin actividad en la camara " + getCameraConfig().getName() + " desde hace "
+                + TimeUnit.NANOSECONDS.toSeconds(holdNanos) + "s, se para la grabación");
+        recorder.stop();
+    }
+
+    /**
+     * @return siempre {@code false}: en modo activity se graba por lo que pasa en la escena, no por disparos.
+     */
+    @Override
+    public boolean trigger() {
+        return false;
+    }
+
+    /**
+     * Reinicia la grabación si se está grabando. El análisis tiene su propia vigilancia.
+     */
+    @Override
+    public synchronized boolean recover(String reason) {
+        return active && !stopRequested && recorder.recover(reason);
+    }
+
+    /**
+     * Baja la calidad de la grabación. El análisis usa ya el stream de baja resolución.
+     */
+    @Override
+    public boolean shed() {
+        return recorder.shed();
+    }
+
+    @Override
+    public boolean restore() {
+        return recorder.restore();
+    }
+
+    /**
+     * @return el estado del grabador mientras se graba; si no, {@link CameraState#IDLE} mientras se analiza o
+     * {@link CameraState#STARTING} hasta que llega la primera puntuación.
+     */
+    @Override
+    public synchronized CameraState getState() {
+        if (stopRequested) {
+            return recorder.getState();
+        }
+        if (active) {
+            return startPending ? CameraState.STARTING : recorder.getState();
+        }
+        return analysing ? CameraState.IDLE : CameraState.STARTING;
+    }
+
+    /**
+     * @return {@code true} si hay un proceso FFmpeg vivo, el de la grabación o el del análisis.
+     */
+    @Override
+    public boolean isProcessAlive() {
+        return recorder.isProcessAlive() || detector.isAlive();
+    }
+
+    /**
+     * @return milisegundos de CPU de la grabación y el análisis, o -1 si no hay ningún proceso.
+     */
+    @Override
+    public long getProcessCpuMillis() {
+        long recording = recorder.getProcessCpuMillis();
+        long analysis = detector.getCpuMillis();
+        if (recording < 0) {
+            return analysis;
+        }
+        return analysis < 0 ? recording : recording + analysis;
+    }
+
+    /**
+     * @return bytes de memoria residente de la grabación y el análisis, o -1 si no hay ningún proceso.
+     */
+    @Override
+    public long getProcessRssBytes() {
+        long recording = recorder.getProcessRssBytes();
+        long analysis = detector.getRssBytes();
+        if (recording < 0) {
+            return analysis;
+        }
+        return analysis < 0 ? recording : recording + analysis;
+    }
+
+    @Override
+    public CameraConfig getCameraConfig() {
+        return recorder.getCameraConfig();
+    }
+
+    @Override
+    public CameraMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,88 @@
+package org.home.sync.recording;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Calcula la espera antes de volver a lanzar FFmpeg tras un fallo: crece de forma exponencial con cada fallo
+ * consecutivo, hasta un máximo, y se le añade una parte aleatoria (jitter).
+ * <p>
+ * El jitter es importante cuando caen muchas cámaras a la vez (por ejemplo, al reiniciarse un switch): sin él,
+ * todas reconectarían en el mismo instante una y otra vez. Se usa "equal jitter": la espera es la mitad del
+ * tope más un valor aleatorio entre cero y la otra mitad, así nunca se reintenta inmediatamente.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class BackoffPolicy {
+
+    /**
+     * Espera base, en milisegundos, tras el primer fallo.
+     */
+    public static final long DEFAULT_BASE_MILLIS = 1_000;
+
+    /**
+     * Espera máxima, en milisegundos.
+     */
+    public static final long DEFAULT_MAX_MILLIS = 60_000;
+
+    /**
+     * Espera base en milisegundos.
+     */
+    private final long baseMillis;
+
+    /**
+     * Espera máxima en milisegundos.
+     */
+    private final long maxMillis;
+
+    /**
+     * Fallos consecutivos desde el último {@link #reset()}.
+     */
+    private int attempt;
+
+    /**
+     * Crea la política con los valores por defecto.
+     */
+    public BackoffPolicy() {
+        this(DEFAULT_BASE_MILLIS, DEFAULT_MAX_MILLIS);
+    }
+
+    /**
+     * @param baseMillis espera base, en milisegundos.
+     * @param maxMillis  espera máxima, en milisegundos.
+     */
+    public BackoffPolicy(long baseMillis, long maxMillis) {
+        if (baseMillis <= 0 || maxMillis < baseMillis) {
+            throw new IllegalArgumentException("La espera base debe ser positiva y no mayor que la máxima.");
+        }
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Registra un fallo y devuelve cuánto esperar antes del siguiente intento.
+     *
+     * @return la espera en milisegundos.
+     */
+    public synchronized long nextDelayMillis() {
+        // se limita el desplazamiento para que no desborde
+        long cap = Math.min(maxMillis, baseMillis << Math.min(attempt, 30));
+        attempt++;
+        long half = cap / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /**
+     * Vuelve a la espera base, tras una ejecución sana.
+     */
+    public synchronized void reset() {
+        attempt = 0;
+    }
+
+    /**
+     * @return los fallos consecutivos desde el último {@link #reset()}.
+     */
+    public synchronized int getAttempt() {
+        return attempt;
+    }
+}
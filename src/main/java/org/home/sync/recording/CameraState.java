@@ -0,0 +1,46 @@
+package org.home.sync.recording;
+
+/**
+ * La enumeración {@code CameraState} define los estados por los que pasa la grabación de una cámara
+ * dentro del supervisor.
+ * <p>
+ * El estado lo mantiene cada {@link Recorder} y se actualiza a partir de los eventos del proceso
+ * FFmpeg (arranque, fallo al arrancar, salida y apertura del circuit breaker), sin que ningún hilo quede
+ * bloqueado esperando.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public enum CameraState {
+
+    /**
+     * Se está lanzando el proceso FFmpeg de la cámara.
+     */
+    STARTING,
+
+    /**
+     * El proceso FFmpeg está vivo y grabando el stream.
+     */
+    RECORDING,
+
+    /**
+     * El proceso ha fallado y se espera un tiempo antes de volver a lanzarlo.
+     */
+    BACKOFF,
+
+    /**
+     * La cámara ha fallado demasiadas veces seguidas y está aparcada por el circuit breaker hasta el
+     * próximo intento de prueba.
+     */
+    PARKED,
+
+    /**
+     * En modo activity, se analiza el stream de baja resolución pero no hay actividad y no se graba.
+     */
+    IDLE,
+
+    /**
+     * La cámara no está grabando y no hay ningún reintento programado.
+     */
+    STOPPED
+}
@@ -0,0 +1,151 @@
+package org.home.sync.recording;
+
+/**
+ * Circuit breaker por cámara. Cuando una cámara acumula demasiados fallos seguidos se considera caída y se
+ * "aparca": se deja de reintentar durante un periodo largo, para no gastar procesos ni conexiones en ella.
+ * <p>
+ * Pasado ese periodo se permite un único intento (medio abierto). Si sale bien, el circuito se cierra; si vuelve
+ * a fallar, se abre de nuevo con el doble de espera, hasta {@link #DEFAULT_MAX_PARK_MILLIS}.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class CircuitBreaker {
+
+    /**
+     * Estado del circuito.
+     */
+    public enum State {
+        /** Funcionamiento normal, se reintenta con backoff. */
+        CLOSED,
+        /** Cámara aparcada, no se reintenta hasta que pase el periodo de espera. */
+        OPEN,
+        /** Se está probando un único intento tras el periodo de espera. */
+        HALF_OPEN
+    }
+
+    /**
+     * Fallos consecutivos que abren el circuito.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 8;
+
+    /**
+     * Tiempo que se aparca la cámara la primera vez, en milisegundos.
+     */
+    public static final long DEFAULT_PARK_MILLIS = 5 * 60_000;
+
+    /**
+     * Tiempo máximo que se aparca una cámara, en milisegundos.
+     */
+    public static final long DEFAULT_MAX_PARK_MILLIS = 60 * 60_000;
+
+    /**
+     * Fallos consecutivos que abren el circuito.
+     */
+    private final int failureThreshold;
+
+    /**
+     * Tiempo que se aparca la cámara la primera vez.
+     */
+    private final long parkMillis;
+
+    /**
+     * Tiempo máximo que se aparca la cámara.
+     */
+    private final long maxParkMillis;
+
+    /**
+     * Estado actual.
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * Fallos consecutivos.
+     */
+    private int consecutiveFailures;
+
+    /**
+     * Tiempo que se aparcará la cámara la próxima vez que se abra el circuito.
+     */
+    private long currentParkMillis;
+
+    /**
+     * Crea el circuito con los valores por defecto.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_PARK_MILLIS, DEFAULT_MAX_PARK_MILLIS);
+    }
+
+    /**
+     * @param failureThreshold fallos consecutivos que abren el circuito.
+     * @param parkMillis       tiempo que se aparca la cámara la primera vez.
+     * @param maxParkMillis    tiempo máximo que se aparca la cámara.
+     */
+    public CircuitBreaker(int failureThreshold, long parkMillis, long maxParkMillis) {
+        if (failureThreshold <= 0 || parkMillis <= 0 || maxParkMillis < parkMillis) {
+            throw new IllegalArgumentException("Parámetros del circuit breaker no válidos.");
+        }
+        this.failureThreshold = failureThreshold;
+        this.parkMillis = parkMillis;
+        this.maxParkMillis = maxParkMillis;
+        this.currentParkMillis = parkMillis;
+    }
+
+    /**
+     * Registra una ejecución sana: cierra el circuito.
+     */
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        currentParkMillis = parkMillis;
+    }
+
+    /**
+     * Registra un fallo.
+     *
+     * @return {@code true} si con este fallo se abre el circuito.
+     */
+    public synchronized boolean recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            currentParkMillis = Math.min(maxParkMillis, currentParkMillis * 2);
+            state = State.OPEN;
+            return true;
+        }
+        if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Pasa el circuito a medio abierto, justo antes del intento de prueba tras el periodo de espera.
+     */
+    public synchronized void halfOpen() {
+        if (state == State.OPEN) {
+            state = State.HALF_OPEN;
+        }
+    }
+
+    /**
+     * @return el estado actual.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return los fallos consecutivos.
+     */
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return el tiempo, en milisegundos, que se aparca la cámara al abrirse el circuito.
+     */
+    public synchronized long getParkMillis() {
+        return currentParkMillis;
+    }
+}
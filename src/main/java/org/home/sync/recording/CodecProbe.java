@@ -0,0 +1,171 @@
+package org.home.sync.recording;
+
+import org.home.sync.config.CameraConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detecta con {@code ffprobe} los códecs que envía cada cámara, para poder copiar el stream en lugar de
+ * transcodificarlo siempre que el contenedor de salida lo admita.
+ * <p>
+ * El resultado se guarda por cámara y stream durante {@link #DEFAULT_TTL_MILLIS}, así que los reinicios de FFmpeg no
+ * vuelven a abrir una sesión RTSP sólo para sondear. La detección es asíncrona: no bloquea ningún hilo mientras
+ * {@code ffprobe} se conecta a la cámara.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class CodecProbe {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(CodecProbe.class);
+
+    /**
+     * Comando para invocar ffprobe. Se puede sobrescribir con la propiedad de sistema {@code ffprobe.path}.
+     */
+    public static final String FFPROBE_COMMAND = System.getProperty("ffprobe.path", "ffprobe");
+
+    /**
+     * Tiempo durante el que se reutiliza una detección, en milisegundos.
+     */
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    /**
+     * Tiempo máximo que se espera a ffprobe, en segundos.
+     */
+    public static final long PROBE_TIMEOUT_SECONDS = 15;
+
+    /**
+     * Detecciones por cámara y stream.
+     */
+    private final Map<String, ProbeResult> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Tiempo durante el que se reutiliza una detección.
+     */
+    private final long ttlMillis;
+
+    /**
+     * Crea el detector con el TTL por defecto.
+     */
+    public CodecProbe() {
+        this(DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param ttlMillis tiempo durante el que se reutiliza una detección, en milisegundos.
+     */
+    public CodecProbe(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Devuelve los códecs de origen de la cámara: de la caché si la detección sigue vigente, o lanzando ffprobe.
+     *
+     * @param cameraConfig la configuración de la cámara.
+     * @return la detección; se completa con excepción si ffprobe falla o tarda demasiado.
+     */
+    public CompletableFuture<ProbeResult> probe(CameraConfig cameraConfig) {
+        String key = cacheKey(cameraConfig);
+        ProbeResult cached = cache.get(key);
+        if (cached != null && System.currentTimeMillis() - cached.getProbedAtMillis() < ttlMillis) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        Process process;
+        try {
+            process = new ProcessBuilder(command(cameraConfig))
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return process.onExit()
+                .orTimeout(PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .whenComplete((p, error) -> {
+                    if (error != null) {
+                        process.destroyForcibly();
+                    }
+                })
+                .thenApply(p -> {
+                    ProbeResult result = parse(p);
+                    cache.put(key, result);
+                    logger.info("Códecs de origen de la camara " + cameraConfig.getName() + ": " + result);
+                    return result;
+                });
+    }
+
+    /**
+     * Olvida la detección de una cámara (por ejemplo, si su configuración cambia).
+     *
+     * @param cameraConfig la configuración de la cámara.
+     */
+    public void invalidate(CameraConfig cameraConfig) {
+        cache.remove(cacheKey(cameraConfig));
+    }
+
+    private static String cacheKey(CameraConfig cameraConfig) {
+        return cameraConfig.getName() + "/" + cameraConfig.getStream().name();
+    }
+
+    private static List<String> command(CameraConfig cameraConfig) {
+        List<String> command = new ArrayList<>();
+        command.add(FFPROBE_COMMAND);
+        command.add("-v");
+        command.add("error");
+        command.add(VideoRecorder.RTSP_TRANSPORT_FLAG);
+        command.add(cameraConfig.getRTSPTransport());
+        command.add("-show_entries");
+        command.add("stream=codec_type,codec_name");
+        command.add("-of");
+        command.add("csv=p=0");
+        command.add(cameraConfig.getRtspUrl() + "/" + cameraConfig.getStream().name().toLowerCase());
+        return command;
+    }
+
+    /**
+     * Interpreta la salida de ffprobe: una línea {@code codec_name,codec_type} por stream.
+     *
+     * @param process el proceso ffprobe ya terminado.
+     * @return los códecs detectados.
+     */
+    private static ProbeResult parse(Process process) {
+        if (process.exitValue() != 0) {
+            throw new IllegalStateException("ffprobe ha terminado con código " + process.exitValue());
+        }
+        String output;
+        try (InputStream in = process.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("No se puede leer la salida de ffprobe", e);
+        }
+        String video = null;
+        String audio = null;
+        for (String line : output.split("\n")) {
+            String[] fields = line.trim().split(",");
+            if (fields.length < 2) {
+                continue;
+            }
+            if ("video".equals(fields[1]) && video == null) {
+                video = fields[0];
+            } else if ("audio".equals(fields[1]) && audio == null) {
+                audio = fields[0];
+            }
+        }
+        if (video == null) {
+            throw new IllegalStateException("ffprobe no ha encontrado ningún stream de video");
+        }
+        return new ProbeResult(video, audio, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,117 @@
+package org.home.sync.recording;
+
+import org.home.sync.config.CameraConfig;
+
+import java.util.Set;
+
+/**
+ * Códecs de salida que se pasan a FFmpeg para una cámara.
+ * <p>
+ * Si en la configuración se indica un códec concreto se respeta. Si se deja en {@link CameraConfig#AUTO_CODEC},
+ * se copia el stream de origen siempre que MPEG-TS lo admita y sólo se transcodifica cuando hace falta (por ejemplo,
+ * el audio G.711 de muchas cámaras, que MPEG-TS no admite, se pasa a AAC). Copiar el video evita decodificar y volver
+ * a codificar cada fotograma, que es lo que más CPU cuesta por cámara.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class CodecSelection {
+
+    /**
+     * Códec de video que se usa cuando hay que transcodificar.
+     */
+    public static final String DEFAULT_VIDEO_CODEC = "libx264";
+
+    /**
+     * Códec de audio que se usa cuando hay que transcodificar.
+     */
+    public static final String DEFAULT_AUDIO_CODEC = "aac";
+
+    /**
+     * Códecs de video que se pueden copiar tal cual en MPEG-TS.
+     */
+    private static final Set<String> MPEGTS_VIDEO = Set.of("h264", "hevc", "mpeg2video", "mpeg4");
+
+    /**
+     * Códecs de audio que se pueden copiar tal cual en MPEG-TS.
+     */
+    private static final Set<String> MPEGTS_AUDIO = Set.of("aac", "mp2", "mp3", "ac3", "eac3", "opus");
+
+    private final String videoCodec;
+    private final String audioCodec;
+
+    /**
+     * Si se sabe que el video de origen se puede copiar en MPEG-TS.
+     */
+    private final boolean copyableSource;
+
+    private CodecSelection(String videoCodec, String audioCodec, boolean copyableSource) {
+        this.videoCodec = videoCodec;
+        this.audioCodec = audioCodec;
+        this.copyableSource = copyableSource;
+    }
+
+    /**
+     * Decide los códecs de salida.
+     *
+     * @param cameraConfig la configuración de la cámara.
+     * @param probe        los códecs de origen, o {@code null} si no se han podido detectar.
+     * @return los códecs que hay que pasar a FFmpeg.
+     */
+    public static CodecSelection resolve(CameraConfig cameraConfig, ProbeResult probe) {
+        boolean copyable = probe != null && MPEGTS_VIDEO.contains(probe.getVideoCodec());
+        String video = cameraConfig.getVideoCodec();
+        if (CameraConfig.AUTO_CODEC.equals(video)) {
+            video = copyable ? VideoRecorder.VIDEO_COPY_VALUE : DEFAULT_VIDEO_CODEC;
+        }
+        String audio = cameraConfig.getAudioCodec();
+        if (CameraConfig.AUTO_CODEC.equals(audio)) {
+            if (probe == null) {
+                audio = DEFAULT_AUDIO_CODEC;
+            } else if (probe.getAudioCodec() == null || MPEGTS_AUDIO.contains(probe.getAudioCodec())) {
+                audio = VideoRecorder.AUDIO_COPY_VALUE;
+            } else {
+                audio = DEFAULT_AUDIO_CODEC;
+            }
+        }
+        return new CodecSelection(video, audio, copyable);
+    }
+
+    /**
+     * @return los mismos códecs copiando el video, o {@code null} si no se sabe si el video de origen se puede copiar.
+     */
+    public CodecSelection withVideoCopy() {
+        if (isVideoCopy()) {
+            return this;
+        }
+        return copyableSource ? new CodecSelection(VideoRecorder.VIDEO_COPY_VALUE, audioCodec, true) : null;
+    }
+
+    /**
+     * @return {@code true} si la configuración de la cámara necesita detectar los códecs de origen.
+     */
+    public static boolean needsProbe(CameraConfig cameraConfig) {
+        return CameraConfig.AUTO_CODEC.equals(cameraConfig.getVideoCodec())
+                || CameraConfig.AUTO_CODEC.equals(cameraConfig.getAudioCodec());
+    }
+
+    public String getVideoCodec() {
+        return videoCodec;
+    }
+
+    public String getAudioCodec() {
+        return audioCodec;
+    }
+
+    /**
+     * @return {@code true} si el video se copia sin transcodificar.
+     */
+    public boolean isVideoCopy() {
+        return VideoRecorder.VIDEO_COPY_VALUE.equals(videoCodec);
+    }
+
+    @Override
+    public String toString() {
+        return "video=" + videoCodec + ", audio=" + audioCodec;
+    }
+}
@@ -0,0 +1,323 @@
+package org.home.sync.recording;
+
+import org.home.sync.config.CameraConfig;
+import org.home.sync.metrics.CameraMetrics;
+import org.home.sync.recording.progress.SegmentListener;
+import org.home.sync.recording.rtsp.RtspIngest;
+import org.home.sync.recording.rtsp.RtspSession;
+import org.home.sync.recording.rtsp.RtspSessionListener;
+import org.home.sync.recording.ts.TsSegmentWriter;
+import org.home.sync.relay.RelayPath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Graba una cámara sin FFmpeg: la conexión RTSP la lleva el {@link RtspIngest} compartido y los segmentos MPEG-TS
+ * los escribe un {@link TsSegmentWriter} en el directorio de la cámara, con el mismo nombre que les daría FFmpeg.
+ * <p>
+ * Sólo copia el video (H.264 o H.265) y el audio AAC; se elige por cámara con
+ * {@link CameraConfig#ENGINE_NATIVE}. Los reintentos funcionan igual que en {@link VideoRecorder}: cualquier cierre
+ * de la sesión programa un nuevo intento con {@link BackoffPolicy} y, si falla demasiadas veces seguidas, el
+ * {@link CircuitBreaker} aparca la cámara.
+ * </p>
+ * <p>
+ * Si la cámara se replica ({@code cloneRTSPStream}), la sesión publica lo que recibe en su {@link RelayPath}.
+ * </p>
+ * <p>
+ * En modo event ({@link CameraConfig#MODE_EVENT}) la sesión sigue recibiendo el stream todo el tiempo, pero sólo se
+ * escriben segmentos tras un {@link #trigger()}.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class NativeRecorder implements Recorder, RtspSessionListener {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(NativeRecorder.class);
+
+    private final CameraConfig cameraConfig;
+
+    /**
+     * Planificador compartido por todas las cámaras, donde se programan los reintentos.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Motor que mantiene las conexiones RTSP, compartido por todas las cámaras nativas.
+     */
+    private final RtspIngest ingest;
+
+    /**
+     * Escribe los segmentos. Lo usa la sesión en curso, desde el hilo de ingesta.
+     */
+    private final TsSegmentWriter writer;
+
+    /**
+     * Directorio donde se escriben los segmentos: el de la cámara o su directorio rápido.
+     */
+    private final Path directory;
+
+    /**
+     * Ruta del relay donde se replica la cámara, o {@code null}.
+     */
+    private final RelayPath relay;
+
+    private final CameraMetrics metrics;
+
+    private final BackoffPolicy backoff = new BackoffPolicy();
+
+    private final CircuitBreaker breaker = new CircuitBreaker();
+
+    private volatile CameraState state = CameraState.STOPPED;
+
+    private volatile boolean stopRequested;
+
+    /**
+     * Sesión en curso, o {@code null} si no hay ninguna.
+     */
+    private volatile RtspSession session;
+
+    private ScheduledFuture<?> pendingRestart;
+
+    /**
+     * Instante ({@link System#nanoTime()}) en el que empezó a grabar la sesión actual.
+     */
+    private long startedAtNanos;
+
+    /**
+     * Instante ({@link System#nanoTime()}) en el que se cerró la última sesión, o 0 si la cámara está sana.
+     */
+    private long lastExitNanos;
+
+    /**
+     * @param cameraConfig    la configuración de la cámara.
+     * @param services        los servicios compartidos por todas las cámaras.
+     * @param ingest          el motor RTSP compartido.
+     * @param segmentListener a quién avisar de cada segmento cerrado, o {@code null}.
+     * @param relay           la ruta del relay donde se replica, o {@code null}.
+     */
+    public NativeRecorder(CameraConfig cameraConfig, RecorderServices services, RtspIngest ingest,
+                          SegmentListener segmentListener, RelayPath relay) {
+        this.cameraConfig = cameraConfig;
+        this.scheduler = services.getScheduler();
+        this.ingest = ingest;
+        this.relay = relay;
+        this.metrics = new CameraMetrics(cameraConfig.getName());
+        Path directory = services.getSegmentStaging().directory(cameraConfig.getName());
+        this.directory = directory;
+        double segmentSeconds = Double.parseDouble(cameraConfig.getSegmentTime());
+        boolean resetTimestamps = "1".equals(cameraConfig.getResetTimeStamps());
+        this.writer = cameraConfig.isEventMode()
+                ? new TsSegmentWriter(directory, segmentSeconds, resetTimestamps, cameraConfig.getPreRollSeconds(),
+                cameraConfig.getPostRollSeconds(), metrics, segmentListener)
+                : new TsSegmentWriter(directory, segmentSeconds, resetTimestamps, metrics, segmentListener);
+    }
+
+    @Override
+    public synchronized void start() {
+        stopRequested = false;
+        state = CameraState.STARTING;
+        connect();
+    }
+
+    /**
+     * Pide cerrar la sesión. El segmento en curso se cierra en el hilo de ingesta.
+     */
+    @Override
+    public synchronized void stop() {
+        stopRequested = true;
+        if (pendingRestart != null) {
+            pendingRestart.cancel(false);
+            pendingRestart = null;
+        }
+        RtspSession current = session;
+        if (current == null) {
+            state = CameraState.STOPPED;
+            return;
+        }
+        current.close();
+    }
+
+    @Override
+    public void awaitStopped(long deadlineNanos) throws InterruptedException {
+        RtspSession current = session;
+        if (current != null && !current.awaitClosed(deadlineNanos)) {
+            logger.warn("La sesión RTSP de la camara " + cameraConfig.getName() + " no se ha cerrado a tiempo");
+        }
+    }
+
+    /**
+     * Abre una sesión nueva. Si ni siquiera se puede resolver la dirección, se programa un reintento.
+     */
+    private synchronized void connect() {
+        pendingRestart = null;
+        if (stopRequested) {
+            state = CameraState.STOPPED;
+            return;
+        }
+        if (breaker.getState() == CircuitBreaker.State.OPEN) {
+            breaker.halfOpen();
+            logger.info("Probando de nuevo la camara aparcada " + cameraConfig.getName());
+        }
+        try {
+            Files.createDirectories(directory);
+            session = ingest.open(cameraConfig, writer, relay, this);
+        } catch (IOException e) {
+            logger.error("No se puede conectar con la camara " + cameraConfig.getName() + ": " + e);
+            metrics.recordSpawnFailure();
+            if (lastExitNanos == 0) {
+                lastExitNanos = System.nanoTime();
+            }
+            scheduleRestart();
+        }
+    }
+
+    @Override
+    public synchronized void onPlaying(RtspSession playing) {
+        if (playing != session) {
+            return;
+        }
+        startedAtNanos = System.nanoTime();
+        metrics.setProcessStart(System.currentTimeMillis());
+        metrics.setVideoCopy(true);
+        if (lastExitNanos != 0) {
+            metrics.recordRestart(startedAtNanos - lastExitNanos);
+        }
+        state = CameraState.RECORDING;
+        scheduler.schedule(() -> markHealthy(playing), VideoRecorder.HEALTHY_RUN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public synchronized void onClosed(RtspSession closed, String reason) {
+        if (closed != session) {
+            return;
+        }
+        session = null;
+        boolean wasRecording = state == CameraState.RECORDING;
+        long now = System.nanoTime();
+        lastExitNanos = now;
+        metrics.setProcessStart(0);
+        if (reason != null) {
+            logger.info("Sesión RTSP de la camara " + cameraConfig.getName() + " cerrada"
+                    + (wasRecording ? " tras " + TimeUnit.NANOSECONDS.toSeconds(now - startedAtNanos) + "s" : "")
+                    + ": " + reason);
+        }
+        if (stopRequested) {
+            state = CameraState.STOPPED;
+            return;
+        }
+        scheduleRestart();
+    }
+
+    private synchronized void markHealthy(RtspSession candidate) {
+        if (candidate == session && state == CameraState.RECORDING) {
+            backoff.reset();
+            breaker.recordSuccess();
+            lastExitNanos = 0;
+        }
+    }
+
+    /**
+     * Registra un fallo y programa el siguiente intento, con backoff o, si se abre el circuito, aparcando la cámara.
+     */
+    private void scheduleRestart() {
+        long delayMillis;
+        if (breaker.recordFailure()) {
+            metrics.recordCircuitOpen();
+            delayMillis = breaker.getParkMillis();
+            state = CameraState.PARKED;
+            logger.warn("La camara " + cameraConfig.getName() + " ha fallado " + breaker.getConsecutiveFailures()
+                    + " veces seguidas, se aparca durante " + TimeUnit.MILLISECONDS.toSeconds(delayMillis) + "s");
+        } else {
+            delayMillis = backoff.nextDelayMillis();
+            state = CameraState.BACKOFF;
+            logger.info("Reintentando la camara " + cameraConfig.getName() + " en " + delayMillis + "ms");
+        }
+        pendingRestart = scheduler.schedule(this::connect, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cierra la sesión atascada; al cerrarse se vuelve a conectar como tras cualquier otro fallo.
+     */
+    @Override
+    public synchronized boolean recover(String reason) {
+        RtspSession current = session;
+        if (stopRequested || current == null) {
+            return false;
+        }
+        current.abort(reason);
+        return true;
+    }
+
+    /**
+     * @return siempre {@code false}: la ingesta nativa no transcodifica y apenas gasta CPU por cámara.
+     */
+    @Override
+    public boolean shed() {
+        return false;
+    }
+
+    /**
+     * @return siempre {@code false}: nunca se baja la calidad.
+     */
+    @Override
+    public boolean restore() {
+        return false;
+    }
+
+    /**
+     * @return {@code true} si la cámara está en modo event: el evento se graba desde el siguiente fotograma.
+     */
+    @Override
+    public boolean trigger() {
+        return writer.trigger();
+    }
+
+    @Override
+    public CameraState getState() {
+        return state;
+    }
+
+    /**
+     * @return siempre {@code false}: no hay proceso FFmpeg.
+     */
+    @Override
+    public boolean isProcessAlive() {
+        return false;
+    }
+
+    /**
+     * @return siempre -1: no hay proceso FFmpeg, la CPU se gasta en los hilos de ingesta.
+     */
+    @Override
+    public long getProcessCpuMillis() {
+        return -1;
+    }
+
+    /**
+     * @return siempre -1: no hay proceso FFmpeg, la memoria es la de la JVM.
+     */
+    @Override
+    public long getProcessRssBytes() {
+        return -1;
+    }
+
+    @Override
+    public CameraConfig getCameraConfig() {
+        return cameraConfig;
+    }
+
+    @Override
+    public CameraMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,50 @@
+package org.home.sync.recording;
+
+/**
+ * Códecs de origen de una cámara, tal y como los detecta {@link CodecProbe}.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ProbeResult {
+
+    /**
+     * Códec de video de origen (p.ej. {@code h264}), o {@code null} si no hay video.
+     */
+    private final String videoCodec;
+
+    /**
+     * Códec de audio de origen (p.ej. {@code aac}), o {@code null} si no hay audio.
+     */
+    private final String audioCodec;
+
+    /**
+     * Instante (epoch millis) de la detección.
+     */
+    private final long probedAtMillis;
+
+    public ProbeResult(String videoCodec, String audioCodec, long probedAtMillis) {
+        this.videoCodec = videoCodec;
+        this.audioCodec = audioCodec;
+        this.probedAtMillis = probedAtMillis;
+    }
+
+    public String getVideoCodec() {
+        return videoCodec;
+    }
+
+    public String getAudioCodec() {
+        return audioCodec;
+    }
+
+    public long getProbedAtMillis() {
+        return probedAtMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ProbeResult{" +
+                "video=" + videoCodec +
+                ", audio=" + audioCodec +
+                '}';
+    }
+}
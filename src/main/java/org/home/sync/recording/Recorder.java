@@ -0,0 +1,101 @@
+package org.home.sync.recording;
+
+import org.home.sync.config.CameraConfig;
+import org.home.sync.metrics.CameraMetrics;
+
+/**
+ * Graba una cámara. Hay dos implementaciones, que se eligen por cámara con {@link CameraConfig#getEngine()}:
+ * {@link VideoRecorder}, que lanza un proceso FFmpeg, y {@link NativeRecorder}, que lee el RTSP y escribe los
+ * segmentos MPEG-TS dentro de la JVM. En modo activity cualquiera de las dos va dentro de un {@link ActivityRecorder},
+ * que sólo la arranca mientras hay actividad.
+ * <p>
+ * Ninguna ocupa un hilo por cámara: reaccionan a eventos y programan los reintentos en el planificador compartido.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public interface Recorder {
+
+    /**
+     * Arranca la grabación. Vuelve en cuanto se ha pedido la conexión, sin esperar a que empiece a grabar.
+     */
+    void start();
+
+    /**
+     * Pide parar la grabación, sin esperar a que termine.
+     */
+    void stop();
+
+    /**
+     * Espera a que termine la grabación tras un {@link #stop()}. Si llega el plazo, se fuerza.
+     *
+     * @param deadlineNanos instante límite, en la escala de {@link System#nanoTime()}.
+     * @throws InterruptedException si se interrumpe la espera.
+     */
+    void awaitStopped(long deadlineNanos) throws InterruptedException;
+
+    /**
+     * Reinicia una grabación que ha dejado de avanzar aunque siga viva: se mata el proceso o se cierra la sesión y se
+     * vuelve a conectar como tras cualquier otro fallo. Se puede llamar desde cualquier hilo.
+     *
+     * @param reason por qué se considera atascada, para el log.
+     * @return {@code true} si había algo grabando que reiniciar.
+     */
+    boolean recover(String reason);
+
+    /**
+     * Baja un escalón la calidad de la grabación para quitar carga a la máquina: primero deja de transcodificar el
+     * video, si se sabe que el de origen se puede copiar, y después pasa al stream de baja resolución. El cambio se
+     * aplica reiniciando la grabación.
+     *
+     * @return {@code true} si quedaba algún escalón que bajar.
+     */
+    boolean shed();
+
+    /**
+     * Deshace el último escalón de {@link #shed()}.
+     *
+     * @return {@code true} si había alguno que deshacer.
+     */
+    boolean restore();
+
+    /**
+     * Dispara la grabación de un evento, si la cámara está en modo event. Se puede llamar desde cualquier hilo.
+     *
+     * @return {@code true} si se va a grabar el evento, {@code false} si la cámara no graba por eventos.
+     */
+    boolean trigger();
+
+    /**
+     * @return el estado actual de la grabación.
+     */
+    CameraState getState();
+
+    /**
+     * @return {@code true} si hay un proceso FFmpeg vivo grabando la cámara. Siempre {@code false} si no se graba
+     * con FFmpeg.
+     */
+    boolean isProcessAlive();
+
+    /**
+     * @return el tiempo de CPU consumido por el proceso FFmpeg actual, en milisegundos, o -1 si no hay proceso o el
+     * sistema no lo informa.
+     */
+    long getProcessCpuMillis();
+
+    /**
+     * @return la memoria residente del proceso FFmpeg actual, en bytes, o -1 si no hay proceso o el sistema no lo
+     * informa.
+     */
+    long getProcessRssBytes();
+
+    /**
+     * @return la configuración de la cámara.
+     */
+    CameraConfig getCameraConfig();
+
+    /**
+     * @return los contadores de la cámara.
+     */
+    CameraMetrics getMetrics();
+}
@@ -0,0 +1,95 @@
+package org.home.sync.recording;
+
+import org.home.sync.recording.progress.ProgressServer;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Servicios compartidos por todos los {@link Recorder}: los crea una única vez el supervisor y se los pasa a
+ * cada grabador, en lugar de que cada cámara tenga los suyos.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class RecorderServices {
+
+    /**
+     * Planificador compartido donde se programan reintentos y tareas ligeras.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Servidor que recibe el progreso y la lista de segmentos de FFmpeg, o {@code null} si no hay.
+     */
+    private final ProgressServer progressServer;
+
+    /**
+     * Detecta los códecs de origen de las cámaras.
+     */
+    private final CodecProbe codecProbe;
+
+    /**
+     * Reparte las plazas para transcodificar.
+     */
+    private final TranscodeAdmission transcodeAdmission;
+
+    /**
+     * El directorio rápido de los segmentos abiertos.
+     */
+    private final SegmentStaging segmentStaging;
+
+    /**
+     * @param scheduler      el planificador compartido.
+     * @param progressServer el servidor de progreso, o {@code null} si no hay.
+     * @param codecProbe     el detector de códecs.
+     */
+    public RecorderServices(ScheduledExecutorService scheduler, ProgressServer progressServer, CodecProbe codecProbe) {
+        this(scheduler, progressServer, codecProbe, new TranscodeAdmission());
+    }
+
+    /**
+     * @param scheduler          el planificador compartido.
+     * @param progressServer     el servidor de progreso, o {@code null} si no hay.
+     * @param codecProbe         el detector de códecs.
+     * @param transcodeAdmission la admisión de los FFmpeg que transcodifican.
+     */
+    public RecorderServices(ScheduledExecutorService scheduler, ProgressServer progressServer, CodecProbe codecProbe,
+                            TranscodeAdmission transcodeAdmission) {
+        this(scheduler, progressServer, codecProbe, transcodeAdmission, new SegmentStaging());
+    }
+
+    /**
+     * @param scheduler          el planificador compartido.
+     * @param progressServer     el servidor de progreso, o {@code null} si no hay.
+     * @param codecProbe         el detector de códecs.
+     * @param transcodeAdmission la admisión de los FFmpeg que transcodifican.
+     * @param segmentStaging     el directorio rápido de los segmentos abiertos.
+     */
+    public RecorderServices(ScheduledExecutorService scheduler, ProgressServer progressServer, CodecProbe codecProbe,
+                            TranscodeAdmission transcodeAdmission, SegmentStaging segmentStaging) {
+        this.scheduler = scheduler;
+        this.progressServer = progressServer;
+        this.codecProbe = codecProbe;
+        this.transcodeAdmission = transcodeAdmission;
+        this.segmentStaging = segmentStaging;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public ProgressServer getProgressServer() {
+        return progressServer;
+    }
+
+    public CodecProbe getCodecProbe() {
+        return codecProbe;
+    }
+
+    public TranscodeAdmission getTranscodeAdmission() {
+        return transcodeAdmission;
+    }
+
+    public SegmentStaging getSegmentStaging() {
+        return segmentStaging;
+    }
+}
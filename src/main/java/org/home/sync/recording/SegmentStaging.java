@@ -0,0 +1,527 @@
+package org.home.sync.recording;
+
+import org.home.sync.metrics.StagingMetrics;
+import org.home.sync.recording.progress.SegmentListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Almacenamiento en dos niveles: las cámaras escriben el segmento abierto en un directorio rápido (tmpfs o SSD,
+ * propiedad {@code staging.dir}) y un único hilo ("segment-mover") lleva los segmentos cerrados al directorio de la
+ * cámara, el archivo, en tandas.
+ * <p>
+ * Cientos de FFmpeg añadiendo pocos bytes cada uno a su fichero fragmentan un archivo en discos de platos y disparan
+ * su latencia de escritura. Así, el archivo sólo recibe ficheros completos, copiados de principio a fin uno detrás
+ * de otro. Cada tanda junta hasta {@code staging.batchSegments} segmentos (64) o {@code staging.batchMB} MB (64), o lo
+ * que haya llegado en {@code staging.batchMillis} ms (5000) desde el primero. Se copian a ficheros {@code .part}, se
+ * hace un único fsync por fichero al final de la tanda, se renombran a su nombre definitivo y se hace un fsync por
+ * directorio. Sólo entonces se borran del directorio rápido.
+ * </p>
+ * <p>
+ * Todo lo que lee las grabaciones (índice de segmentos, fotogramas clave, HLS, exportación y retención) sigue mirando
+ * el archivo: a quien recibía los segmentos cerrados se le avisa cuando el segmento ya está en el archivo, con los
+ * datos de su cierre. Los segmentos tardan en aparecer como mucho lo que dura una tanda.
+ * </p>
+ * <p>
+ * Cuando el directorio rápido pasa del {@code staging.highWaterPercent}% (70) de uso, las tandas ya no esperan a
+ * llenarse y {@link #isUnderPressure()} lo avisa para que se baje la calidad de las cámaras. Los segmentos que quedan
+ * en el directorio rápido sin avisar (el último de un FFmpeg que se mató) se llevan al archivo cada vez que se
+ * relanza la grabación de la cámara ({@link #sweep(String, long)}), al cerrar y, si se cortó la JVM, la siguiente vez
+ * que empieza a grabar la cámara. Un segmento que ya espera en la cola no se vuelve a encolar.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class SegmentStaging implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(SegmentStaging.class);
+
+    /**
+     * Sufijo de las copias a medias en el archivo. La retención sólo mira los {@code .ts}, así que no las ve.
+     */
+    private static final String PART_SUFFIX = ".part";
+
+    private static final String SEGMENT_GLOB = "*.ts";
+
+    /**
+     * Lo que se espera tras una tanda fallida antes de reintentar sus segmentos.
+     */
+    private static final long RETRY_MILLIS = 5_000;
+
+    /**
+     * Lo que se espera como máximo al cerrar a que se vacíe la cola.
+     */
+    private static final long CLOSE_TIMEOUT_MILLIS = 60_000;
+
+    /**
+     * Margen sobre el relanzamiento con el que se considera que el segmento más reciente no es un huérfano, por si el
+     * sistema de ficheros guarda las fechas con poca resolución.
+     */
+    private static final long SWEEP_MARGIN_MILLIS = 1_000;
+
+    /**
+     * Un segmento cerrado esperando a llevarse al archivo.
+     */
+    private static final class Staged {
+
+        final String camera;
+        final String fileName;
+        final long durationMillis;
+        final long bytes;
+        final long closedAtMillis;
+        final SegmentListener downstream;
+
+        Staged(String camera, String fileName, long durationMillis, long bytes, long closedAtMillis,
+               SegmentListener downstream) {
+            this.camera = camera;
+            this.fileName = fileName;
+            this.durationMillis = durationMillis;
+            this.bytes = bytes;
+            this.closedAtMillis = closedAtMillis;
+            this.downstream = downstream;
+        }
+    }
+
+    /**
+     * El directorio rápido, o {@code null} si no se usa.
+     */
+    private final Path root;
+    private final FileStore store;
+    private final int batchSegments = Math.max(1, Integer.getInteger("staging.batchSegments", 64));
+    private final long batchBytes = Math.max(1, Integer.getInteger("staging.batchMB", 64)) * 1024L * 1024;
+    private final long batchNanos = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("staging.batchMillis", 5000));
+    private final double highWater = Integer.getInteger("staging.highWaterPercent", 70) / 100.0;
+    private final StagingMetrics metrics = new StagingMetrics();
+    private final BlockingQueue<Staged> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /**
+     * Quién recibe los segmentos de cada cámara, para los que se encuentran sin avisar.
+     */
+    private final Map<String, SegmentListener> downstreams = new ConcurrentHashMap<>();
+
+    /**
+     * Segmentos en la cola o en la tanda en curso, como "cámara/fichero", para no encolar dos veces el mismo.
+     */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Cámaras cuyo directorio rápido ya se ha revisado en busca de segmentos de una ejecución anterior.
+     */
+    private final Set<String> recovered = ConcurrentHashMap.newKeySet();
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean pressure;
+
+    /**
+     * Prepara el directorio rápido de la propiedad {@code staging.dir} y arranca el hilo que lleva los segmentos al
+     * archivo. Sin la propiedad, o si no se puede usar el directorio, las cámaras escriben directamente en el archivo.
+     */
+    public SegmentStaging() {
+        String directory = System.getProperty("staging.dir");
+        Path stagingRoot = null;
+        FileStore stagingStore = null;
+        if (directory != null && !directory.isBlank()) {
+            try {
+                stagingRoot = Files.createDirectories(Path.of(directory)).toAbsolutePath().normalize();
+                stagingStore = Files.getFileStore(stagingRoot);
+            } catch (IOException e) {
+                logger.error("No se puede usar el directorio " + directory + " para los segmentos abiertos, se graba"
+                        + " directamente en el archivo", e);
+                stagingRoot = null;
+            }
+        }
+        this.root = stagingRoot;
+        this.store = stagingStore;
+        if (root == null) {
+            this.thread = null;
+            return;
+        }
+        this.thread = new Thread(this::loop, "segment-mover");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Segmentos abiertos en " + root + " (" + store + "), se llevan al archivo en tandas");
+    }
+
+    /**
+     * @return si las cámaras escriben en el directorio rápido.
+     */
+    public boolean isEnabled() {
+        return root != null;
+    }
+
+    /**
+     * @param camera el nombre de la cámara.
+     * @return dónde tiene que escribir la cámara sus segmentos: su directorio en el directorio rápido o, si no se usa,
+     * su directorio en el archivo.
+     */
+    public Path directory(String camera) {
+        return root == null ? Path.of(camera) : root.resolve(camera);
+    }
+
+    /**
+     * Intercepta los segmentos cerrados de una cámara: cada uno se lleva al archivo y sólo entonces se avisa a
+     * {@code downstream}. La primera vez para cada cámara se recogen también los segmentos que quedaron en el
+     * directorio rápido de una ejecución anterior.
+     *
+     * @param camera     el nombre de la cámara.
+     * @param downstream a quién avisar de cada segmento ya en el archivo, o {@code null}.
+     * @return a quién hay que avisar de cada segmento cerrado, o {@code downstream} si no se usa el directorio rápido.
+     */
+    public SegmentListener listener(String camera, SegmentListener downstream) {
+        if (root == null) {
+            return downstream;
+        }
+        if (downstream != null) {
+            downstreams.put(camera, downstream);
+        } else {
+            downstreams.remove(camera);
+        }
+        if (recovered.add(camera)) {
+            for (Staged staged : leftovers(camera, downstream, Long.MAX_VALUE)) {
+                enqueue(staged);
+            }
+        }
+        return (fileName, durationMillis, bytes, closedAtMillis) -> enqueue(
+                new Staged(camera, fileName, durationMillis, bytes, closedAtMillis, downstream));
+    }
+
+    /**
+     * Lleva al archivo los segmentos que un FFmpeg que ya no existe dejó en el directorio rápido de una cámara sin
+     * avisar de su cierre, como el que estaba abierto cuando se mató por atascado. Se llama cada vez que se relanza la
+     * grabación de la cámara. El más reciente se deja si se ha modificado desde poco antes del relanzamiento: es el
+     * que escribe el FFmpeg nuevo o, si el anterior terminó bien, el que está a punto de avisar.
+     *
+     * @param camera      el nombre de la cámara.
+     * @param sinceMillis cuándo se ha relanzado.
+     */
+    public void sweep(String camera, long sinceMillis) {
+        if (root == null) {
+            return;
+        }
+        for (Staged staged : leftovers(camera, downstreams.get(camera), sinceMillis - SWEEP_MARGIN_MILLIS)) {
+            enqueue(staged);
+        }
+    }
+
+    /**
+     * @return si el directorio rápido está por encima de su marca de agua.
+     */
+    public boolean isUnderPressure() {
+        return pressure;
+    }
+
+    /**
+     * @return los contadores del almacenamiento en dos niveles.
+     */
+    public StagingMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void enqueue(Staged staged) {
+        if (pending.add(key(staged))) {
+            requeue(staged);
+        }
+    }
+
+    private void requeue(Staged staged) {
+        queue.add(staged);
+        metrics.setQueued(queue.size(), queuedBytes.addAndGet(staged.bytes));
+    }
+
+    private static String key(Staged staged) {
+        return staged.camera + '/' + staged.fileName;
+    }
+
+    private void loop() {
+        List<Staged> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Staged first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    checkPressure();
+                    continue;
+                }
+                batch.add(first);
+                long bytes = first.bytes;
+                // con el directorio rápido lleno, o al cerrar, no se espera a llenar la tanda
+                boolean hurry = checkPressure() || !running;
+                long deadline = System.nanoTime() + batchNanos;
+                while (batch.size() < batchSegments && bytes < batchBytes) {
+                    long wait = hurry ? 0 : deadline - System.nanoTime();
+                    Staged next = wait <= 0 ? queue.poll() : queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    bytes += next.bytes;
+                }
+                List<Staged> failed = move(batch);
+                long done = 0;
+                for (Staged staged : batch) {
+                    done += staged.bytes;
+                    if (!failed.contains(staged)) {
+                        pending.remove(key(staged));
+                    }
+                }
+                metrics.setQueued(queue.size(), queuedBytes.addAndGet(-done));
+                if (!failed.isEmpty()) {
+                    if (running) {
+                        Thread.sleep(RETRY_MILLIS);
+                    }
+                    // siguen en pending: nadie más los encola mientras se espera
+                    failed.forEach(this::requeue);
+                    if (!running) {
+                        // al cerrar no se reintenta: se quedan en el directorio rápido para la siguiente vez
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Error al llevar segmentos al archivo", e);
+                // se pueden volver a encontrar en el directorio rápido
+                batch.forEach(staged -> pending.remove(key(staged)));
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Lleva una tanda al archivo.
+     *
+     * @return los segmentos que no se han podido llevar.
+     */
+    private List<Staged> move(List<Staged> batch) {
+        long start = System.nanoTime();
+        // por cámara y en orden, para que cada directorio del archivo reciba sus ficheros seguidos
+        batch.sort(Comparator.comparing((Staged s) -> s.camera).thenComparing(s -> s.fileName));
+        List<Staged> failed = new ArrayList<>();
+        List<Staged> copied = new ArrayList<>(batch.size());
+        List<FileChannel> outputs = new ArrayList<>(batch.size());
+        long bytes = 0;
+        try {
+            for (Staged staged : batch) {
+                Path source = root.resolve(staged.camera).resolve(staged.fileName);
+                try {
+                    Path part = Files.createDirectories(Path.of(staged.camera))
+                            .resolve(staged.fileName + PART_SUFFIX);
+                    try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+                        FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                        outputs.add(out);
+                        long size = in.size();
+                        for (long position = 0; position < size; ) {
+                            position += in.transferTo(position, size - position, out);
+                        }
+                        bytes += size;
+                    }
+                    copied.add(staged);
+                } catch (NoSuchFileException e) {
+                    // ya llevado (segmento de una ejecución anterior avisado dos veces) o borrado a mano
+                } catch (IOException e) {
+                    metrics.recordFailedMove();
+                    failed.add(staged);
+                    logger.warn("No se puede llevar al archivo el segmento " + source + ": " + e);
+                }
+            }
+            // un único fsync por fichero al final de la tanda: el disco recibe toda la tanda de una vez
+            for (FileChannel out : outputs) {
+                out.force(true);
+            }
+        } catch (IOException e) {
+            for (Staged staged : copied) {
+                metrics.recordFailedMove();
+                failed.add(staged);
+            }
+            logger.warn("No se puede sincronizar en el archivo una tanda de " + copied.size() + " segmentos: " + e);
+            return failed;
+        } finally {
+            for (FileChannel out : outputs) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ya se ha sincronizado o ya ha fallado
+                }
+            }
+        }
+        Set<Path> directories = new LinkedHashSet<>();
+        int moved = 0;
+        for (Staged staged : copied) {
+            Path directory = Path.of(staged.camera);
+            try {
+                rename(directory.resolve(staged.fileName + PART_SUFFIX), directory.resolve(staged.fileName));
+                directories.add(directory);
+                moved++;
+            } catch (IOException e) {
+                metrics.recordFailedMove();
+                failed.add(staged);
+                logger.warn("No se puede renombrar en el archivo el segmento " + staged.fileName + ": " + e);
+                continue;
+            }
+            try {
+                Files.deleteIfExists(root.resolve(staged.camera).resolve(staged.fileName));
+            } catch (IOException e) {
+                logger.warn("No se puede borrar el segmento " + staged.fileName + " del directorio rápido: " + e);
+            }
+        }
+        for (Path directory : directories) {
+            syncDirectory(directory);
+        }
+        for (Staged staged : copied) {
+            if (staged.downstream != null && !failed.contains(staged)) {
+                staged.downstream.onSegmentClosed(staged.fileName, staged.durationMillis, staged.bytes,
+                        staged.closedAtMillis);
+            }
+        }
+        if (moved > 0) {
+            metrics.recordBatch(moved, bytes, System.nanoTime() - start);
+        }
+        return failed;
+    }
+
+    private static void rename(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Sincroniza las entradas de un directorio (los renombrados), donde el sistema lo permite.
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // no todos los sistemas permiten abrir un directorio
+        }
+    }
+
+    /**
+     * @return si el directorio rápido está por encima de su marca de agua.
+     */
+    private boolean checkPressure() {
+        double used;
+        try {
+            long total = store.getTotalSpace();
+            used = total == 0 ? 0 : (total - store.getUsableSpace()) / (double) total;
+        } catch (IOException e) {
+            used = -1;
+        }
+        metrics.setUsed(used);
+        boolean full = used >= highWater;
+        if (full != pressure) {
+            if (full) {
+                logger.warn("El directorio rápido está al " + Math.round(used * 100) + "%, se vacía sin esperar");
+            } else {
+                logger.info("El directorio rápido vuelve a estar al " + Math.round(used * 100) + "%");
+            }
+            pressure = full;
+        }
+        return full;
+    }
+
+    /**
+     * Busca los segmentos que hay en el directorio rápido de una cámara sin que se haya avisado de su cierre. Su
+     * duración se deduce de la fecha de modificación del anterior; al primero no se le conoce.
+     *
+     * @param keepNewerThanMillis el más reciente se deja si se ha modificado después de este instante.
+     */
+    private List<Staged> leftovers(String camera, SegmentListener downstream, long keepNewerThanMillis) {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root.resolve(camera), SEGMENT_GLOB)) {
+            stream.forEach(files::add);
+        } catch (NoSuchFileException e) {
+            return List.of();
+        } catch (IOException e) {
+            logger.warn("No se puede revisar el directorio rápido de la camara " + camera + ": " + e);
+            return List.of();
+        }
+        files.sort(Comparator.comparing(Path::getFileName));
+        List<Staged> found = new ArrayList<>(files.size());
+        long previousModified = 0;
+        for (Path file : files) {
+            try {
+                long modified = Files.getLastModifiedTime(file).toMillis();
+                long duration = previousModified > 0 && modified > previousModified
+                        && modified - previousModified <= TimeUnit.HOURS.toMillis(1) ? modified - previousModified : 0;
+                found.add(new Staged(camera, file.getFileName().toString(), duration, Files.size(file), modified,
+                        downstream));
+                previousModified = modified;
+            } catch (IOException e) {
+                // borrado mientras se recorría
+            }
+        }
+        if (!found.isEmpty() && found.get(found.size() - 1).closedAtMillis > keepNewerThanMillis) {
+            found.remove(found.size() - 1);
+        }
+        if (!found.isEmpty()) {
+            logger.info("La camara " + camera + " tiene " + found.size()
+                    + " segmentos en el directorio rápido de un FFmpeg anterior, se llevan al archivo");
+        }
+        return found;
+    }
+
+    /**
+     * Vacía la cola y lleva al archivo los segmentos que quedan en el directorio rápido. Hay que llamarlo cuando ya no
+     * graba ninguna cámara.
+     */
+    @Override
+    public void close() {
+        if (root == null || !running) {
+            return;
+        }
+        running = false;
+        try {
+            thread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (thread.isAlive()) {
+            logger.warn("Quedan " + queue.size() + " segmentos en el directorio rápido sin llevar al archivo");
+            return;
+        }
+        List<Staged> remaining = new ArrayList<>();
+        try (DirectoryStream<Path> cameras = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path directory : cameras) {
+                String camera = directory.getFileName().toString();
+                remaining.addAll(leftovers(camera, downstreams.get(camera), Long.MAX_VALUE));
+            }
+        } catch (IOException e) {
+            logger.warn("No se puede revisar el directorio rápido " + root + ": " + e);
+        }
+        if (!remaining.isEmpty()) {
+            move(remaining);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.home.sync.recording;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Construye el argumento de salida del muxer {@code tee} de FFmpeg: una lista de salidas ("slaves") separadas por
+ * {@code |}, cada una con sus opciones entre corchetes, p.ej.
+ * {@code [f=segment:segment_time=300]camara/output_%03d.ts|[f=rtsp:onfail=ignore]rtsp://127.0.0.1:8554/camara}.
+ * <p>
+ * Con {@code tee} FFmpeg lee la cámara una única vez y escribe el mismo paquete en todas las salidas, y cada salida
+ * tiene su propia política de fallo. Los valores de las opciones se escapan para que los {@code :} de una URL no se
+ * confundan con el separador de opciones.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+class TeeOutput {
+
+    /**
+     * Caracteres con significado especial en la especificación de una salida de {@code tee}.
+     */
+    private static final String SPECIAL_CHARACTERS = "\\:=|[]'";
+
+    private final List<String> slaves = new ArrayList<>();
+
+    /**
+     * Añade una salida.
+     *
+     * @param options las opciones de la salida ({@code f}, {@code onfail}, opciones del muxer...), en orden.
+     * @param target  el fichero o la URL de la salida.
+     * @return esta misma instancia.
+     */
+    TeeOutput add(Map<String, String> options, String target) {
+        StringBuilder slave = new StringBuilder();
+        if (!options.isEmpty()) {
+            slave.append('[');
+            boolean first = true;
+            for (Map.Entry<String, String> option : options.entrySet()) {
+                if (!first) {
+                    slave.append(':');
+                }
+                slave.append(option.getKey()).append('=').append(escape(option.getValue()));
+                first = false;
+            }
+            slave.append(']');
+        }
+        slaves.add(slave.append(target).toString());
+        return this;
+    }
+
+    /**
+     * @return el argumento completo, listo para pasarlo a FFmpeg tras {@code -f tee}.
+     */
+    String build() {
+        return String.join("|", slaves);
+    }
+
+    /**
+     * Une varias opciones en el formato {@code clave=valor:clave=valor} que usan las opciones anidadas como
+     * {@code fifo_options}.
+     *
+     * @param options las opciones.
+     * @return el valor de la opción anidada (se escapará al añadirlo a una salida).
+     */
+    static String nested(Map<String, String> options) {
+        StringBuilder value = new StringBuilder();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (value.length() > 0) {
+                value.append(':');
+            }
+            value.append(option.getKey()).append('=').append(option.getValue());
+        }
+        return value.toString();
+    }
+
+    /**
+     * @return un mapa vacío que conserva el orden de inserción, para construir las opciones.
+     */
+    static Map<String, String> options() {
+        return new LinkedHashMap<>();
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (SPECIAL_CHARACTERS.indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,331 @@
+package org.home.sync.recording;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Limita cuántos FFmpeg transcodifican video a la vez y reparte entre ellos la CPU.
+ * <p>
+ * Transcodificar cuesta uno o varios núcleos por cámara; copiar, casi nada. Sin límite, unas pocas cámaras que
+ * transcodifican pueden dejar sin CPU a las que copian y a la propia JVM. Por eso cada FFmpeg que transcodifica
+ * necesita una de las {@link #MAX_CONCURRENT} plazas (propiedad {@code transcode.maxConcurrent}; por defecto la mitad
+ * de los núcleos, 0 sin límite). Cada plaza tiene asignado su trozo de los núcleos de {@code transcode.cpus} (por
+ * defecto todos menos el 0, que queda para la JVM y las cámaras que copian) y FFmpeg se lanza con
+ * {@code nice -n <transcode.nice> taskset -c <núcleos>}, si el sistema tiene esas herramientas. FFmpeg ajusta sus
+ * hilos a los núcleos que tiene permitidos.
+ * </p>
+ * <p>
+ * Si no quedan plazas, la cámara espera en una cola ordenada por {@link org.home.sync.config.CameraConfig#getPriority()}
+ * y, a igual prioridad, por orden de llegada. Las plazas se liberan cuando termina el proceso y pasan directamente a
+ * la primera de la cola. Quien decide si esperar o copiar en su lugar es el grabador.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class TranscodeAdmission {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(TranscodeAdmission.class);
+
+    /**
+     * Núcleos de la máquina.
+     */
+    private static final int CPUS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Plazas de transcodificación, o 0 si no hay límite.
+     */
+    public static final int MAX_CONCURRENT = Math.max(0,
+            Integer.getInteger("transcode.maxConcurrent", Math.max(1, CPUS / 2)));
+
+    /**
+     * Prioridad ({@code nice}) de los FFmpeg que transcodifican.
+     */
+    public static final int NICE = Integer.getInteger("transcode.nice", 10);
+
+    /**
+     * Una plaza de transcodificación concedida.
+     */
+    public static final class Slot {
+
+        private final int index;
+        private final String cpus;
+
+        private Slot(int index, String cpus) {
+            this.index = index;
+            this.cpus = cpus;
+        }
+
+        /**
+         * @return los núcleos asignados, en formato de {@code taskset -c}, o {@code null} si no se fija afinidad.
+         */
+        public String getCpus() {
+            return cpus;
+        }
+
+        @Override
+        public String toString() {
+            return "plaza " + index + (cpus == null ? "" : " (núcleos " + cpus + ")");
+        }
+    }
+
+    /**
+     * Una cámara esperando plaza.
+     */
+    private static final class Waiter {
+
+        final String camera;
+        final int priority;
+        final long sequence;
+        final Consumer<Slot> onGranted;
+
+        Waiter(String camera, int priority, long sequence, Consumer<Slot> onGranted) {
+            this.camera = camera;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.onGranted = onGranted;
+        }
+    }
+
+    private final int maxConcurrent;
+    private final String[] slotCpus;
+    private final List<String> nicePrefix;
+    private final boolean[] taken;
+    private final PriorityQueue<Waiter> queue = new PriorityQueue<>(
+            Comparator.comparingInt((Waiter w) -> -w.priority).thenComparingLong(w -> w.sequence));
+    private long sequence;
+    private int running;
+    private final LongAdder copyFallbacks = new LongAdder();
+
+    /**
+     * Crea la admisión con la configuración de las propiedades de sistema.
+     */
+    public TranscodeAdmission() {
+        this(MAX_CONCURRENT, parseCpus(System.getProperty("transcode.cpus", CPUS > 2 ? "1-" + (CPUS - 1) : "")),
+                NICE, isLinuxToolAvailable("taskset"), isLinuxToolAvailable("nice"));
+    }
+
+    /**
+     * @param maxConcurrent plazas, o 0 si no hay límite.
+     * @param cpus          núcleos que se reparten entre las plazas; vacío para no fijar afinidad.
+     * @param nice          prioridad de los FFmpeg que transcodifican.
+     * @param taskset       si se puede usar {@code taskset}.
+     * @param niceAvailable si se puede usar {@code nice}.
+     */
+    TranscodeAdmission(int maxConcurrent, int[] cpus, int nice, boolean taskset, boolean niceAvailable) {
+        this.maxConcurrent = maxConcurrent;
+        this.taken = new boolean[maxConcurrent];
+        this.slotCpus = new String[Math.max(1, maxConcurrent)];
+        if (taskset && cpus.length > 0) {
+            // con más plazas que núcleos, varias comparten núcleo
+            int perSlot = Math.max(1, cpus.length / slotCpus.length);
+            for (int i = 0; i < slotCpus.length; i++) {
+                StringBuilder list = new StringBuilder();
+                for (int j = 0; j < perSlot; j++) {
+                    if (j > 0) {
+                        list.append(',');
+                    }
+                    list.append(cpus[(i * perSlot + j) % cpus.length]);
+                }
+                slotCpus[i] = list.toString();
+            }
+        }
+        this.nicePrefix = niceAvailable && nice != 0 ? List.of("nice", "-n", String.valueOf(nice)) : List.of();
+        logger.info("Transcodificación: " + (maxConcurrent == 0 ? "sin límite" : maxConcurrent + " a la vez")
+                + (slotCpus[0] == null ? ", sin afinidad" : ", núcleos " + Arrays.toString(slotCpus))
+                + (nicePrefix.isEmpty() ? "" : ", nice " + nice));
+    }
+
+    /**
+     * Pide una plaza para transcodificar.
+     *
+     * @param camera    el nombre de la cámara.
+     * @param priority  su prioridad: las de mayor prioridad pasan antes en la cola.
+     * @param onGranted a quien se entrega la plaza si hay que esperarla, o {@code null} para no ponerse a la cola. Se
+     *                  llama sin bloqueos tomados, desde el hilo que libera la plaza; si para entonces ya no la quiere,
+     *                  tiene que {@link #release(Slot) liberarla}.
+     * @return la plaza, o {@code null} si no hay ninguna libre (o hay cámaras esperando).
+     */
+    public synchronized Slot acquire(String camera, int priority, Consumer<Slot> onGranted) {
+        removeWaiter(camera);
+        Slot slot = queue.isEmpty() ? take() : null;
+        if (slot == null && onGranted != null) {
+            queue.add(new Waiter(camera, priority, sequence++, onGranted));
+        }
+        return slot;
+    }
+
+    /**
+     * Libera una plaza. Si hay cámaras esperando, pasa a la primera.
+     *
+     * @param slot la plaza; {@code null} no hace nada.
+     */
+    public void release(Slot slot) {
+        if (slot == null) {
+            return;
+        }
+        Waiter next;
+        synchronized (this) {
+            next = queue.poll();
+            if (next == null) {
+                if (maxConcurrent > 0) {
+                    taken[slot.index] = false;
+                }
+                running--;
+                return;
+            }
+        }
+        logger.info("La camara " + next.camera + " pasa a transcodificar en la " + slot);
+        next.onGranted.accept(slot);
+    }
+
+    /**
+     * Saca a una cámara de la cola, p.ej. porque se para.
+     *
+     * @param camera el nombre de la cámara.
+     */
+    public synchronized void cancel(String camera) {
+        removeWaiter(camera);
+    }
+
+    /**
+     * Registra que una cámara copia el video porque no había plaza para transcodificarlo.
+     */
+    public void recordCopyFallback() {
+        copyFallbacks.increment();
+    }
+
+    /**
+     * Añade delante del comando {@code nice} y {@code taskset} con la CPU de la plaza.
+     *
+     * @param slot    la plaza.
+     * @param command el comando de FFmpeg.
+     * @return el comando que hay que lanzar.
+     */
+    public List<String> wrap(Slot slot, List<String> command) {
+        if (nicePrefix.isEmpty() && slot.cpus == null) {
+            return command;
+        }
+        // nice y taskset hacen exec: el proceso lanzado es el propio FFmpeg, con el mismo pid
+        List<String> wrapped = new ArrayList<>(command.size() + 6);
+        wrapped.addAll(nicePrefix);
+        if (slot.cpus != null) {
+            wrapped.add("taskset");
+            wrapped.add("-c");
+            wrapped.add(slot.cpus);
+        }
+        wrapped.addAll(command);
+        return wrapped;
+    }
+
+    /**
+     * @return FFmpeg transcodificando ahora mismo.
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * @return cámaras esperando plaza.
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return veces que una cámara ha copiado el video porque no había plaza.
+     */
+    public long getCopyFallbacks() {
+        return copyFallbacks.sum();
+    }
+
+    /**
+     * @return plazas, o 0 si no hay límite.
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    private Slot take() {
+        if (maxConcurrent == 0) {
+            running++;
+            return new Slot(running % slotCpus.length, slotCpus[0]);
+        }
+        for (int i = 0; i < taken.length; i++) {
+            if (!taken[i]) {
+                taken[i] = true;
+                running++;
+                return new Slot(i, slotCpus[i]);
+            }
+        }
+        return null;
+    }
+
+    private void removeWaiter(String camera) {
+        for (Iterator<Waiter> it = queue.iterator(); it.hasNext(); ) {
+            if (it.next().camera.equals(camera)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Lee una lista de núcleos como la de {@code taskset -c}: {@code 1-3,6}.
+     *
+     * @param list la lista.
+     * @return los núcleos, vacío si la lista está vacía o no es válida.
+     */
+    static int[] parseCpus(String list) {
+        List<Integer> cpus = new ArrayList<>();
+        try {
+            for (String part : list.split(",")) {
+                part = part.trim();
+                if (part.isEmpty()) {
+                    continue;
+                }
+                int dash = part.indexOf('-');
+                int from = Integer.parseInt(dash < 0 ? part : part.substring(0, dash).trim());
+                int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1).trim());
+                for (int cpu = from; cpu <= to; cpu++) {
+                    cpus.add(cpu);
+                }
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("Lista de núcleos no válida en transcode.cpus: " + list + ", no se fija afinidad");
+            return new int[0];
+        }
+        return cpus.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return si la herramienta está en el PATH de un Linux.
+     */
+    private static boolean isLinuxToolAvailable(String tool) {
+        if (!System.getProperty("os.name", "").toLowerCase().contains("linux")) {
+            return false;
+        }
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return false;
+        }
+        for (String directory : path.split(File.pathSeparator)) {
+            if (new File(directory, tool).canExecute()) {
+                return true;
+            }
+        }
+        logger.warn(tool + " no está en el PATH, los FFmpeg que transcodifican se lanzan sin él");
+        return false;
+    }
+}
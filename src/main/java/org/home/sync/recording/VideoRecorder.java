@@ -1,22 +1,42 @@
 package org.home.sync.recording;
 
 import org.home.sync.config.CameraConfig;
+import org.home.sync.config.RTSPCloneConfig;
+import org.home.sync.metrics.CameraMetrics;
+import org.home.sync.metrics.ProcessSampler;
+import org.home.sync.recording.progress.ProgressServer;
+import org.home.sync.relay.RelayPath;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 
 /**
  * La clase {@code VideoRecorder} es responsable de capturar el stream RTSP desde una cámara IP
  * y guardar ese stream en archivos segmentados en el disco.
- * Implementa la interfaz {@code Runnable} para permitir la ejecución del proceso de grabación en un hilo separado.
+ * <p>
+ * No ocupa ningún hilo mientras graba: lanza el proceso FFmpeg, redirige sus avisos y errores a un fichero de log
+ * dentro del directorio de la cámara, envía su progreso al {@link ProgressServer} y reacciona a la salida del proceso mediante {@link Process#onExit()}. Los
+ * reintentos se programan en el {@link ScheduledExecutorService} compartido que le pasa el supervisor.
+ * </p>
+ * <p>
+ * Cualquier salida de FFmpeg (error, cámara reiniciada, fin del stream) provoca un nuevo intento, sin recursión:
+ * la espera la calcula un {@link BackoffPolicy} con jitter y, si la cámara falla demasiadas veces seguidas,
+ * el {@link CircuitBreaker} la aparca ({@link CameraState#PARKED}) durante un periodo largo.
+ * </p>
  * <p>
  * Esta clase utiliza FFmpeg para realizar la conversión y segmentación del stream, y guarda los fragmentos
  * en el formato MPEG-TS.
@@ -28,7 +48,7 @@ import org.slf4j.Logger;
  *
  * @author Carlos Noe Muñoz (cnoemunoz@gmail.com)
  */
-public class VideoRecorder implements Runnable {
+public class VideoRecorder implements Recorder {
 
     /**
      * El logger.
@@ -41,9 +61,159 @@ public class VideoRecorder implements Runnable {
     private final CameraConfig cameraConfig;
 
     /**
-     * Comando para invocar FFmpeg.
+     * Planificador compartido por todas las cámaras, donde se programan los reintentos.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Servidor que recibe el progreso de FFmpeg, o {@code null} si no hay.
+     */
+    private final ProgressServer progressServer;
+
+    /**
+     * Detector de códecs de origen, compartido por todas las cámaras.
+     */
+    private final CodecProbe codecProbe;
+    /**
+     * Reparte las plazas para transcodificar entre todas las cámaras.
+     */
+    private final TranscodeAdmission admission;
+    /**
+     * Directorio rápido donde se escriben los segmentos abiertos, compartido por todas las cámaras.
+     */
+    private final SegmentStaging staging;
+    /**
+     * Plaza de transcodificación del proceso actual, o {@code null} si copia el video.
+     */
+    private TranscodeAdmission.Slot slot;
+    /**
+     * Si la cámara está en la cola esperando plaza para transcodificar.
+     */
+    private boolean waitingForSlot;
+    /**
+     * Códecs pedidos en el último lanzamiento, antes de aplicar la admisión y el recorte de carga.
+     */
+    private CodecSelection lastCodecs;
+    /**
+     * Si se copia el video para quitar carga a la máquina.
+     */
+    private boolean shedTranscode;
+    /**
+     * Si se graba el stream de baja resolución para quitar carga a la máquina.
+     */
+    private boolean shedStream;
+    /**
+     * Si el proceso actual se ha parado para relanzarlo con otra calidad: su salida no cuenta como fallo.
+     */
+    private boolean relaunchRequested;
+
+    /**
+     * Ruta del relay integrado donde se replica la cámara, o {@code null} si se replica en servidores externos o no
+     * se replica.
+     */
+    private final RelayPath relay;
+
+    /**
+     * Estado actual de la grabación.
+     */
+    private volatile CameraState state = CameraState.STOPPED;
+
+    /**
+     * Proceso FFmpeg en curso, o {@code null} si no hay ninguno.
+     */
+    private volatile Process process;
+
+    /**
+     * Indica si se ha pedido parar la grabación, para no volver a lanzar el proceso.
      */
-    public static final String FFMPEG_COMMAND = "ffmpeg";
+    private volatile boolean stopRequested;
+
+    /**
+     * Espera entre reintentos, exponencial y con jitter.
+     */
+    private final BackoffPolicy backoff = new BackoffPolicy();
+
+    /**
+     * Aparca la cámara cuando falla demasiadas veces seguidas.
+     */
+    private final CircuitBreaker breaker = new CircuitBreaker();
+
+    /**
+     * Contadores de la cámara (reinicios, latencias...).
+     */
+    private final CameraMetrics metrics;
+
+    /**
+     * Reintento programado, si lo hay.
+     */
+    private ScheduledFuture<?> pendingRestart;
+
+    /**
+     * Instante ({@link System#nanoTime()}) en el que se lanzó el proceso actual.
+     */
+    private long startedAtNanos;
+
+    /**
+     * Instante ({@link System#nanoTime()}) en el que terminó el último proceso, o 0 si la cámara está sana.
+     * Sirve para medir la latencia de reinicio.
+     */
+    private long lastExitNanos;
+
+    /**
+     * Comando para invocar FFmpeg. Se puede sobrescribir con la propiedad de sistema {@code ffmpeg.path}
+     * si el binario no está en el PATH.
+     */
+    public static final String FFMPEG_COMMAND = System.getProperty("ffmpeg.path", "ffmpeg");
+
+    /**
+     * Nombre del fichero, dentro del directorio de la cámara, donde se vuelca la salida de FFmpeg.
+     */
+    public static final String FFMPEG_LOG_FILE = "ffmpeg.log";
+
+    /**
+     * Segundos que tiene que seguir vivo FFmpeg para dar la ejecución por sana y olvidar los fallos anteriores.
+     */
+    public static final long HEALTHY_RUN_SECONDS = 60;
+
+    /**
+     * Segundos que se espera a que FFmpeg termine tras pedirle que pare, antes de matarlo.
+     */
+    public static final long STOP_TIMEOUT_SECONDS = 5;
+
+    /**
+     * Flag para que FFmpeg no escriba la línea de estadísticas en su salida.
+     */
+    public static final String NO_STATS_FLAG = "-nostats";
+
+    /**
+     * Flag para definir el nivel de log de FFmpeg.
+     */
+    public static final String LOG_LEVEL_FLAG = "-loglevel";
+
+    /**
+     * Nivel de log: sólo avisos y errores, con el nivel marcado en cada línea para poder clasificarla.
+     */
+    public static final String LOG_LEVEL_VALUE = "level+warning";
+
+    /**
+     * Flag para indicar dónde envía FFmpeg su progreso en formato clave=valor.
+     */
+    public static final String PROGRESS_FLAG = "-progress";
+
+    /**
+     * Flag para indicar dónde escribe el muxer segment la lista de segmentos cerrados.
+     */
+    public static final String SEGMENT_LIST_FLAG = "-segment_list";
+
+    /**
+     * Flag para definir el formato de la lista de segmentos.
+     */
+    public static final String SEGMENT_LIST_TYPE_FLAG = "-segment_list_type";
+
+    /**
+     * Formato de la lista de segmentos: una línea {@code fichero,inicio,fin} por segmento.
+     */
+    public static final String SEGMENT_LIST_TYPE_VALUE = "csv";
 
     /**
      * Flag para indicar la URL de entrada.
@@ -80,6 +250,72 @@ public class VideoRecorder implements Runnable {
      */
     public static final String RTSP_TRANSPORT_FLAG = "-rtsp_transport";
 
+    /**
+     * Formato de la grabación por segmentos.
+     */
+    public static final String SEGMENT_FORMAT = "segment";
+
+    /**
+     * Nombre de los segmentos: fecha y hora en UTC en que empieza cada uno (formato {@code strftime}).
+     */
+    public static final String SEGMENT_FILE_PATTERN = "%Y%m%d-%H%M%S.ts";
+
+    /**
+     * Zona horaria de la fecha en el nombre de los segmentos. En UTC, porque con la hora local los nombres de la hora
+     * que se repite al retrasar el reloj coinciden con los de la anterior y FFmpeg los sobrescribiría.
+     */
+    public static final ZoneId SEGMENT_ZONE = ZoneOffset.UTC;
+
+    /**
+     * Flag para que el muxer segment interprete el nombre de salida como un patrón {@code strftime}.
+     */
+    public static final String STRFTIME_FLAG = "-strftime";
+
+    /**
+     * Activa {@link #STRFTIME_FLAG}.
+     */
+    public static final String STRFTIME_VALUE = "1";
+
+    /**
+     * Flag para elegir los streams de la entrada que van a la salida. Con {@code tee} hay que indicarlos.
+     */
+    public static final String MAP_FLAG = "-map";
+
+    /**
+     * Todos los streams de video de la entrada.
+     */
+    public static final String MAP_VIDEO_VALUE = "0:v";
+
+    /**
+     * Todos los streams de audio de la entrada, si los hay.
+     */
+    public static final String MAP_AUDIO_VALUE = "0:a?";
+
+    /**
+     * Muxer que reparte la misma lectura entre varias salidas.
+     */
+    public static final String TEE_FORMAT = "tee";
+
+    /**
+     * Opción de {@code tee} con el formato de cada salida.
+     */
+    public static final String TEE_FORMAT_OPTION = "f";
+
+    /**
+     * Opción de {@code tee} con lo que hacer si falla una salida.
+     */
+    public static final String TEE_ONFAIL_OPTION = "onfail";
+
+    /**
+     * Si falla la salida, FFmpeg termina.
+     */
+    public static final String TEE_ONFAIL_ABORT = "abort";
+
+    /**
+     * Si falla la salida, se descarta y el resto sigue.
+     */
+    public static final String TEE_ONFAIL_IGNORE = "ignore";
+
     /**
      * Por si queremos duplicar la retransmisión rtsp,
      * Indica que el códec no debe cambiarse, copiando el flujo tal como está de video
@@ -95,52 +331,409 @@ public class VideoRecorder implements Runnable {
     /**
      * Construcción de un StreamToDiskSaver a partir de un CameraConnectionInfo
      * @param cameraConfig el CameraConnectionInfo
+     * @param services los servicios compartidos por todas las cámaras.
      */
-    public VideoRecorder(CameraConfig cameraConfig) {
+    public VideoRecorder(CameraConfig cameraConfig, RecorderServices services) {
+        this(cameraConfig, services, null);
+    }
+
+    /**
+     * @param cameraConfig la configuración de la cámara.
+     * @param services     los servicios compartidos por todas las cámaras.
+     * @param relay        la ruta del relay integrado donde se replica, o {@code null}.
+     */
+    public VideoRecorder(CameraConfig cameraConfig, RecorderServices services, RelayPath relay) {
         this.cameraConfig = cameraConfig;
+        this.relay = relay;
+        this.scheduler = services.getScheduler();
+        this.progressServer = services.getProgressServer();
+        this.codecProbe = services.getCodecProbe();
+        this.admission = services.getTranscodeAdmission();
+        this.staging = services.getSegmentStaging();
+        this.metrics = new CameraMetrics(cameraConfig.getName());
+    }
+
+    /**
+     * Arranca la grabación. El método vuelve en cuanto el proceso FFmpeg está lanzado.
+     */
+    @Override
+    public synchronized void start() {
+        stopRequested = false;
+        state = CameraState.STARTING;
+        recordStream();
+    }
+
+    /**
+     * Para la grabación. Se pide a FFmpeg que termine y, si no lo hace en {@link #STOP_TIMEOUT_SECONDS},
+     * se mata el proceso.
+     */
+    @Override
+    public synchronized void stop() {
+        stopRequested = true;
+        if (waitingForSlot) {
+            waitingForSlot = false;
+            admission.cancel(cameraConfig.getName());
+        }
+        if (pendingRestart != null) {
+            pendingRestart.cancel(false);
+            pendingRestart = null;
+        }
+        Process current = process;
+        if (current == null || !current.isAlive()) {
+            state = CameraState.STOPPED;
+            return;
+        }
+        current.destroy();
+        scheduler.schedule(() -> {
+            if (current.isAlive()) {
+                logger.warn("FFmpeg de la camara " + cameraConfig.getName() + " no ha terminado, se fuerza su parada");
+                current.destroyForcibly();
+            }
+        }, STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Espera a que termine el proceso FFmpeg tras un {@link #stop()}. Si llega el plazo y sigue vivo, se mata.
+     *
+     * @param deadlineNanos instante límite, en la escala de {@link System#nanoTime()}.
+     * @throws InterruptedException si se interrumpe la espera.
+     */
+    @Override
+    public void awaitStopped(long deadlineNanos) throws InterruptedException {
+        Process current = process;
+        if (current == null) {
+            return;
+        }
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining <= 0 || !current.waitFor(remaining, TimeUnit.NANOSECONDS)) {
+            current.destroyForcibly();
+        }
+    }
+
+    /**
+     * Encargado de lanzar el proceso que recupera los datos del stream y los vuelca
+     * en el fichero de salida que le hemos indicado. Si los códecs están en automático, antes se detectan los de
+     * origen (sin bloquear: el lanzamiento se hace cuando termina la detección).
+     */
+    private synchronized void recordStream() {
+        pendingRestart = null;
+        if (stopRequested) {
+            state = CameraState.STOPPED;
+            return;
+        }
+        if (breaker.getState() == CircuitBreaker.State.OPEN) {
+            breaker.halfOpen();
+            logger.info("Probando de nuevo la camara aparcada " + cameraConfig.getName());
+        }
+        if (!CodecSelection.needsProbe(cameraConfig)) {
+            launch(CodecSelection.resolve(cameraConfig, null));
+            return;
+        }
+        codecProbe.probe(cameraConfig).whenComplete((probe, error) -> {
+            if (error != null) {
+                logger.warn("No se pueden detectar los códecs de la camara " + cameraConfig.getName()
+                        + ", se transcodifica: " + error.getMessage());
+            }
+            scheduler.execute(() -> launch(CodecSelection.resolve(cameraConfig, error == null ? probe : null)));
+        });
+    }
+
+    /**
+     * Lanza FFmpeg con los códecs indicados. Si hay que transcodificar, antes se pide plaza a la
+     * {@link TranscodeAdmission}; si no la hay, se copia el video cuando se sabe que el de origen se puede copiar, y si
+     * no, se espera en la cola.
+     *
+     * @param codecs los códecs de salida.
+     */
+    private synchronized void launch(CodecSelection codecs) {
+        if (stopRequested) {
+            state = CameraState.STOPPED;
+            return;
+        }
+        lastCodecs = codecs;
+        if (shedTranscode && codecs.withVideoCopy() != null) {
+            codecs = codecs.withVideoCopy();
+        }
+        if (codecs.isVideoCopy()) {
+            launch(codecs, null);
+            return;
+        }
+        CodecSelection transcode = codecs;
+        CodecSelection copy = codecs.withVideoCopy();
+        TranscodeAdmission.Slot granted = admission.acquire(cameraConfig.getName(), cameraConfig.getPriority(),
+                copy != null ? null : next -> scheduler.execute(() -> launchAdmitted(transcode, next)));
+        if (granted != null) {
+            launch(codecs, granted);
+        } else if (copy != null) {
+            admission.recordCopyFallback();
+            logger.info("No hay plaza para transcodificar la camara " + cameraConfig.getName() + ", se copia el video");
+            launch(copy, null);
+        } else {
+            waitingForSlot = true;
+            state = CameraState.STARTING;
+            logger.info("La camara " + cameraConfig.getName() + " espera plaza para transcodificar");
+        }
     }
 
     /**
-     * Encargado de realizar el proceso de recuperar los datos del stream, y volcarlos
-     * en el fichero de salida que le hemos indicado.
-     * @throws IOException
+     * Lanza FFmpeg con la plaza que ha quedado libre, si la cámara sigue esperándola.
+     *
+     * @param codecs  los códecs de salida.
+     * @param granted la plaza.
      */
-    private void recordStream()
-    throws IOException {
+    private synchronized void launchAdmitted(CodecSelection codecs, TranscodeAdmission.Slot granted) {
+        if (!waitingForSlot || stopRequested) {
+            admission.release(granted);
+            return;
+        }
+        waitingForSlot = false;
+        admission.cancel(cameraConfig.getName());
+        launch(codecs, granted);
+    }
+
+    /**
+     * Lanza FFmpeg. Si no se puede lanzar, se libera la plaza y se programa un reintento.
+     *
+     * @param codecs  los códecs de salida.
+     * @param granted la plaza de transcodificación, o {@code null} si se copia el video.
+     */
+    private void launch(CodecSelection codecs, TranscodeAdmission.Slot granted) {
         String rtspUrl = cameraConfig.getRtspUrl();
-        String outputPattern = cameraConfig.getName() + "/output_%03d.ts";  // Usamos el formato .ts
+        // Con el muxer segment cada fichero lleva la fecha y hora en que empieza, así nunca se sobrescriben.
+        // El log de FFmpeg va siempre al directorio de la cámara; los segmentos, al rápido si se usa.
+        Path output = isStaged() ? staging.directory(cameraConfig.getName()) : Path.of(cameraConfig.getName());
+        String outputPattern = output + "/"
+                + (isSegmentFormat() ? SEGMENT_FILE_PATTERN : "output_%03d.ts");  // Usamos el formato .ts
 
         try {
-            Path p = Files.createDirectory(Path.of(cameraConfig.getName()));
-            logger.info("nuevo directorio creado" + p);
-        } catch (FileAlreadyExistsException e){
-            logger.info("directorio ya creado de forma previa");
+            try {
+                Path p = Files.createDirectory(Path.of(cameraConfig.getName()));
+                logger.info("nuevo directorio creado" + p);
+            } catch (FileAlreadyExistsException e){
+                logger.info("directorio ya creado de forma previa");
+            }
+            if (isStaged()) {
+                Files.createDirectories(output);
+            }
+
+            long launchedAt = System.currentTimeMillis();
+            Process started = getProcess(rtspUrl, outputPattern, codecs, granted);
+            if (isStaged() && lastExitNanos != 0) {
+                // el FFmpeg anterior pudo dejar su segmento abierto sin avisar (p.ej. si se mató por atascado)
+                String name = cameraConfig.getName();
+                scheduler.execute(() -> staging.sweep(name, launchedAt));
+            }
+            process = started;
+            slot = granted;
+            startedAtNanos = System.nanoTime();
+            metrics.setProcessStart(System.currentTimeMillis());
+            metrics.setVideoCopy(codecs.isVideoCopy());
+            if (lastExitNanos != 0) {
+                metrics.recordRestart(startedAtNanos - lastExitNanos);
+            }
+            state = CameraState.RECORDING;
+            started.onExit().thenAccept(this::onProcessExit);
+            // Si sigue vivo pasado un rato, la ejecución se da por sana y se olvidan los fallos anteriores.
+            scheduler.schedule(() -> markHealthy(started), HEALTHY_RUN_SECONDS, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            logger.error("error al ejecutar el proceso para la camara " + cameraConfig.getName(), e);
+            metrics.recordSpawnFailure();
+            admission.release(granted);
+            if (lastExitNanos == 0) {
+                lastExitNanos = System.nanoTime();
+            }
+            scheduleRestart();
         }
+    }
 
-        var process = getProcess(rtspUrl, outputPattern);
+    /**
+     * Se invoca cuando termina el proceso FFmpeg, sea cual sea el motivo. Salvo que se haya pedido parar,
+     * siempre se programa un nuevo intento.
+     * @param exited el proceso que ha terminado.
+     */
+    private synchronized void onProcessExit(Process exited) {
+        if (exited != process) {
+            return;
+        }
+        lastExitNanos = System.nanoTime();
+        metrics.setProcessStart(0);
+        admission.release(slot);
+        slot = null;
+        boolean relaunch = relaunchRequested;
+        relaunchRequested = false;
+        if (relaunch && !stopRequested) {
+            state = CameraState.STARTING;
+            pendingRestart = scheduler.schedule(this::recordStream, 0, TimeUnit.MILLISECONDS);
+            return;
+        }
+        long ranSeconds = TimeUnit.NANOSECONDS.toSeconds(lastExitNanos - startedAtNanos);
+        logger.info("exit code " + exited.exitValue() + " camara " + cameraConfig.getName() + " tras " + ranSeconds + "s");
+        if (stopRequested) {
+            state = CameraState.STOPPED;
+            return;
+        }
+        scheduleRestart();
+    }
 
-        printLogsRecordStream(process);
-        try {
-            int exitCode = process.waitFor(); // Espera a que el proceso termine
-            logger.info("exit code" + exitCode);
-        } catch (InterruptedException e) {
-            logger.error("Error al ejecutar el proceso de descarga de stream en fichero", e);
+    /**
+     * Da por sana la ejecución actual si el proceso sigue vivo: se reinicia el backoff y se cierra el circuito.
+     * @param candidate el proceso que se lanzó.
+     */
+    private synchronized void markHealthy(Process candidate) {
+        if (candidate == process && candidate.isAlive()) {
+            backoff.reset();
+            breaker.recordSuccess();
+            lastExitNanos = 0;
         }
     }
 
     /**
-     * Me pinta los logs que obtiene de la salida del comando.
-     * @param process el proceso.
-     * @throws IOException Si ocurre una exception de tipo I/O.
+     * Registra un fallo y programa el siguiente intento, con backoff o, si se abre el circuito, aparcando la cámara.
      */
-    private void printLogsRecordStream(Process process) throws IOException {
-        try(BufferedReader bufferedInputStreamReader = new BufferedReader(new InputStreamReader(process.getInputStream()))){
-            String line;
-            logger.info("Thread actual:" + Thread.currentThread().getName());
-            while ((line = bufferedInputStreamReader.readLine()) !=null) {
-                logger.info(line);
-            }
+    private void scheduleRestart() {
+        long delayMillis;
+        if (breaker.recordFailure()) {
+            metrics.recordCircuitOpen();
+            delayMillis = breaker.getParkMillis();
+            state = CameraState.PARKED;
+            logger.warn("La camara " + cameraConfig.getName() + " ha fallado " + breaker.getConsecutiveFailures()
+                    + " veces seguidas, se aparca durante " + TimeUnit.MILLISECONDS.toSeconds(delayMillis) + "s");
+        } else {
+            delayMillis = backoff.nextDelayMillis();
+            state = CameraState.BACKOFF;
+            logger.info("Reintentando la camara " + cameraConfig.getName() + " en " + delayMillis + "ms");
         }
+        pendingRestart = scheduler.schedule(this::recordStream, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Mata el FFmpeg atascado. Su salida se trata como cualquier otra: se cuenta como fallo y se reintenta con backoff.
+     */
+    @Override
+    public synchronized boolean recover(String reason) {
+        Process current = process;
+        if (stopRequested || current == null || !current.isAlive()) {
+            return false;
+        }
+        logger.warn("FFmpeg de la camara " + cameraConfig.getName() + " atascado (" + reason + "), se reinicia");
+        current.destroyForcibly();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean shed() {
+        if (stopRequested) {
+            return false;
+        }
+        if (!shedTranscode && !metrics.isVideoCopy() && lastCodecs != null && lastCodecs.withVideoCopy() != null) {
+            shedTranscode = true;
+            relaunch("se deja de transcodificar");
+        } else if (!shedStream && cameraConfig.getStream() == StreamQuality.STREAM1) {
+            shedStream = true;
+            relaunch("se pasa a " + StreamQuality.STREAM2.name().toLowerCase());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean restore() {
+        if (stopRequested) {
+            return false;
+        }
+        if (shedStream) {
+            shedStream = false;
+            relaunch("se vuelve a " + cameraConfig.getStream().name().toLowerCase());
+        } else if (shedTranscode) {
+            shedTranscode = false;
+            relaunch("se vuelve a transcodificar");
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Aplica un cambio de calidad: se pide a FFmpeg que termine (cierra bien el segmento actual) y se relanza en
+     * cuanto sale, sin backoff. Si no hay proceso, se aplica en el siguiente lanzamiento.
+     */
+    private void relaunch(String change) {
+        metrics.setShedLevel((shedTranscode ? 1 : 0) + (shedStream ? 1 : 0));
+        logger.info("Calidad de la camara " + cameraConfig.getName() + ": " + change);
+        Process current = process;
+        if (current != null && current.isAlive()) {
+            relaunchRequested = true;
+            current.destroy();
+        } else if (waitingForSlot) {
+            // esperando plaza: puede que ya no la necesite
+            waitingForSlot = false;
+            admission.cancel(cameraConfig.getName());
+            launch(lastCodecs);
+        }
+    }
+
+    /**
+     * @return siempre {@code false}: FFmpeg graba de continuo.
+     */
+    @Override
+    public boolean trigger() {
+        return false;
+    }
+
+    /**
+     * @return el estado actual de la grabación.
+     */
+    @Override
+    public CameraState getState() {
+        return state;
+    }
+
+    /**
+     * @return {@code true} si hay un proceso FFmpeg vivo.
+     */
+    @Override
+    public boolean isProcessAlive() {
+        Process current = process;
+        return current != null && current.isAlive();
+    }
+
+    /**
+     * @return milisegundos de CPU consumidos por el proceso FFmpeg actual, o -1 si no hay proceso o el sistema no
+     * lo informa.
+     */
+    @Override
+    public long getProcessCpuMillis() {
+        Process current = process;
+        if (current == null || !current.isAlive()) {
+            return -1;
+        }
+        return current.info().totalCpuDuration().map(Duration::toMillis).orElse(-1L);
+    }
+
+    /**
+     * @return bytes de memoria residente del proceso FFmpeg actual, o -1 si no hay proceso o el sistema no lo
+     * informa.
+     */
+    @Override
+    public long getProcessRssBytes() {
+        return ProcessSampler.rssBytes(process);
+    }
+
+    /**
+     * @return la configuración de la cámara que graba este recorder.
+     */
+    @Override
+    public CameraConfig getCameraConfig() {
+        return cameraConfig;
+    }
+
+    /**
+     * @return los contadores de la cámara.
+     */
+    @Override
+    public CameraMetrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -154,61 +747,157 @@ public class VideoRecorder implements Runnable {
      *
      * @param rtspUrl La URL del stream RTSP que será capturado.
      * @param outputPattern El patrón de nombre para los archivos de salida segmentados (por ejemplo, "output_%03d.ts").
+     * @param codecs Los códecs de salida de video y audio.
+     * @param granted La plaza de transcodificación, con su CPU y prioridad, o {@code null} si se copia el video.
      * @return El proceso {@link Process} configurado para ejecutar FFmpeg.
      * @throws IOException Si ocurre un error al crear el proceso o si hay problemas de entrada/salida durante su ejecución.
      */
-    private Process getProcess(String rtspUrl, String outputPattern)
-    throws IOException {
+    private Process getProcess(String rtspUrl, String outputPattern, CodecSelection codecs,
+                               TranscodeAdmission.Slot granted) throws IOException {
+        List<String> base = buildCommand(rtspUrl, outputPattern, codecs);
+        if (granted != null) {
+            base = admission.wrap(granted, base);
+        }
+
+        logger.info("Ejecutando comando FFmpeg: " + String.join(" ", base));
+
+        ProcessBuilder processBuilder = new ProcessBuilder(base);
+        // -strftime usa la zona del proceso: ver SEGMENT_ZONE
+        processBuilder.environment().put("TZ", "UTC");
+
+        processBuilder.redirectErrorStream(true); // Redirige errores y salida estándar juntos
+        // La salida va a un fichero: así no hace falta un hilo por cámara leyendo del pipe.
+        processBuilder.redirectOutput(new File(cameraConfig.getName(), FFMPEG_LOG_FILE));
+        return processBuilder.start();
+    }
+
+    /**
+     * Construye la línea de comandos de FFmpeg, sin lanzarlo. Se ejecuta en cada reinicio de la cámara.
+     *
+     * @param rtspUrl       La URL del stream RTSP que será capturado.
+     * @param outputPattern El patrón de nombre para los archivos de salida.
+     * @param codecs        Los códecs de salida de video y audio.
+     * @return el comando y sus argumentos.
+     */
+    List<String> buildCommand(String rtspUrl, String outputPattern, CodecSelection codecs) {
         List<String> base = new ArrayList<>();
         base.add(FFMPEG_COMMAND);
+        base.add(NO_STATS_FLAG);
+        base.add(LOG_LEVEL_FLAG);
+        base.add(LOG_LEVEL_VALUE);
+        if (progressServer != null) {
+            base.add(PROGRESS_FLAG);
+            base.add(progressServer.progressUrl(cameraConfig.getName()));
+        }
+        // es una opción de la entrada: tiene que ir antes de -i
+        base.add(RTSP_TRANSPORT_FLAG);
+        base.add(cameraConfig.getRTSPTransport());
         base.add(INPUT_FLAG);
-        base.add(rtspUrl + "/" + cameraConfig.getStream().name().toLowerCase());
-        if(cameraConfig.getCloneRTSPStream()!=null) {
-            cameraConfig.getCloneRTSPStream().getRtspServers().forEach((server) -> {
-                base.add(RTSP_TRANSPORT_FLAG);
-                base.add(cameraConfig.getCloneRTSPStream().getCloneTransport());
-                base.add(AUDIO_CODEC_FLAG);
-                base.add(AUDIO_COPY_VALUE);
-                base.add(VIDEO_CODEC_FLAG);
-                base.add(VIDEO_COPY_VALUE);
-                base.add(FORMAT_FLAG);
-                base.add(cameraConfig.getCloneRTSPStream().getFormat());
-                base.add(server); //añadimos al stream rtsp, el nuevo path donde será clonado
-            });
+        StreamQuality stream = shedStream ? StreamQuality.STREAM2 : cameraConfig.getStream();
+        base.add(rtspUrl + "/" + stream.name().toLowerCase());
+        base.add(VIDEO_CODEC_FLAG);
+        base.add(codecs.getVideoCodec());
+        base.add(AUDIO_CODEC_FLAG);
+        base.add(codecs.getAudioCodec());
+        if (cameraConfig.getCloneRTSPStream() != null) {
+            // Una sola lectura de la cámara repartida con tee entre la grabación y las réplicas.
+            base.add(MAP_FLAG);
+            base.add(MAP_VIDEO_VALUE);
+            base.add(MAP_FLAG);
+            base.add(MAP_AUDIO_VALUE);
+            base.add(FORMAT_FLAG);
+            base.add(TEE_FORMAT);
+            base.add(teeOutput(outputPattern));
         } else {
             base.add(FORMAT_FLAG);
             base.add(cameraConfig.getFormat());
-            base.add(VIDEO_CODEC_FLAG);
-            base.add(cameraConfig.getVideoCodec());
-            base.add(AUDIO_CODEC_FLAG);
-            base.add(cameraConfig.getAudioCodec());
-            base.add(RTSP_TRANSPORT_FLAG);
-            base.add(cameraConfig.getRTSPTransport());
-        }
-        base.add(SEGMENT_TIME_FLAG);
-        base.add(cameraConfig.getSegmentTime());
-        base.add(RESET_TIMESTAMPS_FLAG);
-        base.add(cameraConfig.getResetTimeStamps());
-        base.add(outputPattern);
+            if (isSegmentFormat()) {
+                base.add(STRFTIME_FLAG);
+                base.add(STRFTIME_VALUE);
+                base.add(SEGMENT_TIME_FLAG);
+                base.add(cameraConfig.getSegmentTime());
+                base.add(RESET_TIMESTAMPS_FLAG);
+                base.add(cameraConfig.getResetTimeStamps());
+                if (progressServer != null) {
+                    base.add(SEGMENT_LIST_FLAG);
+                    base.add(progressServer.segmentListUrl(cameraConfig.getName()));
+                    base.add(SEGMENT_LIST_TYPE_FLAG);
+                    base.add(SEGMENT_LIST_TYPE_VALUE);
+                }
+            }
+            base.add(outputPattern);
+        }
+        return base;
+    }
 
-        logger.info("Ejecutando comando FFmpeg: " + String.join(" ", base));
+    /**
+     * Construye las salidas del muxer {@code tee}: la grabación en disco, que si falla hace terminar a FFmpeg (y se
+     * reinicia como cualquier otra salida), y una salida por servidor de réplica.
+     * <p>
+     * Cada réplica va detrás de su propio muxer {@code fifo}: escribe en otro hilo, descarta paquetes si el servidor
+     * no da abasto en lugar de frenar la grabación, y si la conexión se cae vuelve a intentarla por su cuenta cada
+     * {@link RTSPCloneConfig#getRecoveryWaitSeconds()} segundos, empezando en un fotograma clave. Con
+     * {@code onfail=ignore} un fallo de la réplica tampoco termina el proceso.
+     * </p>
+     * <p>
+     * Con el relay integrado hay una sola réplica, a su ruta, que reparte el stream a todos los
+     * {@code outputEndpoints}.
+     * </p>
+     *
+     * @param outputPattern el patrón de los ficheros de la grabación.
+     * @return el argumento de salida de {@code tee}.
+     */
+    private String teeOutput(String outputPattern) {
+        Map<String, String> recording = TeeOutput.options();
+        recording.put(TEE_FORMAT_OPTION, cameraConfig.getFormat());
+        if (isSegmentFormat()) {
+            recording.put(STRFTIME_FLAG.substring(1), STRFTIME_VALUE);
+            recording.put(SEGMENT_TIME_FLAG.substring(1), cameraConfig.getSegmentTime());
+            recording.put(RESET_TIMESTAMPS_FLAG.substring(1), cameraConfig.getResetTimeStamps());
+            if (progressServer != null) {
+                recording.put(SEGMENT_LIST_FLAG.substring(1), progressServer.segmentListUrl(cameraConfig.getName()));
+                recording.put(SEGMENT_LIST_TYPE_FLAG.substring(1), SEGMENT_LIST_TYPE_VALUE);
+            }
+        }
+        recording.put(TEE_ONFAIL_OPTION, TEE_ONFAIL_ABORT);
+        TeeOutput tee = new TeeOutput().add(recording, outputPattern);
 
-        ProcessBuilder processBuilder = new ProcessBuilder(base);
+        RTSPCloneConfig clone = cameraConfig.getCloneRTSPStream();
+        Map<String, String> fifo = TeeOutput.options();
+        fifo.put("attempt_recovery", "1");
+        fifo.put("recover_any_error", "1");
+        fifo.put("recovery_wait_time", String.valueOf(clone.getRecoveryWaitSeconds()));
+        fifo.put("max_recovery_attempts", "0");
+        fifo.put("restart_with_keyframe", "1");
+        fifo.put("drop_pkts_on_overflow", "1");
+        String fifoOptions = TeeOutput.nested(fifo);
+        List<String> servers = relay != null ? List.of(relay.getUrl()) : clone.getRtspServers();
+        for (String server : servers) {
+            Map<String, String> output = TeeOutput.options();
+            output.put(TEE_FORMAT_OPTION, clone.getFormat());
+            // el relay integrado sólo admite TCP
+            output.put(RTSP_TRANSPORT_FLAG.substring(1), relay != null ? "tcp" : clone.getCloneTransport());
+            output.put(TEE_ONFAIL_OPTION, TEE_ONFAIL_IGNORE);
+            output.put("use_fifo", "1");
+            output.put("fifo_options", fifoOptions);
+            tee.add(output, server); //añadimos el nuevo path donde será clonado el stream
+        }
+        return tee.build();
+    }
 
-        processBuilder.redirectErrorStream(true); // Redirige errores y salida estándar juntos
-        return processBuilder.start();
+    /**
+     * @return {@code true} si la grabación usa el muxer segment.
+     */
+    private boolean isSegmentFormat() {
+        return SEGMENT_FORMAT.equals(cameraConfig.getFormat());
     }
 
-    @Override
-    public void run() {
-        try {
-            recordStream();
-        } catch (IOException e) {
-            logger.error("error al ejecutar el proceso para la camara " + cameraConfig.toString(), e);
-            logger.info("vamos a recuperarnos del proceso");
-            logger.info("volviendo a ejecutar de nuevo mi proceso en mi hilo");
-            run();
-        }
+    /**
+     * @return {@code true} si los segmentos se escriben en el directorio rápido: hace falta que se use y que FFmpeg
+     * avise de cada segmento que cierra, para llevarlo después al archivo.
+     */
+    private boolean isStaged() {
+        return staging.isEnabled() && isSegmentFormat() && progressServer != null;
     }
 }
 
@@ -0,0 +1,223 @@
+package org.home.sync.recording.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Fotogramas clave de un segmento MPEG-TS: su instante desde el principio del segmento y el byte donde empieza su
+ * paquete.
+ * <p>
+ * Lo escribe el {@link KeyframeIndexer} al cerrarse el segmento, en un fichero pequeño dentro de
+ * {@link #DIRECTORY} (unos 12 bytes por fotograma clave: 2 KB para 5 minutos con uno cada 2 segundos). Buscar un
+ * instante dentro del segmento es leer ese fichero y una búsqueda binaria, en lugar de recorrer el segmento entero.
+ * </p>
+ * <p>
+ * Formato: magic, versión, tamaño del segmento indexado (long), fin de las tablas PAT/PMT (long), número de
+ * fotogramas clave (int) y, por cada uno, su instante en milisegundos (int) y su posición (long).
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public final class KeyframeIndex {
+
+    /**
+     * Subdirectorio de la cámara donde se guardan los índices de fotogramas clave.
+     */
+    public static final String DIRECTORY = ".keyframes";
+
+    /**
+     * Extensión del índice de un segmento, que se añade a su nombre.
+     */
+    public static final String EXTENSION = ".kf";
+
+    /**
+     * Identifica el fichero como un índice de fotogramas clave ("KFX1").
+     */
+    private static final int MAGIC = 0x4B465831;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 28;
+
+    private static final int ENTRY_SIZE = 12;
+
+    private final long size;
+    private final long tablesEnd;
+    private final int[] millis;
+    private final long[] offsets;
+
+    /**
+     * @param size      bytes del segmento indexado.
+     * @param tablesEnd fin de las tablas del principio del segmento, o 0 si no se han encontrado.
+     * @param millis    instante de cada fotograma clave, en orden.
+     * @param offsets   posición de cada fotograma clave.
+     */
+    KeyframeIndex(long size, long tablesEnd, int[] millis, long[] offsets) {
+        this.size = size;
+        this.tablesEnd = tablesEnd;
+        this.millis = millis;
+        this.offsets = offsets;
+    }
+
+    /**
+     * @param directory el directorio de la cámara.
+     * @param segment   el nombre del segmento.
+     * @return dónde se guarda el índice de fotogramas clave del segmento.
+     */
+    public static Path file(Path directory, String segment) {
+        return directory.resolve(DIRECTORY).resolve(segment + EXTENSION);
+    }
+
+    /**
+     * Lee el índice de fotogramas clave de un segmento.
+     *
+     * @param directory el directorio de la cámara.
+     * @param segment   el nombre del segmento.
+     * @return el índice, o {@code null} si no existe o no es válido (p.ej. el segmento es anterior al indexador).
+     */
+    public static KeyframeIndex read(Path directory, String segment) {
+        try (FileChannel channel = FileChannel.open(file(directory, segment), StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // se lee entero: son pocos KB
+            }
+            buffer.flip();
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            long size = buffer.getLong();
+            long tablesEnd = buffer.getLong();
+            int count = buffer.getInt();
+            if (count < 0 || buffer.remaining() < (long) count * ENTRY_SIZE) {
+                return null;
+            }
+            int[] millis = new int[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                millis[i] = buffer.getInt();
+                offsets[i] = buffer.getLong();
+            }
+            return new KeyframeIndex(size, tablesEnd, millis, offsets);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Guarda el índice. Se escribe en un temporal que se renombra, así que quien lo lea nunca lo ve a medias.
+     *
+     * @param directory el directorio de la cámara.
+     * @param segment   el nombre del segmento.
+     * @throws IOException si no se puede escribir.
+     */
+    public void write(Path directory, String segment) throws IOException {
+        Path target = file(directory, segment);
+        Files.createDirectories(target.getParent());
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + millis.length * ENTRY_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(size).putLong(tablesEnd).putInt(millis.length);
+        for (int i = 0; i < millis.length; i++) {
+            buffer.putInt(millis[i]).putLong(offsets[i]);
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Borra el índice de fotogramas clave de un segmento, si lo tiene.
+     *
+     * @param directory el directorio de la cámara.
+     * @param segment   el nombre del segmento.
+     * @throws IOException si existe y no se puede borrar.
+     */
+    public static void delete(Path directory, String segment) throws IOException {
+        Files.deleteIfExists(file(directory, segment));
+    }
+
+    /**
+     * Busca dónde empezar a reproducir o exportar desde un instante.
+     *
+     * @param millis milisegundos desde el principio del segmento.
+     * @return la posición del último fotograma clave anterior o igual a {@code millis}, o 0 si no hay ninguno.
+     */
+    public long seek(long millis) {
+        int i = floor(millis);
+        return i < 0 ? 0 : offsets[i];
+    }
+
+    /**
+     * Busca dónde terminar de exportar hasta un instante.
+     *
+     * @param millis milisegundos desde el principio del segmento.
+     * @param after  la posición desde la que se empieza; el fin tiene que ser posterior.
+     * @return la posición del primer fotograma clave posterior o igual a {@code millis} y a {@code after}, o
+     * {@link #getSize()} si no hay ninguno.
+     */
+    public long end(long millis, long after) {
+        int i = floor(millis - 1) + 1;
+        while (i < offsets.length && offsets[i] <= after) {
+            i++;
+        }
+        return i < offsets.length ? offsets[i] : size;
+    }
+
+    /**
+     * @return la posición del último fotograma clave con instante menor o igual que {@code value}, o -1.
+     */
+    private int floor(long value) {
+        if (value < Integer.MIN_VALUE) {
+            return -1;
+        }
+        int key = (int) Math.min(value, Integer.MAX_VALUE);
+        int i = Arrays.binarySearch(millis, key);
+        if (i < 0) {
+            return -i - 2;
+        }
+        // con instantes repetidos, el último
+        while (i + 1 < millis.length && millis[i + 1] == key) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return bytes del segmento cuando se indexó.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return fin de las tablas PAT/PMT del principio del segmento, que hay que copiar delante de un corte que no
+     * empiece en 0.
+     */
+    public long getTablesEnd() {
+        return tablesEnd;
+    }
+
+    /**
+     * @return número de fotogramas clave.
+     */
+    public int getKeyframes() {
+        return millis.length;
+    }
+}
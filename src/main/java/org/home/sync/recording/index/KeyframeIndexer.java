@@ -0,0 +1,290 @@
+package org.home.sync.recording.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Construye el {@link KeyframeIndex} de cada segmento que se cierra, en segundo plano.
+ * <p>
+ * El segmento se recorre mapeado en memoria, en ventanas de {@link #WINDOW_BYTES}, paquete a paquete: la PAT da el
+ * PID de la PMT, la PMT el del video, y de cada paquete de video que empieza un PES se lee el PTS. Los que llevan el
+ * indicador de acceso aleatorio son fotogramas clave. Su instante es la diferencia entre su PTS y el del primer
+ * fotograma del segmento, como en las exportaciones.
+ * </p>
+ * <p>
+ * Todo se hace en un único hilo de baja prioridad ("keyframe-indexer"): cuando se cierra un segmento sus páginas
+ * aún están en el page cache, así que indexarlo apenas lee del disco.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class KeyframeIndexer implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(KeyframeIndexer.class);
+
+    private static final int PACKET_SIZE = 188;
+    private static final int SYNC_BYTE = 0x47;
+    private static final long PTS_MASK = (1L << 33) - 1;
+
+    /**
+     * Bytes que se mapean de una vez: un número entero de paquetes, para que ninguno quede partido entre dos
+     * ventanas.
+     */
+    private static final long WINDOW_BYTES = PACKET_SIZE * 256L * 1024;
+
+    /**
+     * Segmentos esperando a indexarse como máximo. Si se llena, los nuevos se quedan sin índice y se exportan
+     * recorriéndolos.
+     */
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private final ExecutorService executor;
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Arranca el hilo del indexador.
+     */
+    public KeyframeIndexer() {
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+            Thread thread = new Thread(runnable, "keyframe-indexer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Indexa un segmento recién cerrado en segundo plano.
+     *
+     * @param directory el directorio de la cámara.
+     * @param segment   el nombre del segmento.
+     */
+    public void submit(Path directory, String segment) {
+        executor.execute(() -> {
+            try {
+                index(directory.resolve(segment)).write(directory, segment);
+                indexed.increment();
+            } catch (NoSuchFileException e) {
+                // borrado por la retención antes de indexarlo
+            } catch (IOException | RuntimeException e) {
+                failed.increment();
+                logger.warn("No se pueden indexar los fotogramas clave de " + directory.resolve(segment) + ": " + e);
+            }
+        });
+    }
+
+    /**
+     * @return segmentos indexados.
+     */
+    public long getIndexed() {
+        return indexed.sum();
+    }
+
+    /**
+     * @return segmentos que no se han podido indexar.
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * Recorre un segmento y devuelve sus fotogramas clave. Si se pierde el byte de sincronía, se queda con los
+     * encontrados hasta ese punto.
+     *
+     * @param segment el segmento.
+     * @return sus fotogramas clave.
+     * @throws IOException si no se puede leer.
+     */
+    public static KeyframeIndex index(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            return new Parser(channel.size()).parse(channel);
+        }
+    }
+
+    /**
+     * Estado del recorrido de un segmento.
+     */
+    private static final class Parser {
+
+        private final long size;
+        private int pmtPid = -1;
+        private int videoPid = -1;
+        private long tablesEnd = -1;
+        private long firstPts = -1;
+        private int count;
+        private int[] millis = new int[256];
+        private long[] offsets = new long[256];
+
+        Parser(long size) {
+            this.size = size;
+        }
+
+        KeyframeIndex parse(FileChannel channel) throws IOException {
+            for (long start = 0; start < size; start += WINDOW_BYTES) {
+                long length = Math.min(WINDOW_BYTES, size - start);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                if (!parse(buffer, start)) {
+                    break;
+                }
+            }
+            return new KeyframeIndex(size, Math.max(tablesEnd, 0), Arrays.copyOf(millis, count),
+                    Arrays.copyOf(offsets, count));
+        }
+
+        /**
+         * @return {@code false} si se ha perdido la sincronía y hay que parar.
+         */
+        private boolean parse(MappedByteBuffer buffer, long start) {
+            int limit = buffer.limit();
+            for (int packet = 0; packet + PACKET_SIZE <= limit; packet += PACKET_SIZE) {
+                if ((buffer.get(packet) & 0xFF) != SYNC_BYTE) {
+                    return false;
+                }
+                if ((buffer.get(packet + 1) & 0x40) == 0) {
+                    continue;
+                }
+                int payload = payloadStart(buffer, packet);
+                if (payload < 0) {
+                    continue;
+                }
+                int pid = ((buffer.get(packet + 1) & 0x1F) << 8) | (buffer.get(packet + 2) & 0xFF);
+                if (pid == 0 && pmtPid < 0) {
+                    pmtPid = readPat(buffer, payload, packet + PACKET_SIZE);
+                } else if (pid == pmtPid && videoPid < 0) {
+                    videoPid = readPmt(buffer, payload, packet + PACKET_SIZE);
+                } else if (pid == videoPid) {
+                    readPes(buffer, packet, payload, start + packet);
+                }
+            }
+            return true;
+        }
+
+        private void readPes(MappedByteBuffer buffer, int packet, int pes, long offset) {
+            if (pes + 14 > packet + PACKET_SIZE || buffer.get(pes) != 0 || buffer.get(pes + 1) != 0
+                    || buffer.get(pes + 2) != 1 || (buffer.get(pes + 7) & 0x80) == 0) {
+                return;
+            }
+            if (tablesEnd < 0) {
+                tablesEnd = offset;
+            }
+            long pts = readPts(buffer, pes + 9);
+            if (firstPts < 0) {
+                firstPts = pts;
+            }
+            if (!isRandomAccess(buffer, packet)) {
+                return;
+            }
+            if (count == millis.length) {
+                millis = Arrays.copyOf(millis, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            millis[count] = (int) Math.min(((pts - firstPts) & PTS_MASK) / 90, Integer.MAX_VALUE);
+            offsets[count] = offset;
+            count++;
+        }
+    }
+
+    /**
+     * @return dónde empieza la carga útil del paquete, o -1 si no tiene.
+     */
+    private static int payloadStart(MappedByteBuffer buffer, int packet) {
+        int adaptation = (buffer.get(packet + 3) >> 4) & 0x3;
+        if ((adaptation & 0x1) == 0) {
+            return -1;
+        }
+        int payload = packet + 4;
+        if ((adaptation & 0x2) != 0) {
+            payload += 1 + (buffer.get(packet + 4) & 0xFF);
+        }
+        return payload < packet + PACKET_SIZE ? payload : -1;
+    }
+
+    /**
+     * @return el PID de la PMT del primer programa de la PAT, o -1 si no cabe en el paquete.
+     */
+    private static int readPat(MappedByteBuffer buffer, int payload, int packetEnd) {
+        int section = payload + 1 + (buffer.get(payload) & 0xFF);
+        if (section + 8 > packetEnd || buffer.get(section) != 0) {
+            return -1;
+        }
+        int sectionEnd = Math.min(section + 3 + (((buffer.get(section + 1) & 0x0F) << 8)
+                | (buffer.get(section + 2) & 0xFF)) - 4, packetEnd);
+        for (int program = section + 8; program + 4 <= sectionEnd; program += 4) {
+            int number = ((buffer.get(program) & 0xFF) << 8) | (buffer.get(program + 1) & 0xFF);
+            if (number != 0) {
+                return ((buffer.get(program + 2) & 0x1F) << 8) | (buffer.get(program + 3) & 0xFF);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return el PID del primer stream de video de la PMT, o -1 si no hay o no cabe en el paquete.
+     */
+    private static int readPmt(MappedByteBuffer buffer, int payload, int packetEnd) {
+        int section = payload + 1 + (buffer.get(payload) & 0xFF);
+        if (section + 12 > packetEnd || buffer.get(section) != 0x02) {
+            return -1;
+        }
+        int sectionEnd = Math.min(section + 3 + (((buffer.get(section + 1) & 0x0F) << 8)
+                | (buffer.get(section + 2) & 0xFF)) - 4, packetEnd);
+        int programInfo = ((buffer.get(section + 10) & 0x0F) << 8) | (buffer.get(section + 11) & 0xFF);
+        for (int stream = section + 12 + programInfo; stream + 5 <= sectionEnd; ) {
+            int type = buffer.get(stream) & 0xFF;
+            int pid = ((buffer.get(stream + 1) & 0x1F) << 8) | (buffer.get(stream + 2) & 0xFF);
+            if (isVideo(type)) {
+                return pid;
+            }
+            stream += 5 + (((buffer.get(stream + 3) & 0x0F) << 8) | (buffer.get(stream + 4) & 0xFF));
+        }
+        return -1;
+    }
+
+    /**
+     * @return si el {@code stream_type} de la PMT es de video (MPEG-1/2, MPEG-4, H.264 o H.265).
+     */
+    private static boolean isVideo(int streamType) {
+        return streamType == 0x01 || streamType == 0x02 || streamType == 0x10 || streamType == 0x1B
+                || streamType == 0x24;
+    }
+
+    private static boolean isRandomAccess(MappedByteBuffer buffer, int packet) {
+        int adaptation = (buffer.get(packet + 3) >> 4) & 0x3;
+        return (adaptation & 0x2) != 0 && (buffer.get(packet + 4) & 0xFF) > 0
+                && (buffer.get(packet + 5) & 0x40) != 0;
+    }
+
+    private static long readPts(MappedByteBuffer buffer, int position) {
+        return ((long) (buffer.get(position) & 0x0E) << 29)
+                | ((long) (buffer.get(position + 1) & 0xFF) << 22)
+                | ((long) (buffer.get(position + 2) & 0xFE) << 14)
+                | ((long) (buffer.get(position + 3) & 0xFF) << 7)
+                | ((buffer.get(position + 4) & 0xFE) >> 1);
+    }
+
+    /**
+     * Deja de indexar. Los segmentos pendientes se quedan sin índice.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,69 @@
+package org.home.sync.recording.index;
+
+/**
+ * Un segmento grabado, tal como se guarda en el {@link SegmentIndex}.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class SegmentEntry {
+
+    /**
+     * Instante (epoch millis) en el que empieza el segmento.
+     */
+    private final long startMillis;
+
+    /**
+     * Duración del segmento, en milisegundos.
+     */
+    private final long durationMillis;
+
+    /**
+     * Tamaño del fichero en el momento de cerrarse.
+     */
+    private final long bytes;
+
+    /**
+     * Nombre del fichero, relativo al directorio de la cámara.
+     */
+    private final String fileName;
+
+    public SegmentEntry(long startMillis, long durationMillis, long bytes, String fileName) {
+        this.startMillis = startMillis;
+        this.durationMillis = durationMillis;
+        this.bytes = bytes;
+        this.fileName = fileName;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @return el instante (epoch millis) en el que termina el segmento.
+     */
+    public long getEndMillis() {
+        return startMillis + durationMillis;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentEntry{" +
+                "fileName=" + fileName +
+                ", startMillis=" + startMillis +
+                ", durationMillis=" + durationMillis +
+                ", bytes=" + bytes +
+                '}';
+    }
+}
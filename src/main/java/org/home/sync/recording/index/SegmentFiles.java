@@ -0,0 +1,71 @@
+package org.home.sync.recording.index;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Nombres de los ficheros de un segmento en disco.
+ * <p>
+ * Un segmento se graba como MPEG-TS ({@code yyyyMMdd-HHmmss.ts}) y, pasado un tiempo, puede que se reempaquete como
+ * MP4 fragmentado con el mismo nombre y extensión {@link #REMUXED_EXTENSION}. El índice de segmentos y la retención
+ * siguen usando el nombre original; quien abre el fichero lo busca con {@link #resolve(Path, String)}.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public final class SegmentFiles {
+
+    /**
+     * Extensión de los segmentos que graba FFmpeg.
+     */
+    public static final String EXTENSION = ".ts";
+
+    /**
+     * Extensión de los segmentos reempaquetados como MP4 fragmentado.
+     */
+    public static final String REMUXED_EXTENSION = ".mp4";
+
+    private SegmentFiles() {
+    }
+
+    /**
+     * @param segment el nombre original del segmento.
+     * @return el nombre que tiene una vez reempaquetado.
+     */
+    public static String remuxedName(String segment) {
+        String base = segment.endsWith(EXTENSION) ? segment.substring(0, segment.length() - EXTENSION.length())
+                : segment;
+        return base + REMUXED_EXTENSION;
+    }
+
+    /**
+     * @param remuxed el nombre de un segmento reempaquetado.
+     * @return su nombre original.
+     */
+    public static String originalName(String remuxed) {
+        return remuxed.substring(0, remuxed.length() - REMUXED_EXTENSION.length()) + EXTENSION;
+    }
+
+    /**
+     * @return si el fichero es un segmento reempaquetado.
+     */
+    public static boolean isRemuxed(String fileName) {
+        return fileName.endsWith(REMUXED_EXTENSION);
+    }
+
+    /**
+     * Busca el fichero de un segmento: el original o, si ya no está, el reempaquetado.
+     *
+     * @param directory el directorio de la cámara.
+     * @param segment   el nombre original del segmento.
+     * @return el fichero, o {@code null} si no existe ninguno de los dos (lo ha borrado la retención).
+     */
+    public static Path resolve(Path directory, String segment) {
+        Path original = directory.resolve(segment);
+        if (Files.exists(original)) {
+            return original;
+        }
+        Path remuxed = directory.resolve(remuxedName(segment));
+        return Files.exists(remuxed) ? remuxed : null;
+    }
+}
@@ -0,0 +1,243 @@
+package org.home.sync.recording.index;
+
+import org.home.sync.recording.progress.SegmentListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Índice de los segmentos grabados de una cámara, guardado en un fichero que sólo crece y que se accede mapeado en
+ * memoria.
+ * <p>
+ * Cada segmento ocupa un registro de {@link #ENTRY_SIZE} bytes con su instante de inicio, duración, tamaño y nombre
+ * de fichero. Los registros se añaden según FFmpeg cierra los segmentos, así que quedan ordenados por instante de
+ * inicio y "la cámara X de 14:03 a 14:07" es una búsqueda binaria sobre el fichero mapeado, sin recorrer el
+ * directorio. El número de registros está en la cabecera y se actualiza después de escribir el registro, de modo
+ * que un corte a mitad de escritura sólo pierde el último segmento.
+ * </p>
+ * <p>
+ * Formato: cabecera de {@link #HEADER_SIZE} bytes (magic, versión y número de registros) seguida de los registros.
+ * Cada registro: inicio (long, epoch millis), duración (int, ms), longitud del nombre (short), 2 bytes libres,
+ * tamaño (long) y el nombre en UTF-8 en {@link #MAX_NAME_BYTES} bytes.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class SegmentIndex implements SegmentListener, AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(SegmentIndex.class);
+
+    /**
+     * Nombre del fichero del índice dentro del directorio de la cámara.
+     */
+    public static final String INDEX_FILE = "segments.idx";
+
+    /**
+     * Identifica el fichero como un índice de segmentos ("SIDX").
+     */
+    private static final int MAGIC = 0x53494458;
+
+    private static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 16;
+
+    static final int ENTRY_SIZE = 64;
+
+    static final int MAX_NAME_BYTES = 40;
+
+    private static final int COUNT_OFFSET = 8;
+    private static final int START_OFFSET = 0;
+    private static final int DURATION_OFFSET = 8;
+    private static final int NAME_LENGTH_OFFSET = 12;
+    private static final int BYTES_OFFSET = 16;
+    private static final int NAME_OFFSET = 24;
+
+    /**
+     * Registros que se reservan cada vez que el fichero se queda pequeño (4096 registros = 256 KB, unos 14 días de
+     * segmentos de 5 minutos).
+     */
+    private static final int GROWTH_ENTRIES = 4096;
+
+    private final Path file;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+
+    /**
+     * Abre el índice de una cámara, creándolo si no existe.
+     *
+     * @param directory el directorio de la cámara.
+     * @throws IOException si no se puede abrir o el fichero no es un índice válido.
+     */
+    public SegmentIndex(Path directory) throws IOException {
+        this.file = directory.resolve(INDEX_FILE);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                map(GROWTH_ENTRIES);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putLong(COUNT_OFFSET, 0);
+            } else {
+                map((int) ((channel.size() - HEADER_SIZE) / ENTRY_SIZE));
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                    throw new IOException("El fichero " + file + " no es un índice de segmentos");
+                }
+                count = (int) Math.min(buffer.getLong(COUNT_OFFSET), capacity);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Añade un segmento al final del índice. Se supone que empieza después que los anteriores.
+     *
+     * @param startMillis    instante (epoch millis) en el que empieza.
+     * @param durationMillis duración, en milisegundos.
+     * @param bytes          tamaño del fichero.
+     * @param fileName       nombre del fichero, relativo al directorio de la cámara.
+     * @throws IOException si no se puede ampliar el fichero.
+     */
+    public synchronized void append(long startMillis, long durationMillis, long bytes, String fileName)
+    throws IOException {
+        if (!channel.isOpen()) {
+            throw new IOException("El índice " + file + " está cerrado");
+        }
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Nombre de segmento demasiado largo para el índice: " + fileName);
+        }
+        if (count == capacity) {
+            map(capacity + GROWTH_ENTRIES);
+        }
+        int position = HEADER_SIZE + count * ENTRY_SIZE;
+        buffer.putLong(position + START_OFFSET, startMillis);
+        buffer.putInt(position + DURATION_OFFSET, (int) Math.min(durationMillis, Integer.MAX_VALUE));
+        buffer.putShort(position + NAME_LENGTH_OFFSET, (short) name.length);
+        buffer.putLong(position + BYTES_OFFSET, bytes);
+        ByteBuffer nameSlot = buffer.duplicate();
+        nameSlot.position(position + NAME_OFFSET);
+        nameSlot.put(name);
+        count++;
+        buffer.putLong(COUNT_OFFSET, count);
+    }
+
+    /**
+     * Registra el segmento que FFmpeg acaba de cerrar. Su inicio se calcula restando la duración al instante de cierre.
+     */
+    @Override
+    public void onSegmentClosed(String fileName, long durationMillis, long bytes, long closedAtMillis) {
+        try {
+            append(closedAtMillis - durationMillis, durationMillis, bytes, fileName);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("No se puede añadir el segmento " + fileName + " al índice " + file, e);
+        }
+    }
+
+    /**
+     * Busca los segmentos que se solapan con un intervalo de tiempo. Los más antiguos pueden haberse borrado ya por
+     * la retención: el índice no se reescribe al borrar.
+     *
+     * @param fromMillis inicio del intervalo (epoch millis).
+     * @param toMillis   fin del intervalo (epoch millis), exclusivo.
+     * @return los segmentos, en orden.
+     */
+    public synchronized List<SegmentEntry> find(long fromMillis, long toMillis) {
+        List<SegmentEntry> result = new ArrayList<>();
+        // primer segmento que termina después del inicio del intervalo
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (endMillis(mid) <= fromMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < count && startMillis(i) < toMillis; i++) {
+            result.add(entry(i));
+        }
+        return result;
+    }
+
+    /**
+     * @param index posición del registro.
+     * @return el segmento guardado en esa posición.
+     */
+    public synchronized SegmentEntry get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Índice " + index + " fuera de rango, hay " + count + " segmentos");
+        }
+        return entry(index);
+    }
+
+    /**
+     * @return el número de segmentos del índice.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return la ruta del fichero del índice.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Vuelca a disco lo escrito y cierra el fichero.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            buffer.force();
+            channel.close();
+        }
+    }
+
+    private long startMillis(int index) {
+        return buffer.getLong(HEADER_SIZE + index * ENTRY_SIZE + START_OFFSET);
+    }
+
+    private long endMillis(int index) {
+        int position = HEADER_SIZE + index * ENTRY_SIZE;
+        return buffer.getLong(position + START_OFFSET) + buffer.getInt(position + DURATION_OFFSET);
+    }
+
+    private SegmentEntry entry(int index) {
+        int position = HEADER_SIZE + index * ENTRY_SIZE;
+        int nameLength = Math.min(buffer.getShort(position + NAME_LENGTH_OFFSET), MAX_NAME_BYTES);
+        byte[] name = new byte[Math.max(0, nameLength)];
+        ByteBuffer nameSlot = buffer.duplicate();
+        nameSlot.position(position + NAME_OFFSET);
+        nameSlot.get(name);
+        return new SegmentEntry(buffer.getLong(position + START_OFFSET), buffer.getInt(position + DURATION_OFFSET),
+                buffer.getLong(position + BYTES_OFFSET), new String(name, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Mapea el fichero con sitio para {@code entries} registros, ampliándolo si hace falta.
+     */
+    private void map(int entries) throws IOException {
+        capacity = Math.max(entries, 1);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * ENTRY_SIZE);
+    }
+}
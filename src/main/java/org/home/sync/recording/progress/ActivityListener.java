@@ -0,0 +1,20 @@
+package org.home.sync.recording.progress;
+
+/**
+ * Recibe la puntuación de cambio de escena de cada fotograma que analiza el FFmpeg de detección de actividad.
+ * <p>
+ * Se invoca desde el hilo del {@link ProgressServer}, así que la implementación no debe bloquearse.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public interface ActivityListener {
+
+    /**
+     * Se invoca por cada fotograma analizado.
+     *
+     * @param millionths la puntuación de cambio de escena respecto al fotograma anterior, de 0 (igual) a 1000000
+     *                   (completamente distinto).
+     */
+    void onSceneScore(long millionths);
+}
@@ -0,0 +1,21 @@
+package org.home.sync.recording.progress;
+
+/**
+ * Interpreta, byte a byte, el cuerpo de una de las peticiones que FFmpeg envía al {@link ProgressServer}.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+interface BodyParser {
+
+    /**
+     * Procesa un byte del cuerpo.
+     *
+     * @param b el byte.
+     */
+    void feed(byte b);
+
+    /**
+     * @return {@code true} si FFmpeg ha indicado que no va a enviar nada más.
+     */
+    boolean isEnded();
+}
@@ -0,0 +1,242 @@
+package org.home.sync.recording.progress;
+
+import org.home.sync.metrics.CameraMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reenvía a SLF4J los avisos y errores que FFmpeg escribe en el fichero de log de cada cámara.
+ * <p>
+ * FFmpeg se lanza con {@code -loglevel level+warning}, así que sólo escribe avisos y errores, cada uno marcado con
+ * su nivel ({@code [warning]}, {@code [error]}...). Una tarea periódica del planificador compartido lee lo que se ha
+ * añadido a cada fichero desde la última vez y lo reenvía con un límite de {@link #MAX_LINES_PER_WINDOW} líneas por
+ * cámara y minuto; lo que pase de ahí se resume en un único mensaje con el número de líneas suprimidas.
+ * </p>
+ * <p>
+ * El grabador trunca el fichero cada vez que lanza FFmpeg. Para no saltarse el principio del log nuevo cuando ya ha
+ * crecido más allá de lo leído del anterior, la lectura vuelve al principio cada vez que cambia el instante de
+ * arranque del proceso ({@link CameraMetrics#getProcessStartEpochMillis()}).
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class FfmpegLogForwarder {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(FfmpegLogForwarder.class);
+
+    /**
+     * Cada cuántos milisegundos se revisan los ficheros de log.
+     */
+    public static final long POLL_PERIOD_MILLIS = 2_000;
+
+    /**
+     * Líneas que se reenvían como máximo por cámara en cada ventana.
+     */
+    public static final int MAX_LINES_PER_WINDOW = 10;
+
+    /**
+     * Duración de la ventana del límite, en milisegundos.
+     */
+    public static final long WINDOW_MILLIS = 60_000;
+
+    private static final byte[][] ERROR_TAGS = {
+            "[error]".getBytes(StandardCharsets.US_ASCII),
+            "[fatal]".getBytes(StandardCharsets.US_ASCII),
+            "[panic]".getBytes(StandardCharsets.US_ASCII)
+    };
+
+    /**
+     * Ficheros vigilados, por nombre de cámara.
+     */
+    private final Map<String, TailState> files = new ConcurrentHashMap<>();
+
+    /**
+     * Buffer de lectura. Sólo lo usa la tarea periódica, que nunca se ejecuta en paralelo consigo misma.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(32 * 1024);
+
+    /**
+     * Programa la revisión periódica de los ficheros.
+     *
+     * @param scheduler el planificador compartido.
+     */
+    public FfmpegLogForwarder(ScheduledExecutorService scheduler) {
+        scheduler.scheduleWithFixedDelay(this::poll, POLL_PERIOD_MILLIS, POLL_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Crea el reenviador sin revisión periódica: quien lo use llama a {@link #poll()} (los benchmarks).
+     */
+    FfmpegLogForwarder() {
+    }
+
+    /**
+     * Empieza a vigilar el log de una cámara.
+     *
+     * @param cameraName el nombre de la cámara.
+     * @param logFile    el fichero donde FFmpeg escribe su salida.
+     */
+    public void watch(String cameraName, Path logFile) {
+        watch(cameraName, logFile, null);
+    }
+
+    /**
+     * Empieza a vigilar el log de una cámara y vuelve a leerlo desde el principio cada vez que se relanza FFmpeg.
+     *
+     * @param cameraName el nombre de la cámara.
+     * @param logFile    el fichero donde FFmpeg escribe su salida.
+     * @param metrics    las métricas del grabador, que indican cuándo arrancó el proceso actual, o {@code null}.
+     */
+    public void watch(String cameraName, Path logFile, CameraMetrics metrics) {
+        files.put(cameraName, new TailState(cameraName, logFile, metrics));
+    }
+
+    /**
+     * Deja de vigilar el log de una cámara.
+     *
+     * @param cameraName el nombre de la cámara.
+     */
+    public void unwatch(String cameraName) {
+        files.remove(cameraName);
+    }
+
+    /**
+     * Lee lo añadido a todos los ficheros vigilados desde la última revisión.
+     */
+    void poll() {
+        long now = System.currentTimeMillis();
+        for (TailState state : files.values()) {
+            try {
+                state.poll(readBuffer, now);
+            } catch (NoSuchFileException e) {
+                // FFmpeg todavía no ha arrancado
+            } catch (IOException e) {
+                logger.warn("No se puede leer el log de FFmpeg de la camara " + state.cameraName, e);
+            }
+        }
+    }
+
+    /**
+     * Posición de lectura y límite de mensajes de un fichero.
+     */
+    private static final class TailState {
+
+        private final String cameraName;
+        private final Path file;
+        private final CameraMetrics metrics;
+        private final byte[] line = new byte[1024];
+        private int lineLength;
+        private long position;
+        private long processStart;
+        private long windowStart;
+        private int linesInWindow;
+        private int suppressed;
+
+        TailState(String cameraName, Path file, CameraMetrics metrics) {
+            this.cameraName = cameraName;
+            this.file = file;
+            this.metrics = metrics;
+        }
+
+        void poll(ByteBuffer buffer, long now) throws IOException {
+            // antes de mirar el tamaño: el fichero se trunca al lanzar el proceso, antes de anotar su arranque
+            long started = metrics == null ? 0 : metrics.getProcessStartEpochMillis();
+            if (started != 0 && started != processStart) {
+                // FFmpeg se ha relanzado: el fichero es nuevo aunque ya sea más largo que lo leído
+                processStart = started;
+                position = 0;
+                lineLength = 0;
+            }
+            long size = Files.size(file);
+            if (size < position) {
+                // FFmpeg se ha reiniciado y ha truncado el fichero
+                position = 0;
+                lineLength = 0;
+            }
+            if (size == position) {
+                rollWindow(now);
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                int read;
+                buffer.clear();
+                while ((read = channel.read(buffer, position)) > 0) {
+                    position += read;
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        byte b = buffer.get();
+                        if (b == '\n' || b == '\r') {
+                            endOfLine(now);
+                        } else if (lineLength < line.length) {
+                            line[lineLength++] = b;
+                        }
+                    }
+                    buffer.clear();
+                }
+            }
+            rollWindow(now);
+        }
+
+        private void endOfLine(long now) {
+            if (lineLength == 0) {
+                return;
+            }
+            rollWindow(now);
+            if (linesInWindow < MAX_LINES_PER_WINDOW) {
+                linesInWindow++;
+                String text = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+                if (isError()) {
+                    logger.error("[" + cameraName + "] " + text);
+                } else {
+                    logger.warn("[" + cameraName + "] " + text);
+                }
+            } else {
+                suppressed++;
+            }
+            lineLength = 0;
+        }
+
+        private void rollWindow(long now) {
+            if (now - windowStart < WINDOW_MILLIS) {
+                return;
+            }
+            if (suppressed > 0) {
+                logger.warn("[" + cameraName + "] " + suppressed + " mensajes de FFmpeg suprimidos en el último minuto");
+            }
+            windowStart = now;
+            linesInWindow = 0;
+            suppressed = 0;
+        }
+
+        private boolean isError() {
+            for (byte[] tag : ERROR_TAGS) {
+                outer:
+                for (int i = 0; i + tag.length <= lineLength; i++) {
+                    for (int j = 0; j < tag.length; j++) {
+                        if (line[i + j] != tag[j]) {
+                            continue outer;
+                        }
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.home.sync.recording.progress;
+
+import org.home.sync.metrics.CameraMetrics;
+
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.function.Function;
+
+/**
+ * Conexión de un proceso FFmpeg con el {@link ProgressServer}.
+ * <p>
+ * FFmpeg envía su progreso con un {@code POST /progress/<camara>} (y la lista de segmentos con un
+ * {@code POST /segments/<camara>}, y las puntuaciones de cambio de escena con un {@code POST /activity/<camara>})
+ * que mantiene abierto y cuyo cuerpo manda en trozos ({@code Transfer-Encoding: chunked}). Esta clase es la máquina
+ * de estados que entiende esa petición y pasa el cuerpo al {@link ProgressParser}, al {@link SegmentListParser} o al
+ * {@link SceneScoreParser}. Sólo crea objetos al leer la primera línea de la petición.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class ProgressConnection {
+
+    private enum Stage {
+        REQUEST_LINE, HEADERS, CHUNK_SIZE, CHUNK_EXTENSION, CHUNK_DATA, CHUNK_DATA_END, TRAILER, IDENTITY_BODY, DONE
+    }
+
+    /**
+     * Prefijo de la ruta de las peticiones de progreso.
+     */
+    static final String PATH_PREFIX = "/progress/";
+
+    /**
+     * Prefijo de la ruta de las peticiones con la lista de segmentos cerrados.
+     */
+    static final String SEGMENTS_PATH_PREFIX = "/segments/";
+
+    /**
+     * Prefijo de la ruta de las peticiones con las puntuaciones de cambio de escena.
+     */
+    static final String ACTIVITY_PATH_PREFIX = "/activity/";
+
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EXPECT_CONTINUE = "100-continue".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Resuelve el nombre de la cámara en sus contadores.
+     */
+    private final Function<String, CameraMetrics> cameras;
+
+    /**
+     * Resuelve el nombre de la cámara en quien recibe sus segmentos cerrados.
+     */
+    private final Function<String, SegmentListener> segmentListeners;
+
+    /**
+     * Resuelve el nombre de la cámara en el directorio donde FFmpeg escribe sus segmentos.
+     */
+    private final Function<String, Path> segmentDirectories;
+
+    /**
+     * Resuelve el nombre de la cámara en quien recibe sus puntuaciones de cambio de escena.
+     */
+    private final Function<String, ActivityListener> activityListeners;
+
+    /**
+     * Línea de cabecera en curso (se trunca si es más larga).
+     */
+    private final byte[] line = new byte[512];
+    private int lineLength;
+
+    private Stage stage = Stage.REQUEST_LINE;
+    private boolean chunked;
+    private long chunkRemaining;
+    private BodyParser parser;
+
+    /**
+     * Respuesta pendiente de enviar a FFmpeg, o {@code null}.
+     */
+    private ByteBuffer pendingResponse;
+
+    /**
+     * @param cameras            resuelve el nombre de la cámara en sus contadores.
+     * @param segmentListeners   resuelve el nombre de la cámara en quien recibe sus segmentos cerrados.
+     * @param segmentDirectories resuelve el nombre de la cámara en el directorio donde escribe sus segmentos.
+     * @param activityListeners  resuelve el nombre de la cámara en quien recibe sus puntuaciones de cambio de escena.
+     */
+    ProgressConnection(Function<String, CameraMetrics> cameras, Function<String, SegmentListener> segmentListeners,
+                       Function<String, Path> segmentDirectories, Function<String, ActivityListener> activityListeners) {
+        this.cameras = cameras;
+        this.segmentListeners = segmentListeners;
+        this.segmentDirectories = segmentDirectories;
+        this.activityListeners = activityListeners;
+    }
+
+    /**
+     * Procesa los bytes recibidos.
+     *
+     * @param buffer bytes leídos del socket, en modo lectura.
+     */
+    void consume(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && stage != Stage.DONE) {
+            byte b = buffer.get();
+            switch (stage) {
+                case REQUEST_LINE:
+                case HEADERS:
+                case TRAILER:
+                    headerByte(b);
+                    break;
+                case CHUNK_SIZE:
+                    chunkSizeByte(b);
+                    break;
+                case CHUNK_EXTENSION:
+                    if (b == '\n') {
+                        endOfChunkSize();
+                    }
+                    break;
+                case CHUNK_DATA:
+                    parser.feed(b);
+                    if (--chunkRemaining == 0) {
+                        stage = Stage.CHUNK_DATA_END;
+                    }
+                    break;
+                case CHUNK_DATA_END:
+                    if (b == '\n') {
+                        stage = Stage.CHUNK_SIZE;
+                    }
+                    break;
+                case IDENTITY_BODY:
+                    parser.feed(b);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (parser != null && parser.isEnded() && stage != Stage.DONE) {
+            finish(ProgressServer.OK);
+        }
+    }
+
+    /**
+     * @return la respuesta pendiente de enviar, o {@code null}. Se entrega una única vez.
+     */
+    ByteBuffer takeResponse() {
+        ByteBuffer response = pendingResponse;
+        pendingResponse = null;
+        return response;
+    }
+
+    /**
+     * @return {@code true} si la petición ha terminado y hay que cerrar la conexión.
+     */
+    boolean isDone() {
+        return stage == Stage.DONE;
+    }
+
+    private void headerByte(byte b) {
+        if (b != '\n') {
+            if (b != '\r' && lineLength < line.length) {
+                line[lineLength++] = b;
+            }
+            return;
+        }
+        if (stage == Stage.REQUEST_LINE) {
+            requestLine();
+        } else if (lineLength == 0) {
+            // línea vacía: fin de las cabeceras (o del trailer)
+            if (stage == Stage.TRAILER) {
+                finish(ProgressServer.OK);
+            } else {
+                stage = chunked ? Stage.CHUNK_SIZE : Stage.IDENTITY_BODY;
+            }
+        } else if (stage == Stage.HEADERS) {
+            if (startsWithIgnoreCase(TRANSFER_ENCODING) && contains(CHUNKED)) {
+                chunked = true;
+            } else if (contains(EXPECT_CONTINUE)) {
+                pendingResponse = ProgressServer.CONTINUE.duplicate();
+            }
+        }
+        lineLength = 0;
+    }
+
+    /**
+     * Interpreta la primera línea, p.ej. {@code POST /progress/jardin HTTP/1.1}, y busca la cámara.
+     */
+    private void requestLine() {
+        String request = new String(line, 0, lineLength, StandardCharsets.US_ASCII);
+        String[] parts = request.split(" ");
+        String path = parts.length >= 2 ? parts[1] : "";
+        if (path.startsWith(PATH_PREFIX)) {
+            CameraMetrics metrics = cameras.apply(cameraName(path, PATH_PREFIX));
+            parser = metrics == null ? null : new ProgressParser(metrics);
+        } else if (path.startsWith(SEGMENTS_PATH_PREFIX)) {
+            String name = cameraName(path, SEGMENTS_PATH_PREFIX);
+            CameraMetrics metrics = cameras.apply(name);
+            parser = metrics == null ? null : new SegmentListParser(metrics, segmentDirectories.apply(name),
+                    segmentListeners.apply(name));
+        } else if (path.startsWith(ACTIVITY_PATH_PREFIX)) {
+            ActivityListener listener = activityListeners.apply(cameraName(path, ACTIVITY_PATH_PREFIX));
+            parser = listener == null ? null : new SceneScoreParser(listener);
+        }
+        if (parser == null) {
+            finish(ProgressServer.NOT_FOUND);
+            return;
+        }
+        stage = Stage.HEADERS;
+    }
+
+    private static String cameraName(String path, String prefix) {
+        return URLDecoder.decode(path.substring(prefix.length()), StandardCharsets.UTF_8);
+    }
+
+    private void chunkSizeByte(byte b) {
+        int digit = Character.digit(b, 16);
+        if (digit >= 0) {
+            chunkRemaining = chunkRemaining * 16 + digit;
+        } else if (b == ';') {
+            stage = Stage.CHUNK_EXTENSION;
+        } else if (b == '\n') {
+            endOfChunkSize();
+        }
+    }
+
+    private void endOfChunkSize() {
+        if (chunkRemaining == 0) {
+            stage = Stage.TRAILER;
+        } else {
+            stage = Stage.CHUNK_DATA;
+        }
+    }
+
+    private void finish(ByteBuffer response) {
+        pendingResponse = response.duplicate();
+        stage = Stage.DONE;
+    }
+
+    private boolean startsWithIgnoreCase(byte[] prefix) {
+        if (lineLength < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (Character.toLowerCase(line[i]) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean contains(byte[] token) {
+        outer:
+        for (int i = 0; i + token.length <= lineLength; i++) {
+            for (int j = 0; j < token.length; j++) {
+                if (Character.toLowerCase(line[i + j]) != token[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
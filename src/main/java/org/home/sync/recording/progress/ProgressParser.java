@@ -0,0 +1,215 @@
+package org.home.sync.recording.progress;
+
+import org.home.sync.metrics.CameraMetrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Interpreta la salida de {@code -progress} de FFmpeg: bloques de líneas {@code clave=valor} terminados por
+ * {@code progress=continue} o {@code progress=end}.
+ * <p>
+ * Se alimenta byte a byte y trabaja sobre buffers fijos, así que no crea ningún objeto por línea. Al cerrar cada
+ * bloque suma a {@link CameraMetrics} la diferencia con el bloque anterior (los contadores de FFmpeg empiezan en cero
+ * con cada proceso, los de la cámara se acumulan entre reinicios) y actualiza fps, bitrate y velocidad.
+ * </p>
+ * Una instancia corresponde a un único proceso FFmpeg y no es segura para varios hilos.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class ProgressParser implements BodyParser {
+
+    private static final byte[] FRAME = ascii("frame");
+    private static final byte[] FPS = ascii("fps");
+    private static final byte[] BITRATE = ascii("bitrate");
+    private static final byte[] TOTAL_SIZE = ascii("total_size");
+    private static final byte[] DUP_FRAMES = ascii("dup_frames");
+    private static final byte[] DROP_FRAMES = ascii("drop_frames");
+    private static final byte[] SPEED = ascii("speed");
+    private static final byte[] PROGRESS = ascii("progress");
+    private static final byte[] END = ascii("end");
+
+    /**
+     * Valor que devuelven los métodos de parseo cuando FFmpeg informa "N/A" o el valor no es numérico.
+     */
+    static final long NOT_AVAILABLE = -1;
+
+    /**
+     * Contadores de la cámara que se actualizan.
+     */
+    private final CameraMetrics metrics;
+
+    private final byte[] key = new byte[32];
+    private int keyLength;
+    private final byte[] value = new byte[64];
+    private int valueLength;
+    private boolean inValue;
+
+    // Valores del bloque en curso
+    private long frame;
+    private long dropped;
+    private long duplicated;
+    private long totalSize;
+    private long fpsHundredths;
+    private long bitrateBitsPerSecond;
+    private long speedThousandths;
+
+    // Valores del último bloque ya sumado a las métricas
+    private long lastFrame;
+    private long lastDropped;
+    private long lastDuplicated;
+    private long lastTotalSize;
+
+    /**
+     * Si FFmpeg ha enviado {@code progress=end}.
+     */
+    private boolean ended;
+
+    /**
+     * @param metrics los contadores de la cámara.
+     */
+    ProgressParser(CameraMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Procesa un byte de la salida de progreso.
+     *
+     * @param b el byte.
+     */
+    @Override
+    public void feed(byte b) {
+        if (b == '\n') {
+            endOfLine();
+        } else if (b == '\r') {
+            // se ignora
+        } else if (!inValue) {
+            if (b == '=') {
+                inValue = true;
+            } else if (keyLength < key.length) {
+                key[keyLength++] = b;
+            }
+        } else if (valueLength < value.length) {
+            value[valueLength++] = b;
+        }
+    }
+
+    /**
+     * @return {@code true} si FFmpeg ha informado el fin de la salida de progreso.
+     */
+    @Override
+    public boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Procesa la línea acumulada.
+     */
+    private void endOfLine() {
+        if (inValue) {
+            if (is(FRAME)) {
+                frame = parseFixed(value, valueLength, 1);
+            } else if (is(FPS)) {
+                fpsHundredths = parseFixed(value, valueLength, 100);
+            } else if (is(BITRATE)) {
+                // p.ej. "1024.5kbits/s": se lee con tres decimales, así que el resultado ya está en bits/s
+                bitrateBitsPerSecond = parseFixed(value, valueLength, 1000);
+            } else if (is(TOTAL_SIZE)) {
+                totalSize = parseFixed(value, valueLength, 1);
+            } else if (is(DUP_FRAMES)) {
+                duplicated = parseFixed(value, valueLength, 1);
+            } else if (is(DROP_FRAMES)) {
+                dropped = parseFixed(value, valueLength, 1);
+            } else if (is(SPEED)) {
+                speedThousandths = parseFixed(value, valueLength, 1000);
+            } else if (is(PROGRESS)) {
+                commitBlock();
+                ended = Arrays.equals(value, 0, valueLength, END, 0, END.length);
+            }
+        }
+        keyLength = 0;
+        valueLength = 0;
+        inValue = false;
+    }
+
+    /**
+     * Vuelca el bloque en curso en las métricas de la cámara.
+     */
+    private void commitBlock() {
+        metrics.addProgress(delta(frame, lastFrame), delta(dropped, lastDropped),
+                delta(duplicated, lastDuplicated), delta(totalSize, lastTotalSize));
+        lastFrame = Math.max(lastFrame, frame);
+        lastDropped = Math.max(lastDropped, dropped);
+        lastDuplicated = Math.max(lastDuplicated, duplicated);
+        lastTotalSize = Math.max(lastTotalSize, totalSize);
+        metrics.setProgressRates(Math.max(0, fpsHundredths), Math.max(0, bitrateBitsPerSecond),
+                Math.max(0, speedThousandths), System.currentTimeMillis());
+    }
+
+    /**
+     * @return el incremento de un contador respecto al último bloque, o 0 si no está disponible.
+     */
+    private static long delta(long current, long last) {
+        return current > last ? current - last : 0;
+    }
+
+    /**
+     * @return si la clave acumulada es la indicada.
+     */
+    private boolean is(byte[] expected) {
+        return Arrays.equals(key, 0, keyLength, expected, 0, expected.length);
+    }
+
+    /**
+     * Lee un número decimal al principio del valor (se ignoran los espacios iniciales y las unidades que le sigan)
+     * y lo devuelve multiplicado por {@code scale}, sin pasar por {@code double} ni crear objetos.
+     *
+     * @param bytes  el valor.
+     * @param length bytes válidos.
+     * @param scale  potencia de 10 por la que se multiplica (1, 10, 100...).
+     * @return el valor en punto fijo, o {@link #NOT_AVAILABLE} si no empieza por un número.
+     */
+    static long parseFixed(byte[] bytes, int length, long scale) {
+        return parseFixed(bytes, 0, length, scale);
+    }
+
+    /**
+     * Como {@link #parseFixed(byte[], int, long)}, pero leyendo desde una posición del array.
+     *
+     * @param bytes  el array.
+     * @param from   posición del primer byte del valor.
+     * @param to     posición siguiente al último byte del valor.
+     * @param scale  potencia de 10 por la que se multiplica.
+     * @return el valor en punto fijo, o {@link #NOT_AVAILABLE} si no empieza por un número.
+     */
+    static long parseFixed(byte[] bytes, int from, int to, long scale) {
+        int i = from;
+        while (i < to && bytes[i] == ' ') {
+            i++;
+        }
+        long integer = 0;
+        boolean digits = false;
+        while (i < to && bytes[i] >= '0' && bytes[i] <= '9') {
+            integer = integer * 10 + (bytes[i++] - '0');
+            digits = true;
+        }
+        long fraction = 0;
+        long fractionScale = scale;
+        if (i < to && bytes[i] == '.') {
+            i++;
+            while (i < to && bytes[i] >= '0' && bytes[i] <= '9') {
+                if (fractionScale > 1) {
+                    fractionScale /= 10;
+                    fraction += (bytes[i] - '0') * fractionScale;
+                }
+                i++;
+                digits = true;
+            }
+        }
+        return digits ? integer * scale + fraction : NOT_AVAILABLE;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
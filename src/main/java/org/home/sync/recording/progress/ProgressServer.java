@@ -0,0 +1,283 @@
+package org.home.sync.recording.progress;
+
+import org.home.sync.metrics.CameraMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recibe la salida de progreso de todos los procesos FFmpeg en un único hilo.
+ * <p>
+ * A cada FFmpeg se le pasa {@code -progress http://127.0.0.1:<puerto>/progress/<camara>}: FFmpeg abre una
+ * petición POST contra este servidor y va enviando un bloque {@code clave=valor} cada medio segundo. Un único
+ * {@link Selector} atiende todas las conexiones, lee con un buffer directo compartido y cada
+ * {@link ProgressConnection} interpreta los bytes sin crear objetos por línea. Así el progreso no pasa por
+ * ningún log ni necesita un hilo por cámara.
+ * </p>
+ * <p>
+ * Del mismo modo recibe la lista de segmentos ({@code -segment_list}): FFmpeg añade una línea cada vez que cierra un
+ * segmento, lo que permite saber cuándo se escribió el último sin recorrer el directorio. Y también las puntuaciones de
+ * cambio de escena de los FFmpeg que detectan actividad (filtro {@code metadata=print:file=<url>}).
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class ProgressServer implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ProgressServer.class);
+
+    static final ByteBuffer OK = response("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+    static final ByteBuffer NOT_FOUND = response("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+    static final ByteBuffer CONTINUE = response("HTTP/1.1 100 Continue\r\n\r\n");
+
+    /**
+     * Tamaño del buffer de lectura compartido.
+     */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Cámaras que pueden enviar progreso, por nombre.
+     */
+    private final Map<String, CameraMetrics> cameras = new ConcurrentHashMap<>();
+
+    /**
+     * Quién recibe los segmentos cerrados de cada cámara, por nombre.
+     */
+    private final Map<String, SegmentListener> segmentListeners = new ConcurrentHashMap<>();
+
+    /**
+     * Directorio donde escribe sus segmentos cada cámara que avisa de ellos, por nombre.
+     */
+    private final Map<String, Path> segmentDirectories = new ConcurrentHashMap<>();
+
+    /**
+     * Quién recibe las puntuaciones de cambio de escena de cada cámara, por nombre.
+     */
+    private final Map<String, ActivityListener> activityListeners = new ConcurrentHashMap<>();
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Abre el servidor en un puerto libre de 127.0.0.1 y arranca su hilo.
+     *
+     * @throws IOException si no se puede abrir el socket.
+     */
+    public ProgressServer() throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.thread = new Thread(this::loop, "ffmpeg-progress");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Servidor de progreso de FFmpeg escuchando en el puerto " + getPort());
+    }
+
+    /**
+     * Admite el progreso de una cámara.
+     *
+     * @param metrics los contadores donde se vuelca el progreso.
+     */
+    public void register(CameraMetrics metrics) {
+        cameras.put(metrics.getCameraName(), metrics);
+    }
+
+    /**
+     * Admite el progreso de una cámara y avisa de cada segmento que cierre.
+     *
+     * @param metrics  los contadores donde se vuelca el progreso.
+     * @param listener a quién avisar de cada segmento cerrado.
+     */
+    public void register(CameraMetrics metrics, SegmentListener listener) {
+        register(metrics, Path.of(metrics.getCameraName()), listener);
+    }
+
+    /**
+     * Admite el progreso de una cámara que escribe sus segmentos fuera de su directorio y avisa de cada segmento que
+     * cierre.
+     *
+     * @param metrics   los contadores donde se vuelca el progreso.
+     * @param directory el directorio donde FFmpeg escribe los segmentos.
+     * @param listener  a quién avisar de cada segmento cerrado.
+     */
+    public void register(CameraMetrics metrics, Path directory, SegmentListener listener) {
+        segmentDirectories.put(metrics.getCameraName(), directory);
+        segmentListeners.put(metrics.getCameraName(), listener);
+        register(metrics);
+    }
+
+    /**
+     * Deja de admitir el progreso de una cámara.
+     *
+     * @param cameraName el nombre de la cámara.
+     */
+    public void unregister(String cameraName) {
+        cameras.remove(cameraName);
+        segmentListeners.remove(cameraName);
+        segmentDirectories.remove(cameraName);
+    }
+
+    /**
+     * Admite las puntuaciones de cambio de escena de una cámara. Es independiente del progreso de su grabación.
+     *
+     * @param cameraName el nombre de la cámara.
+     * @param listener   a quién pasar cada puntuación.
+     */
+    public void registerActivity(String cameraName, ActivityListener listener) {
+        activityListeners.put(cameraName, listener);
+    }
+
+    /**
+     * Deja de admitir las puntuaciones de cambio de escena de una cámara, si siguen yendo a {@code listener}.
+     *
+     * @param cameraName el nombre de la cámara.
+     * @param listener   quien las recibía.
+     */
+    public void unregisterActivity(String cameraName, ActivityListener listener) {
+        activityListeners.remove(cameraName, listener);
+    }
+
+    /**
+     * @param cameraName el nombre de la cámara.
+     * @return la URL que hay que pasar a {@code -progress}.
+     */
+    public String progressUrl(String cameraName) {
+        return "http://127.0.0.1:" + getPort() + ProgressConnection.PATH_PREFIX
+                + URLEncoder.encode(cameraName, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param cameraName el nombre de la cámara.
+     * @return la URL que hay que pasar a {@code -segment_list}.
+     */
+    public String segmentListUrl(String cameraName) {
+        return "http://127.0.0.1:" + getPort() + ProgressConnection.SEGMENTS_PATH_PREFIX
+                + URLEncoder.encode(cameraName, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param cameraName el nombre de la cámara.
+     * @return la URL donde el filtro {@code metadata} tiene que escribir las puntuaciones de cambio de escena.
+     */
+    public String activityUrl(String cameraName) {
+        return "http://127.0.0.1:" + getPort() + ProgressConnection.ACTIVITY_PATH_PREFIX
+                + URLEncoder.encode(cameraName, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return el puerto en el que escucha el servidor.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Error en el servidor de progreso de FFmpeg", e);
+            }
+        }
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("Error al cerrar el servidor de progreso de FFmpeg", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new ProgressConnection(cameras::get, segmentListeners::get,
+                name -> segmentDirectories.getOrDefault(name, Path.of(name)), activityListeners::get));
+    }
+
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ProgressConnection connection = (ProgressConnection) key.attachment();
+        try {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close(key);
+                return;
+            }
+            readBuffer.flip();
+            connection.consume(readBuffer);
+            ByteBuffer response = connection.takeResponse();
+            if (response != null) {
+                // respuestas de pocos bytes sobre loopback: se escriben de una vez
+                channel.write(response);
+            }
+            if (connection.isDone()) {
+                close(key);
+            }
+        } catch (IOException e) {
+            close(key);
+        }
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // ya está cerrado
+        }
+    }
+
+    private static ByteBuffer response(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Cierra el servidor y todas las conexiones.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
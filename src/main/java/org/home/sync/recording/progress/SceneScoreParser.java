@@ -0,0 +1,69 @@
+package org.home.sync.recording.progress;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Interpreta lo que escribe el filtro {@code metadata=print:key=lavfi.scene_score} de FFmpeg: por cada fotograma una
+ * línea {@code frame:... pts:... pts_time:...} seguida de {@code lavfi.scene_score=0.012345}.
+ * <p>
+ * Sólo se atiende a las líneas de la puntuación, que se pasan al {@link ActivityListener} en millonésimas, sin crear
+ * ningún objeto por línea. Una instancia corresponde a un único proceso FFmpeg y no es segura para varios hilos.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class SceneScoreParser implements BodyParser {
+
+    private static final byte[] SCENE_SCORE = "lavfi.scene_score=".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * A quién se pasa cada puntuación.
+     */
+    private final ActivityListener listener;
+
+    private final byte[] line = new byte[128];
+    private int lineLength;
+
+    /**
+     * @param listener a quién pasar cada puntuación.
+     */
+    SceneScoreParser(ActivityListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void feed(byte b) {
+        if (b == '\n') {
+            endOfLine();
+        } else if (b != '\r' && lineLength < line.length) {
+            line[lineLength++] = b;
+        }
+    }
+
+    @Override
+    public boolean isEnded() {
+        return false;
+    }
+
+    private void endOfLine() {
+        if (startsWithSceneScore()) {
+            long score = ProgressParser.parseFixed(line, SCENE_SCORE.length, lineLength, 1_000_000);
+            if (score != ProgressParser.NOT_AVAILABLE) {
+                listener.onSceneScore(score);
+            }
+        }
+        lineLength = 0;
+    }
+
+    private boolean startsWithSceneScore() {
+        if (lineLength <= SCENE_SCORE.length) {
+            return false;
+        }
+        for (int i = 0; i < SCENE_SCORE.length; i++) {
+            if (line[i] != SCENE_SCORE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+package org.home.sync.recording.progress;
+
+import org.home.sync.metrics.CameraMetrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Interpreta la lista de segmentos que FFmpeg envía con {@code -segment_list <url> -segment_list_type csv}: una línea
+ * {@code fichero,inicio,fin} cada vez que cierra un segmento.
+ * <p>
+ * Por cada segmento cerrado se consulta su tamaño (una única llamada a {@code stat}), se actualizan los contadores
+ * de la cámara y se avisa al {@link SegmentListener}, si lo hay. Una instancia corresponde a un único proceso FFmpeg y no es segura para varios hilos.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class SegmentListParser implements BodyParser {
+
+    /**
+     * Contadores de la cámara que se actualizan.
+     */
+    private final CameraMetrics metrics;
+
+    /**
+     * Directorio donde FFmpeg escribe los segmentos.
+     */
+    private final Path directory;
+
+    /**
+     * A quién se avisa de cada segmento cerrado, o {@code null}.
+     */
+    private final SegmentListener listener;
+
+    private final byte[] line = new byte[512];
+    private int lineLength;
+
+    /**
+     * @param metrics   los contadores de la cámara.
+     * @param directory el directorio donde FFmpeg escribe los segmentos.
+     * @param listener  a quién avisar de cada segmento cerrado, o {@code null}.
+     */
+    SegmentListParser(CameraMetrics metrics, Path directory, SegmentListener listener) {
+        this.metrics = metrics;
+        this.directory = directory;
+        this.listener = listener;
+    }
+
+    @Override
+    public void feed(byte b) {
+        if (b == '\n') {
+            endOfLine();
+        } else if (b != '\r' && lineLength < line.length) {
+            line[lineLength++] = b;
+        }
+    }
+
+    @Override
+    public boolean isEnded() {
+        return false;
+    }
+
+    private void endOfLine() {
+        int comma = indexOfComma(0);
+        if (comma > 0) {
+            String fileName = new String(line, 0, comma, StandardCharsets.UTF_8);
+            long bytes;
+            try {
+                bytes = Files.size(directory.resolve(fileName));
+            } catch (IOException e) {
+                bytes = 0;
+            }
+            long now = System.currentTimeMillis();
+            metrics.recordSegment(bytes, now);
+            if (listener != null) {
+                listener.onSegmentClosed(fileName, durationMillis(comma), bytes, now);
+            }
+        }
+        lineLength = 0;
+    }
+
+    /**
+     * @param fileEnd posición de la coma que sigue al nombre del fichero.
+     * @return la duración del segmento ({@code fin - inicio}, en segundos en la lista), o 0 si no se puede leer.
+     */
+    private long durationMillis(int fileEnd) {
+        int startEnd = indexOfComma(fileEnd + 1);
+        if (startEnd >= lineLength) {
+            return 0;
+        }
+        long start = ProgressParser.parseFixed(line, fileEnd + 1, startEnd, 1000);
+        long end = ProgressParser.parseFixed(line, startEnd + 1, lineLength, 1000);
+        if (start == ProgressParser.NOT_AVAILABLE || end == ProgressParser.NOT_AVAILABLE || end < start) {
+            return 0;
+        }
+        return end - start;
+    }
+
+    private int indexOfComma(int from) {
+        int i = from;
+        while (i < lineLength && line[i] != ',') {
+            i++;
+        }
+        return i;
+    }
+}
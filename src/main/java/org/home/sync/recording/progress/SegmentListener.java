@@ -0,0 +1,22 @@
+package org.home.sync.recording.progress;
+
+/**
+ * Recibe los segmentos que FFmpeg va cerrando, tal como llegan en la lista de segmentos.
+ * <p>
+ * Se invoca desde el hilo del {@link ProgressServer}, así que la implementación no debe bloquearse.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public interface SegmentListener {
+
+    /**
+     * Se invoca cuando FFmpeg cierra un segmento.
+     *
+     * @param fileName       el nombre del fichero, relativo al directorio de la cámara.
+     * @param durationMillis la duración del segmento, en milisegundos.
+     * @param bytes          el tamaño del fichero.
+     * @param closedAtMillis el instante (epoch millis) en el que se ha recibido el cierre.
+     */
+    void onSegmentClosed(String fileName, long durationMillis, long bytes, long closedAtMillis);
+}
@@ -0,0 +1,161 @@
+package org.home.sync.recording.rtsp;
+
+import org.home.sync.recording.ts.TsSegmentWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Depaquetizador de AAC en {@code mpeg4-generic} (RFC 3640, modos AAC-hbr y AAC-lbr). Cada unidad de acceso se
+ * escribe con una cabecera ADTS, que es como va el AAC en MPEG-TS, y todas las de un paquete van en un mismo PES.
+ * <p>
+ * Las unidades de acceso fragmentadas en varios paquetes (más de ~1400 bytes de audio por bloque, que no mandan
+ * las cámaras) se descartan.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class AacDepacketizer extends Depacketizer {
+
+    private static final int ADTS_HEADER_SIZE = 7;
+
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    private final TsSegmentWriter writer;
+    private final BufferPool pool;
+    private ByteBuffer frames;
+
+    private final int sizeLength;
+    private final int indexLength;
+    private final int indexDeltaLength;
+
+    private final int profile;
+    private final int frequencyIndex;
+    private final int channels;
+
+    private AacDepacketizer(RtpClock clock, TsSegmentWriter writer, BufferPool pool, int sizeLength, int indexLength,
+                            int indexDeltaLength, int profile, int frequencyIndex, int channels) {
+        super(clock);
+        this.writer = writer;
+        this.pool = pool;
+        this.sizeLength = sizeLength;
+        this.indexLength = indexLength;
+        this.indexDeltaLength = indexDeltaLength;
+        this.profile = profile;
+        this.frequencyIndex = frequencyIndex;
+        this.channels = channels;
+        this.frames = pool.acquire(INITIAL_BUFFER_SIZE);
+    }
+
+    /**
+     * @param clock  el reloj de la pista.
+     * @param writer el escritor de segmentos.
+     * @param pool   de dónde se toma el buffer de audio.
+     * @param track  la pista del SDP.
+     * @return el depaquetizador, o {@code null} si el {@code fmtp} no describe un AAC que se pueda pasar a ADTS.
+     */
+    static AacDepacketizer create(RtpClock clock, TsSegmentWriter writer, BufferPool pool,
+                                  SessionDescription.MediaTrack track) {
+        String config = track.getFormatParameter("config");
+        int sizeLength = parseInt(track.getFormatParameter("sizelength"), 0);
+        if (config == null || config.length() < 4 || sizeLength <= 0 || sizeLength > 16) {
+            return null;
+        }
+        int audioSpecificConfig;
+        try {
+            audioSpecificConfig = Integer.parseInt(config.substring(0, 4), 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        int objectType = audioSpecificConfig >> 11;
+        int frequencyIndex = audioSpecificConfig >> 7 & 0x0F;
+        int channels = audioSpecificConfig >> 3 & 0x0F;
+        if (objectType == 0 || objectType == 31 || frequencyIndex == 15) {
+            // tipo extendido o frecuencia explícita: no caben en una cabecera ADTS
+            return null;
+        }
+        // HE-AAC (SBR, PS) va en ADTS como AAC-LC y el decodificador lo detecta
+        int profile = objectType <= 4 ? objectType - 1 : 1;
+        return new AacDepacketizer(clock, writer, pool, sizeLength,
+                parseInt(track.getFormatParameter("indexlength"), 0),
+                parseInt(track.getFormatParameter("indexdeltalength"), 0), profile, frequencyIndex, channels);
+    }
+
+    @Override
+    void onPacket(ByteBuffer packet, int offset, int length, int sequence, int timestamp, boolean marker,
+                  long arrivalNanos) throws IOException {
+        if (length < 2) {
+            return;
+        }
+        int headerBits = packet.getShort(offset) & 0xFFFF;
+        int headerStart = offset + 2;
+        int data = headerStart + (headerBits + 7) / 8;
+        int end = offset + length;
+        if (data > end) {
+            return;
+        }
+        long pts = clock.toPts(timestamp, arrivalNanos);
+        if (frames.capacity() < length * 2) {
+            pool.release(frames);
+            frames = pool.acquire(length * 2);
+        }
+        frames.clear();
+        int bit = 0;
+        boolean first = true;
+        while (bit + sizeLength <= headerBits) {
+            int size = readBits(packet, headerStart, bit, sizeLength);
+            bit += sizeLength + (first ? indexLength : indexDeltaLength);
+            first = false;
+            if (size == 0 || data + size > end || frames.remaining() < ADTS_HEADER_SIZE + size) {
+                break;
+            }
+            putAdtsHeader(ADTS_HEADER_SIZE + size);
+            copy(packet, data, size, frames);
+            data += size;
+        }
+        frames.flip();
+        if (frames.hasRemaining()) {
+            writer.writeAudio(frames, pts);
+        }
+    }
+
+    private void putAdtsHeader(int frameLength) {
+        frames.put((byte) 0xFF);
+        frames.put((byte) 0xF1); // MPEG-4, sin CRC
+        frames.put((byte) (profile << 6 | frequencyIndex << 2 | channels >> 2));
+        frames.put((byte) ((channels & 3) << 6 | frameLength >> 11));
+        frames.put((byte) (frameLength >> 3));
+        frames.put((byte) ((frameLength & 7) << 5 | 0x1F));
+        frames.put((byte) 0xFC);
+    }
+
+    /**
+     * Lee hasta 16 bits a partir de un desplazamiento en bits.
+     */
+    private static int readBits(ByteBuffer buffer, int offset, int bit, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            int position = bit + i;
+            int b = buffer.get(offset + position / 8) >> (7 - position % 8) & 1;
+            value = value << 1 | b;
+        }
+        return value;
+    }
+
+    @Override
+    void release() {
+        pool.release(frames);
+        frames = null;
+    }
+
+    private static int parseInt(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.home.sync.recording.rtsp;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers directos reutilizables, por tamaños potencia de dos.
+ * <p>
+ * Cada conexión RTSP toma sus buffers al conectar y los devuelve al cerrarse, así que una cámara que se reconecta
+ * reutiliza la memoria de la conexión anterior en lugar de reservar más memoria directa (que sólo se libera con el
+ * GC). Lo reservado nunca supera lo que necesitan las conexiones abiertas a la vez.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class BufferPool {
+
+    /**
+     * Tamaño mínimo de los buffers.
+     */
+    private static final int MIN_SIZE = 4 * 1024;
+
+    private final ConcurrentHashMap<Integer, Queue<ByteBuffer>> free = new ConcurrentHashMap<>();
+
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    /**
+     * @param minCapacity capacidad mínima.
+     * @return un buffer directo vacío, de capacidad la potencia de dos que cubre {@code minCapacity}.
+     */
+    ByteBuffer acquire(int minCapacity) {
+        int size = sizeFor(minCapacity);
+        ByteBuffer buffer = free.computeIfAbsent(size, s -> new ConcurrentLinkedQueue<>()).poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(size);
+            allocatedBytes.addAndGet(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Devuelve un buffer al pool. No se puede seguir usando.
+     *
+     * @param buffer el buffer, o {@code null}.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer != null) {
+            free.computeIfAbsent(buffer.capacity(), s -> new ConcurrentLinkedQueue<>()).offer(buffer);
+        }
+    }
+
+    /**
+     * @return bytes de memoria directa reservados por el pool, en uso o libres.
+     */
+    long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    private static int sizeFor(int capacity) {
+        if (capacity <= MIN_SIZE) {
+            return MIN_SIZE;
+        }
+        return Integer.highestOneBit(capacity - 1) << 1;
+    }
+}
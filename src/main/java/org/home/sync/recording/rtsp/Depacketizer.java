@@ -0,0 +1,59 @@
+package org.home.sync.recording.rtsp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reconstruye los fotogramas de una pista a partir de sus paquetes RTP y se los pasa al escritor de segmentos.
+ * <p>
+ * Los paquetes llegan sin copiar, como una región del buffer de recepción de la conexión; la implementación copia
+ * lo que necesite antes de volver.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+abstract class Depacketizer {
+
+    /**
+     * Convierte los timestamps de la pista a PTS.
+     */
+    protected final RtpClock clock;
+
+    /**
+     * @param clock el reloj de la pista.
+     */
+    protected Depacketizer(RtpClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Procesa la carga de un paquete RTP.
+     *
+     * @param packet       el buffer de recepción.
+     * @param offset       posición de la carga (sin la cabecera RTP).
+     * @param length       longitud de la carga (sin relleno).
+     * @param sequence     número de secuencia del paquete.
+     * @param timestamp    timestamp RTP.
+     * @param marker       bit de marca: último paquete del fotograma.
+     * @param arrivalNanos instante ({@link System#nanoTime()}) de llegada.
+     * @throws IOException si no se puede escribir el fotograma.
+     */
+    abstract void onPacket(ByteBuffer packet, int offset, int length, int sequence, int timestamp, boolean marker,
+                           long arrivalNanos) throws IOException;
+
+    /**
+     * Devuelve los buffers al pool. No se puede seguir usando.
+     */
+    abstract void release();
+
+    /**
+     * Copia una región de un buffer en otro sin crear vistas ni mover la posición del origen.
+     */
+    static void copy(ByteBuffer source, int offset, int length, ByteBuffer target) {
+        int position = source.position();
+        int limit = source.limit();
+        source.limit(offset + length).position(offset);
+        target.put(source);
+        source.limit(limit).position(position);
+    }
+}
@@ -0,0 +1,112 @@
+package org.home.sync.recording.rtsp;
+
+import org.home.sync.recording.ts.TsSegmentWriter;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Depaquetizador de H.264 (RFC 6184, modo no entrelazado): unidades NAL sueltas, agregadas (STAP-A) y fragmentadas
+ * (FU-A).
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class H264Depacketizer extends VideoDepacketizer {
+
+    private static final int STAP_A = 24;
+    private static final int FU_A = 28;
+
+    private static final int IDR = 5;
+    private static final int SPS = 7;
+    private static final int PPS = 8;
+    private static final int AUD = 9;
+
+    /**
+     * AUD con {@code primary_pic_type} 7 (cualquier tipo de slice).
+     */
+    private static final byte[] ACCESS_UNIT_DELIMITER = {0x09, (byte) 0xF0};
+
+    private final byte[] fragmentHeader = new byte[1];
+
+    /**
+     * @param clock  el reloj de la pista.
+     * @param writer el escritor de segmentos.
+     * @param pool   de dónde se toma el buffer de fotograma.
+     * @param track  la pista del SDP, de donde se toman el SPS y el PPS.
+     */
+    H264Depacketizer(RtpClock clock, TsSegmentWriter writer, BufferPool pool, SessionDescription.MediaTrack track) {
+        super(clock, writer, pool, 2);
+        String parameterSets = track.getFormatParameter("sprop-parameter-sets");
+        if (parameterSets != null) {
+            for (String set : parameterSets.split(",")) {
+                try {
+                    addParameterSet(Base64.getDecoder().decode(set.trim()));
+                } catch (IllegalArgumentException e) {
+                    // un sprop mal formado: se esperan los que vengan en el stream
+                }
+            }
+        }
+    }
+
+    @Override
+    int nalType(ByteBuffer buffer, int offset) {
+        return buffer.get(offset) & 0x1F;
+    }
+
+    @Override
+    int parameterSetSlot(int nalType) {
+        switch (nalType) {
+            case SPS: return 0;
+            case PPS: return 1;
+            default: return -1;
+        }
+    }
+
+    @Override
+    boolean isKeyframe(int nalType) {
+        return nalType == IDR;
+    }
+
+    @Override
+    boolean isAccessUnitDelimiter(int nalType) {
+        return nalType == AUD;
+    }
+
+    @Override
+    byte[] accessUnitDelimiter() {
+        return ACCESS_UNIT_DELIMITER;
+    }
+
+    @Override
+    void depacketize(ByteBuffer packet, int offset, int length) {
+        int header = packet.get(offset) & 0xFF;
+        int type = header & 0x1F;
+        if (type >= 1 && type < STAP_A) {
+            writeNal(packet, offset, length);
+        } else if (type == STAP_A) {
+            int position = offset + 1;
+            int end = offset + length;
+            while (position + 2 <= end) {
+                int size = packet.getShort(position) & 0xFFFF;
+                position += 2;
+                if (size == 0 || position + size > end) {
+                    break;
+                }
+                writeNal(packet, position, size);
+                position += size;
+            }
+        } else if (type == FU_A && length > 2) {
+            int fu = packet.get(offset + 1) & 0xFF;
+            int nalType = fu & 0x1F;
+            if ((fu & 0x80) != 0) {
+                fragmentHeader[0] = (byte) (header & 0xE0 | nalType);
+                beginFragment(nalType, fragmentHeader, 1);
+            }
+            appendFragment(packet, offset + 2, length - 2);
+            if ((fu & 0x40) != 0) {
+                endFragment();
+            }
+        }
+        // STAP-B, MTAP y FU-B sólo existen en el modo entrelazado, que no se pide
+    }
+}
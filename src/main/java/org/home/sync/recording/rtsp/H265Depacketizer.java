@@ -0,0 +1,120 @@
+package org.home.sync.recording.rtsp;
+
+import org.home.sync.recording.ts.TsSegmentWriter;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Depaquetizador de H.265 (RFC 7798, sin DONL): unidades NAL sueltas, agregadas (AP) y fragmentadas (FU).
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class H265Depacketizer extends VideoDepacketizer {
+
+    private static final int AP = 48;
+    private static final int FU = 49;
+
+    private static final int FIRST_IRAP = 16;
+    private static final int LAST_IRAP = 23;
+    private static final int VPS = 32;
+    private static final int SPS = 33;
+    private static final int PPS = 34;
+    private static final int AUD = 35;
+
+    /**
+     * AUD con {@code pic_type} 2 (cualquier tipo de slice).
+     */
+    private static final byte[] ACCESS_UNIT_DELIMITER = {0x46, 0x01, 0x50};
+
+    private final byte[] fragmentHeader = new byte[2];
+
+    /**
+     * @param clock  el reloj de la pista.
+     * @param writer el escritor de segmentos.
+     * @param pool   de dónde se toma el buffer de fotograma.
+     * @param track  la pista del SDP, de donde se toman el VPS, el SPS y el PPS.
+     */
+    H265Depacketizer(RtpClock clock, TsSegmentWriter writer, BufferPool pool, SessionDescription.MediaTrack track) {
+        super(clock, writer, pool, 3);
+        for (String name : new String[]{"sprop-vps", "sprop-sps", "sprop-pps"}) {
+            String value = track.getFormatParameter(name);
+            if (value == null) {
+                continue;
+            }
+            for (String set : value.split(",")) {
+                try {
+                    addParameterSet(Base64.getDecoder().decode(set.trim()));
+                } catch (IllegalArgumentException e) {
+                    // un sprop mal formado: se esperan los que vengan en el stream
+                }
+            }
+        }
+    }
+
+    @Override
+    int nalType(ByteBuffer buffer, int offset) {
+        return buffer.get(offset) >> 1 & 0x3F;
+    }
+
+    @Override
+    int parameterSetSlot(int nalType) {
+        switch (nalType) {
+            case VPS: return 0;
+            case SPS: return 1;
+            case PPS: return 2;
+            default: return -1;
+        }
+    }
+
+    @Override
+    boolean isKeyframe(int nalType) {
+        return nalType >= FIRST_IRAP && nalType <= LAST_IRAP;
+    }
+
+    @Override
+    boolean isAccessUnitDelimiter(int nalType) {
+        return nalType == AUD;
+    }
+
+    @Override
+    byte[] accessUnitDelimiter() {
+        return ACCESS_UNIT_DELIMITER;
+    }
+
+    @Override
+    void depacketize(ByteBuffer packet, int offset, int length) {
+        if (length < 2) {
+            return;
+        }
+        int type = nalType(packet, offset);
+        if (type < AP) {
+            writeNal(packet, offset, length);
+        } else if (type == AP) {
+            int position = offset + 2;
+            int end = offset + length;
+            while (position + 2 <= end) {
+                int size = packet.getShort(position) & 0xFFFF;
+                position += 2;
+                if (size == 0 || position + size > end) {
+                    break;
+                }
+                writeNal(packet, position, size);
+                position += size;
+            }
+        } else if (type == FU && length > 3) {
+            int fu = packet.get(offset + 2) & 0xFF;
+            int nalType = fu & 0x3F;
+            if ((fu & 0x80) != 0) {
+                fragmentHeader[0] = (byte) (packet.get(offset) & 0x81 | nalType << 1);
+                fragmentHeader[1] = packet.get(offset + 1);
+                beginFragment(nalType, fragmentHeader, 2);
+            }
+            appendFragment(packet, offset + 3, length - 3);
+            if ((fu & 0x40) != 0) {
+                endFragment();
+            }
+        }
+        // PACI (50) no lo usa ninguna cámara
+    }
+}
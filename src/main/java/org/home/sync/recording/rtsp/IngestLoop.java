@@ -0,0 +1,145 @@
+package org.home.sync.recording.rtsp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Un hilo con un {@link Selector} que atiende las conexiones RTSP de muchas cámaras.
+ * <p>
+ * Todo lo de una sesión (conectar, leer, depaquetizar, escribir los segmentos y cerrar) pasa en este hilo, así que
+ * las sesiones no necesitan bloqueos. Desde otros hilos sólo se encolan tareas con {@link #execute(Runnable)}.
+ * Cada {@link #TICK_MILLIS} se revisan los plazos de todas las sesiones.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class IngestLoop {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(IngestLoop.class);
+
+    /**
+     * Cada cuántos milisegundos se revisan los plazos de las sesiones.
+     */
+    static final long TICK_MILLIS = 250;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Sesiones abiertas en este hilo. Sólo se toca desde él.
+     */
+    private final List<RtspSession> sessions = new ArrayList<>();
+
+    private volatile boolean running = true;
+
+    /**
+     * Abre el selector y arranca el hilo.
+     *
+     * @param name el nombre del hilo.
+     * @throws IOException si no se puede abrir el selector.
+     */
+    IngestLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this::loop, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Ejecuta una tarea en el hilo del bucle.
+     *
+     * @param task la tarea.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    void add(RtspSession session) {
+        sessions.add(session);
+    }
+
+    void remove(RtspSession session) {
+        sessions.remove(session);
+    }
+
+    private void loop() {
+        long lastTick = System.nanoTime();
+        while (running) {
+            try {
+                selector.select(TICK_MILLIS);
+            } catch (IOException e) {
+                logger.error("Error en el selector de " + thread.getName(), e);
+            }
+            runTasks();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid()) {
+                    ((RtspSession) key.attachment()).onReady(key);
+                }
+            }
+            long now = System.nanoTime();
+            if (now - lastTick >= TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS)) {
+                lastTick = now;
+                // de atrás hacia delante: una sesión puede cerrarse y quitarse de la lista durante su tick
+                for (int i = sessions.size() - 1; i >= 0; i--) {
+                    if (i < sessions.size()) {
+                        sessions.get(i).tick(now);
+                    }
+                }
+            }
+        }
+        runTasks();
+        for (int i = sessions.size() - 1; i >= 0; i--) {
+            sessions.get(i).closeNow("se ha cerrado la ingesta RTSP");
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("Error al cerrar el selector de " + thread.getName(), e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Error en una tarea de " + thread.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Cierra todas las sesiones y termina el hilo.
+     *
+     * @param timeoutMillis cuánto esperar a que termine.
+     * @throws InterruptedException si se interrumpe la espera.
+     */
+    void shutdown(long timeoutMillis) throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        thread.join(timeoutMillis);
+    }
+}
@@ -0,0 +1,55 @@
+package org.home.sync.recording.rtsp;
+
+/**
+ * Pasa los timestamps RTP de una pista (32 bits, con la frecuencia de reloj de su códec) a PTS de 90 kHz que no
+ * dan la vuelta.
+ * <p>
+ * Cada pista empieza con un timestamp aleatorio, así que sin los informes RTCP no hay una referencia común. Se
+ * alinean por la llegada de su primer paquete: el PTS de ese paquete es {@link #BASE_PTS} más el tiempo que ha
+ * pasado desde que empezó la sesión, y a partir de ahí se sigue el reloj de la propia pista.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class RtpClock {
+
+    /**
+     * PTS que corresponde al inicio de la sesión: un segundo, para que el PCR (que va por detrás) no sea negativo.
+     */
+    static final long BASE_PTS = 90_000;
+
+    private final int clockRate;
+    private final long sessionStartNanos;
+
+    private boolean started;
+    private int lastTimestamp;
+    private long elapsed;
+    private long originPts;
+
+    /**
+     * @param clockRate         frecuencia del reloj RTP de la pista, en Hz.
+     * @param sessionStartNanos instante ({@link System#nanoTime()}) en que empezó la sesión.
+     */
+    RtpClock(int clockRate, long sessionStartNanos) {
+        this.clockRate = clockRate > 0 ? clockRate : 90_000;
+        this.sessionStartNanos = sessionStartNanos;
+    }
+
+    /**
+     * @param timestamp    el timestamp RTP del paquete.
+     * @param arrivalNanos el instante ({@link System#nanoTime()}) en que ha llegado.
+     * @return su PTS, en unidades de 90 kHz.
+     */
+    long toPts(int timestamp, long arrivalNanos) {
+        if (!started) {
+            started = true;
+            lastTimestamp = timestamp;
+            originPts = BASE_PTS + (arrivalNanos - sessionStartNanos) * 9 / 100_000;
+        } else {
+            // la diferencia con signo de 32 bits absorbe la vuelta del contador
+            elapsed += timestamp - lastTimestamp;
+            lastTimestamp = timestamp;
+        }
+        return originPts + elapsed * 90_000 / clockRate;
+    }
+}
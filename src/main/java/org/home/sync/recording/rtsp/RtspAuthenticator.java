@@ -0,0 +1,132 @@
+package org.home.sync.recording.rtsp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Calcula la cabecera {@code Authorization} de las peticiones RTSP a partir del {@code WWW-Authenticate} de la
+ * cámara: Digest (MD5, con o sin {@code qop=auth}) o Basic.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class RtspAuthenticator {
+
+    private final String user;
+    private final String password;
+    private final boolean digest;
+    private final String realm;
+    private final String nonce;
+    private final String opaque;
+    private final boolean qop;
+    private int nonceCount;
+
+    private RtspAuthenticator(String user, String password, boolean digest, Map<String, String> parameters) {
+        this.user = user;
+        this.password = password;
+        this.digest = digest;
+        this.realm = parameters.getOrDefault("realm", "");
+        this.nonce = parameters.getOrDefault("nonce", "");
+        this.opaque = parameters.get("opaque");
+        String qopOptions = parameters.get("qop");
+        this.qop = qopOptions != null && qopOptions.contains("auth");
+    }
+
+    /**
+     * @param challenge el valor de {@code WWW-Authenticate}.
+     * @param user      el usuario.
+     * @param password  la contraseña.
+     * @return el autenticador, o {@code null} si el esquema no es Digest ni Basic.
+     */
+    static RtspAuthenticator fromChallenge(String challenge, String user, String password) {
+        String trimmed = challenge.trim();
+        int space = trimmed.indexOf(' ');
+        String scheme = (space < 0 ? trimmed : trimmed.substring(0, space)).toLowerCase(Locale.ROOT);
+        Map<String, String> parameters = space < 0 ? new HashMap<>() : parameters(trimmed.substring(space + 1));
+        switch (scheme) {
+            case "digest": return new RtspAuthenticator(user, password, true, parameters);
+            case "basic": return new RtspAuthenticator(user, password, false, parameters);
+            default: return null;
+        }
+    }
+
+    /**
+     * @param method el método de la petición.
+     * @param uri    la URL de la petición.
+     * @return el valor de la cabecera {@code Authorization}.
+     */
+    String authorization(String method, String uri) {
+        if (!digest) {
+            return "Basic " + Base64.getEncoder().encodeToString((user + ":" + password)
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        String ha1 = md5(user + ":" + realm + ":" + password);
+        String ha2 = md5(method + ":" + uri);
+        StringBuilder header = new StringBuilder("Digest username=\"").append(user)
+                .append("\", realm=\"").append(realm)
+                .append("\", nonce=\"").append(nonce)
+                .append("\", uri=\"").append(uri).append('"');
+        if (qop) {
+            String nc = String.format("%08x", ++nonceCount);
+            String cnonce = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            header.append(", qop=auth, nc=").append(nc).append(", cnonce=\"").append(cnonce)
+                    .append("\", response=\"").append(md5(ha1 + ":" + nonce + ":" + nc + ":" + cnonce + ":auth:" + ha2))
+                    .append('"');
+        } else {
+            header.append(", response=\"").append(md5(ha1 + ":" + nonce + ":" + ha2)).append('"');
+        }
+        if (opaque != null) {
+            header.append(", opaque=\"").append(opaque).append('"');
+        }
+        return header.toString();
+    }
+
+    private static Map<String, String> parameters(String text) {
+        Map<String, String> parameters = new HashMap<>();
+        int i = 0;
+        while (i < text.length()) {
+            int equals = text.indexOf('=', i);
+            if (equals < 0) {
+                break;
+            }
+            String name = text.substring(i, equals).trim().toLowerCase(Locale.ROOT);
+            String value;
+            if (equals + 1 < text.length() && text.charAt(equals + 1) == '"') {
+                int close = text.indexOf('"', equals + 2);
+                if (close < 0) {
+                    close = text.length();
+                }
+                value = text.substring(equals + 2, close);
+                i = text.indexOf(',', close);
+            } else {
+                int comma = text.indexOf(',', equals);
+                value = text.substring(equals + 1, comma < 0 ? text.length() : comma).trim();
+                i = comma;
+            }
+            parameters.put(name, value);
+            if (i < 0) {
+                break;
+            }
+            i++;
+        }
+        return parameters;
+    }
+
+    private static String md5(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(32);
+            for (byte b : digest) {
+                hex.append(Character.forDigit(b >> 4 & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 no disponible", e);
+        }
+    }
+}
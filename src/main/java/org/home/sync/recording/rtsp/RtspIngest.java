@@ -0,0 +1,108 @@
+package org.home.sync.recording.rtsp;
+
+import org.home.sync.config.CameraConfig;
+import org.home.sync.recording.ts.TsSegmentWriter;
+import org.home.sync.relay.RelayPath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Motor de grabación nativo: lee el RTSP de las cámaras y escribe sus segmentos sin lanzar FFmpeg.
+ * <p>
+ * Unos pocos hilos ({@link #THREADS}, propiedad de sistema {@code rtsp.ingestThreads}), cada uno con su
+ * {@link java.nio.channels.Selector}, atienden todas las cámaras: cada cámara va siempre al mismo hilo y en él se
+ * hace todo su trabajo, de la lectura del socket a la escritura del segmento. Los buffers (recepción, fotograma,
+ * audio y salida, unos 720 KB de memoria directa por cámara) salen de un pool compartido y se reutilizan al
+ * reconectar, así que no se reserva memoria por paquete.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public final class RtspIngest implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(RtspIngest.class);
+
+    /**
+     * Número de hilos de ingesta. Se puede cambiar con la propiedad de sistema {@code rtsp.ingestThreads}.
+     */
+    public static final int THREADS = Math.max(1, Integer.getInteger("rtsp.ingestThreads", 2));
+
+    private final IngestLoop[] loops;
+
+    private final BufferPool pool = new BufferPool();
+
+    /**
+     * Abre los selectores y arranca los hilos de ingesta.
+     *
+     * @throws IOException si no se puede abrir algún selector.
+     */
+    public RtspIngest() throws IOException {
+        loops = new IngestLoop[THREADS];
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new IngestLoop("rtsp-ingest-" + (i + 1));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        logger.info("Ingesta RTSP nativa con " + loops.length + " hilos");
+    }
+
+    /**
+     * Empieza a grabar una cámara: conecta en segundo plano y vuelve enseguida.
+     *
+     * @param cameraConfig la configuración de la cámara.
+     * @param writer       dónde se escriben sus segmentos. Lo usa la sesión hasta que se cierra.
+     * @param relay        la ruta del relay donde se replica, o {@code null}.
+     * @param listener     a quién avisar cuando empieza a grabar y cuando se cierra.
+     * @return la sesión.
+     * @throws UnknownHostException si no se puede resolver la dirección de la cámara.
+     */
+    public RtspSession open(CameraConfig cameraConfig, TsSegmentWriter writer, RelayPath relay,
+                            RtspSessionListener listener) throws UnknownHostException {
+        InetSocketAddress address = new InetSocketAddress(cameraConfig.getIp(), cameraConfig.getPort());
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(cameraConfig.getIp());
+        }
+        String url = "rtsp://" + cameraConfig.getIp() + ":" + cameraConfig.getPort() + "/"
+                + cameraConfig.getStream().name().toLowerCase();
+        IngestLoop loop = loops[(cameraConfig.getName().hashCode() & Integer.MAX_VALUE) % loops.length];
+        RtspSession session = new RtspSession(cameraConfig.getName(), address, url, cameraConfig.getUser(),
+                cameraConfig.getPassword(), writer, relay, listener, loop, pool);
+        loop.execute(session::connect);
+        return session;
+    }
+
+    /**
+     * @return bytes de memoria directa reservados para los buffers de las cámaras.
+     */
+    public long getDirectMemoryBytes() {
+        return pool.getAllocatedBytes();
+    }
+
+    /**
+     * Cierra todas las sesiones (con su último segmento) y para los hilos.
+     */
+    @Override
+    public void close() {
+        for (IngestLoop loop : loops) {
+            if (loop == null) {
+                continue;
+            }
+            try {
+                loop.shutdown(RtspSession.TIMEOUT_SECONDS * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,694 @@
+package org.home.sync.recording.rtsp;
+
+import org.home.sync.recording.ts.TsMuxer;
+import org.home.sync.relay.RelayPath;
+import org.home.sync.recording.ts.TsSegmentWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Una conexión RTSP con una cámara, de la que se graba el video (y el audio AAC, si lo hay) con RTP entrelazado en
+ * la misma conexión TCP.
+ * <p>
+ * Es una máquina de estados que avanza con los eventos de su {@link IngestLoop}: conecta, pide la descripción
+ * ({@code DESCRIBE}, repitiéndolo con Digest o Basic si la cámara pide credenciales), prepara cada pista
+ * ({@code SETUP}) y empieza a recibir ({@code PLAY}). A partir de ahí cada trama {@code $} se interpreta en el propio
+ * buffer de recepción y su carga se pasa al {@link Depacketizer} de la pista, sin copias intermedias. La sesión se
+ * mantiene con un {@code OPTIONS} cada media duración de sesión.
+ * </p>
+ * <p>
+ * Si la cámara se replica, cada trama recibida (RTP y RTCP de las pistas grabadas) se copia además tal cual en su
+ * {@link RelayPath}: el stream sólo se pide una vez a la cámara.
+ * </p>
+ * <p>
+ * La sesión se cierra sola si la cámara no responde o deja de mandar datos durante {@link #TIMEOUT_SECONDS}, si
+ * cierra la conexión o si falla la escritura; siempre se avisa al {@link RtspSessionListener}.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public final class RtspSession {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(RtspSession.class);
+
+    /**
+     * Segundos que se espera una respuesta de la cámara, o datos mientras se graba.
+     */
+    public static final long TIMEOUT_SECONDS = 10;
+
+    /**
+     * Buffer de recepción: cabe la trama entrelazada más grande (4 bytes de cabecera y 65535 de paquete).
+     */
+    static final int RECEIVE_BUFFER_SIZE = 4 + 0xFFFF;
+
+    /**
+     * Buffer donde se juntan los paquetes MPEG-TS antes de escribirlos en el segmento.
+     */
+    static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final String USER_AGENT = "home-sync";
+
+    private static final int VIDEO_CHANNEL = 0;
+    private static final int AUDIO_CHANNEL = 2;
+
+    private enum Stage {
+        CONNECTING, DESCRIBE, SETUP, PLAY, PLAYING, CLOSED
+    }
+
+    private final String cameraName;
+    private final InetSocketAddress address;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final TsSegmentWriter writer;
+    private final RelayPath relay;
+    private final RtspSessionListener listener;
+    private final IngestLoop loop;
+    private final BufferPool pool;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer receive;
+    private ByteBuffer output;
+    private ByteBuffer pendingWrite;
+
+    private Stage stage = Stage.CONNECTING;
+    private int sequence;
+    private String lastMethod = "CONNECT";
+    private String lastUri;
+    private String lastHeaders;
+    private RtspAuthenticator authenticator;
+    private boolean authenticationRetried;
+
+    private String baseUrl;
+    private String sdp;
+    private int[] relayTracks;
+    private SessionDescription.MediaTrack audioTrack;
+    private VideoDepacketizer video;
+    private Depacketizer audio;
+    private int videoChannel = VIDEO_CHANNEL;
+    private int audioChannel = AUDIO_CHANNEL;
+    private int setups;
+    private String sessionId;
+    private long sessionTimeoutSeconds = 60;
+
+    private long startedNanos;
+    private long waitingSinceNanos;
+    private long lastDataNanos;
+    private long lastKeepaliveNanos;
+    private long lastRatesNanos;
+
+    RtspSession(String cameraName, InetSocketAddress address, String url, String user, String password,
+                TsSegmentWriter writer, RelayPath relay, RtspSessionListener listener, IngestLoop loop,
+                BufferPool pool) {
+        this.cameraName = cameraName;
+        this.address = address;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.writer = writer;
+        this.relay = relay;
+        this.listener = listener;
+        this.loop = loop;
+        this.pool = pool;
+    }
+
+    /**
+     * @return el nombre de la cámara.
+     */
+    public String getCameraName() {
+        return cameraName;
+    }
+
+    /**
+     * Pide cerrar la sesión. Vuelve enseguida: el cierre (con el último segmento) se hace en el hilo de ingesta y se
+     * avisa al {@link RtspSessionListener}.
+     */
+    public void close() {
+        loop.execute(() -> closeNow(null));
+    }
+
+    /**
+     * Cierra la sesión por un fallo detectado desde fuera, p.ej. porque ha dejado de avanzar. Se avisa al
+     * {@link RtspSessionListener} con el motivo, como cuando la cámara deja de responder.
+     *
+     * @param reason por qué se cierra.
+     */
+    public void abort(String reason) {
+        loop.execute(() -> closeNow(reason));
+    }
+
+    /**
+     * Espera a que la sesión esté cerrada.
+     *
+     * @param deadlineNanos instante límite, en la escala de {@link System#nanoTime()}.
+     * @return {@code true} si se ha cerrado antes del límite.
+     * @throws InterruptedException si se interrumpe la espera.
+     */
+    public boolean awaitClosed(long deadlineNanos) throws InterruptedException {
+        return closed.await(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Abre la conexión. Se ejecuta en el hilo de ingesta.
+     */
+    void connect() {
+        if (stage == Stage.CLOSED) {
+            return;
+        }
+        long now = System.nanoTime();
+        startedNanos = now;
+        waitingSinceNanos = now;
+        loop.add(this);
+        try {
+            receive = pool.acquire(RECEIVE_BUFFER_SIZE);
+            output = pool.acquire(OUTPUT_BUFFER_SIZE);
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (channel.connect(address)) {
+                key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+                onConnected();
+            } else {
+                key = channel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException e) {
+            closeNow("no se puede conectar con " + address + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * El canal está listo para conectar, leer o escribir. Se ejecuta en el hilo de ingesta.
+     */
+    void onReady(SelectionKey readyKey) {
+        try {
+            if (readyKey.isConnectable() && channel.finishConnect()) {
+                readyKey.interestOps(SelectionKey.OP_READ);
+                onConnected();
+            }
+            if (readyKey.isValid() && readyKey.isWritable()) {
+                flushPending();
+            }
+            if (readyKey.isValid() && readyKey.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            closeNow(e.getMessage() != null ? e.getMessage() : e.toString());
+        } catch (RuntimeException e) {
+            logger.error("Error inesperado en la sesión RTSP de la camara " + cameraName, e);
+            closeNow("error inesperado: " + e);
+        }
+    }
+
+    /**
+     * Revisa los plazos y manda el keepalive. Se ejecuta en el hilo de ingesta.
+     *
+     * @param now el instante actual ({@link System#nanoTime()}).
+     */
+    void tick(long now) {
+        long timeout = TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        if (stage == Stage.CLOSED) {
+            return;
+        }
+        if (stage != Stage.PLAYING) {
+            if (now - waitingSinceNanos > timeout) {
+                closeNow(stage == Stage.CONNECTING ? "no se puede conectar con " + address
+                        : "la cámara no responde a " + lastMethod);
+            }
+            return;
+        }
+        if (now - lastDataNanos > timeout) {
+            closeNow("no llegan datos de la cámara desde hace " + TIMEOUT_SECONDS + "s");
+            return;
+        }
+        if (now - lastRatesNanos >= TimeUnit.SECONDS.toNanos(1)) {
+            writer.updateRates(now);
+            lastRatesNanos = now;
+        }
+        if (now - lastKeepaliveNanos >= TimeUnit.SECONDS.toNanos(Math.max(5, sessionTimeoutSeconds / 2))) {
+            lastKeepaliveNanos = now;
+            try {
+                send("OPTIONS", url, "");
+            } catch (IOException e) {
+                closeNow(e.getMessage());
+            }
+        }
+    }
+
+    private void onConnected() throws IOException {
+        stage = Stage.DESCRIBE;
+        send("DESCRIBE", url, "Accept: application/sdp\r\n");
+    }
+
+    private void send(String method, String uri, String headers) throws IOException {
+        lastMethod = method;
+        lastUri = uri;
+        lastHeaders = headers;
+        StringBuilder request = new StringBuilder(256)
+                .append(method).append(' ').append(uri).append(" RTSP/1.0\r\n")
+                .append("CSeq: ").append(++sequence).append("\r\n")
+                .append("User-Agent: ").append(USER_AGENT).append("\r\n");
+        if (authenticator != null) {
+            request.append("Authorization: ").append(authenticator.authorization(method, uri)).append("\r\n");
+        }
+        if (sessionId != null) {
+            request.append("Session: ").append(sessionId).append("\r\n");
+        }
+        request.append(headers).append("\r\n");
+        byte[] bytes = request.toString().getBytes(StandardCharsets.UTF_8);
+        if (pendingWrite != null && pendingWrite.hasRemaining()) {
+            ByteBuffer joined = ByteBuffer.allocate(pendingWrite.remaining() + bytes.length);
+            joined.put(pendingWrite).put(bytes).flip();
+            pendingWrite = joined;
+        } else {
+            pendingWrite = ByteBuffer.wrap(bytes);
+        }
+        if (stage != Stage.PLAYING) {
+            waitingSinceNanos = System.nanoTime();
+        }
+        flushPending();
+    }
+
+    private void flushPending() throws IOException {
+        if (pendingWrite == null) {
+            return;
+        }
+        channel.write(pendingWrite);
+        if (pendingWrite.hasRemaining()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            pendingWrite = null;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void read() throws IOException {
+        int read = channel.read(receive);
+        if (read < 0) {
+            throw new IOException("la cámara ha cerrado la conexión");
+        }
+        receive.flip();
+        long now = System.nanoTime();
+        while (receive.hasRemaining() && stage != Stage.CLOSED) {
+            int position = receive.position();
+            int available = receive.remaining();
+            byte first = receive.get(position);
+            if (first == '$') {
+                if (available < 4) {
+                    break;
+                }
+                int length = receive.getShort(position + 2) & 0xFFFF;
+                if (available < 4 + length) {
+                    break;
+                }
+                onInterleaved(receive.get(position + 1) & 0xFF, position + 4, length, now);
+                receive.position(position + 4 + length);
+            } else if (first >= 'A' && first <= 'Z') {
+                int headerEnd = indexOfHeaderEnd(position, receive.limit());
+                if (headerEnd < 0) {
+                    break;
+                }
+                String head = text(position, headerEnd - position);
+                int bodyStart = headerEnd + 4;
+                int contentLength = contentLength(head);
+                if (receive.limit() - bodyStart < contentLength) {
+                    break;
+                }
+                String body = text(bodyStart, contentLength);
+                receive.position(bodyStart + contentLength);
+                onMessage(head, body);
+            } else {
+                // bytes sueltos entre mensajes: se saltan hasta el siguiente
+                receive.position(position + 1);
+            }
+        }
+        if (stage == Stage.CLOSED) {
+            return;
+        }
+        receive.compact();
+        if (!receive.hasRemaining()) {
+            throw new IOException("mensaje RTSP demasiado grande");
+        }
+    }
+
+    private void onInterleaved(int channelId, int offset, int length, long now) throws IOException {
+        if (relay != null && stage == Stage.PLAYING) {
+            int relayChannel = relayChannel(channelId);
+            if (relayChannel >= 0) {
+                relay.write(relayChannel, receive, offset, length);
+            }
+        }
+        Depacketizer target = channelId == videoChannel ? video : channelId == audioChannel ? audio : null;
+        if (target == null || length < 12) {
+            // RTCP, o una pista que no se graba
+            return;
+        }
+        int flags = receive.get(offset) & 0xFF;
+        if (flags >> 6 != 2) {
+            return;
+        }
+        int end = offset + length;
+        if ((flags & 0x20) != 0) {
+            end -= receive.get(end - 1) & 0xFF;
+        }
+        int payload = offset + 12 + 4 * (flags & 0x0F);
+        if ((flags & 0x10) != 0) {
+            if (payload + 4 > end) {
+                return;
+            }
+            payload += 4 + 4 * (receive.getShort(payload + 2) & 0xFFFF);
+        }
+        if (payload > end) {
+            return;
+        }
+        lastDataNanos = now;
+        boolean marker = (receive.get(offset + 1) & 0x80) != 0;
+        int packetSequence = receive.getShort(offset + 2) & 0xFFFF;
+        int timestamp = receive.getInt(offset + 4);
+        target.onPacket(receive, payload, end - payload, packetSequence, timestamp, marker, now);
+    }
+
+    private void onMessage(String head, String body) throws IOException {
+        int lineEnd = head.indexOf("\r\n");
+        String statusLine = lineEnd < 0 ? head : head.substring(0, lineEnd);
+        if (!statusLine.startsWith("RTSP/")) {
+            // una petición de la cámara (ANNOUNCE, GET_PARAMETER...): no se contesta
+            return;
+        }
+        if (stage == Stage.PLAYING) {
+            // respuesta a un keepalive
+            return;
+        }
+        String[] status = statusLine.split(" ", 3);
+        int code = status.length > 1 ? parseInt(status[1], 0) : 0;
+        Map<String, String> headers = headers(head, lineEnd);
+        if (code == 401) {
+            String challenge = headers.get("www-authenticate");
+            if (authenticationRetried || challenge == null) {
+                closeNow("la cámara rechaza el usuario o la contraseña");
+                return;
+            }
+            authenticator = RtspAuthenticator.fromChallenge(challenge, user, password);
+            if (authenticator == null) {
+                closeNow("autenticación no soportada: " + challenge);
+                return;
+            }
+            authenticationRetried = true;
+            send(lastMethod, lastUri, lastHeaders);
+            return;
+        }
+        authenticationRetried = false;
+        if (code != 200) {
+            closeNow("la cámara responde " + statusLine.substring(status[0].length()).trim() + " a " + lastMethod);
+            return;
+        }
+        switch (stage) {
+            case DESCRIBE:
+                onDescribe(headers, body);
+                break;
+            case SETUP:
+                onSetup(headers);
+                break;
+            case PLAY:
+                onPlay();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onDescribe(Map<String, String> headers, String body) throws IOException {
+        baseUrl = headers.getOrDefault("content-base", headers.getOrDefault("content-location", url));
+        SessionDescription description = SessionDescription.parse(body);
+        SessionDescription.MediaTrack videoTrack = description.firstTrack("video");
+        if (videoTrack == null) {
+            closeNow("la cámara no ofrece video");
+            return;
+        }
+        RtpClock videoClock = new RtpClock(videoTrack.getClockRate(), startedNanos);
+        int streamType;
+        switch (videoTrack.getEncoding()) {
+            case "H264":
+                video = new H264Depacketizer(videoClock, writer, pool, videoTrack);
+                streamType = TsMuxer.STREAM_TYPE_H264;
+                break;
+            case "H265":
+                video = new H265Depacketizer(videoClock, writer, pool, videoTrack);
+                streamType = TsMuxer.STREAM_TYPE_H265;
+                break;
+            default:
+                closeNow("el video " + videoTrack.getEncoding() + " no se puede grabar sin transcodificar, usa el "
+                        + "motor ffmpeg");
+                return;
+        }
+        audioTrack = description.firstTrack("audio");
+        if (audioTrack != null) {
+            if ("MPEG4-GENERIC".equals(audioTrack.getEncoding())) {
+                audio = AacDepacketizer.create(new RtpClock(audioTrack.getClockRate(), startedNanos), writer, pool,
+                        audioTrack);
+            }
+            if (audio == null) {
+                logger.warn("La camara " + cameraName + " manda audio " + audioTrack.getEncoding()
+                        + ", que no se graba con el motor native (sólo AAC)");
+                audioTrack = null;
+            }
+        }
+        sdp = body;
+        int videoIndex = description.getTracks().indexOf(videoTrack);
+        relayTracks = audioTrack == null ? new int[]{videoIndex}
+                : new int[]{videoIndex, description.getTracks().indexOf(audioTrack)};
+        writer.open(output, streamType, audio != null);
+        stage = Stage.SETUP;
+        send("SETUP", controlUrl(videoTrack), transport(VIDEO_CHANNEL));
+    }
+
+    private void onSetup(Map<String, String> headers) throws IOException {
+        String session = headers.get("session");
+        if (session != null) {
+            String[] parts = session.split(";");
+            sessionId = parts[0].trim();
+            for (int i = 1; i < parts.length; i++) {
+                String part = parts[i].trim();
+                if (part.startsWith("timeout=")) {
+                    sessionTimeoutSeconds = parseInt(part.substring("timeout=".length()), 60);
+                }
+            }
+        }
+        int assigned = interleavedChannel(headers.get("transport"));
+        setups++;
+        if (setups == 1) {
+            if (assigned >= 0) {
+                videoChannel = assigned;
+            }
+            if (audioTrack != null) {
+                send("SETUP", controlUrl(audioTrack), transport(AUDIO_CHANNEL));
+                return;
+            }
+        } else if (assigned >= 0) {
+            audioChannel = assigned;
+        }
+        stage = Stage.PLAY;
+        send("PLAY", baseUrl, "Range: npt=0.000-\r\n");
+    }
+
+    private void onPlay() {
+        stage = Stage.PLAYING;
+        long now = System.nanoTime();
+        lastDataNanos = now;
+        lastKeepaliveNanos = now;
+        lastRatesNanos = now;
+        logger.info("Grabando la camara " + cameraName + " con el motor native");
+        if (relay != null) {
+            relay.publish(this, sdp, relayTracks);
+        }
+        listener.onPlaying(this);
+    }
+
+    /**
+     * Cierra la sesión y suelta todo: conexión, segmento en curso y buffers. Se ejecuta en el hilo de ingesta.
+     *
+     * @param reason por qué, o {@code null} si se ha pedido cerrar.
+     */
+    void closeNow(String reason) {
+        if (stage == Stage.CLOSED) {
+            return;
+        }
+        boolean playing = stage == Stage.PLAYING;
+        stage = Stage.CLOSED;
+        if (channel != null) {
+            if (playing && reason == null) {
+                teardown();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // ya está cerrado
+            }
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.warn("No se puede cerrar el último segmento de la camara " + cameraName, e);
+        }
+        if (video != null) {
+            video.release();
+        }
+        if (audio != null) {
+            audio.release();
+        }
+        if (relay != null) {
+            relay.unpublish(this);
+        }
+        pool.release(receive);
+        pool.release(output);
+        receive = null;
+        output = null;
+        loop.remove(this);
+        closed.countDown();
+        try {
+            listener.onClosed(this, reason);
+        } catch (RuntimeException e) {
+            logger.error("Error al avisar del cierre de la camara " + cameraName, e);
+        }
+    }
+
+    /**
+     * Avisa a la cámara de que se termina la sesión, sin esperar la respuesta.
+     */
+    private void teardown() {
+        try {
+            pendingWrite = null;
+            StringBuilder request = new StringBuilder("TEARDOWN ").append(baseUrl).append(" RTSP/1.0\r\n")
+                    .append("CSeq: ").append(++sequence).append("\r\n");
+            if (authenticator != null) {
+                request.append("Authorization: ").append(authenticator.authorization("TEARDOWN", baseUrl))
+                        .append("\r\n");
+            }
+            request.append("Session: ").append(sessionId).append("\r\n\r\n");
+            channel.write(ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException ignored) {
+            // la conexión se cierra igualmente
+        }
+    }
+
+    /**
+     * @return el canal del relay (2 por pista, la de video primero) de un canal entrelazado de la cámara, o -1 si
+     * es de una pista que no se graba.
+     */
+    private int relayChannel(int channelId) {
+        if (channelId == videoChannel || channelId == videoChannel + 1) {
+            return channelId - videoChannel;
+        }
+        if (audio != null && (channelId == audioChannel || channelId == audioChannel + 1)) {
+            return 2 + channelId - audioChannel;
+        }
+        return -1;
+    }
+
+    private String controlUrl(SessionDescription.MediaTrack track) {
+        String control = track.getControl();
+        if (control == null || control.equals("*")) {
+            return baseUrl;
+        }
+        if (control.regionMatches(true, 0, "rtsp://", 0, 7) || control.regionMatches(true, 0, "rtsps://", 0, 8)) {
+            return control;
+        }
+        return baseUrl.endsWith("/") ? baseUrl + control : baseUrl + "/" + control;
+    }
+
+    private static String transport(int channel) {
+        return "Transport: RTP/AVP/TCP;unicast;interleaved=" + channel + "-" + (channel + 1) + "\r\n";
+    }
+
+    /**
+     * @return el primer canal de {@code interleaved=} en la cabecera Transport de la respuesta, o -1.
+     */
+    static int interleavedChannel(String transport) {
+        if (transport == null) {
+            return -1;
+        }
+        int start = transport.indexOf("interleaved=");
+        if (start < 0) {
+            return -1;
+        }
+        start += "interleaved=".length();
+        int end = start;
+        while (end < transport.length() && Character.isDigit(transport.charAt(end))) {
+            end++;
+        }
+        return parseInt(transport.substring(start, end), -1);
+    }
+
+    private int indexOfHeaderEnd(int from, int limit) {
+        for (int i = from; i + 3 < limit; i++) {
+            if (receive.get(i) == '\r' && receive.get(i + 1) == '\n' && receive.get(i + 2) == '\r'
+                    && receive.get(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String text(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = receive.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static int contentLength(String head) {
+        String length = headers(head, head.indexOf("\r\n")).get("content-length");
+        return length == null ? 0 : Math.max(0, parseInt(length, 0));
+    }
+
+    static Map<String, String> headers(String head, int firstLineEnd) {
+        Map<String, String> headers = new HashMap<>();
+        if (firstLineEnd < 0) {
+            return headers;
+        }
+        for (String line : head.substring(firstLineEnd + 2).split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+            if (name.equals("www-authenticate") && headers.containsKey(name)
+                    && !value.regionMatches(true, 0, "Digest", 0, 6)) {
+                // si la cámara ofrece varios esquemas se prefiere Digest
+                continue;
+            }
+            headers.put(name, value);
+        }
+        return headers;
+    }
+
+    private static int parseInt(String value, int fallback) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
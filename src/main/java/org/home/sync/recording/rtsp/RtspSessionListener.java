@@ -0,0 +1,27 @@
+package org.home.sync.recording.rtsp;
+
+/**
+ * Recibe los cambios de una {@link RtspSession}.
+ * <p>
+ * Se invoca desde el hilo de ingesta de la sesión, así que la implementación no debe bloquearse.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public interface RtspSessionListener {
+
+    /**
+     * La cámara ha aceptado el {@code PLAY} y empieza a mandar video.
+     *
+     * @param session la sesión.
+     */
+    void onPlaying(RtspSession session);
+
+    /**
+     * La sesión se ha cerrado y ha soltado sus recursos. Ya no se escribe nada más.
+     *
+     * @param session la sesión.
+     * @param reason  por qué se ha cerrado, o {@code null} si se ha pedido con {@link RtspSession#close()}.
+     */
+    void onClosed(RtspSession session, String reason);
+}
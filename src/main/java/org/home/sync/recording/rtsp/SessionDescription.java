@@ -0,0 +1,148 @@
+package org.home.sync.recording.rtsp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Lo que se usa de la descripción SDP que devuelve la cámara al {@code DESCRIBE}: las pistas de video y audio, su
+ * códec, su reloj, sus parámetros ({@code fmtp}) y su URL de control.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class SessionDescription {
+
+    /**
+     * Una pista ({@code m=}) de la descripción.
+     */
+    static final class MediaTrack {
+
+        private final String media;
+        private final int payloadType;
+        private String encoding = "";
+        private int clockRate = 90_000;
+        private String control;
+        private final Map<String, String> format = new HashMap<>();
+
+        MediaTrack(String media, int payloadType) {
+            this.media = media;
+            this.payloadType = payloadType;
+        }
+
+        /**
+         * @return {@code video}, {@code audio}...
+         */
+        String getMedia() {
+            return media;
+        }
+
+        int getPayloadType() {
+            return payloadType;
+        }
+
+        /**
+         * @return el nombre del códec del {@code rtpmap}, en mayúsculas ({@code H264}, {@code MPEG4-GENERIC}...).
+         */
+        String getEncoding() {
+            return encoding;
+        }
+
+        int getClockRate() {
+            return clockRate;
+        }
+
+        /**
+         * @return el atributo {@code control}, o {@code null}.
+         */
+        String getControl() {
+            return control;
+        }
+
+        /**
+         * @param name nombre del parámetro del {@code fmtp}, en minúsculas.
+         * @return su valor, o {@code null}.
+         */
+        String getFormatParameter(String name) {
+            return format.get(name);
+        }
+    }
+
+    private final List<MediaTrack> tracks;
+
+    private SessionDescription(List<MediaTrack> tracks) {
+        this.tracks = tracks;
+    }
+
+    /**
+     * @param sdp el texto SDP.
+     * @return la descripción.
+     */
+    static SessionDescription parse(String sdp) {
+        List<MediaTrack> tracks = new ArrayList<>();
+        MediaTrack current = null;
+        for (String rawLine : sdp.split("\r?\n")) {
+            String line = rawLine.trim();
+            if (line.startsWith("m=")) {
+                String[] parts = line.substring(2).split(" ");
+                int payloadType = parts.length > 3 ? parseInt(parts[3], -1) : -1;
+                current = new MediaTrack(parts[0], payloadType);
+                tracks.add(current);
+            } else if (current == null) {
+                // atributos de sesión: no se usan
+            } else if (line.startsWith("a=rtpmap:")) {
+                String value = line.substring("a=rtpmap:".length());
+                int space = value.indexOf(' ');
+                if (space > 0 && parseInt(value.substring(0, space), -2) == current.payloadType) {
+                    String[] encoding = value.substring(space + 1).trim().split("/");
+                    current.encoding = encoding[0].toUpperCase(Locale.ROOT);
+                    if (encoding.length > 1) {
+                        current.clockRate = parseInt(encoding[1], current.clockRate);
+                    }
+                }
+            } else if (line.startsWith("a=fmtp:")) {
+                String value = line.substring("a=fmtp:".length());
+                int space = value.indexOf(' ');
+                if (space > 0) {
+                    for (String parameter : value.substring(space + 1).split(";")) {
+                        int equals = parameter.indexOf('=');
+                        if (equals > 0) {
+                            current.format.put(parameter.substring(0, equals).trim().toLowerCase(Locale.ROOT),
+                                    parameter.substring(equals + 1).trim());
+                        }
+                    }
+                }
+            } else if (line.startsWith("a=control:")) {
+                current.control = line.substring("a=control:".length()).trim();
+            }
+        }
+        return new SessionDescription(Collections.unmodifiableList(tracks));
+    }
+
+    /**
+     * @param media {@code video} o {@code audio}.
+     * @return la primera pista de ese tipo, o {@code null}.
+     */
+    MediaTrack firstTrack(String media) {
+        for (MediaTrack track : tracks) {
+            if (track.media.equals(media)) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    List<MediaTrack> getTracks() {
+        return tracks;
+    }
+
+    private static int parseInt(String value, int fallback) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
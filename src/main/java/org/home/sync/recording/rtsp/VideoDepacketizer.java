@@ -0,0 +1,320 @@
+package org.home.sync.recording.rtsp;
+
+import org.home.sync.recording.ts.TsSegmentWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Parte común de H.264 y H.265: junta las unidades NAL de cada fotograma en formato Annex B (con código de inicio
+ * {@code 00 00 00 01}) en un buffer directo y lo entrega entero al escritor.
+ * <p>
+ * Un fotograma termina con el bit de marca o, si la cámara no lo pone, cuando llega un paquete con otro timestamp.
+ * Cada fotograma empieza con un delimitador de unidad de acceso (AUD), que el MPEG-TS necesita y que muchas cámaras
+ * no mandan (los suyos se quitan para no repetirlo). Si un fotograma clave llega sin los conjuntos de parámetros
+ * (SPS, PPS...) se le añaden los últimos conocidos, del SDP o de fotogramas anteriores, para que cada segmento se
+ * pueda reproducir por separado.
+ * </p>
+ * <p>
+ * Si se pierde un paquete a mitad de una unidad fragmentada se descarta esa unidad, y el fotograma se cuenta como
+ * perdido en los contadores de la cámara.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+abstract class VideoDepacketizer extends Depacketizer {
+
+    /**
+     * Tamaño inicial del buffer de fotograma. Crece al doble si un fotograma no cabe.
+     */
+    static final int INITIAL_FRAME_SIZE = 512 * 1024;
+
+    /**
+     * Tamaño máximo de un fotograma. Uno más grande se descarta.
+     */
+    static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+
+    private static final int START_CODE_SIZE = 4;
+
+    /**
+     * Conjuntos de parámetros que no caben aquí no se guardan (nunca pasa con cámaras reales).
+     */
+    private static final int MAX_PARAMETER_SET_SIZE = 1024;
+
+    private final TsSegmentWriter writer;
+    private final BufferPool pool;
+    private ByteBuffer frame;
+
+    private final byte[][] parameterSets;
+    private final int[] parameterSetLengths;
+
+    private boolean frameOpen;
+    private int frameTimestamp;
+    private long framePts;
+    private boolean keyframe;
+    private boolean damaged;
+    private boolean overflow;
+    private int parameterSetsSeen;
+
+    private boolean inFragment;
+    private int fragmentStart;
+    private int lastSequence = -1;
+
+    /**
+     * @param clock         el reloj de la pista.
+     * @param writer        el escritor de segmentos.
+     * @param pool          de dónde se toma el buffer de fotograma.
+     * @param parameterSets número de tipos de conjunto de parámetros del códec.
+     */
+    VideoDepacketizer(RtpClock clock, TsSegmentWriter writer, BufferPool pool, int parameterSets) {
+        super(clock);
+        this.writer = writer;
+        this.pool = pool;
+        this.frame = pool.acquire(INITIAL_FRAME_SIZE);
+        this.parameterSets = new byte[parameterSets][];
+        this.parameterSetLengths = new int[parameterSets];
+    }
+
+    /**
+     * @return el tipo de la unidad NAL que empieza en {@code offset}.
+     */
+    abstract int nalType(ByteBuffer buffer, int offset);
+
+    /**
+     * @return la posición del conjunto de parámetros de ese tipo, o -1 si no lo es.
+     */
+    abstract int parameterSetSlot(int nalType);
+
+    /**
+     * @return {@code true} si una unidad de ese tipo hace el fotograma clave.
+     */
+    abstract boolean isKeyframe(int nalType);
+
+    /**
+     * @return {@code true} si es un delimitador de unidad de acceso.
+     */
+    abstract boolean isAccessUnitDelimiter(int nalType);
+
+    /**
+     * @return el delimitador de unidad de acceso, sin código de inicio.
+     */
+    abstract byte[] accessUnitDelimiter();
+
+    /**
+     * Procesa la carga de un paquete del fotograma en curso con {@link #writeNal}, {@link #beginFragment},
+     * {@link #appendFragment} y {@link #endFragment}.
+     */
+    abstract void depacketize(ByteBuffer packet, int offset, int length);
+
+    /**
+     * Guarda un conjunto de parámetros que viene en el SDP.
+     *
+     * @param nal la unidad NAL, sin código de inicio.
+     */
+    void addParameterSet(byte[] nal) {
+        if (nal.length > 0) {
+            storeParameterSet(ByteBuffer.wrap(nal), 0, nal.length);
+        }
+    }
+
+    @Override
+    void onPacket(ByteBuffer packet, int offset, int length, int sequence, int timestamp, boolean marker,
+                  long arrivalNanos) throws IOException {
+        boolean gap = lastSequence >= 0 && sequence != ((lastSequence + 1) & 0xFFFF);
+        lastSequence = sequence;
+        if (frameOpen && timestamp != frameTimestamp) {
+            emit();
+        }
+        if (gap) {
+            if (inFragment) {
+                discardFragment();
+            }
+            damaged = true;
+        }
+        if (!frameOpen) {
+            frameOpen = true;
+            frameTimestamp = timestamp;
+            framePts = clock.toPts(timestamp, arrivalNanos);
+        }
+        if (length > 0) {
+            depacketize(packet, offset, length);
+        }
+        if (marker) {
+            emit();
+        }
+    }
+
+    /**
+     * Añade una unidad NAL completa.
+     */
+    void writeNal(ByteBuffer packet, int offset, int length) {
+        int type = nalType(packet, offset);
+        if (isAccessUnitDelimiter(type)) {
+            return;
+        }
+        if (parameterSetSlot(type) >= 0) {
+            storeParameterSet(packet, offset, length);
+        }
+        beginNal(type);
+        if (reserve(length)) {
+            copy(packet, offset, length, frame);
+        }
+    }
+
+    /**
+     * Empieza una unidad NAL fragmentada con su cabecera reconstruida.
+     *
+     * @param type   el tipo de la unidad.
+     * @param header la cabecera de la unidad (1 o 2 bytes).
+     * @param size   cuántos bytes de {@code header} se usan.
+     */
+    void beginFragment(int type, byte[] header, int size) {
+        if (inFragment) {
+            // no llegó el final del anterior
+            discardFragment();
+            damaged = true;
+        }
+        inFragment = true;
+        fragmentStart = frame.position();
+        beginNal(type);
+        if (reserve(size)) {
+            frame.put(header, 0, size);
+        }
+    }
+
+    /**
+     * Añade un trozo de la unidad fragmentada en curso. Si no hay ninguna (se perdió el principio), se descarta.
+     */
+    void appendFragment(ByteBuffer packet, int offset, int length) {
+        if (!inFragment) {
+            damaged = true;
+            return;
+        }
+        if (reserve(length)) {
+            copy(packet, offset, length, frame);
+        }
+    }
+
+    /**
+     * Termina la unidad fragmentada en curso.
+     */
+    void endFragment() {
+        inFragment = false;
+    }
+
+    private void beginNal(int type) {
+        if (frame.position() == 0 && !overflow) {
+            byte[] delimiter = accessUnitDelimiter();
+            if (reserve(START_CODE_SIZE + delimiter.length)) {
+                putStartCode();
+                frame.put(delimiter);
+            }
+        }
+        if (isKeyframe(type)) {
+            keyframe = true;
+            injectMissingParameterSets();
+        }
+        int slot = parameterSetSlot(type);
+        if (slot >= 0) {
+            parameterSetsSeen |= 1 << slot;
+        }
+        if (reserve(START_CODE_SIZE)) {
+            putStartCode();
+        }
+    }
+
+    private void injectMissingParameterSets() {
+        for (int slot = 0; slot < parameterSets.length; slot++) {
+            if ((parameterSetsSeen & 1 << slot) == 0 && parameterSets[slot] != null
+                    && reserve(START_CODE_SIZE + parameterSetLengths[slot])) {
+                putStartCode();
+                frame.put(parameterSets[slot], 0, parameterSetLengths[slot]);
+                parameterSetsSeen |= 1 << slot;
+            }
+        }
+    }
+
+    private void storeParameterSet(ByteBuffer packet, int offset, int length) {
+        int slot = parameterSetSlot(nalType(packet, offset));
+        if (slot < 0 || length > MAX_PARAMETER_SET_SIZE) {
+            return;
+        }
+        byte[] target = parameterSets[slot];
+        if (target == null) {
+            target = new byte[MAX_PARAMETER_SET_SIZE];
+            parameterSets[slot] = target;
+        }
+        for (int i = 0; i < length; i++) {
+            target[i] = packet.get(offset + i);
+        }
+        parameterSetLengths[slot] = length;
+    }
+
+    private void putStartCode() {
+        frame.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+    }
+
+    private void discardFragment() {
+        frame.position(fragmentStart);
+        inFragment = false;
+    }
+
+    /**
+     * Se asegura de que caben {@code length} bytes más en el fotograma, agrandando el buffer si hace falta.
+     *
+     * @return {@code false} si el fotograma supera {@link #MAX_FRAME_SIZE} y se va a descartar.
+     */
+    private boolean reserve(int length) {
+        if (overflow) {
+            return false;
+        }
+        if (frame.remaining() >= length) {
+            return true;
+        }
+        int needed = frame.position() + length;
+        if (needed > MAX_FRAME_SIZE) {
+            overflow = true;
+            return false;
+        }
+        ByteBuffer larger = pool.acquire(Math.min(MAX_FRAME_SIZE, Math.max(needed, frame.capacity() * 2)));
+        frame.flip();
+        larger.put(frame);
+        pool.release(frame);
+        frame = larger;
+        return true;
+    }
+
+    /**
+     * Entrega el fotograma en curso y empieza el siguiente.
+     */
+    private void emit() throws IOException {
+        if (inFragment) {
+            // falta el final de la última unidad
+            discardFragment();
+            damaged = true;
+        }
+        boolean empty = frame.position() <= START_CODE_SIZE + accessUnitDelimiter().length;
+        try {
+            if (!overflow && !empty) {
+                frame.flip();
+                writer.writeVideo(frame, framePts, keyframe);
+            }
+            if (damaged || overflow) {
+                writer.recordDropped(1);
+            }
+        } finally {
+            frame.clear();
+            frameOpen = false;
+            keyframe = false;
+            damaged = false;
+            overflow = false;
+            parameterSetsSeen = 0;
+        }
+    }
+
+    @Override
+    void release() {
+        pool.release(frame);
+        frame = null;
+    }
+}
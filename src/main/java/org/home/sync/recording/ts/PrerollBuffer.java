@@ -0,0 +1,192 @@
+package org.home.sync.recording.ts;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Buffer circular de memoria directa con los últimos segundos de fotogramas de una cámara en modo event, para poder
+ * grabar lo que pasó antes de un disparo.
+ * <p>
+ * Guarda los fotogramas tal cual se los entregan los depaquetizadores (video en Annex B y audio en bloques ADTS), cada
+ * uno con su PTS y su tipo. Los datos van fuera del heap y cada registro ocupa un trozo seguido del buffer: si no cabe
+ * al final, empieza en el principio. Los registros más antiguos se descartan cuando se pisan sus datos o no queda
+ * sitio en la tabla de registros, así que la memoria no crece aunque la cámara mande más de lo previsto: sólo se
+ * guarda menos tiempo.
+ * </p>
+ * <p>
+ * No es thread-safe: lo usa el hilo de la conexión RTSP de la cámara.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class PrerollBuffer {
+
+    static final byte VIDEO = 0;
+    static final byte KEYFRAME = 1;
+    static final byte AUDIO = 2;
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Vista de escritura, para no tocar la posición de {@link #buffer}.
+     */
+    private final ByteBuffer writeView;
+
+    /**
+     * Vista de lectura que devuelve {@link #data(long)}.
+     */
+    private final ByteBuffer readView;
+
+    private final int capacity;
+    private final int maxRecords;
+
+    private final int[] starts;
+    private final int[] lengths;
+    private final long[] pts;
+    private final byte[] kinds;
+
+    /**
+     * Número del registro más antiguo.
+     */
+    private long head;
+
+    /**
+     * Número del siguiente registro.
+     */
+    private long tail;
+
+    /**
+     * Dónde empiezan los datos del siguiente registro.
+     */
+    private int writePosition;
+
+    /**
+     * @param capacity   bytes de datos.
+     * @param maxRecords registros que caben como mucho.
+     */
+    PrerollBuffer(int capacity, int maxRecords) {
+        this.capacity = capacity;
+        this.maxRecords = maxRecords;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.writeView = buffer.duplicate();
+        this.readView = buffer.asReadOnlyBuffer();
+        this.starts = new int[maxRecords];
+        this.lengths = new int[maxRecords];
+        this.pts = new long[maxRecords];
+        this.kinds = new byte[maxRecords];
+    }
+
+    /**
+     * Descarta todo lo guardado.
+     */
+    void clear() {
+        head = 0;
+        tail = 0;
+        writePosition = 0;
+    }
+
+    /**
+     * Guarda una copia de un fotograma, descartando los más antiguos que haga falta.
+     *
+     * @param kind   {@link #VIDEO}, {@link #KEYFRAME} o {@link #AUDIO}.
+     * @param source los datos, de la posición al límite. Su posición y su límite no cambian.
+     * @param pts    el PTS, en unidades de 90 kHz.
+     * @return {@code false} si el fotograma no cabe en el buffer y no se ha guardado.
+     */
+    boolean append(byte kind, ByteBuffer source, long pts) {
+        int length = source.remaining();
+        if (length > capacity) {
+            return false;
+        }
+        int position = writePosition;
+        if (length > capacity - position) {
+            // no cabe al final: lo que queda detrás de la posición de escritura es lo más antiguo
+            while (head < tail && starts[slot(head)] >= position) {
+                head++;
+            }
+            position = 0;
+        }
+        while (head < tail && (tail - head >= maxRecords || overlaps(slot(head), position, length))) {
+            head++;
+        }
+        int savedPosition = source.position();
+        writeView.limit(position + length).position(position);
+        writeView.put(source);
+        source.position(savedPosition);
+        int slot = slot(tail++);
+        starts[slot] = position;
+        lengths[slot] = length;
+        this.pts[slot] = pts;
+        kinds[slot] = kind;
+        writePosition = position + length;
+        return true;
+    }
+
+    private boolean overlaps(int slot, int position, int length) {
+        return starts[slot] < position + length && position < starts[slot] + lengths[slot];
+    }
+
+    /**
+     * Busca desde dónde repetir lo guardado para cubrir un pre-roll.
+     *
+     * @param fromPts el PTS desde el que se quiere grabar.
+     * @return el último fotograma clave con un PTS no posterior a {@code fromPts} o, si no hay, el más antiguo; -1
+     * si no hay ninguno.
+     */
+    long keyframeAtOrBefore(long fromPts) {
+        long found = -1;
+        for (long record = head; record < tail; record++) {
+            int slot = slot(record);
+            if (kinds[slot] != KEYFRAME) {
+                continue;
+            }
+            if (found >= 0 && pts[slot] > fromPts) {
+                break;
+            }
+            found = record;
+        }
+        return found;
+    }
+
+    /**
+     * @return el número del registro más antiguo.
+     */
+    long head() {
+        return head;
+    }
+
+    /**
+     * @return el número del siguiente registro que se guardará.
+     */
+    long tail() {
+        return tail;
+    }
+
+    byte kind(long record) {
+        return kinds[slot(record)];
+    }
+
+    long pts(long record) {
+        return pts[slot(record)];
+    }
+
+    /**
+     * @param record un registro entre {@link #head()} y {@link #tail()}.
+     * @return una vista con sus datos, válida hasta la siguiente llamada o el siguiente {@link #append}.
+     */
+    ByteBuffer data(long record) {
+        int slot = slot(record);
+        readView.limit(starts[slot] + lengths[slot]).position(starts[slot]);
+        return readView;
+    }
+
+    /**
+     * @return bytes de datos que caben.
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    private int slot(long record) {
+        return (int) (record % maxRecords);
+    }
+}
@@ -0,0 +1,327 @@
+package org.home.sync.recording.ts;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Empaqueta video y audio en paquetes MPEG-TS de {@link #PACKET_SIZE} bytes, sin crear objetos por paquete.
+ * <p>
+ * Un solo programa con la PAT, la PMT en {@link #PMT_PID}, el video en {@link #VIDEO_PID} y el audio (si lo hay) en
+ * {@link #AUDIO_PID}. Cada fotograma o bloque de audio va en un PES que sólo lleva PTS: las cámaras no usan
+ * fotogramas B, así que el DTS coincide. El PCR va en el primer paquete de cada fotograma de video, 0,7 s por detrás
+ * de su PTS (lo mismo que deja FFmpeg por defecto).
+ * </p>
+ * <p>
+ * Los paquetes se escriben en el buffer que se le pasa y se entregan a la {@link Output} cuando se llena o con
+ * {@link #flush()}.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public final class TsMuxer {
+
+    /**
+     * Destino de los paquetes.
+     */
+    public interface Output {
+
+        /**
+         * Escribe todos los bytes que quedan en el buffer.
+         *
+         * @param packets paquetes MPEG-TS completos.
+         * @throws IOException si no se pueden escribir.
+         */
+        void write(ByteBuffer packets) throws IOException;
+    }
+
+    public static final int PACKET_SIZE = 188;
+
+    /**
+     * Tipo de stream H.264 en la PMT.
+     */
+    public static final int STREAM_TYPE_H264 = 0x1B;
+
+    /**
+     * Tipo de stream H.265 en la PMT.
+     */
+    public static final int STREAM_TYPE_H265 = 0x24;
+
+    /**
+     * Tipo de stream AAC con cabeceras ADTS en la PMT.
+     */
+    public static final int STREAM_TYPE_AAC = 0x0F;
+
+    static final int PAT_PID = 0x0000;
+    static final int PMT_PID = 0x1000;
+    static final int VIDEO_PID = 0x0100;
+    static final int AUDIO_PID = 0x0101;
+
+    private static final int VIDEO_STREAM_ID = 0xE0;
+    private static final int AUDIO_STREAM_ID = 0xC0;
+
+    /**
+     * Retraso del PCR respecto al PTS, en unidades de 90 kHz.
+     */
+    static final long PCR_DELAY = 63_000;
+
+    private static final int PAYLOAD_SIZE = PACKET_SIZE - 4;
+    private static final int PES_HEADER_SIZE = 14;
+    private static final int PCR_ADAPTATION_SIZE = 8;
+    private static final long PTS_MASK = (1L << 33) - 1;
+
+    private static final int[] CRC_TABLE = crcTable();
+
+    private final ByteBuffer out;
+    private final Output output;
+    private final byte[] pat;
+    private final byte[] pmt;
+    private final byte[] pesHeader = new byte[PES_HEADER_SIZE];
+
+    private int patCounter;
+    private int pmtCounter;
+    private int videoCounter;
+    private int audioCounter;
+
+    /**
+     * @param out             buffer donde se van juntando los paquetes, con sitio al menos para uno.
+     * @param output          dónde se escriben cuando se llena.
+     * @param videoStreamType {@link #STREAM_TYPE_H264} o {@link #STREAM_TYPE_H265}.
+     * @param audio           si hay una pista de audio AAC.
+     */
+    public TsMuxer(ByteBuffer out, Output output, int videoStreamType, boolean audio) {
+        if (out.capacity() < PACKET_SIZE) {
+            throw new IllegalArgumentException("El buffer no tiene sitio para un paquete MPEG-TS");
+        }
+        this.out = out;
+        this.output = output;
+        this.pat = patSection();
+        this.pmt = pmtSection(videoStreamType, audio);
+        out.clear();
+    }
+
+    /**
+     * Escribe la PAT y la PMT. Se hace delante de cada fotograma clave, para poder empezar a leer desde ahí.
+     *
+     * @throws IOException si no se puede escribir.
+     */
+    public void writeTables() throws IOException {
+        patCounter = writeSection(PAT_PID, pat, patCounter);
+        pmtCounter = writeSection(PMT_PID, pmt, pmtCounter);
+    }
+
+    /**
+     * Escribe un fotograma de video completo, en formato Annex B.
+     *
+     * @param frame    el fotograma, de la posición al límite. Se consume entero.
+     * @param pts      su PTS, en unidades de 90 kHz.
+     * @param keyframe si es un fotograma clave.
+     * @throws IOException si no se puede escribir.
+     */
+    public void writeVideo(ByteBuffer frame, long pts, boolean keyframe) throws IOException {
+        fillPesHeader(VIDEO_STREAM_ID, 0, pts);
+        videoCounter = writePes(VIDEO_PID, frame, videoCounter, true, keyframe, pts - PCR_DELAY);
+    }
+
+    /**
+     * Escribe uno o varios bloques de audio ADTS seguidos.
+     *
+     * @param frames los bloques, de la posición al límite. Se consumen enteros.
+     * @param pts    el PTS del primero, en unidades de 90 kHz.
+     * @throws IOException si no se puede escribir.
+     */
+    public void writeAudio(ByteBuffer frames, long pts) throws IOException {
+        int length = PES_HEADER_SIZE - 6 + frames.remaining();
+        fillPesHeader(AUDIO_STREAM_ID, length > 0xFFFF ? 0 : length, pts);
+        audioCounter = writePes(AUDIO_PID, frames, audioCounter, false, false, 0);
+    }
+
+    /**
+     * Entrega a la {@link Output} los paquetes que quedan en el buffer.
+     *
+     * @throws IOException si no se pueden escribir.
+     */
+    public void flush() throws IOException {
+        out.flip();
+        if (out.hasRemaining()) {
+            output.write(out);
+        }
+        out.clear();
+    }
+
+    private void ensurePacket() throws IOException {
+        if (out.remaining() < PACKET_SIZE) {
+            flush();
+        }
+    }
+
+    private int writePes(int pid, ByteBuffer data, int counter, boolean pcr, boolean randomAccess, long pcrBase)
+    throws IOException {
+        boolean first = true;
+        while (first || data.hasRemaining()) {
+            ensurePacket();
+            boolean withPcr = first && pcr;
+            int adaptation = withPcr ? PCR_ADAPTATION_SIZE : 0;
+            int pending = (first ? PES_HEADER_SIZE : 0) + data.remaining();
+            if (pending < PAYLOAD_SIZE - adaptation) {
+                // último paquete: el hueco se rellena con el campo de adaptación
+                adaptation = PAYLOAD_SIZE - pending;
+            }
+            out.put((byte) 0x47);
+            out.put((byte) ((first ? 0x40 : 0) | pid >> 8));
+            out.put((byte) pid);
+            out.put((byte) ((adaptation > 0 ? 0x30 : 0x10) | counter));
+            if (adaptation > 0) {
+                out.put((byte) (adaptation - 1));
+                if (adaptation > 1) {
+                    out.put((byte) ((withPcr ? 0x10 : 0) | (first && randomAccess ? 0x40 : 0)));
+                    int stuffing = adaptation - 2;
+                    if (withPcr) {
+                        putPcr(pcrBase);
+                        stuffing -= 6;
+                    }
+                    for (int i = 0; i < stuffing; i++) {
+                        out.put((byte) 0xFF);
+                    }
+                }
+            }
+            int payload = PAYLOAD_SIZE - adaptation;
+            if (first) {
+                out.put(pesHeader);
+                payload -= PES_HEADER_SIZE;
+            }
+            copy(data, payload);
+            first = false;
+            counter = (counter + 1) & 0x0F;
+        }
+        return counter;
+    }
+
+    /**
+     * Copia {@code length} bytes de {@code data} al buffer de salida sin crear una vista nueva.
+     */
+    private void copy(ByteBuffer data, int length) {
+        int limit = data.limit();
+        data.limit(data.position() + length);
+        out.put(data);
+        data.limit(limit);
+    }
+
+    private void putPcr(long base) {
+        base &= PTS_MASK;
+        out.put((byte) (base >> 25));
+        out.put((byte) (base >> 17));
+        out.put((byte) (base >> 9));
+        out.put((byte) (base >> 1));
+        out.put((byte) ((base & 1) << 7 | 0x7E));
+        out.put((byte) 0);
+    }
+
+    private void fillPesHeader(int streamId, int length, long pts) {
+        pts &= PTS_MASK;
+        pesHeader[0] = 0;
+        pesHeader[1] = 0;
+        pesHeader[2] = 1;
+        pesHeader[3] = (byte) streamId;
+        pesHeader[4] = (byte) (length >> 8);
+        pesHeader[5] = (byte) length;
+        pesHeader[6] = (byte) 0x80;
+        pesHeader[7] = (byte) 0x80; // sólo PTS
+        pesHeader[8] = 5;
+        pesHeader[9] = (byte) (0x21 | (pts >> 29) & 0x0E);
+        pesHeader[10] = (byte) (pts >> 22);
+        pesHeader[11] = (byte) ((pts >> 14) | 1);
+        pesHeader[12] = (byte) (pts >> 7);
+        pesHeader[13] = (byte) ((pts << 1) | 1);
+    }
+
+    private int writeSection(int pid, byte[] section, int counter) throws IOException {
+        ensurePacket();
+        out.put((byte) 0x47);
+        out.put((byte) (0x40 | pid >> 8));
+        out.put((byte) pid);
+        out.put((byte) (0x10 | counter));
+        out.put((byte) 0); // pointer_field
+        out.put(section);
+        for (int i = 1 + section.length; i < PAYLOAD_SIZE; i++) {
+            out.put((byte) 0xFF);
+        }
+        return (counter + 1) & 0x0F;
+    }
+
+    private static byte[] patSection() {
+        byte[] section = new byte[16];
+        section[0] = 0x00; // table_id
+        section[1] = (byte) 0xB0;
+        section[2] = 13; // section_length
+        section[3] = 0x00;
+        section[4] = 0x01; // transport_stream_id
+        section[5] = (byte) 0xC1; // version 0, current
+        section[6] = 0x00;
+        section[7] = 0x00;
+        section[8] = 0x00;
+        section[9] = 0x01; // program_number
+        section[10] = (byte) (0xE0 | PMT_PID >> 8);
+        section[11] = (byte) PMT_PID;
+        putCrc(section);
+        return section;
+    }
+
+    private static byte[] pmtSection(int videoStreamType, boolean audio) {
+        int streams = audio ? 2 : 1;
+        int sectionLength = 9 + 5 * streams + 4;
+        byte[] section = new byte[3 + sectionLength];
+        section[0] = 0x02; // table_id
+        section[1] = (byte) (0xB0 | sectionLength >> 8);
+        section[2] = (byte) sectionLength;
+        section[3] = 0x00;
+        section[4] = 0x01; // program_number
+        section[5] = (byte) 0xC1;
+        section[6] = 0x00;
+        section[7] = 0x00;
+        section[8] = (byte) (0xE0 | VIDEO_PID >> 8); // PCR_PID
+        section[9] = (byte) VIDEO_PID;
+        section[10] = (byte) 0xF0; // program_info_length 0
+        section[11] = 0x00;
+        putStream(section, 12, videoStreamType, VIDEO_PID);
+        if (audio) {
+            putStream(section, 17, STREAM_TYPE_AAC, AUDIO_PID);
+        }
+        putCrc(section);
+        return section;
+    }
+
+    private static void putStream(byte[] section, int offset, int streamType, int pid) {
+        section[offset] = (byte) streamType;
+        section[offset + 1] = (byte) (0xE0 | pid >> 8);
+        section[offset + 2] = (byte) pid;
+        section[offset + 3] = (byte) 0xF0; // ES_info_length 0
+        section[offset + 4] = 0x00;
+    }
+
+    /**
+     * Calcula el CRC-32/MPEG-2 de la sección (sin sus últimos 4 bytes) y lo escribe en ellos.
+     */
+    private static void putCrc(byte[] section) {
+        int crc = 0xFFFFFFFF;
+        for (int i = 0; i < section.length - 4; i++) {
+            crc = crc << 8 ^ CRC_TABLE[(crc >>> 24 ^ section[i]) & 0xFF];
+        }
+        int end = section.length;
+        section[end - 4] = (byte) (crc >>> 24);
+        section[end - 3] = (byte) (crc >>> 16);
+        section[end - 2] = (byte) (crc >>> 8);
+        section[end - 1] = (byte) crc;
+    }
+
+    private static int[] crcTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? crc << 1 ^ 0x04C11DB7 : crc << 1;
+            }
+            table[i] = crc;
+        }
+        return table;
+    }
+}
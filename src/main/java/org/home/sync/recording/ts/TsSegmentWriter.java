@@ -0,0 +1,405 @@
+package org.home.sync.recording.ts;
+
+import org.home.sync.metrics.CameraMetrics;
+import org.home.sync.recording.VideoRecorder;
+import org.home.sync.recording.progress.SegmentListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Escribe los segmentos MPEG-TS de una cámara directamente con un {@link FileChannel}, como haría el muxer segment
+ * de FFmpeg.
+ * <p>
+ * Cada segmento empieza en un fotograma clave y se llama con la fecha y hora en UTC en que empieza
+ * ({@code yyyyMMdd-HHmmss.ts}, igual que {@code VideoRecorder#SEGMENT_FILE_PATTERN}). Se pasa al siguiente en el
+ * primer fotograma clave después de {@code segmentTime} segundos de video. Al cerrar cada segmento se actualizan los
+ * contadores de la cámara y se avisa al {@link SegmentListener}, igual que con la lista de segmentos de FFmpeg.
+ * </p>
+ * <p>
+ * En modo event no se graba de continuo: los últimos segundos se guardan en un {@link PrerollBuffer} y sólo se
+ * escriben segmentos cuando llega un {@link #trigger()}, empezando por el fotograma clave más reciente que cubra el
+ * pre-roll y hasta el post-roll después del último disparo. Cada segmento se llama con la hora en que empieza su
+ * primer fotograma, aunque se escriba después.
+ * </p>
+ * <p>
+ * No es thread-safe: lo usa un único hilo, el de la conexión RTSP de la cámara. La excepción es {@link #trigger()},
+ * que se puede llamar desde cualquier hilo.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public class TsSegmentWriter {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(TsSegmentWriter.class);
+
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private static final String EXTENSION = ".ts";
+
+    /**
+     * PTS del primer fotograma de cada segmento cuando se reinician los timestamps, en unidades de 90 kHz. Deja
+     * sitio para el retraso del PCR.
+     */
+    private static final long RESET_START_PTS = 2 * TsMuxer.PCR_DELAY;
+
+    /**
+     * Bitrate máximo esperado de una cámara en modo event, en kbit/s, para dimensionar su pre-roll. Se puede cambiar
+     * con la propiedad de sistema {@code event.maxBitrateKbps}.
+     */
+    public static final int EVENT_MAX_BITRATE_KBPS = Integer.getInteger("event.maxBitrateKbps", 4000);
+
+    /**
+     * Segundos de margen del pre-roll, para que siempre haya un fotograma clave antes de su comienzo.
+     */
+    private static final int PREROLL_MARGIN_SECONDS = 2;
+
+    private final Path directory;
+    private final long segmentTicks;
+    private final boolean resetTimestamps;
+    private final CameraMetrics metrics;
+    private final SegmentListener listener;
+
+    /**
+     * Los últimos segundos de la cámara, o {@code null} si graba de continuo.
+     */
+    private final PrerollBuffer preroll;
+    private final long preRollTicks;
+    private final long postRollTicks;
+
+    /**
+     * Disparos pedidos con {@link #trigger()}. El hilo de la conexión los compara con {@link #handledTriggers}.
+     */
+    private final AtomicLong triggers = new AtomicLong();
+    private long handledTriggers;
+
+    /**
+     * En modo event, si se está grabando un evento.
+     */
+    private boolean recording;
+    private long postRollEndPts;
+
+    /**
+     * PTS del último fotograma de video recibido.
+     */
+    private long latestPts;
+
+    private TsMuxer muxer;
+    private FileChannel channel;
+    private String fileName;
+    private long segmentBytes;
+    private long segmentStartPts;
+    private long lastVideoPts;
+
+    private long frames;
+    private long bytes;
+    private long ratesFrames;
+    private long ratesBytes;
+    private long ratesNanos;
+
+    /**
+     * @param directory       directorio de la cámara.
+     * @param segmentSeconds  duración mínima de cada segmento, en segundos.
+     * @param resetTimestamps si cada segmento empieza con el PTS cerca de 0, como {@code -reset_timestamps 1}.
+     * @param metrics         los contadores de la cámara.
+     * @param listener        a quién avisar de cada segmento cerrado, o {@code null}.
+     */
+    public TsSegmentWriter(Path directory, double segmentSeconds, boolean resetTimestamps, CameraMetrics metrics,
+                           SegmentListener listener) {
+        this.directory = directory;
+        this.segmentTicks = (long) (segmentSeconds * 90_000);
+        this.resetTimestamps = resetTimestamps;
+        this.metrics = metrics;
+        this.listener = listener;
+        this.preroll = null;
+        this.preRollTicks = 0;
+        this.postRollTicks = 0;
+    }
+
+    /**
+     * Crea un escritor en modo event, que sólo escribe segmentos tras un {@link #trigger()}.
+     *
+     * @param directory       directorio de la cámara.
+     * @param segmentSeconds  duración mínima de cada segmento, en segundos.
+     * @param resetTimestamps si cada segmento empieza con el PTS cerca de 0, como {@code -reset_timestamps 1}.
+     * @param preRollSeconds  segundos que se graban antes de cada disparo.
+     * @param postRollSeconds segundos que se graban después del último disparo.
+     * @param metrics         los contadores de la cámara.
+     * @param listener        a quién avisar de cada segmento cerrado, o {@code null}.
+     */
+    public TsSegmentWriter(Path directory, double segmentSeconds, boolean resetTimestamps, int preRollSeconds,
+                           int postRollSeconds, CameraMetrics metrics, SegmentListener listener) {
+        this.directory = directory;
+        this.segmentTicks = (long) (segmentSeconds * 90_000);
+        this.resetTimestamps = resetTimestamps;
+        this.metrics = metrics;
+        this.listener = listener;
+        long seconds = preRollSeconds + PREROLL_MARGIN_SECONDS;
+        int capacity = (int) Math.min(Integer.MAX_VALUE - 8, seconds * EVENT_MAX_BITRATE_KBPS * 1000 / 8);
+        // unos 30 fotogramas de video y 50 bloques de audio por segundo, con margen
+        this.preroll = new PrerollBuffer(capacity, (int) Math.max(1024, seconds * 200));
+        this.preRollTicks = preRollSeconds * 90_000L;
+        this.postRollTicks = postRollSeconds * 90_000L;
+    }
+
+    /**
+     * Prepara una nueva conexión: el primer segmento empezará en el primer fotograma clave.
+     *
+     * @param buffer          buffer donde se juntan los paquetes antes de escribirlos. Es del que llama, y no se
+     *                        usa tras {@link #close()}.
+     * @param videoStreamType tipo de stream del video ({@link TsMuxer#STREAM_TYPE_H264} o
+     *                        {@link TsMuxer#STREAM_TYPE_H265}).
+     * @param audio           si hay audio AAC.
+     */
+    public void open(ByteBuffer buffer, int videoStreamType, boolean audio) {
+        this.muxer = new TsMuxer(buffer, this::write, videoStreamType, audio);
+        if (preroll != null) {
+            // los PTS empiezan de nuevo con cada conexión
+            preroll.clear();
+        }
+        this.ratesNanos = System.nanoTime();
+        this.ratesFrames = frames;
+        this.ratesBytes = bytes;
+    }
+
+    /**
+     * Pide grabar un evento: el pre-roll, si no se estaba grabando ya, y el post-roll desde el siguiente fotograma.
+     * Se puede llamar desde cualquier hilo.
+     *
+     * @return {@code false} si el escritor no está en modo event.
+     */
+    public boolean trigger() {
+        if (preroll == null) {
+            return false;
+        }
+        triggers.incrementAndGet();
+        metrics.recordEvent();
+        return true;
+    }
+
+    /**
+     * @return {@code true} si el escritor está en modo event.
+     */
+    public boolean isEventMode() {
+        return preroll != null;
+    }
+
+    /**
+     * Escribe un fotograma de video. Hasta el primer fotograma clave se descartan. En modo event se guarda en el
+     * pre-roll y sólo se escribe si se está grabando un evento.
+     *
+     * @param frame    el fotograma en formato Annex B, de la posición al límite.
+     * @param pts      su PTS, en unidades de 90 kHz.
+     * @param keyframe si es un fotograma clave.
+     * @throws IOException si no se puede escribir.
+     */
+    public void writeVideo(ByteBuffer frame, long pts, boolean keyframe) throws IOException {
+        latestPts = pts;
+        if (preroll == null) {
+            if (muxVideo(frame, pts, keyframe)) {
+                frames++;
+                metrics.addProgress(1, 0, 0, 0);
+            }
+            return;
+        }
+        frames++;
+        metrics.addProgress(1, 0, 0, 0);
+        if (recording && pts >= postRollEndPts) {
+            recording = false;
+            closeSegment();
+            logger.info("Fin del evento en " + directory);
+        }
+        checkTriggers(pts);
+        preroll.append(keyframe ? PrerollBuffer.KEYFRAME : PrerollBuffer.VIDEO, frame, pts);
+        if (recording) {
+            muxVideo(frame, pts, keyframe);
+        }
+    }
+
+    /**
+     * Escribe audio. Antes del primer segmento se descarta.
+     *
+     * @param frames bloques ADTS, de la posición al límite.
+     * @param pts    el PTS del primero, en unidades de 90 kHz.
+     * @throws IOException si no se puede escribir.
+     */
+    public void writeAudio(ByteBuffer frames, long pts) throws IOException {
+        if (preroll != null) {
+            preroll.append(PrerollBuffer.AUDIO, frames, pts);
+            if (!recording) {
+                return;
+            }
+        }
+        muxAudio(frames, pts);
+    }
+
+    /**
+     * Atiende los disparos pendientes: alarga el post-roll y, si no se estaba grabando, empieza por el pre-roll.
+     */
+    private void checkTriggers(long pts) throws IOException {
+        long requested = triggers.get();
+        if (requested == handledTriggers) {
+            return;
+        }
+        handledTriggers = requested;
+        postRollEndPts = pts + postRollTicks;
+        if (!recording) {
+            recording = true;
+            logger.info("Evento en " + directory + ": se graba desde " + preRollTicks / 90_000 + "s antes");
+            replay(pts - preRollTicks);
+        }
+    }
+
+    /**
+     * Escribe lo guardado en el pre-roll desde el último fotograma clave anterior a {@code fromPts}.
+     */
+    private void replay(long fromPts) throws IOException {
+        long first = preroll.keyframeAtOrBefore(fromPts);
+        if (first < 0) {
+            return;
+        }
+        for (long record = first; record < preroll.tail(); record++) {
+            byte kind = preroll.kind(record);
+            if (kind == PrerollBuffer.AUDIO) {
+                muxAudio(preroll.data(record), preroll.pts(record));
+            } else {
+                muxVideo(preroll.data(record), preroll.pts(record), kind == PrerollBuffer.KEYFRAME);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} si se ha escrito, {@code false} si se ha descartado por no haber empezado un segmento.
+     */
+    private boolean muxVideo(ByteBuffer frame, long pts, boolean keyframe) throws IOException {
+        if (channel == null && !keyframe) {
+            return false;
+        }
+        if (keyframe) {
+            if (channel == null || pts - segmentStartPts >= segmentTicks) {
+                closeSegment();
+                openSegment(pts);
+            }
+            muxer.writeTables();
+        }
+        lastVideoPts = pts;
+        muxer.writeVideo(frame, outputPts(pts), keyframe);
+        return true;
+    }
+
+    private void muxAudio(ByteBuffer frames, long pts) throws IOException {
+        if (channel == null) {
+            return;
+        }
+        muxer.writeAudio(frames, outputPts(pts));
+    }
+
+    /**
+     * Registra fotogramas que se han perdido por huecos en la recepción.
+     *
+     * @param count los fotogramas.
+     */
+    public void recordDropped(long count) {
+        metrics.addProgress(0, count, 0, 0);
+    }
+
+    /**
+     * Actualiza los fps y el bitrate de la cámara con lo escrito desde la última llamada.
+     *
+     * @param nowNanos el instante actual ({@link System#nanoTime()}).
+     */
+    public void updateRates(long nowNanos) {
+        long elapsed = nowNanos - ratesNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        long fpsHundredths = (frames - ratesFrames) * 100 * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        long bitrate = (bytes - ratesBytes) * 8 * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        metrics.setProgressRates(fpsHundredths, bitrate, 1000, System.currentTimeMillis());
+        ratesNanos = nowNanos;
+        ratesFrames = frames;
+        ratesBytes = bytes;
+    }
+
+    /**
+     * Cierra el segmento en curso. El siguiente {@link #open} empieza uno nuevo.
+     *
+     * @throws IOException si no se puede terminar de escribir el segmento.
+     */
+    public void close() throws IOException {
+        try {
+            closeSegment();
+        } finally {
+            muxer = null;
+            recording = false;
+        }
+    }
+
+    private long outputPts(long pts) {
+        return resetTimestamps ? Math.max(0, pts - segmentStartPts + RESET_START_PTS) : pts;
+    }
+
+    private void openSegment(long pts) throws IOException {
+        // al repetir el pre-roll el segmento empieza antes de ahora
+        String base = LocalDateTime.now(VideoRecorder.SEGMENT_ZONE).minus((latestPts - pts) / 90, ChronoUnit.MILLIS)
+                .format(NAME_FORMAT);
+        String name = base + EXTENSION;
+        for (int suffix = 1; ; suffix++) {
+            try {
+                channel = FileChannel.open(directory.resolve(name), StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                // segmentos de menos de un segundo: no se sobrescribe el anterior
+                name = base + "-" + suffix + EXTENSION;
+            }
+        }
+        fileName = name;
+        segmentBytes = 0;
+        segmentStartPts = pts;
+    }
+
+    private void closeSegment() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            muxer.flush();
+        } finally {
+            FileChannel closing = channel;
+            channel = null;
+            closing.close();
+        }
+        long now = System.currentTimeMillis();
+        long durationMillis = (lastVideoPts - segmentStartPts) / 90;
+        metrics.recordSegment(segmentBytes, now);
+        if (listener != null) {
+            listener.onSegmentClosed(fileName, durationMillis, segmentBytes, now);
+        }
+        logger.debug("Segmento " + directory.resolve(fileName) + " cerrado: " + segmentBytes + " bytes");
+    }
+
+    private void write(ByteBuffer packets) throws IOException {
+        int written = 0;
+        while (packets.hasRemaining()) {
+            written += channel.write(packets);
+        }
+        segmentBytes += written;
+        bytes += written;
+        metrics.addProgress(0, 0, 0, written);
+    }
+}
@@ -0,0 +1,599 @@
+package org.home.sync.relay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Una conexión RTSP con el {@link RelayServer}, de un cliente que publica una ruta ({@code ANNOUNCE},
+ * {@code SETUP}, {@code RECORD}) o que la reproduce ({@code DESCRIBE}, {@code SETUP}, {@code PLAY}).
+ * <p>
+ * Todo pasa en el hilo del relay. Un origen escribe cada trama que recibe en el buffer de su ruta; a un cliente que
+ * reproduce se le mandan las tramas directamente desde ese buffer, a partir de su cursor, y las respuestas RTSP sólo
+ * entre trama y trama. Si el cliente no da abasto y el buffer le alcanza, se le desconecta.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class RelayConnection {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(RelayConnection.class);
+
+    /**
+     * Segundos sin datos tras los que se da por perdido a un origen.
+     */
+    static final long TIMEOUT_SECONDS = 10;
+
+    /**
+     * Segundos que tiene un cliente para empezar a publicar o a reproducir.
+     */
+    static final long HANDSHAKE_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Buffer de recepción mientras sólo llegan peticiones. El de un origen cabe la trama más grande.
+     */
+    private static final int REQUEST_BUFFER_SIZE = 8 * 1024;
+
+    private static final String SERVER = "home-sync";
+
+    private static final String PUBLIC_METHODS =
+            "OPTIONS, DESCRIBE, ANNOUNCE, SETUP, PLAY, RECORD, TEARDOWN, GET_PARAMETER, SET_PARAMETER";
+
+    private enum Role {
+        NONE, PUBLISHER, SUBSCRIBER
+    }
+
+    private final RelayServer server;
+    private final SocketChannel channel;
+    private final String remote;
+    private final long openedNanos = System.nanoTime();
+
+    private SelectionKey key;
+    private ByteBuffer receive = ByteBuffer.allocate(REQUEST_BUFFER_SIZE);
+    private ByteBuffer pendingText;
+    private boolean closeAfterFlush;
+    private boolean closed;
+
+    private Role role = Role.NONE;
+    private RelayPath path;
+    private String sessionId;
+    private int setups;
+
+    private List<String> controls;
+    private String announcedSdp;
+    private final int[] channels = new int[256];
+    private boolean recording;
+    private long lastDataNanos;
+
+    private boolean playing;
+    private volatile long cursor;
+    private long sendingTo;
+    private ByteBuffer[] views;
+
+    RelayConnection(RelayServer server, SocketChannel channel) throws IOException {
+        this.server = server;
+        this.channel = channel;
+        this.remote = String.valueOf(channel.getRemoteAddress()).replace("/", "");
+        Arrays.fill(channels, -1);
+    }
+
+    void register() throws IOException {
+        key = channel.register(server.getSelector(), SelectionKey.OP_READ, this);
+    }
+
+    String getRemote() {
+        return remote;
+    }
+
+    long getCursor() {
+        return cursor;
+    }
+
+    RelayPath getPath() {
+        return path;
+    }
+
+    void onReady(SelectionKey readyKey) {
+        try {
+            if (readyKey.isWritable()) {
+                pumpOrThrow();
+            }
+            if (readyKey.isValid() && readyKey.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            close(e.getMessage() != null ? e.getMessage() : e.toString());
+        } catch (RuntimeException e) {
+            logger.error("Error inesperado en la conexión del relay con " + remote, e);
+            close("error inesperado: " + e);
+        }
+    }
+
+    void tick(long now) {
+        if (recording) {
+            if (now - lastDataNanos > TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS)) {
+                close("no llegan datos desde hace " + TIMEOUT_SECONDS + "s");
+            }
+        } else if (!playing && now - openedNanos > TimeUnit.SECONDS.toNanos(HANDSHAKE_TIMEOUT_SECONDS)) {
+            close("no ha empezado a publicar ni a reproducir");
+        }
+    }
+
+    /**
+     * Manda lo pendiente: las respuestas y, si reproduce, las tramas nuevas de su ruta.
+     */
+    void pump() {
+        try {
+            pumpOrThrow();
+        } catch (IOException e) {
+            close(e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    private void pumpOrThrow() throws IOException {
+        while (!closed) {
+            if (sendingTo > cursor) {
+                if (!sendFrames()) {
+                    return;
+                }
+            } else if (pendingText != null) {
+                channel.write(pendingText);
+                if (pendingText.hasRemaining()) {
+                    interestInWrite(true);
+                    return;
+                }
+                pendingText = null;
+                if (closeAfterFlush) {
+                    close(null);
+                }
+            } else if (playing && path.getRing().published() > cursor) {
+                if (path.getRing().tooFarBehind(cursor)) {
+                    evict();
+                    return;
+                }
+                sendingTo = path.getRing().published();
+            } else {
+                interestInWrite(false);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} si se ha mandado todo hasta {@link #sendingTo}.
+     */
+    private boolean sendFrames() throws IOException {
+        RelayRing ring = path.getRing();
+        int count = ring.slices(cursor, sendingTo, views);
+        long written = channel.write(views, 0, count);
+        if (ring.overwritten(cursor)) {
+            evict();
+            return false;
+        }
+        cursor += written;
+        if (cursor < sendingTo) {
+            interestInWrite(true);
+            return false;
+        }
+        return true;
+    }
+
+    private void evict() {
+        path.recordEviction();
+        logger.warn("Se desconecta al cliente " + remote + " de la ruta " + path.getName() + " del relay: va "
+                + (path.getRing().published() - cursor) / 1024 + " KB por detrás");
+        close("demasiado lento");
+    }
+
+    private void interestInWrite(boolean write) {
+        if (key.isValid()) {
+            key.interestOps(write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    private void read() throws IOException {
+        int read = channel.read(receive);
+        if (read < 0) {
+            throw new IOException("el cliente ha cerrado la conexión");
+        }
+        receive.flip();
+        while (receive.hasRemaining() && !closed) {
+            int position = receive.position();
+            int available = receive.remaining();
+            byte first = receive.get(position);
+            if (first == '$') {
+                if (available < 4) {
+                    break;
+                }
+                int length = receive.getShort(position + 2) & 0xFFFF;
+                if (available < 4 + length) {
+                    break;
+                }
+                if (recording) {
+                    lastDataNanos = System.nanoTime();
+                    int mapped = channels[receive.get(position + 1) & 0xFF];
+                    if (mapped >= 0) {
+                        path.write(mapped, receive, position + 4, length);
+                    }
+                }
+                // si reproduce, son sus informes RTCP: no se usan
+                receive.position(position + 4 + length);
+            } else if (first >= 'A' && first <= 'Z') {
+                int headerEnd = indexOfHeaderEnd(position, receive.limit());
+                if (headerEnd < 0) {
+                    break;
+                }
+                String head = text(position, headerEnd - position);
+                int bodyStart = headerEnd + 4;
+                String length = headers(head).get("content-length");
+                int contentLength = length == null ? 0 : Math.max(0, parseInt(length, 0));
+                if (receive.limit() - bodyStart < contentLength) {
+                    break;
+                }
+                String body = text(bodyStart, contentLength);
+                receive.position(bodyStart + contentLength);
+                onRequest(head, body);
+            } else {
+                receive.position(position + 1);
+            }
+        }
+        if (closed) {
+            return;
+        }
+        if (role == Role.PUBLISHER && receive.capacity() < RelayRing.MAX_FRAME) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(RelayRing.MAX_FRAME);
+            larger.put(receive);
+            receive = larger;
+        } else {
+            receive.compact();
+        }
+        if (!receive.hasRemaining()) {
+            throw new IOException("mensaje RTSP demasiado grande");
+        }
+    }
+
+    private void onRequest(String head, String body) throws IOException {
+        int lineEnd = head.indexOf("\r\n");
+        String[] requestLine = (lineEnd < 0 ? head : head.substring(0, lineEnd)).split(" ");
+        if (requestLine.length < 3 || requestLine[0].startsWith("RTSP/")) {
+            return;
+        }
+        String method = requestLine[0];
+        String url = requestLine[1];
+        Map<String, String> headers = headers(head);
+        String cseq = headers.getOrDefault("cseq", "0");
+        switch (method) {
+            case "OPTIONS":
+                reply(cseq, 200, "OK", "Public: " + PUBLIC_METHODS + "\r\n", null);
+                break;
+            case "DESCRIBE":
+                describe(cseq, url);
+                break;
+            case "ANNOUNCE":
+                announce(cseq, url, body);
+                break;
+            case "SETUP":
+                setup(cseq, url, headers.get("transport"));
+                break;
+            case "RECORD":
+                record(cseq);
+                break;
+            case "PLAY":
+                play(cseq);
+                break;
+            case "TEARDOWN":
+                closeAfterFlush = true;
+                reply(cseq, 200, "OK", "", null);
+                break;
+            case "GET_PARAMETER":
+            case "SET_PARAMETER":
+                reply(cseq, 200, "OK", "", null);
+                break;
+            default:
+                reply(cseq, 501, "Not Implemented", "", null);
+                break;
+        }
+    }
+
+    private void describe(String cseq, String url) throws IOException {
+        RelayPath found = server.find(pathName(url));
+        RelayDescription description = found == null || !found.isReady() ? null : found.getDescription();
+        if (description == null) {
+            reply(cseq, 404, "Not Found", "", null);
+            return;
+        }
+        path = found;
+        String base = url.endsWith("/") ? url : url + "/";
+        reply(cseq, 200, "OK", "Content-Base: " + base + "\r\nContent-Type: application/sdp\r\n",
+                description.getSdp());
+    }
+
+    private void announce(String cseq, String url, String sdp) throws IOException {
+        if (role != Role.NONE) {
+            reply(cseq, 455, "Method Not Valid in This State", "", null);
+            return;
+        }
+        String name = pathName(url);
+        RelayPath found = server.find(name);
+        if (found == null) {
+            found = server.adhoc(name);
+        } else if (!found.isAnnounceable()) {
+            reply(cseq, 403, "Forbidden", "", null);
+            return;
+        }
+        List<String> announced = RelayDescription.controls(sdp);
+        if (announced.isEmpty()) {
+            reply(cseq, 400, "Bad Request", "", null);
+            return;
+        }
+        role = Role.PUBLISHER;
+        path = found;
+        controls = announced;
+        announcedSdp = sdp;
+        reply(cseq, 200, "OK", "", null);
+    }
+
+    private void setup(String cseq, String url, String transport) throws IOException {
+        if (transport == null || !transport.toUpperCase(Locale.ROOT).contains("RTP/AVP/TCP")) {
+            reply(cseq, 461, "Unsupported Transport", "", null);
+            return;
+        }
+        if (role == Role.PUBLISHER) {
+            int track = publishedTrack(url);
+            int first = interleaved(transport);
+            if (first < 0) {
+                first = 2 * setups;
+            }
+            if (track < 0 || first > 254) {
+                reply(cseq, 400, "Bad Request", "", null);
+                return;
+            }
+            channels[first] = 2 * track;
+            channels[first + 1] = 2 * track + 1;
+            setups++;
+            newSession();
+            reply(cseq, 200, "OK", "Transport: RTP/AVP/TCP;unicast;interleaved=" + first + "-" + (first + 1)
+                    + ";mode=record\r\n", null);
+            return;
+        }
+        String name = pathName(url);
+        int slash = name.lastIndexOf('/');
+        String control = name.substring(slash + 1);
+        int track = setups;
+        RelayPath found = path;
+        if (control.startsWith(RelayDescription.TRACK_CONTROL)) {
+            track = parseInt(control.substring(RelayDescription.TRACK_CONTROL.length()), -1);
+            if (found == null && slash > 0) {
+                found = server.find(name.substring(0, slash));
+            }
+        } else if (found == null) {
+            found = server.find(name);
+        }
+        RelayDescription description = found == null ? null : found.getDescription();
+        if (description == null || track < 0 || track >= description.getTracks() || playing) {
+            reply(cseq, description == null ? 404 : 400, description == null ? "Not Found" : "Bad Request", "",
+                    null);
+            return;
+        }
+        role = Role.SUBSCRIBER;
+        path = found;
+        setups++;
+        newSession();
+        reply(cseq, 200, "OK", "Transport: RTP/AVP/TCP;unicast;interleaved=" + 2 * track + "-" + (2 * track + 1)
+                + "\r\n", null);
+    }
+
+    private void record(String cseq) throws IOException {
+        if (role != Role.PUBLISHER || setups == 0) {
+            reply(cseq, 455, "Method Not Valid in This State", "", null);
+            return;
+        }
+        if (!recording) {
+            int[] tracks = new int[controls.size()];
+            for (int i = 0; i < tracks.length; i++) {
+                tracks[i] = i;
+            }
+            path.publish(this, announcedSdp, tracks);
+            recording = true;
+            lastDataNanos = System.nanoTime();
+            logger.info(remote + " publica en la ruta " + path.getName() + " del relay");
+        }
+        reply(cseq, 200, "OK", "", null);
+    }
+
+    private void play(String cseq) throws IOException {
+        if (role != Role.SUBSCRIBER || setups == 0 || path.getDescription() == null) {
+            reply(cseq, 455, "Method Not Valid in This State", "", null);
+            return;
+        }
+        reply(cseq, 200, "OK", "Range: npt=0.000-\r\n", null);
+        if (!playing) {
+            views = new ByteBuffer[]{path.getRing().newView(), path.getRing().newView()};
+            long start = path.join(this);
+            cursor = start;
+            sendingTo = start;
+            playing = true;
+            pump();
+        }
+    }
+
+    private void newSession() {
+        if (sessionId == null) {
+            sessionId = Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * @return la pista anunciada cuyo control coincide con el final de la URL, o la siguiente por orden.
+     */
+    private int publishedTrack(String url) {
+        for (int i = 0; i < controls.size(); i++) {
+            String control = controls.get(i);
+            if (control != null && !control.equals("*") && (url.equals(control) || url.endsWith("/" + control))) {
+                return i;
+            }
+        }
+        return setups < controls.size() ? setups : -1;
+    }
+
+    private void reply(String cseq, int code, String reason, String headers, String body) throws IOException {
+        byte[] content = body == null ? null : body.getBytes(StandardCharsets.UTF_8);
+        StringBuilder response = new StringBuilder(256)
+                .append("RTSP/1.0 ").append(code).append(' ').append(reason).append("\r\n")
+                .append("CSeq: ").append(cseq).append("\r\n")
+                .append("Server: ").append(SERVER).append("\r\n");
+        if (sessionId != null) {
+            response.append("Session: ").append(sessionId).append(";timeout=60\r\n");
+        }
+        response.append(headers);
+        if (content != null) {
+            response.append("Content-Length: ").append(content.length).append("\r\n");
+        }
+        response.append("\r\n");
+        byte[] head = response.toString().getBytes(StandardCharsets.UTF_8);
+        int previous = pendingText == null ? 0 : pendingText.remaining();
+        ByteBuffer joined = ByteBuffer.allocate(previous + head.length + (content == null ? 0 : content.length));
+        if (pendingText != null) {
+            joined.put(pendingText);
+        }
+        joined.put(head);
+        if (content != null) {
+            joined.put(content);
+        }
+        joined.flip();
+        pendingText = joined;
+        pumpOrThrow();
+    }
+
+    /**
+     * Cierra la conexión. Si publicaba, sus clientes se desconectan.
+     *
+     * @param reason por qué, o {@code null} si lo ha pedido el cliente.
+     */
+    void close(String reason) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // ya está cerrado
+        }
+        if (playing) {
+            path.leave(this);
+        }
+        if (role == Role.PUBLISHER) {
+            path.unpublish(this);
+            server.removeAdhoc(path);
+            if (recording) {
+                logger.info(remote + " deja de publicar en la ruta " + path.getName() + " del relay"
+                        + (reason == null ? "" : ": " + reason));
+            }
+        } else if (reason != null && logger.isDebugEnabled()) {
+            logger.debug("Conexión del relay con " + remote + " cerrada: " + reason);
+        }
+        server.remove(this);
+    }
+
+    /**
+     * @return el nombre de la ruta de una URL RTSP, sin barras al principio ni al final.
+     */
+    static String pathName(String url) {
+        String rest = url;
+        int scheme = rest.indexOf("://");
+        if (scheme >= 0) {
+            rest = rest.substring(scheme + 3);
+            int slash = rest.indexOf('/');
+            rest = slash < 0 ? "" : rest.substring(slash + 1);
+        }
+        int query = rest.indexOf('?');
+        if (query >= 0) {
+            rest = rest.substring(0, query);
+        }
+        int start = 0;
+        int end = rest.length();
+        while (start < end && rest.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && rest.charAt(end - 1) == '/') {
+            end--;
+        }
+        return rest.substring(start, end);
+    }
+
+    /**
+     * @return el primer canal de {@code interleaved=} en una cabecera Transport, o -1.
+     */
+    private static int interleaved(String transport) {
+        int start = transport.indexOf("interleaved=");
+        if (start < 0) {
+            return -1;
+        }
+        start += "interleaved=".length();
+        int end = start;
+        while (end < transport.length() && Character.isDigit(transport.charAt(end))) {
+            end++;
+        }
+        return parseInt(transport.substring(start, end), -1);
+    }
+
+    private int indexOfHeaderEnd(int from, int limit) {
+        for (int i = from; i + 3 < limit; i++) {
+            if (receive.get(i) == '\r' && receive.get(i + 1) == '\n' && receive.get(i + 2) == '\r'
+                    && receive.get(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String text(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = receive.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> headers(String head) {
+        Map<String, String> headers = new HashMap<>();
+        int lineEnd = head.indexOf("\r\n");
+        if (lineEnd < 0) {
+            return headers;
+        }
+        for (String line : head.substring(lineEnd + 2).split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static int parseInt(String value, int fallback) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
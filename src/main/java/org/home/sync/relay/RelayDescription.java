@@ -0,0 +1,141 @@
+package org.home.sync.relay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * La descripción SDP que el relay da a sus clientes: la del origen con sólo las pistas que se reenvían, cada una
+ * con su control {@code trackID=N}, y el códec del video para reconocer sus fotogramas clave.
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class RelayDescription {
+
+    static final int CODEC_OTHER = 0;
+    static final int CODEC_H264 = 1;
+    static final int CODEC_H265 = 2;
+
+    /**
+     * Prefijo del control de cada pista en la descripción del relay.
+     */
+    static final String TRACK_CONTROL = "trackID=";
+
+    private final String sdp;
+    private final int tracks;
+    private final int videoTrack;
+    private final int videoCodec;
+
+    private RelayDescription(String sdp, int tracks, int videoTrack, int videoCodec) {
+        this.sdp = sdp;
+        this.tracks = tracks;
+        this.videoTrack = videoTrack;
+        this.videoCodec = videoCodec;
+    }
+
+    /**
+     * @param sdp          la descripción del origen.
+     * @param mediaIndexes las secciones {@code m=} que se reenvían, por orden de pista.
+     * @return la descripción para los clientes.
+     */
+    static RelayDescription rewrite(String sdp, int[] mediaIndexes) {
+        List<List<String>> sections = sections(sdp);
+        StringBuilder out = new StringBuilder(sdp.length() + 64);
+        for (String line : sections.get(0)) {
+            if (!line.startsWith("a=control:") && !line.startsWith("a=range:")) {
+                out.append(line).append("\r\n");
+            }
+        }
+        out.append("a=control:*\r\n");
+        int videoTrack = -1;
+        int videoCodec = CODEC_OTHER;
+        for (int track = 0; track < mediaIndexes.length; track++) {
+            List<String> section = sections.get(mediaIndexes[track] + 1);
+            if (videoTrack < 0 && section.get(0).startsWith("m=video")) {
+                videoTrack = track;
+                videoCodec = codec(section);
+            }
+            for (String line : section) {
+                if (!line.startsWith("a=control:")) {
+                    out.append(line).append("\r\n");
+                }
+            }
+            out.append("a=control:").append(TRACK_CONTROL).append(track).append("\r\n");
+        }
+        return new RelayDescription(out.toString(), mediaIndexes.length, videoTrack, videoCodec);
+    }
+
+    /**
+     * @param sdp una descripción.
+     * @return el atributo {@code control} de cada sección {@code m=}, o {@code null} si no lo tiene.
+     */
+    static List<String> controls(String sdp) {
+        List<List<String>> sections = sections(sdp);
+        List<String> controls = new ArrayList<>();
+        for (int i = 1; i < sections.size(); i++) {
+            String control = null;
+            for (String line : sections.get(i)) {
+                if (line.startsWith("a=control:")) {
+                    control = line.substring("a=control:".length()).trim();
+                }
+            }
+            controls.add(control);
+        }
+        return controls;
+    }
+
+    /**
+     * @return la sesión en la posición 0 y después una lista de líneas por cada {@code m=}.
+     */
+    private static List<List<String>> sections(String sdp) {
+        List<List<String>> sections = new ArrayList<>();
+        List<String> current = new ArrayList<>();
+        sections.add(current);
+        for (String rawLine : sdp.split("\r?\n")) {
+            String line = rawLine.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.startsWith("m=")) {
+                current = new ArrayList<>();
+                sections.add(current);
+            }
+            current.add(line);
+        }
+        return sections;
+    }
+
+    private static int codec(List<String> section) {
+        for (String line : section) {
+            if (line.startsWith("a=rtpmap:")) {
+                String encoding = line.toUpperCase(Locale.ROOT);
+                if (encoding.contains(" H264/")) {
+                    return CODEC_H264;
+                }
+                if (encoding.contains(" H265/")) {
+                    return CODEC_H265;
+                }
+            }
+        }
+        return CODEC_OTHER;
+    }
+
+    String getSdp() {
+        return sdp;
+    }
+
+    int getTracks() {
+        return tracks;
+    }
+
+    /**
+     * @return la pista de video, o -1 si no hay.
+     */
+    int getVideoTrack() {
+        return videoTrack;
+    }
+
+    int getVideoCodec() {
+        return videoCodec;
+    }
+}
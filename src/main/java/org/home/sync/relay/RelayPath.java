@@ -0,0 +1,282 @@
+package org.home.sync.relay;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Una ruta del {@link RelayServer}: recibe una vez el stream de una cámara y lo reparte a todos sus clientes desde
+ * un único {@link RelayRing}.
+ * <p>
+ * El origen es o bien la sesión del motor nativo, que escribe desde su hilo de ingesta los paquetes tal cual le llegan
+ * de la cámara, o bien un cliente que publica por RTSP ({@code ANNOUNCE}/{@code RECORD}), como el FFmpeg de una
+ * cámara con el motor ffmpeg. Cada cliente empieza en el último fotograma clave que siga en el buffer, para que vea
+ * imagen enseguida, y se le expulsa si se retrasa más de lo que cabe en el buffer.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public final class RelayPath {
+
+    private final RelayServer server;
+    private final String name;
+    private final List<String> names;
+    private final boolean announceable;
+    private final RelayRing ring;
+
+    /**
+     * Clientes recibiendo el stream. Sólo se modifica desde el hilo del relay.
+     */
+    private final List<RelayConnection> subscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Si ya se ha avisado al hilo del relay de que hay datos nuevos para los clientes.
+     */
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private volatile Object publisher;
+    private volatile RelayDescription description;
+
+    /**
+     * Posición del último fotograma clave en el buffer, o -1.
+     */
+    private volatile long keyframe = -1;
+
+    /**
+     * Marca de tiempo RTP del último fotograma clave. Sólo la usa el productor.
+     */
+    private int keyframeTimestamp;
+
+    RelayPath(RelayServer server, List<String> names, boolean announceable, int bufferBytes) {
+        this.server = server;
+        this.name = names.get(0);
+        this.names = Collections.unmodifiableList(new ArrayList<>(names));
+        this.announceable = announceable;
+        this.ring = new RelayRing(bufferBytes);
+    }
+
+    /**
+     * @return el nombre principal de la ruta.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return todos los nombres por los que se puede pedir la ruta, el principal primero.
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * @return la URL donde publicar en esta ruta por RTSP.
+     */
+    public String getUrl() {
+        return server.getLocalUrl() + name;
+    }
+
+    /**
+     * @return si se acepta que un cliente publique en ella por RTSP.
+     */
+    boolean isAnnounceable() {
+        return announceable;
+    }
+
+    /**
+     * Empieza a publicar en la ruta. Si había otro origen, sus clientes se desconectan (el stream ha cambiado y
+     * tienen que volver a pedir la descripción).
+     *
+     * @param owner        quién publica.
+     * @param sdp          la descripción del origen.
+     * @param mediaIndexes las secciones {@code m=} de {@code sdp} que se van a mandar, por orden de pista. La pista
+     *                     {@code N} va por los canales {@code 2N} (RTP) y {@code 2N+1} (RTCP) de {@link #write}.
+     */
+    public synchronized void publish(Object owner, String sdp, int[] mediaIndexes) {
+        Object previous = publisher;
+        keyframe = -1;
+        keyframeTimestamp = 0;
+        description = RelayDescription.rewrite(sdp, mediaIndexes);
+        publisher = owner;
+        if (previous != null && previous != owner) {
+            server.replaced(this, previous, new ArrayList<>(subscribers));
+        }
+    }
+
+    /**
+     * Deja de publicar, si {@code owner} sigue siendo el origen. Los clientes se desconectan.
+     *
+     * @param owner quién publicaba.
+     */
+    public synchronized void unpublish(Object owner) {
+        if (publisher != owner) {
+            return;
+        }
+        publisher = null;
+        description = null;
+        keyframe = -1;
+        server.unpublished(this, new ArrayList<>(subscribers));
+    }
+
+    /**
+     * Reparte un paquete del origen. Sólo lo llama el origen actual, siempre desde el mismo hilo.
+     *
+     * @param channel canal entrelazado: {@code 2N} para el RTP de la pista {@code N}, {@code 2N+1} para su RTCP.
+     * @param source  buffer con el paquete. Su posición y su límite no cambian.
+     * @param offset  dónde empieza el paquete.
+     * @param length  longitud del paquete.
+     */
+    public void write(int channel, ByteBuffer source, int offset, int length) {
+        RelayDescription current = description;
+        if (current == null || length > 0xFFFF || channel >= 2 * current.getTracks()) {
+            return;
+        }
+        long start = ring.append(channel, source, offset, length);
+        if (channel == 2 * current.getVideoTrack() && length >= 12
+                && startsKeyframe(current.getVideoCodec(), source, offset, length)) {
+            int timestamp = source.getInt(offset + 4);
+            // SPS, PPS y el IDR llegan con la misma marca de tiempo: el fotograma empieza en el primero
+            if (keyframe < 0 || timestamp != keyframeTimestamp) {
+                keyframeTimestamp = timestamp;
+                keyframe = start;
+            }
+        }
+        if (!subscribers.isEmpty() && pending.compareAndSet(false, true)) {
+            server.wakeup(this);
+        }
+    }
+
+    /**
+     * @return {@code true} si hay un origen publicando y, si tiene video, ya ha mandado un fotograma clave.
+     */
+    public boolean isReady() {
+        RelayDescription current = description;
+        return current != null && (current.getVideoTrack() < 0 || keyframe >= 0);
+    }
+
+    /**
+     * @return cuántos clientes están recibiendo el stream.
+     */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * @return bytes recibidos del origen desde que se creó la ruta.
+     */
+    public long getPublishedBytes() {
+        return ring.published();
+    }
+
+    /**
+     * @return clientes expulsados por ir demasiado retrasados.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return bytes que le faltan por recibir a cada cliente, por su dirección.
+     */
+    public Map<String, Long> getSubscriberLags() {
+        Map<String, Long> lags = new LinkedHashMap<>();
+        long published = ring.published();
+        for (RelayConnection subscriber : subscribers) {
+            lags.put(subscriber.getRemote(), Math.max(0, published - subscriber.getCursor()));
+        }
+        return lags;
+    }
+
+    /**
+     * @return la descripción para los clientes, o {@code null} si no hay origen.
+     */
+    RelayDescription getDescription() {
+        return description;
+    }
+
+    RelayRing getRing() {
+        return ring;
+    }
+
+    Object getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * Añade un cliente. Se ejecuta en el hilo del relay.
+     *
+     * @return dónde empieza a leer: el último fotograma clave si sigue en el buffer, o lo último publicado.
+     */
+    long join(RelayConnection subscriber) {
+        long published = ring.published();
+        long start = keyframe;
+        subscribers.add(subscriber);
+        return start >= 0 && !ring.tooFarBehind(start) ? start : published;
+    }
+
+    void leave(RelayConnection subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    void recordEviction() {
+        evictions.incrementAndGet();
+    }
+
+    /**
+     * Manda a cada cliente lo que tenga pendiente. Se ejecuta en el hilo del relay.
+     */
+    void pump() {
+        pending.set(false);
+        for (RelayConnection subscriber : subscribers) {
+            subscriber.pump();
+        }
+    }
+
+    /**
+     * @return {@code true} si el paquete RTP empieza un fotograma clave (o los parámetros que lo preceden).
+     */
+    static boolean startsKeyframe(int codec, ByteBuffer packet, int offset, int length) {
+        int flags = packet.get(offset) & 0xFF;
+        int end = offset + length;
+        int payload = offset + 12 + 4 * (flags & 0x0F);
+        if ((flags & 0x10) != 0) {
+            if (payload + 4 > end) {
+                return false;
+            }
+            payload += 4 + 4 * (packet.getShort(payload + 2) & 0xFFFF);
+        }
+        if (payload >= end) {
+            return false;
+        }
+        int header = packet.get(payload) & 0xFF;
+        if (codec == RelayDescription.CODEC_H264) {
+            int type = header & 0x1F;
+            if (type == 24 && payload + 3 < end) {
+                type = packet.get(payload + 3) & 0x1F;
+            } else if (type == 28 && payload + 1 < end) {
+                int fragment = packet.get(payload + 1) & 0xFF;
+                type = (fragment & 0x80) != 0 ? fragment & 0x1F : 0;
+            }
+            return type == 5 || type == 7;
+        }
+        if (codec == RelayDescription.CODEC_H265) {
+            int type = (header >> 1) & 0x3F;
+            if (type == 48 && payload + 4 < end) {
+                type = (packet.get(payload + 4) >> 1) & 0x3F;
+            } else if (type == 49 && payload + 2 < end) {
+                int fragment = packet.get(payload + 2) & 0xFF;
+                type = (fragment & 0x80) != 0 ? fragment & 0x3F : 0;
+            }
+            return (type >= 16 && type <= 21) || type == 32 || type == 33;
+        }
+        return false;
+    }
+}
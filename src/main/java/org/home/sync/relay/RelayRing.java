@@ -0,0 +1,165 @@
+package org.home.sync.relay;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffer circular de memoria directa donde un único productor escribe las tramas RTP entrelazadas de una ruta
+ * ({@code $}, canal, longitud y paquete, tal cual se mandan por RTSP) y del que leen todos sus clientes.
+ * <p>
+ * Las posiciones son absolutas (bytes escritos desde que se creó el buffer), así que cada cliente sólo necesita su
+ * propio cursor y el retraso de un cliente es {@code publicada - cursor}. El productor no espera nunca a nadie: si da
+ * la vuelta y pisa lo que un cliente aún no ha mandado, ese cliente es demasiado lento y se le expulsa. Para saberlo
+ * sin bloqueos, el productor anuncia antes de escribir hasta dónde va a llegar ({@code claimed}) y el lector lo
+ * comprueba después de mandar, como en un seqlock.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+final class RelayRing {
+
+    /**
+     * La trama más grande: 4 bytes de cabecera y 65535 de paquete.
+     */
+    static final int MAX_FRAME = 4 + 0xFFFF;
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Vista del productor, para no tocar la posición de {@link #buffer}.
+     */
+    private final ByteBuffer writeView;
+
+    private final int capacity;
+
+    /**
+     * Bytes completamente escritos. Siempre es el final de una trama.
+     */
+    private volatile long published;
+
+    /**
+     * Hasta dónde llega la trama que se está escribiendo. Todo lo anterior a {@code claimed - capacity} puede estar
+     * pisado.
+     */
+    private volatile long claimed;
+
+    /**
+     * @param capacity bytes del buffer. Tiene que caber varias veces la trama más grande.
+     */
+    RelayRing(int capacity) {
+        if (capacity < 4 * MAX_FRAME) {
+            throw new IllegalArgumentException("el buffer del relay tiene que tener al menos " + 4 * MAX_FRAME
+                    + " bytes");
+        }
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.writeView = buffer.duplicate();
+    }
+
+    /**
+     * Añade una trama entrelazada. Sólo lo llama el productor.
+     *
+     * @param channel canal entrelazado de la trama.
+     * @param source  buffer con el paquete RTP o RTCP. Su posición y su límite no cambian.
+     * @param offset  dónde empieza el paquete.
+     * @param length  longitud del paquete.
+     * @return la posición donde empieza la trama.
+     */
+    long append(int channel, ByteBuffer source, int offset, int length) {
+        long start = published;
+        claimed = start + 4 + length;
+        // lo que sigue pisa bytes que un lector puede estar mandando: tiene que verse después del nuevo claimed
+        VarHandle.fullFence();
+        put(start, (byte) '$');
+        put(start + 1, (byte) channel);
+        put(start + 2, (byte) (length >> 8));
+        put(start + 3, (byte) length);
+        copy(source, offset, length, start + 4);
+        published = start + 4 + length;
+        return start;
+    }
+
+    private void put(long position, byte value) {
+        buffer.put(index(position), value);
+    }
+
+    private void copy(ByteBuffer source, int offset, int length, long position) {
+        int savedPosition = source.position();
+        int savedLimit = source.limit();
+        int index = index(position);
+        int first = Math.min(length, capacity - index);
+        try {
+            source.limit(offset + first).position(offset);
+            writeView.limit(capacity).position(index);
+            writeView.put(source);
+            if (first < length) {
+                source.limit(offset + length).position(offset + first);
+                writeView.position(0);
+                writeView.put(source);
+            }
+        } finally {
+            source.limit(savedLimit).position(savedPosition);
+        }
+    }
+
+    /**
+     * @return bytes completamente escritos.
+     */
+    long published() {
+        return published;
+    }
+
+    /**
+     * @param from posición de un lector.
+     * @return {@code true} si el lector va tan atrasado que la siguiente trama puede pisar lo que no ha mandado.
+     */
+    boolean tooFarBehind(long from) {
+        return published - from > capacity - MAX_FRAME;
+    }
+
+    /**
+     * Se llama después de mandar bytes desde {@code from}.
+     *
+     * @param from dónde empezaban los bytes mandados.
+     * @return {@code true} si el productor los ha podido pisar mientras se mandaban.
+     */
+    boolean overwritten(long from) {
+        VarHandle.loadLoadFence();
+        return claimed - capacity > from;
+    }
+
+    /**
+     * Prepara las vistas para mandar {@code [from, to)}, que pueden ser dos trozos si se da la vuelta.
+     *
+     * @param from  primera posición.
+     * @param to    posición final, como mucho {@link #published()}.
+     * @param views dos vistas del lector, creadas con {@link #newView()}.
+     * @return cuántas vistas hay que mandar.
+     */
+    int slices(long from, long to, ByteBuffer[] views) {
+        int start = index(from);
+        int length = (int) (to - from);
+        int first = Math.min(length, capacity - start);
+        views[0].limit(start + first).position(start);
+        if (first == length) {
+            return 1;
+        }
+        views[1].limit(length - first).position(0);
+        return 2;
+    }
+
+    /**
+     * @return una vista de solo lectura del buffer, para un lector.
+     */
+    ByteBuffer newView() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    private int index(long position) {
+        return (int) (position % capacity);
+    }
+}
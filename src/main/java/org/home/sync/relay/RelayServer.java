@@ -0,0 +1,373 @@
+package org.home.sync.relay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Servidor RTSP integrado que replica el stream de las cámaras con {@code cloneRTSPStream}, en lugar de un mediamtx
+ * externo.
+ * <p>
+ * Cada cámara tiene una {@link RelayPath} con todos sus {@code outputEndpoints} como nombres: el stream entra una
+ * sola vez y se reparte a todos los clientes que lo pidan por cualquiera de ellos. Todo el tráfico lo atiende un
+ * único hilo con un {@link Selector}, y los paquetes se mandan a cada cliente directamente desde el buffer de la
+ * ruta, sin copiarlos por cliente. Sólo habla RTP entrelazado en la conexión TCP, como el motor nativo.
+ * </p>
+ * <p>
+ * El puerto queda abierto al terminar el constructor, así que el relay está listo antes de que ninguna cámara
+ * publique en él.
+ * </p>
+ *
+ * @author Carlos Noé Muñoz (cnoemunoz@gmail.com)
+ */
+public final class RelayServer implements AutoCloseable {
+
+    /**
+     * El logger.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(RelayServer.class);
+
+    /**
+     * Puerto del relay. Se puede cambiar con la propiedad de sistema {@code relay.port}.
+     */
+    public static final int PORT = Integer.getInteger("relay.port", 8554);
+
+    /**
+     * Dirección donde escucha el relay. Se puede cambiar con la propiedad de sistema {@code relay.bindAddress}.
+     */
+    public static final String BIND_ADDRESS = System.getProperty("relay.bindAddress", "0.0.0.0");
+
+    /**
+     * Bytes del buffer de cada ruta. Se puede cambiar con la propiedad de sistema {@code relay.bufferKB}.
+     */
+    public static final int BUFFER_BYTES = Math.max(RelayRing.MAX_FRAME * 4 / 1024 + 1,
+            Integer.getInteger("relay.bufferKB", 2048)) * 1024;
+
+    /**
+     * Cada cuántos milisegundos se revisan los plazos de las conexiones.
+     */
+    static final long TICK_MILLIS = 1000;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread thread;
+    private final int bufferBytes;
+    private final String localUrl;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Queue<RelayPath> pendingPaths = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Rutas por cada uno de sus nombres.
+     */
+    private final Map<String, RelayPath> paths = new ConcurrentHashMap<>();
+
+    /**
+     * Rutas de las cámaras, por nombre de cámara.
+     */
+    private final Map<String, RelayPath> cameras = new ConcurrentHashMap<>();
+
+    /**
+     * Conexiones abiertas. Sólo se toca desde el hilo del relay.
+     */
+    private final List<RelayConnection> connections = new ArrayList<>();
+
+    private volatile boolean running = true;
+
+    /**
+     * Abre el relay en {@link #BIND_ADDRESS}:{@link #PORT}.
+     *
+     * @throws IOException si no se puede abrir el puerto.
+     */
+    public RelayServer() throws IOException {
+        this(new InetSocketAddress(BIND_ADDRESS, PORT), BUFFER_BYTES);
+    }
+
+    /**
+     * Abre el puerto y arranca el hilo del relay.
+     *
+     * @param address     dónde escuchar.
+     * @param bufferBytes bytes del buffer de cada ruta.
+     * @throws IOException si no se puede abrir el puerto.
+     */
+    public RelayServer(InetSocketAddress address, int bufferBytes) throws IOException {
+        this.bufferBytes = bufferBytes;
+        this.selector = Selector.open();
+        try {
+            this.serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+        int port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        String host = address.getAddress() == null || address.getAddress().isAnyLocalAddress()
+                ? "127.0.0.1" : address.getAddress().getHostAddress();
+        this.localUrl = "rtsp://" + host + ":" + port + "/";
+        this.thread = new Thread(this::loop, "rtsp-relay");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Relay RTSP escuchando en " + address.getHostString() + ":" + port);
+    }
+
+    /**
+     * @return {@code true} si el relay acepta conexiones.
+     */
+    public boolean isReady() {
+        return running && thread.isAlive() && serverChannel.isOpen();
+    }
+
+    /**
+     * @return la URL base del relay para publicar desde esta máquina, acabada en {@code /}.
+     */
+    public String getLocalUrl() {
+        return localUrl;
+    }
+
+    /**
+     * Crea la ruta de una cámara, sustituyendo la que tuviera antes. Los nombres que ya usa otra cámara se ignoran.
+     *
+     * @param cameraName   el nombre de la cámara.
+     * @param names        los nombres de la ruta, el principal primero.
+     * @param announceable si un cliente puede publicar en ella por RTSP (el FFmpeg de la cámara).
+     * @return la ruta, o {@code null} si todos sus nombres los usa otra cámara.
+     */
+    public synchronized RelayPath register(String cameraName, List<String> names, boolean announceable) {
+        unregister(cameraName);
+        List<String> free = new ArrayList<>();
+        for (String name : new LinkedHashSet<>(names)) {
+            RelayPath taken = paths.get(name);
+            if (taken != null && cameras.containsValue(taken)) {
+                logger.warn("La ruta " + name + " del relay ya la usa otra cámara, la camara " + cameraName
+                        + " no se publica en ella");
+            } else {
+                free.add(name);
+            }
+        }
+        if (free.isEmpty()) {
+            return null;
+        }
+        RelayPath path = new RelayPath(this, free, announceable, bufferBytes);
+        for (String name : free) {
+            RelayPath previous = paths.put(name, path);
+            if (previous != null) {
+                // una ruta creada por un cliente que publicaba por su cuenta
+                close(previous);
+            }
+        }
+        cameras.put(cameraName, path);
+        return path;
+    }
+
+    /**
+     * Quita la ruta de una cámara y desconecta a su origen y a sus clientes.
+     *
+     * @param cameraName el nombre de la cámara.
+     */
+    public synchronized void unregister(String cameraName) {
+        RelayPath path = cameras.remove(cameraName);
+        if (path != null) {
+            for (String name : path.getNames()) {
+                paths.remove(name, path);
+            }
+            close(path);
+        }
+    }
+
+    /**
+     * @return las rutas, sin repetir.
+     */
+    public Collection<RelayPath> getPaths() {
+        return new LinkedHashSet<>(paths.values());
+    }
+
+    /**
+     * @param name el nombre pedido.
+     * @return la ruta, o {@code null}.
+     */
+    RelayPath find(String name) {
+        return paths.get(name);
+    }
+
+    /**
+     * Crea una ruta para un cliente que publica en un nombre que no es de ninguna cámara, como haría mediamtx.
+     *
+     * @param name el nombre.
+     * @return la ruta.
+     */
+    synchronized RelayPath adhoc(String name) {
+        return paths.computeIfAbsent(name, n -> new RelayPath(this, List.of(n), true, bufferBytes));
+    }
+
+    /**
+     * Quita una ruta creada con {@link #adhoc(String)} cuando deja de publicarse.
+     */
+    synchronized void removeAdhoc(RelayPath path) {
+        if (!cameras.containsValue(path) && path.getPublisher() == null) {
+            paths.remove(path.getName(), path);
+        }
+    }
+
+    /**
+     * Desconecta al origen y a los clientes de una ruta que se quita.
+     */
+    private void close(RelayPath path) {
+        execute(() -> {
+            for (RelayConnection connection : new ArrayList<>(connections)) {
+                if (connection.getPath() == path) {
+                    connection.close("se ha quitado la ruta " + path.getName());
+                }
+            }
+        });
+    }
+
+    /**
+     * Ha cambiado el origen de una ruta: se desconecta al anterior, si publicaba por RTSP, y a los clientes.
+     */
+    void replaced(RelayPath path, Object previous, List<RelayConnection> stale) {
+        execute(() -> {
+            if (previous instanceof RelayConnection) {
+                ((RelayConnection) previous).close("otro origen publica en " + path.getName());
+            }
+            stale.forEach(c -> c.close("ha cambiado el origen de " + path.getName()));
+        });
+    }
+
+    /**
+     * El origen de una ruta ha dejado de publicar: se desconecta a sus clientes.
+     */
+    void unpublished(RelayPath path, List<RelayConnection> stale) {
+        execute(() -> stale.forEach(c -> c.close("el origen de " + path.getName() + " ha dejado de publicar")));
+    }
+
+    /**
+     * Avisa al hilo del relay de que una ruta tiene datos nuevos para sus clientes.
+     */
+    void wakeup(RelayPath path) {
+        pendingPaths.add(path);
+        selector.wakeup();
+    }
+
+    /**
+     * Ejecuta una tarea en el hilo del relay.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    void remove(RelayConnection connection) {
+        connections.remove(connection);
+    }
+
+    private void loop() {
+        long lastTick = System.nanoTime();
+        while (running) {
+            try {
+                selector.select(TICK_MILLIS);
+            } catch (IOException e) {
+                logger.error("Error en el selector del relay", e);
+            }
+            runTasks();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                } else {
+                    ((RelayConnection) key.attachment()).onReady(key);
+                }
+            }
+            RelayPath path;
+            while ((path = pendingPaths.poll()) != null) {
+                path.pump();
+            }
+            long now = System.nanoTime();
+            if (now - lastTick >= TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS)) {
+                lastTick = now;
+                for (int i = connections.size() - 1; i >= 0; i--) {
+                    if (i < connections.size()) {
+                        connections.get(i).tick(now);
+                    }
+                }
+            }
+        }
+        runTasks();
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            connections.get(i).close("se ha cerrado el relay");
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("Error al cerrar el relay", e);
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                RelayConnection connection = new RelayConnection(this, channel);
+                connections.add(connection);
+                connection.register();
+            }
+        } catch (IOException e) {
+            logger.warn("No se puede aceptar una conexión en el relay: " + e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Error en una tarea del relay", e);
+            }
+        }
+    }
+
+    /**
+     * Desconecta a todos los clientes y cierra el puerto.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.home.sync.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashRingTest {
+
+    private static final int CAMERAS = 10_000;
+
+    @Test
+    void movesOnlyTheCamerasOfTheNewInstance() {
+        HashRing before = new HashRing(Arrays.asList("node-0", "node-1", "node-2"));
+        HashRing after = new HashRing(Arrays.asList("node-0", "node-1", "node-2", "node-3"));
+
+        int moved = 0;
+        for (int i = 0; i < CAMERAS; i++) {
+            String camera = "cam-" + i;
+            String owner = after.owner(camera);
+            if (!owner.equals(before.owner(camera))) {
+                // una cámara que cambia de dueño sólo puede irse a la instancia nueva
+                assertEquals("node-3", owner, camera);
+                moved++;
+            }
+        }
+        // alrededor de 1/4, con margen para el desequilibrio de los nodos virtuales
+        assertTrue(moved > CAMERAS / 4 * 0.7 && moved < CAMERAS / 4 * 1.3, "movidas: " + moved);
+    }
+
+    @Test
+    void movesOnlyTheCamerasOfTheInstanceThatLeaves() {
+        HashRing before = new HashRing(Arrays.asList("node-0", "node-1", "node-2", "node-3"));
+        HashRing after = new HashRing(Arrays.asList("node-0", "node-1", "node-3"));
+
+        for (int i = 0; i < CAMERAS; i++) {
+            String camera = "cam-" + i;
+            String owner = before.owner(camera);
+            if (!owner.equals("node-2")) {
+                assertEquals(owner, after.owner(camera), camera);
+            } else {
+                assertNotEquals("node-2", after.owner(camera));
+            }
+        }
+    }
+
+    @Test
+    void balancesTheCameras() {
+        List<String> members = Arrays.asList("node-0", "node-1", "node-2", "node-3", "node-4");
+        HashRing ring = new HashRing(members);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < CAMERAS; i++) {
+            counts.merge(ring.owner("cam-" + i), 1, Integer::sum);
+        }
+        assertEquals(members.size(), counts.size());
+        for (int count : counts.values()) {
+            assertTrue(Math.abs(count - CAMERAS / members.size()) < CAMERAS / members.size() * 0.25,
+                    "reparto: " + counts);
+        }
+    }
+
+    @Test
+    void doesNotDependOnTheOrderOfTheMembers() {
+        HashRing one = new HashRing(Arrays.asList("b", "c", "a"));
+        HashRing other = new HashRing(Arrays.asList("a", "b", "c"));
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(one.owner("cam-" + i), other.owner("cam-" + i));
+        }
+    }
+
+    @Test
+    void keepsTheHashStable() {
+        // todas las instancias tienen que repartir igual, aunque corran versiones o JVM distintas
+        assertEquals(0xb908fbbc2cf39666L, HashRing.hash("cam-1"));
+        assertEquals(mix(fnv("cámara")), HashRing.hash("cámara"));
+    }
+
+    @Test
+    void givesEverythingToASingleInstance() {
+        HashRing ring = new HashRing(Arrays.asList("solo"));
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("solo", ring.owner("cam-" + i));
+        }
+    }
+
+    /**
+     * FNV-1a de 64 bits, escrito aparte para comprobar el de {@link HashRing}.
+     */
+    private static long fnv(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
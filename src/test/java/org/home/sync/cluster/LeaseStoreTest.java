@@ -0,0 +1,65 @@
+package org.home.sync.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LeaseStoreTest {
+
+    private static final long LEASE_MILLIS = 10_000;
+
+    @Test
+    void keepsSafeNamesAsTheyAre() {
+        assertEquals("entrada", LeaseStore.fileName("entrada"));
+        assertEquals("192.168.1.10_cam-2", LeaseStore.fileName("192.168.1.10_cam-2"));
+    }
+
+    @Test
+    void encodesEveryOtherCharacter() {
+        assertEquals("a%20b", LeaseStore.fileName("a b"));
+        assertEquals("a%2Fb", LeaseStore.fileName("a/b"));
+        assertEquals("100%25", LeaseStore.fileName("100%"));
+        assertEquals("c%C3%A1mara", LeaseStore.fileName("cámara"));
+    }
+
+    @Test
+    void neverGivesTwoNamesTheSameFile() {
+        String[] names = {"a b", "a_b", "a%20b", "a%b", "a/b", "a\\b", "a:b", "cámara", "c%C3%A1mara", "ab"};
+        Set<String> files = new HashSet<>();
+        for (String name : names) {
+            assertTrue(files.add(LeaseStore.fileName(name)), name);
+        }
+    }
+
+    @Test
+    void givesCamerasWithSimilarNamesTheirOwnLease() throws IOException {
+        Path directory = Files.createTempDirectory("leases");
+        try {
+            LeaseStore first = new LeaseStore(directory, "node a", LEASE_MILLIS);
+            LeaseStore second = new LeaseStore(directory, "node_a", LEASE_MILLIS);
+
+            assertTrue(first.acquire("a b", 1000) > 0);
+            assertTrue(second.acquire("a_b", 1000) > 0);
+            assertEquals(-1, second.acquire("a b", 1000));
+
+            // los latidos tampoco se pisan
+            first.heartbeat(1000);
+            second.heartbeat(1000);
+            Set<String> live = first.liveMembers(1000);
+            assertEquals(2, live.size());
+            assertTrue(live.contains("node a") && live.contains("node_a"));
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted((a, b) -> b.compareTo(a)).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.home.sync.config;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CameraConfigLoaderTest {
+
+    private static final String CAMERA = "{\"name\": \"%s\", \"user\": \"admin\", \"password\": \"secret\", "
+            + "\"ip\": \"192.168.1.10\", \"port\": 554, \"stream\": \"stream1\"%s}";
+
+    @Test
+    void loadsAValidCameraWithDefaults() throws IOException {
+        ConfigLoadResult result = load("[" + camera("entrada", "") + "]");
+
+        assertFalse(result.hasErrors());
+        assertEquals(1, result.getCameras().size());
+        CameraConfig camera = result.getCameras().get(0);
+        assertEquals("entrada", camera.getName());
+        assertEquals(554, camera.getPort());
+        assertEquals(CameraConfig.ENGINE_FFMPEG, camera.getEngine());
+        assertEquals(CameraConfig.MODE_CONTINUOUS, camera.getRecordingMode());
+    }
+
+    @Test
+    void discardsOnlyTheInvalidCameras() throws IOException {
+        ConfigLoadResult result = load("[" + camera("entrada", "") + ", " + camera("garaje", ", \"port\": \"x\"")
+                + ", " + camera("jardin", "") + "]");
+
+        assertEquals(2, result.getCameras().size());
+        assertEquals(1, result.getErrors().size());
+        ConfigError error = result.getErrors().get(0);
+        assertEquals(1, error.getIndex());
+        assertEquals("garaje", error.getName());
+    }
+
+    @Test
+    void collectsEveryError() throws IOException {
+        // el primer problema de cada cámara, no sólo el de la primera cámara incorrecta
+        ConfigLoadResult result = load("[{\"name\": \"sin-datos\"}, " + camera("a", ", \"retentionDays\": -1")
+                + ", " + camera("b", ", \"stream\": \"stream9\"") + ", 42]");
+
+        assertTrue(result.getCameras().isEmpty());
+        assertEquals(4, result.getErrors().size());
+        assertEquals("falta el campo obligatorio port", result.getErrors().get(0).getMessage());
+        assertEquals("retentionDays no puede ser negativo", result.getErrors().get(1).getMessage());
+        assertEquals("no es un objeto JSON", result.getErrors().get(3).getMessage());
+    }
+
+    @Test
+    void keepsTheFirstCameraWithARepeatedName() throws IOException {
+        ConfigLoadResult result = load("[" + camera("entrada", ", \"port\": 554") + ", "
+                + camera("entrada", ", \"port\": 8554") + "]");
+
+        assertEquals(1, result.getCameras().size());
+        assertEquals(554, result.getCameras().get(0).getPort());
+        assertEquals(1, result.getErrors().get(0).getIndex());
+    }
+
+    @Test
+    void rejectsNamesThatAreNotUsableAsDirectories() throws IOException {
+        ConfigLoadResult result = load("[" + camera("..", "") + ", " + camera("a/b", "") + ", "
+                + camera("a\\\\b", "") + "]");
+
+        assertTrue(result.getCameras().isEmpty());
+        assertEquals(3, result.getErrors().size());
+    }
+
+    @Test
+    void checksNumericRanges() throws IOException {
+        assertInvalid(", \"port\": 70000");
+        assertInvalid(", \"segmentTime\": 0");
+        assertInvalid(", \"maxDiskMB\": -5");
+        assertInvalid(", \"activityThreshold\": 1.5");
+        assertInvalid(", \"activityHoldSeconds\": 0");
+        assertInvalid(", \"engine\": \"native\", \"recordingMode\": \"event\", \"preRollSeconds\": "
+                + (CameraConfigLoader.MAX_PRE_ROLL_SECONDS + 1));
+    }
+
+    @Test
+    void checksTheCombinationsOfEngineAndMode() throws IOException {
+        // event necesita el motor native, y el motor native sólo copia por TCP
+        assertInvalid(", \"recordingMode\": \"event\"");
+        assertInvalid(", \"engine\": \"native\", \"videoCodec\": \"libx264\"");
+        assertInvalid(", \"engine\": \"native\", \"RTSPTransport\": \"udp\"");
+        assertInvalid(", \"engine\": \"gstreamer\"");
+        assertInvalid(", \"recordingMode\": \"activity\", \"stream\": \"stream2\"");
+
+        ConfigLoadResult result = load("[" + camera("entrada", ", \"engine\": \"native\", \"recordingMode\": "
+                + "\"event\", \"preRollSeconds\": 5") + "]");
+        assertFalse(result.hasErrors());
+        assertTrue(result.getCameras().get(0).isEventMode());
+        assertEquals(5, result.getCameras().get(0).getPreRollSeconds());
+    }
+
+    @Test
+    void acceptsNumbersWrittenAsText() throws IOException {
+        ConfigLoadResult result = load("[" + camera("entrada", ", \"port\": \" 8554 \", \"retentionDays\": \"7\"")
+                + "]");
+
+        assertFalse(result.hasErrors());
+        assertEquals(8554, result.getCameras().get(0).getPort());
+        assertEquals(7, result.getCameras().get(0).getRetentionDays());
+    }
+
+    @Test
+    void validatesCamerasSpreadOverSeveralChunks() throws IOException {
+        int count = CameraConfigLoader.CHUNK_SIZE * 2 + 3;
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            json.append(i == 0 ? "" : ", ").append(camera("cam" + i, i % 100 == 0 ? ", \"port\": -1" : ""));
+        }
+        ConfigLoadResult result = load(json.append(']').toString());
+
+        int invalid = (count + 99) / 100;
+        assertEquals(count - invalid, result.getCameras().size());
+        assertEquals(invalid, result.getErrors().size());
+        // los errores se devuelven en el orden del archivo aunque cada bloque se valide por separado
+        for (int i = 0; i < invalid; i++) {
+            assertEquals(i * 100, result.getErrors().get(i).getIndex());
+        }
+        assertEquals("cam1", result.getCameras().get(0).getName());
+    }
+
+    @Test
+    void failsTheWholeFileOnlyWhenItIsNotAList() {
+        assertThrows(IOException.class, () -> load(""));
+        assertThrows(IOException.class, () -> load("{\"name\": \"entrada\"}"));
+        assertThrows(IOException.class, () -> load("[" + camera("entrada", "")));
+    }
+
+    private static void assertInvalid(String extra) throws IOException {
+        ConfigLoadResult result = load("[" + camera("entrada", extra) + "]");
+        assertTrue(result.getCameras().isEmpty(), extra);
+        assertEquals(1, result.getErrors().size(), extra);
+    }
+
+    private static String camera(String name, String extra) {
+        // los campos repetidos en extra sustituyen a los anteriores, como en cualquier JSON leído en orden
+        return String.format(CAMERA, name, extra);
+    }
+
+    private static ConfigLoadResult load(String json) throws IOException {
+        return CameraConfigLoader.load(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), "test");
+    }
+}
@@ -0,0 +1,54 @@
+package org.home.sync.hls;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class HlsConnectionTest {
+
+    private static final long SIZE = 1000;
+
+    @Test
+    void parsesAClosedRange() {
+        assertArrayEquals(new long[]{0, 100}, HlsConnection.parseRange("bytes=0-99", SIZE));
+        assertArrayEquals(new long[]{500, 501}, HlsConnection.parseRange("bytes= 500-500", SIZE));
+    }
+
+    @Test
+    void parsesAnOpenRangeUpToTheEnd() {
+        assertArrayEquals(new long[]{900, SIZE}, HlsConnection.parseRange("bytes=900-", SIZE));
+    }
+
+    @Test
+    void parsesASuffixRange() {
+        assertArrayEquals(new long[]{SIZE - 200, SIZE}, HlsConnection.parseRange("bytes=-200", SIZE));
+        // más que el segmento entero: se manda todo
+        assertArrayEquals(new long[]{0, SIZE}, HlsConnection.parseRange("bytes=-5000", SIZE));
+    }
+
+    @Test
+    void limitsTheEndToTheSize() {
+        assertArrayEquals(new long[]{990, SIZE}, HlsConnection.parseRange("bytes=990-2000", SIZE));
+        assertArrayEquals(new long[]{0, SIZE}, HlsConnection.parseRange("bytes=0-" + Long.MAX_VALUE, SIZE));
+    }
+
+    @Test
+    void leavesUnsatisfiableRangesToTheCaller() {
+        // el que llama contesta 416 cuando el inicio no queda antes del fin ni dentro del segmento
+        assertArrayEquals(new long[]{SIZE, SIZE}, HlsConnection.parseRange("bytes=-0", SIZE));
+        assertArrayEquals(new long[]{2000, SIZE}, HlsConnection.parseRange("bytes=2000-", SIZE));
+        assertArrayEquals(new long[]{50, 11}, HlsConnection.parseRange("bytes=50-10", SIZE));
+        assertArrayEquals(new long[]{0, 0}, HlsConnection.parseRange("bytes=0-10", 0));
+    }
+
+    @Test
+    void ignoresWhatIsNotASingleByteRange() {
+        assertNull(HlsConnection.parseRange("bytes=0-99,200-299", SIZE));
+        assertNull(HlsConnection.parseRange("items=0-99", SIZE));
+        assertNull(HlsConnection.parseRange("bytes=100", SIZE));
+        assertNull(HlsConnection.parseRange("bytes=-", SIZE));
+        assertNull(HlsConnection.parseRange("bytes=a-b", SIZE));
+        assertNull(HlsConnection.parseRange("bytes=0-99999999999999999999", SIZE));
+    }
+}
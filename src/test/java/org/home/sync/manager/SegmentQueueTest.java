@@ -0,0 +1,75 @@
+package org.home.sync.manager;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentQueueTest {
+
+    private final SegmentQueue queue = new SegmentQueue(ZoneOffset.UTC);
+
+    @Test
+    void sortsWhatIsLoadedInAnyOrder() {
+        List<Integer> minutes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            minutes.add(i);
+        }
+        Collections.shuffle(minutes, new Random(7));
+        for (int minute : minutes) {
+            String name = name(minute);
+            queue.append(name, queue.startFromName(name), 10);
+        }
+        queue.sort();
+
+        assertEquals(1000, queue.size());
+        assertEquals(10_000, queue.getTotalBytes());
+        assertEquals(name(999), queue.newestName());
+        for (int minute = 0; minute < 999; minute++) {
+            assertEquals(name(minute), queue.oldestName());
+            queue.removeOldest();
+        }
+    }
+
+    @Test
+    void dropsRepeatedSegmentsWhenSorting() {
+        // un .ts y su reempaquetado se cargan con el mismo nombre: cuenta el primero
+        queue.append(name(2), queue.startFromName(name(2)), 30);
+        queue.append(name(1), queue.startFromName(name(1)), 10);
+        queue.append(name(2), queue.startFromName(name(2)), 20);
+        queue.append("manual.ts", queue.startFromName(name(2)), 5);
+        queue.sort();
+
+        assertEquals(3, queue.size());
+        assertEquals(45, queue.getTotalBytes());
+        assertEquals(name(1), queue.oldestName());
+    }
+
+    @Test
+    void keepsAddingInOrderAfterSorting() {
+        queue.append(name(5), queue.startFromName(name(5)), 1);
+        queue.append(name(3), queue.startFromName(name(3)), 1);
+        queue.sort();
+        queue.add(name(4), queue.startFromName(name(4)), 1);
+        queue.add(name(6), queue.startFromName(name(6)), 1);
+        queue.add(name(6), queue.startFromName(name(6)), 1);
+
+        assertEquals(4, queue.size());
+        assertTrue(queue.updateSize(name(4), 7));
+        assertEquals(10, queue.getTotalBytes());
+        assertEquals(name(3), queue.oldestName());
+        queue.removeOldest();
+        assertEquals(name(4), queue.oldestName());
+        assertEquals(name(6), queue.newestName());
+    }
+
+    private static String name(int minute) {
+        return String.format("20240101-%02d%02d00.ts", minute / 60, minute % 60);
+    }
+}
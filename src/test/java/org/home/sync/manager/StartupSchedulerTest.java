@@ -0,0 +1,33 @@
+package org.home.sync.manager;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StartupSchedulerTest {
+
+    @Test
+    void usesTheConfiguredRate() {
+        assertEquals(2.5, StartupScheduler.parseRate("2.5"));
+        assertEquals(10.0, StartupScheduler.parseRate(" 10 "));
+    }
+
+    @Test
+    void fallsBackToTheDefaultWhenMissing() {
+        assertEquals(StartupScheduler.DEFAULT_RATE_PER_SECOND, StartupScheduler.parseRate(null));
+    }
+
+    @Test
+    void fallsBackToTheDefaultWhenNotANumber() {
+        assertEquals(StartupScheduler.DEFAULT_RATE_PER_SECOND, StartupScheduler.parseRate("fast"));
+        assertEquals(StartupScheduler.DEFAULT_RATE_PER_SECOND, StartupScheduler.parseRate("NaN"));
+        assertEquals(StartupScheduler.DEFAULT_RATE_PER_SECOND, StartupScheduler.parseRate("Infinity"));
+    }
+
+    @Test
+    void fallsBackToTheDefaultWhenNotPositive() {
+        // con 0 o menos el cubo no se rellenaría nunca y no arrancaría ninguna cámara
+        assertEquals(StartupScheduler.DEFAULT_RATE_PER_SECOND, StartupScheduler.parseRate("0"));
+        assertEquals(StartupScheduler.DEFAULT_RATE_PER_SECOND, StartupScheduler.parseRate("-3"));
+    }
+}
@@ -0,0 +1,67 @@
+package org.home.sync.recording.rtsp;
+
+import org.home.sync.recording.ts.TsSegmentWriter;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Escritor de segmentos que en lugar de escribir guarda los fotogramas que le entregan los depaquetizadores.
+ */
+class CapturingWriter extends TsSegmentWriter {
+
+    final List<byte[]> frames = new ArrayList<>();
+    final List<Boolean> keyframes = new ArrayList<>();
+    long dropped;
+
+    CapturingWriter() {
+        super(Paths.get("no-se-usa"), 1, false, null, null);
+    }
+
+    @Override
+    public void writeVideo(ByteBuffer frame, long pts, boolean keyframe) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        frames.add(bytes);
+        keyframes.add(keyframe);
+    }
+
+    @Override
+    public void recordDropped(long count) {
+        dropped += count;
+    }
+
+    /**
+     * @return un paquete RTP (sólo la carga) con esos bytes.
+     */
+    static ByteBuffer packet(int... bytes) {
+        ByteBuffer packet = ByteBuffer.allocate(bytes.length);
+        for (int b : bytes) {
+            packet.put((byte) b);
+        }
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Junta unidades NAL en formato Annex B, cada una con su código de inicio.
+     */
+    static byte[] annexB(int[]... nals) {
+        int size = 0;
+        for (int[] nal : nals) {
+            size += 4 + nal.length;
+        }
+        byte[] bytes = new byte[size];
+        int position = 0;
+        for (int[] nal : nals) {
+            bytes[position + 3] = 1;
+            position += 4;
+            for (int b : nal) {
+                bytes[position++] = (byte) b;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,118 @@
+package org.home.sync.recording.rtsp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.home.sync.recording.rtsp.CapturingWriter.annexB;
+import static org.home.sync.recording.rtsp.CapturingWriter.packet;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class H264DepacketizerTest {
+
+    private static final int[] AUD = {0x09, 0xF0};
+    private static final int[] SPS = {0x67, 0x42, 0x00, 0x1F};
+    private static final int[] PPS = {0x68, 0xCE, 0x3C, 0x80};
+
+    private final CapturingWriter writer = new CapturingWriter();
+    private final H264Depacketizer depacketizer = depacketizer("");
+
+    @Test
+    void reassemblesFuA() throws IOException {
+        // IDR (0x65) partido en tres: indicador 0x7C (NRI 3, tipo 28) y cabeceras FU de inicio, medio y fin
+        send(1, 1000, false, 0x7C, 0x85, 0x11, 0x12);
+        send(2, 1000, false, 0x7C, 0x05, 0x13);
+        send(3, 1000, true, 0x7C, 0x45, 0x14, 0x15);
+
+        assertEquals(1, writer.frames.size());
+        assertArrayEquals(annexB(AUD, new int[]{0x65, 0x11, 0x12, 0x13, 0x14, 0x15}), writer.frames.get(0));
+        assertTrue(writer.keyframes.get(0));
+        assertEquals(0, writer.dropped);
+    }
+
+    @Test
+    void splitsStapA() throws IOException {
+        // SPS y PPS agregados en un STAP-A (0x78) y el IDR en un paquete suelto
+        send(1, 1000, false, 0x78, 0x00, 0x04, 0x67, 0x42, 0x00, 0x1F, 0x00, 0x04, 0x68, 0xCE, 0x3C, 0x80);
+        send(2, 1000, true, 0x65, 0x88, 0x84);
+
+        assertEquals(1, writer.frames.size());
+        assertArrayEquals(annexB(AUD, SPS, PPS, new int[]{0x65, 0x88, 0x84}), writer.frames.get(0));
+    }
+
+    @Test
+    void ignoresATruncatedUnitInsideStapA() throws IOException {
+        send(1, 1000, true, 0x78, 0x00, 0x01, 0x41, 0x00, 0x09, 0x41, 0x9A);
+
+        assertArrayEquals(annexB(AUD, new int[]{0x41}), writer.frames.get(0));
+    }
+
+    @Test
+    void discardsAFuAWithALostPacket() throws IOException {
+        send(1, 1000, false, 0x7C, 0x85, 0x11);
+        send(3, 1000, true, 0x7C, 0x45, 0x14);
+
+        assertTrue(writer.frames.isEmpty());
+        assertEquals(1, writer.dropped);
+    }
+
+    @Test
+    void keepsTheRestOfAFrameWithALostFragment() throws IOException {
+        // el slice que no ha perdido nada llega, el fotograma se cuenta como perdido
+        send(1, 1000, false, 0x41, 0x9A);
+        send(2, 1000, false, 0x5C, 0x81, 0x21);
+        send(4, 1000, true, 0x5C, 0x41, 0x23);
+
+        assertArrayEquals(annexB(AUD, new int[]{0x41, 0x9A}), writer.frames.get(0));
+        assertEquals(1, writer.dropped);
+    }
+
+    @Test
+    void endsTheFrameWhenTheTimestampChanges() throws IOException {
+        send(1, 1000, false, 0x41, 0x01);
+        send(2, 4000, false, 0x41, 0x02);
+
+        assertEquals(1, writer.frames.size());
+        assertFalse(writer.keyframes.get(0));
+        assertArrayEquals(annexB(AUD, new int[]{0x41, 0x01}), writer.frames.get(0));
+    }
+
+    @Test
+    void addsTheParameterSetsOfTheSdpToKeyframes() throws IOException {
+        H264Depacketizer fromSdp = depacketizer(";sprop-parameter-sets=Z0IAHw==,aM48gA==");
+        send(fromSdp, 1, 1000, true, 0x65, 0x88);
+        send(fromSdp, 2, 4000, true, 0x41, 0x9A);
+
+        assertArrayEquals(annexB(AUD, SPS, PPS, new int[]{0x65, 0x88}), writer.frames.get(0));
+        // los fotogramas que no son clave no los necesitan
+        assertArrayEquals(annexB(AUD, new int[]{0x41, 0x9A}), writer.frames.get(1));
+    }
+
+    @Test
+    void dropsTheAccessUnitDelimitersOfTheCamera() throws IOException {
+        send(1, 1000, false, 0x09, 0x10);
+        send(2, 1000, true, 0x41, 0x9A);
+
+        assertArrayEquals(annexB(AUD, new int[]{0x41, 0x9A}), writer.frames.get(0));
+    }
+
+    private void send(int sequence, int timestamp, boolean marker, int... payload) throws IOException {
+        send(depacketizer, sequence, timestamp, marker, payload);
+    }
+
+    private static void send(H264Depacketizer target, int sequence, int timestamp, boolean marker, int... payload)
+    throws IOException {
+        ByteBuffer packet = packet(payload);
+        target.onPacket(packet, 0, packet.remaining(), sequence, timestamp, marker, 0);
+    }
+
+    private H264Depacketizer depacketizer(String format) {
+        SessionDescription sdp = SessionDescription.parse("m=video 0 RTP/AVP 96\r\na=rtpmap:96 H264/90000\r\n"
+                + "a=fmtp:96 packetization-mode=1" + format + "\r\n");
+        return new H264Depacketizer(new RtpClock(90_000, 0), writer, new BufferPool(), sdp.firstTrack("video"));
+    }
+}
@@ -0,0 +1,90 @@
+package org.home.sync.recording.rtsp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.home.sync.recording.rtsp.CapturingWriter.annexB;
+import static org.home.sync.recording.rtsp.CapturingWriter.packet;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class H265DepacketizerTest {
+
+    private static final int[] AUD = {0x46, 0x01, 0x50};
+    private static final int[] VPS = {0x40, 0x01, 0x0C};
+    private static final int[] SPS = {0x42, 0x01, 0x01};
+    private static final int[] PPS = {0x44, 0x01, 0xC1};
+
+    private final CapturingWriter writer = new CapturingWriter();
+    private final H265Depacketizer depacketizer = depacketizer("");
+
+    @Test
+    void reassemblesFu() throws IOException {
+        // IDR_W_RADL (19) partido en tres: cabecera de FU (tipo 49) y cabeceras de inicio, medio y fin
+        send(1, 1000, false, 0x62, 0x01, 0x93, 0x11, 0x12);
+        send(2, 1000, false, 0x62, 0x01, 0x13, 0x13);
+        send(3, 1000, true, 0x62, 0x01, 0x53, 0x14);
+
+        assertEquals(1, writer.frames.size());
+        assertArrayEquals(annexB(AUD, new int[]{0x26, 0x01, 0x11, 0x12, 0x13, 0x14}), writer.frames.get(0));
+        assertTrue(writer.keyframes.get(0));
+        assertEquals(0, writer.dropped);
+    }
+
+    @Test
+    void splitsAp() throws IOException {
+        // VPS, SPS y PPS agregados en un AP (tipo 48) y el IDR en un paquete suelto
+        send(1, 1000, false, 0x60, 0x01, 0x00, 0x03, 0x40, 0x01, 0x0C, 0x00, 0x03, 0x42, 0x01, 0x01,
+                0x00, 0x03, 0x44, 0x01, 0xC1);
+        send(2, 1000, true, 0x26, 0x01, 0xAF);
+
+        assertEquals(1, writer.frames.size());
+        assertArrayEquals(annexB(AUD, VPS, SPS, PPS, new int[]{0x26, 0x01, 0xAF}), writer.frames.get(0));
+    }
+
+    @Test
+    void discardsAFuWithALostPacket() throws IOException {
+        send(1, 1000, false, 0x62, 0x01, 0x93, 0x11);
+        send(2, 1000, false, 0x62, 0x01, 0x13, 0x12);
+        send(4, 1000, true, 0x62, 0x01, 0x53, 0x14);
+
+        assertTrue(writer.frames.isEmpty());
+        assertEquals(1, writer.dropped);
+    }
+
+    @Test
+    void discardsAFuWithoutItsEnd() throws IOException {
+        // llega el principio de otra unidad sin el final de la anterior
+        send(1, 1000, false, 0x02, 0x01, 0xD0);
+        send(2, 1000, false, 0x62, 0x01, 0x81, 0x11);
+        send(3, 1000, false, 0x62, 0x01, 0x81, 0x21);
+        send(4, 1000, true, 0x62, 0x01, 0x41, 0x22);
+
+        assertArrayEquals(annexB(AUD, new int[]{0x02, 0x01, 0xD0}, new int[]{0x02, 0x01, 0x21, 0x22}),
+                writer.frames.get(0));
+        assertEquals(1, writer.dropped);
+    }
+
+    @Test
+    void addsTheParameterSetsOfTheSdpToKeyframes() throws IOException {
+        H265Depacketizer fromSdp = depacketizer(";sprop-vps=QAEM;sprop-sps=QgEB;sprop-pps=RAHB");
+        ByteBuffer packet = packet(0x28, 0x01, 0xAF);
+        fromSdp.onPacket(packet, 0, packet.remaining(), 1, 1000, true, 0);
+
+        assertArrayEquals(annexB(AUD, VPS, SPS, PPS, new int[]{0x28, 0x01, 0xAF}), writer.frames.get(0));
+    }
+
+    private void send(int sequence, int timestamp, boolean marker, int... payload) throws IOException {
+        ByteBuffer packet = packet(payload);
+        depacketizer.onPacket(packet, 0, packet.remaining(), sequence, timestamp, marker, 0);
+    }
+
+    private H265Depacketizer depacketizer(String format) {
+        SessionDescription sdp = SessionDescription.parse("m=video 0 RTP/AVP 96\r\na=rtpmap:96 H265/90000\r\n"
+                + "a=fmtp:96 profile-id=1" + format + "\r\n");
+        return new H265Depacketizer(new RtpClock(90_000, 0), writer, new BufferPool(), sdp.firstTrack("video"));
+    }
+}
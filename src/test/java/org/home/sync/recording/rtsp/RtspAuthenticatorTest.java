@@ -0,0 +1,124 @@
+package org.home.sync.recording.rtsp;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RtspAuthenticatorTest {
+
+    private static final String URI = "rtsp://192.168.1.10:554/stream1";
+
+    @Test
+    void answersBasic() {
+        RtspAuthenticator authenticator = RtspAuthenticator.fromChallenge("Basic realm=\"cam\"", "admin", "secret");
+
+        String expected = "Basic " + Base64.getEncoder().encodeToString("admin:secret"
+                .getBytes(StandardCharsets.UTF_8));
+        assertEquals(expected, authenticator.authorization("DESCRIBE", URI));
+    }
+
+    @Test
+    void answersDigestWithoutQop() throws NoSuchAlgorithmException {
+        RtspAuthenticator authenticator = RtspAuthenticator.fromChallenge(
+                "Digest realm=\"IP Camera(C1234)\", nonce=\"0a1b2c3d\", stale=\"FALSE\"", "admin", "secret");
+
+        Map<String, String> header = parse(authenticator.authorization("DESCRIBE", URI));
+
+        assertEquals("admin", header.get("username"));
+        assertEquals("IP Camera(C1234)", header.get("realm"));
+        assertEquals("0a1b2c3d", header.get("nonce"));
+        assertEquals(URI, header.get("uri"));
+        assertNull(header.get("qop"));
+        String ha1 = md5("admin:IP Camera(C1234):secret");
+        String ha2 = md5("DESCRIBE:" + URI);
+        assertEquals(md5(ha1 + ":0a1b2c3d:" + ha2), header.get("response"));
+    }
+
+    @Test
+    void answersDigestWithQopAndCountsTheNonces() throws NoSuchAlgorithmException {
+        // ejemplo del RFC 2617, con el URI y el método de RTSP
+        RtspAuthenticator authenticator = RtspAuthenticator.fromChallenge("Digest realm=\"testrealm@host.com\", "
+                + "qop=\"auth,auth-int\", nonce=\"dcd98b7102dd2f0e8b11d0f600bfb0c093\", "
+                + "opaque=\"5ccc069c403ebaf9f0171e9517f40e41\"", "Mufasa", "Circle Of Life");
+
+        Map<String, String> first = parse(authenticator.authorization("SETUP", URI));
+        Map<String, String> second = parse(authenticator.authorization("PLAY", URI));
+
+        assertEquals("auth", first.get("qop"));
+        assertEquals("00000001", first.get("nc"));
+        assertEquals("00000002", second.get("nc"));
+        assertEquals("5ccc069c403ebaf9f0171e9517f40e41", first.get("opaque"));
+        String ha1 = md5("Mufasa:testrealm@host.com:Circle Of Life");
+        String expected = md5(ha1 + ":dcd98b7102dd2f0e8b11d0f600bfb0c093:00000001:" + first.get("cnonce")
+                + ":auth:" + md5("SETUP:" + URI));
+        assertEquals(expected, first.get("response"));
+        assertNotEquals(first.get("response"), second.get("response"));
+    }
+
+    @Test
+    void readsParametersWithoutQuotesOrWithCommasInside() {
+        RtspAuthenticator authenticator = RtspAuthenticator.fromChallenge("DIGEST nonce=abc , realm=\"a, b\"",
+                "admin", "secret");
+
+        Map<String, String> header = parse(authenticator.authorization("DESCRIBE", URI));
+
+        assertEquals("abc", header.get("nonce"));
+        assertEquals("a, b", header.get("realm"));
+    }
+
+    @Test
+    void rejectsUnknownSchemes() {
+        assertNull(RtspAuthenticator.fromChallenge("Bearer realm=\"cam\"", "admin", "secret"));
+        assertNull(RtspAuthenticator.fromChallenge("  ", "admin", "secret"));
+        assertFalse(RtspAuthenticator.fromChallenge("Basic", "admin", "secret").authorization("PLAY", URI)
+                .startsWith("Digest"));
+        assertTrue(RtspAuthenticator.fromChallenge("digest", "admin", "secret").authorization("PLAY", URI)
+                .startsWith("Digest"));
+    }
+
+    /**
+     * Separa los parámetros de una cabecera {@code Authorization: Digest ...}.
+     */
+    private static Map<String, String> parse(String authorization) {
+        Map<String, String> parameters = new HashMap<>();
+        String text = authorization.substring("Digest ".length());
+        int i = 0;
+        while (i < text.length()) {
+            int equals = text.indexOf('=', i);
+            String name = text.substring(i, equals).trim();
+            int end;
+            String value;
+            if (text.charAt(equals + 1) == '"') {
+                end = text.indexOf('"', equals + 2);
+                value = text.substring(equals + 2, end);
+                end++;
+            } else {
+                end = text.indexOf(',', equals);
+                end = end < 0 ? text.length() : end;
+                value = text.substring(equals + 1, end);
+            }
+            parameters.put(name, value);
+            i = end + 1;
+        }
+        return parameters;
+    }
+
+    private static String md5(String text) throws NoSuchAlgorithmException {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(text.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
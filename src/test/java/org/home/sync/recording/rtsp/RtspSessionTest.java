@@ -0,0 +1,71 @@
+package org.home.sync.recording.rtsp;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RtspSessionTest {
+
+    @Test
+    void parsesResponseHeadersCaseInsensitively() {
+        String head = "RTSP/1.0 200 OK\r\nCSeq: 2\r\nContent-Base: rtsp://cam/stream1/\r\n"
+                + "Content-Type: application/sdp\r\nSession:  12345678;timeout=60 \r\n";
+
+        Map<String, String> headers = RtspSession.headers(head, head.indexOf("\r\n"));
+
+        assertEquals("2", headers.get("cseq"));
+        assertEquals("rtsp://cam/stream1/", headers.get("content-base"));
+        assertEquals("12345678;timeout=60", headers.get("session"));
+    }
+
+    @Test
+    void keepsTheColonsOfTheValue() {
+        String head = "RTSP/1.0 200 OK\r\nContent-Base: rtsp://192.168.1.10:554/stream1/\r\nsin dos puntos\r\n";
+
+        Map<String, String> headers = RtspSession.headers(head, head.indexOf("\r\n"));
+
+        assertEquals("rtsp://192.168.1.10:554/stream1/", headers.get("content-base"));
+        assertEquals(1, headers.size());
+    }
+
+    @Test
+    void prefersDigestWhenSeveralSchemesAreOffered() {
+        String digestFirst = "RTSP/1.0 401 Unauthorized\r\nWWW-Authenticate: Digest realm=\"cam\", nonce=\"n\"\r\n"
+                + "WWW-Authenticate: Basic realm=\"cam\"\r\n";
+        String basicFirst = "RTSP/1.0 401 Unauthorized\r\nWWW-Authenticate: Basic realm=\"cam\"\r\n"
+                + "WWW-Authenticate: Digest realm=\"cam\", nonce=\"n\"\r\n";
+
+        assertTrue(RtspSession.headers(digestFirst, digestFirst.indexOf("\r\n")).get("www-authenticate")
+                .startsWith("Digest"));
+        assertTrue(RtspSession.headers(basicFirst, basicFirst.indexOf("\r\n")).get("www-authenticate")
+                .startsWith("Digest"));
+    }
+
+    @Test
+    void readsTheContentLength() {
+        assertEquals(460, RtspSession.contentLength("RTSP/1.0 200 OK\r\nContent-Length: 460\r\n"));
+        assertEquals(0, RtspSession.contentLength("RTSP/1.0 200 OK\r\nCSeq: 1\r\n"));
+        assertEquals(0, RtspSession.contentLength("RTSP/1.0 200 OK\r\nContent-Length: -4\r\n"));
+        assertEquals(0, RtspSession.contentLength("RTSP/1.0 200 OK\r\nContent-Length: mucho\r\n"));
+        assertEquals(0, RtspSession.contentLength("RTSP/1.0 200 OK"));
+    }
+
+    @Test
+    void returnsNoHeadersWithoutTheEndOfTheStatusLine() {
+        assertTrue(RtspSession.headers("RTSP/1.0 200 OK", -1).isEmpty());
+        assertNull(RtspSession.headers("RTSP/1.0 200 OK\r\n", 15).get("cseq"));
+    }
+
+    @Test
+    void readsTheInterleavedChannelAssignedByTheCamera() {
+        assertEquals(0, RtspSession.interleavedChannel("RTP/AVP/TCP;unicast;interleaved=0-1"));
+        assertEquals(4, RtspSession.interleavedChannel("RTP/AVP/TCP;unicast;interleaved=4-5;ssrc=1A2B3C4D"));
+        assertEquals(-1, RtspSession.interleavedChannel("RTP/AVP;unicast;client_port=5000-5001"));
+        assertEquals(-1, RtspSession.interleavedChannel("RTP/AVP/TCP;interleaved="));
+        assertEquals(-1, RtspSession.interleavedChannel(null));
+    }
+}
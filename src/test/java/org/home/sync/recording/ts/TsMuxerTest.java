@@ -0,0 +1,218 @@
+package org.home.sync.recording.ts;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TsMuxerTest {
+
+    private static final int SIZE = TsMuxer.PACKET_SIZE;
+
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private int writes;
+
+    @Test
+    void writesThePatAndThePmt() throws IOException {
+        TsMuxer muxer = muxer(64 * SIZE, true);
+        muxer.writeTables();
+        muxer.flush();
+
+        byte[] bytes = written.toByteArray();
+        assertEquals(2 * SIZE, bytes.length);
+        assertHeader(bytes, 0, TsMuxer.PAT_PID, true, 0);
+        assertHeader(bytes, SIZE, TsMuxer.PMT_PID, true, 0);
+        // la PAT apunta a la PMT, y la PMT al video (que lleva el PCR) y al audio
+        assertEquals(TsMuxer.PMT_PID, (bytes[5 + 10] & 0x1F) << 8 | bytes[5 + 11] & 0xFF);
+        int pmt = SIZE + 5;
+        assertEquals(TsMuxer.VIDEO_PID, (bytes[pmt + 8] & 0x1F) << 8 | bytes[pmt + 9] & 0xFF);
+        assertEquals(TsMuxer.STREAM_TYPE_H264, bytes[pmt + 12]);
+        assertEquals(TsMuxer.STREAM_TYPE_AAC, bytes[pmt + 17]);
+        assertEquals(TsMuxer.AUDIO_PID, (bytes[pmt + 18] & 0x1F) << 8 | bytes[pmt + 19] & 0xFF);
+        assertEquals(0, crc(bytes, 5));
+        assertEquals(0, crc(bytes, pmt));
+        assertEquals((byte) 0xFF, bytes[SIZE - 1]);
+    }
+
+    @Test
+    void leavesTheAudioOutOfThePmtWhenThereIsNone() throws IOException {
+        TsMuxer muxer = muxer(SIZE * 4, false);
+        muxer.writeTables();
+        muxer.flush();
+
+        byte[] bytes = written.toByteArray();
+        int pmt = SIZE + 5;
+        assertEquals(9 + 5 + 4, ((bytes[pmt + 1] & 0x0F) << 8 | bytes[pmt + 2] & 0xFF));
+        assertEquals(0, crc(bytes, pmt));
+    }
+
+    @Test
+    void writesASmallKeyframeInOnePacketWithPcr() throws IOException {
+        TsMuxer muxer = muxer(64 * SIZE, false);
+        byte[] frame = frame(100);
+        muxer.writeVideo(ByteBuffer.wrap(frame), 90_000, true);
+        muxer.flush();
+
+        byte[] bytes = written.toByteArray();
+        assertEquals(SIZE, bytes.length);
+        assertHeader(bytes, 0, TsMuxer.VIDEO_PID, true, 0);
+        assertEquals(0x30, bytes[3] & 0x30);
+        int adaptation = SIZE - 4 - 14 - frame.length;
+        assertEquals(adaptation - 1, bytes[4] & 0xFF);
+        // PCR y random_access_indicator
+        assertEquals(0x50, bytes[5] & 0xFF);
+        assertEquals(90_000 - TsMuxer.PCR_DELAY, pcr(bytes, 6));
+        int pes = 4 + adaptation;
+        assertEquals(0xE0, bytes[pes + 3] & 0xFF);
+        assertEquals(90_000, pts(bytes, pes + 9));
+        assertArrayEquals(frame, slice(bytes, pes + 14, SIZE));
+    }
+
+    @Test
+    void splitsALargeFrameAcrossPackets() throws IOException {
+        TsMuxer muxer = muxer(64 * SIZE, false);
+        byte[] frame = frame(1000);
+        muxer.writeVideo(ByteBuffer.wrap(frame), 180_000, false);
+        muxer.flush();
+
+        byte[] bytes = written.toByteArray();
+        // el primero lleva el PCR (8) y la cabecera PES (14): 162 bytes, y el resto de 184 en 184
+        assertEquals(1 + (1000 - 162 + 183) / 184, bytes.length / SIZE);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (int i = 0; i < bytes.length / SIZE; i++) {
+            int offset = i * SIZE;
+            assertHeader(bytes, offset, TsMuxer.VIDEO_PID, i == 0, i);
+            int start = payloadStart(bytes, offset);
+            if (i == 0) {
+                assertEquals(0x10, bytes[offset + 5] & 0xFF);
+                start += 14;
+            }
+            payload.write(bytes, start, offset + SIZE - start);
+        }
+        assertArrayEquals(frame, payload.toByteArray());
+    }
+
+    @Test
+    void wrapsTheContinuityCounterOfEachPid() throws IOException {
+        TsMuxer muxer = muxer(64 * SIZE, true);
+        for (int i = 0; i < 17; i++) {
+            muxer.writeVideo(ByteBuffer.wrap(frame(10)), 90_000 + i * 3000L, false);
+        }
+        muxer.writeAudio(ByteBuffer.wrap(frame(10)), 90_000);
+        muxer.flush();
+
+        byte[] bytes = written.toByteArray();
+        assertEquals(15, bytes[15 * SIZE + 3] & 0x0F);
+        assertEquals(0, bytes[16 * SIZE + 3] & 0x0F);
+        // el audio lleva su propio contador
+        assertHeader(bytes, 17 * SIZE, TsMuxer.AUDIO_PID, true, 0);
+    }
+
+    @Test
+    void setsTheLengthOfAudioPes() throws IOException {
+        TsMuxer muxer = muxer(64 * SIZE, true);
+        byte[] frames = frame(50);
+        muxer.writeAudio(ByteBuffer.wrap(frames), 95_000);
+        muxer.flush();
+
+        byte[] bytes = written.toByteArray();
+        int pes = payloadStart(bytes, 0);
+        assertEquals(0xC0, bytes[pes + 3] & 0xFF);
+        assertEquals(8 + frames.length, (bytes[pes + 4] & 0xFF) << 8 | bytes[pes + 5] & 0xFF);
+        assertEquals(95_000, pts(bytes, pes + 9));
+        // sin PCR: el hueco es relleno
+        assertEquals(0, bytes[5] & 0x10);
+        assertArrayEquals(frames, slice(bytes, pes + 14, SIZE));
+    }
+
+    @Test
+    void handsOverWholePacketsWhenTheBufferFills() throws IOException {
+        TsMuxer muxer = muxer(SIZE, false);
+        muxer.writeTables();
+        muxer.writeVideo(ByteBuffer.wrap(frame(1000)), 90_000, true);
+        muxer.flush();
+
+        assertEquals(0, written.size() % SIZE);
+        assertEquals(written.size() / SIZE, writes);
+        byte[] bytes = written.toByteArray();
+        for (int offset = 0; offset < bytes.length; offset += SIZE) {
+            assertEquals(0x47, bytes[offset]);
+        }
+    }
+
+    @Test
+    void wrapsThePtsAt33Bits() throws IOException {
+        TsMuxer muxer = muxer(64 * SIZE, false);
+        muxer.writeVideo(ByteBuffer.wrap(frame(100)), (1L << 33) + 1234, false);
+        muxer.flush();
+
+        byte[] bytes = written.toByteArray();
+        assertEquals(1234, pts(bytes, payloadStart(bytes, 0) + 9));
+        assertTrue(pcr(bytes, 6) > 1234);
+    }
+
+    private TsMuxer muxer(int capacity, boolean audio) {
+        return new TsMuxer(ByteBuffer.allocate(capacity), packets -> {
+            writes++;
+            byte[] bytes = new byte[packets.remaining()];
+            packets.get(bytes);
+            written.write(bytes, 0, bytes.length);
+        }, TsMuxer.STREAM_TYPE_H264, audio);
+    }
+
+    private static void assertHeader(byte[] bytes, int offset, int pid, boolean start, int counter) {
+        assertEquals(0x47, bytes[offset]);
+        assertEquals(start, (bytes[offset + 1] & 0x40) != 0);
+        assertEquals(pid, (bytes[offset + 1] & 0x1F) << 8 | bytes[offset + 2] & 0xFF);
+        assertEquals(counter & 0x0F, bytes[offset + 3] & 0x0F);
+    }
+
+    private static int payloadStart(byte[] bytes, int offset) {
+        boolean adaptation = (bytes[offset + 3] & 0x20) != 0;
+        return offset + 4 + (adaptation ? 1 + (bytes[offset + 4] & 0xFF) : 0);
+    }
+
+    private static long pcr(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFFL) << 25 | (bytes[offset + 1] & 0xFFL) << 17 | (bytes[offset + 2] & 0xFFL) << 9
+                | (bytes[offset + 3] & 0xFFL) << 1 | (bytes[offset + 4] & 0xFFL) >> 7;
+    }
+
+    private static long pts(byte[] bytes, int offset) {
+        return (bytes[offset] & 0x0EL) << 29 | (bytes[offset + 1] & 0xFFL) << 22 | (bytes[offset + 2] & 0xFEL) << 14
+                | (bytes[offset + 3] & 0xFFL) << 7 | (bytes[offset + 4] & 0xFFL) >> 1;
+    }
+
+    /**
+     * CRC-32/MPEG-2 de una sección entera, con su CRC: da 0 si es correcto.
+     */
+    private static int crc(byte[] bytes, int offset) {
+        int length = 3 + ((bytes[offset + 1] & 0x0F) << 8 | bytes[offset + 2] & 0xFF);
+        int crc = 0xFFFFFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (bytes[i] & 0xFF) << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = crc < 0 ? crc << 1 ^ 0x04C11DB7 : crc << 1;
+            }
+        }
+        return crc;
+    }
+
+    private static byte[] frame(int length) {
+        byte[] frame = new byte[length];
+        for (int i = 0; i < length; i++) {
+            frame[i] = (byte) (i * 31 + 7);
+        }
+        return frame;
+    }
+
+    private static byte[] slice(byte[] bytes, int from, int to) {
+        byte[] slice = new byte[to - from];
+        System.arraycopy(bytes, from, slice, 0, slice.length);
+        return slice;
+    }
+}